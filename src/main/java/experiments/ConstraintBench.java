@@ -0,0 +1,280 @@
+package experiments;
+
+import scheduler.BaseScheduler;
+import scheduler.BestFitPlacement;
+import scheduler.FirstFitPlacement;
+import scheduler.OmegaScheduler;
+import scheduler.PlacementPolicy;
+import scheduler.PowerOfDChoicesPlacement;
+import scheduler.RandomFirstFitPlacement;
+import scheduler.WorstFitPlacement;
+import simulator.OmegaSimulator;
+import simulator.core.CellState;
+import simulator.core.ClaimDelta;
+import simulator.core.Job;
+import simulator.core.MachineAttributes;
+import simulator.core.PlacementConstraint;
+
+import java.io.PrintWriter;
+import java.util.*;
+
+/**
+ * Times placement constraints on a large cell and prints a CSV to stdout: how
+ * long the attribute index takes to build and how big it is, how long finding
+ * a job's eligible machines takes, and the microseconds each placement policy
+ * needs to place a 10-task job with no constraints and with three kinds of
+ * them.
+ * <pre>
+ *   java experiments.ConstraintBench [--machines 100000] [--seed S]
+ * </pre>
+ * The cell is about half full, at random. Machines have a zone of 100 values,
+ * a scattered numeric kernel attribute from 3 to 6, and a rack of 50
+ * consecutive machines. The constrained jobs ask for one zone ("zone"), one
+ * zone with a recent kernel off one rack ("multi"), or a recent kernel
+ * outside one zone, which most machines meet ("broad").
+ *
+ * For comparison, "blind" policies place the same way over the whole cell but
+ * only find out about constraints from canHost, machine by machine, as
+ * policies did before the index.
+ */
+public class ConstraintBench {
+    // Kept so the JIT can't drop the intersections
+    private static volatile long sink;
+
+    private static final String[] JOB_NAMES = {"plain", "zone", "multi", "broad"};
+    private static final String[] JOB_CONSTRAINTS = {
+        "", "zone=z42", "zone=z42;kernel>=5;rack!=r7", "kernel>=4;zone!=z1"
+    };
+
+    public static void main(String[] args) {
+        int numMachines = 100_000;
+        long seed = 3;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--machines": numMachines = Integer.parseInt(args[i + 1]); break;
+                case "--seed": seed = Long.parseLong(args[i + 1]); break;
+                default: throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        Random random = new Random(seed);
+
+        CellState cellState = new CellState(numMachines, 8.0, 12000.0, "sequence-numbers", "incremental");
+        Map<String, Double> thinkTimes = new HashMap<>();
+        thinkTimes.put("wl", 1.0);
+        OmegaScheduler scheduler = new OmegaScheduler("o", thinkTimes, thinkTimes, 0);
+        Map<String, OmegaScheduler> schedulers = new HashMap<>();
+        schedulers.put(scheduler.getName(), scheduler);
+        Map<String, List<String>> workloadToSchedulerMap = new HashMap<>();
+        workloadToSchedulerMap.put("wl", Collections.singletonList(scheduler.getName()));
+        new OmegaSimulator(cellState, schedulers, workloadToSchedulerMap,
+                           Collections.emptyList(), Collections.emptyList(), false);
+        for (int m = 0; m < numMachines; m++) {
+            cellState.assignResources(scheduler, m, random.nextInt(13) * 0.5, random.nextDouble() * 9000.0, false);
+        }
+
+        PrintWriter out = new PrintWriter(System.out, true);
+        out.println("experiment,metric,value");
+
+        long start = System.nanoTime();
+        MachineAttributes.Builder builder = new MachineAttributes.Builder(numMachines);
+        for (int m = 0; m < numMachines; m++) {
+            builder.set(m, "zone", "z" + random.nextInt(100));
+            builder.set(m, "kernel", String.valueOf(3 + random.nextInt(4)));
+            builder.set(m, "rack", "r" + (m / 50));
+        }
+        MachineAttributes attributes = builder.build();
+        double buildMillis = (System.nanoTime() - start) / 1e6;
+        cellState.setAttributes(attributes);
+        out.println(String.format("index,build_ms,%.1f", buildMillis));
+        out.println(String.format("index,size_bytes,%d", indexBytes(attributes)));
+
+        Job[] jobs = new Job[JOB_NAMES.length];
+        for (int j = 0; j < jobs.length; j++) {
+            jobs[j] = new Job(j + 1, 0.0, 10, 10.0, "wl", 1.0, 1000.0);
+            jobs[j].setConstraints(PlacementConstraint.parseList(JOB_CONSTRAINTS[j]));
+        }
+        for (int j = 1; j < jobs.length; j++) {
+            List<PlacementConstraint> constraints = jobs[j].getConstraints();
+            out.println(String.format("%s,eligible_machines,%d", JOB_NAMES[j],
+                                      cellState.getEligibleMachines(jobs[j]).cardinality()));
+            // Straight from the index, as the cell state caches them per job
+            double best = Double.POSITIVE_INFINITY;
+            for (int round = 0; round < 5; round++) {
+                long roundStart = System.nanoTime();
+                for (int i = 0; i < 2000; i++) {
+                    sink += attributes.getMachinesMeeting(constraints).cardinality();
+                }
+                best = Math.min(best, (System.nanoTime() - roundStart) / 1e3 / 2000);
+            }
+            out.println(String.format("%s,intersect_us,%.1f", JOB_NAMES[j], best));
+        }
+
+        Map<String, PlacementPolicy> policies = new LinkedHashMap<>();
+        policies.put("randomff", new RandomFirstFitPlacement(new Random(seed)));
+        policies.put("pod2", new PowerOfDChoicesPlacement(2, 3, new Random(seed)));
+        policies.put("bestfit", new BestFitPlacement());
+        policies.put("worstfit", new WorstFitPlacement());
+        policies.put("firstfit", new FirstFitPlacement());
+        policies.put("blind-randomff", new BlindRandomFirstFit(new Random(seed)));
+        policies.put("blind-pod2", new BlindPowerOfTwo(new Random(seed)));
+        policies.put("blind-bestfit", new BlindBestFit());
+        for (Map.Entry<String, PlacementPolicy> entry : policies.entrySet()) {
+            for (int j = 0; j < jobs.length; j++) {
+                String experiment = entry.getKey() + "-" + JOB_NAMES[j];
+                double[] timing = time(entry.getValue(), scheduler, jobs[j], cellState);
+                out.println(String.format("%s,us_per_placement,%.1f", experiment, timing[0]));
+                out.println(String.format("%s,tasks_placed,%.1f", experiment, timing[1]));
+            }
+        }
+    }
+
+    /**
+     * Best of 5 rounds of the mean microseconds to place all of the job's
+     * tasks, and the mean number placed; every placement is undone after.
+     * Rounds are 300 placements, or as many as fit in about half a second
+     * going by the last of 3 warm-up placements.
+     */
+    private static double[] time(PlacementPolicy policy, BaseScheduler scheduler, Job job, CellState cellState) {
+        long warmUpNanos = 0;
+        for (int i = 0; i < 3; i++) {
+            long start = System.nanoTime();
+            for (ClaimDelta claimDelta : policy.placeTasks(scheduler, job, job.getNumTasks(), cellState)) {
+                claimDelta.unApply(cellState, false);
+            }
+            warmUpNanos = System.nanoTime() - start;
+        }
+        int reps = (int) Math.max(3, Math.min(300, 5e8 / Math.max(1, warmUpNanos)));
+        double best = Double.POSITIVE_INFINITY;
+        long placed = 0;
+        for (int round = 0; round < 5; round++) {
+            placed = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < reps; i++) {
+                List<ClaimDelta> claimDeltas = policy.placeTasks(scheduler, job, job.getNumTasks(), cellState);
+                placed += claimDeltas.size();
+                for (ClaimDelta claimDelta : claimDeltas) {
+                    claimDelta.unApply(cellState, false);
+                }
+            }
+            best = Math.min(best, (System.nanoTime() - start) / 1e3 / reps);
+        }
+        return new double[] {best, placed / (double) reps};
+    }
+
+    private static long indexBytes(MachineAttributes attributes) {
+        long bytes = 0;
+        for (String key : attributes.getKeys()) {
+            Set<String> values = new HashSet<>();
+            for (int m = 0; m < attributes.getNumMachines(); m++) {
+                values.add(attributes.getValue(m, key));
+            }
+            for (String value : values) {
+                bytes += attributes.getMachines(key, value).getSizeInBytes();
+            }
+        }
+        return bytes;
+    }
+
+    private static ClaimDelta claim(BaseScheduler scheduler, Job job, int machineID, CellState cellState) {
+        ClaimDelta claimDelta = new ClaimDelta(scheduler, machineID,
+            cellState.getMachineSeqNum(machineID), cellState.getCpuSeqNum(machineID),
+            cellState.getMemSeqNum(machineID), job.getTaskDuration(),
+            job.getCpusPerTask(), job.getMemPerTask(), job);
+        claimDelta.apply(cellState, false);
+        return claimDelta;
+    }
+
+    /** Random first fit over every machine, from a random one on. */
+    private static class BlindRandomFirstFit implements PlacementPolicy {
+        private static final long serialVersionUID = 1L;
+
+        private final Random random;
+
+        BlindRandomFirstFit(Random random) { this.random = random; }
+
+        @Override
+        public List<ClaimDelta> placeTasks(BaseScheduler scheduler, Job job, int numTasks,
+                                           CellState cellState) {
+            List<ClaimDelta> claimDeltas = new ArrayList<>();
+            int numCandidates = PlacementPolicy.numCandidates(scheduler, cellState);
+            double now = scheduler.getSimulator().getCurrentTime();
+            int machineID = random.nextInt(numCandidates);
+            int examined = 0;
+            while (examined < numCandidates && claimDeltas.size() < numTasks) {
+                if (cellState.canHost(job, machineID, now)) {
+                    // Another task may fit on the same machine
+                    claimDeltas.add(claim(scheduler, job, machineID, cellState));
+                } else {
+                    machineID = machineID + 1 == numCandidates ? 0 : machineID + 1;
+                    examined++;
+                }
+            }
+            return claimDeltas;
+        }
+    }
+
+    /** Power of two choices over every machine, three rounds per task. */
+    private static class BlindPowerOfTwo implements PlacementPolicy {
+        private static final long serialVersionUID = 1L;
+
+        private final Random random;
+
+        BlindPowerOfTwo(Random random) { this.random = random; }
+
+        @Override
+        public List<ClaimDelta> placeTasks(BaseScheduler scheduler, Job job, int numTasks,
+                                           CellState cellState) {
+            List<ClaimDelta> claimDeltas = new ArrayList<>();
+            int numCandidates = PlacementPolicy.numCandidates(scheduler, cellState);
+            double now = scheduler.getSimulator().getCurrentTime();
+            while (claimDeltas.size() < numTasks) {
+                int chosen = -1;
+                double chosenFree = -1.0;
+                for (int round = 0; round < 3 && chosen < 0; round++) {
+                    for (int i = 0; i < 2; i++) {
+                        int machineID = random.nextInt(numCandidates);
+                        if (cellState.canHost(job, machineID, now) &&
+                            cellState.freeFraction(machineID) > chosenFree) {
+                            chosenFree = cellState.freeFraction(machineID);
+                            chosen = machineID;
+                        }
+                    }
+                }
+                if (chosen < 0) {
+                    break;
+                }
+                claimDeltas.add(claim(scheduler, job, chosen, cellState));
+            }
+            return claimDeltas;
+        }
+    }
+
+    /** Best fit over every machine: one scan per task. */
+    private static class BlindBestFit implements PlacementPolicy {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public List<ClaimDelta> placeTasks(BaseScheduler scheduler, Job job, int numTasks,
+                                           CellState cellState) {
+            List<ClaimDelta> claimDeltas = new ArrayList<>();
+            int numCandidates = PlacementPolicy.numCandidates(scheduler, cellState);
+            double now = scheduler.getSimulator().getCurrentTime();
+            while (claimDeltas.size() < numTasks) {
+                int best = -1;
+                double bestFree = Double.POSITIVE_INFINITY;
+                for (int machineID = 0; machineID < numCandidates; machineID++) {
+                    if (cellState.canHost(job, machineID, now) &&
+                        cellState.freeFraction(machineID) < bestFree) {
+                        bestFree = cellState.freeFraction(machineID);
+                        best = machineID;
+                    }
+                }
+                if (best < 0) {
+                    break;
+                }
+                claimDeltas.add(claim(scheduler, job, best, cellState));
+            }
+            return claimDeltas;
+        }
+    }
+}
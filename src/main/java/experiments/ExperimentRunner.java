@@ -7,6 +7,7 @@ import scheduler.OmegaScheduler;
 import simulator.ClusterSimulator;
 import simulator.MesosSimulator;
 import simulator.OmegaSimulator;
+import simulator.SteadyStateDetector;
 import simulator.core.CellState;
 import simulator.core.Job;
 import simulator.core.Workload;
@@ -17,11 +18,16 @@ import java.util.*;
 /**
  * A simple experiment runner that runs three small simulations (Monolithic, Mesos, Omega)
  * and prints a CSV summary to stdout.
+ * Pass "steady-state" to stop each run once its metrics converge and report the
+ * achieved confidence alongside the results.
  */
 public class ExperimentRunner {
+    private static final double STEADY_STATE_BATCH_LENGTH = 20.0;
+
     public static void main(String[] args) {
         PrintWriter out = new PrintWriter(System.out, true);
         out.println("experiment,metric,value");
+        boolean steadyState = Arrays.asList(args).contains("steady-state");
 
         Map<String, Double> constantThink = new HashMap<>();
         Map<String, Double> perTaskThink = new HashMap<>();
@@ -51,11 +57,16 @@ public class ExperimentRunner {
             mappingMono.put("wl", Arrays.asList(mono.getName()));
 
             ClusterSimulator simMono = new ClusterSimulator(csMono, schedsMono, mappingMono, workloadsMono, prefillMono, false);
-            simMono.run(null, null);
+            SteadyStateDetector detectorMono = steadyState
+                ? new SteadyStateDetector(simMono, STEADY_STATE_BATCH_LENGTH) : null;
+            simMono.run(null, null, detectorMono);
 
             out.println(String.format("monolithic,num_successful_transactions,%d", mono.getNumSuccessfulTransactions()));
             out.println(String.format("monolithic,num_retried_transactions,%d", mono.getNumRetriedTransactions()));
             out.println(String.format("monolithic,total_useful_time_scheduling,%.3f", mono.getTotalUsefulTimeScheduling()));
+            if (detectorMono != null) {
+                printSteadyState(out, "monolithic", detectorMono);
+            }
         } catch (Exception e) {
             out.println("monolithic,error," + e.getMessage());
         }
@@ -83,11 +94,16 @@ public class ExperimentRunner {
             mappingMesos.put("wl", Arrays.asList(mesos.getName()));
 
             MesosSimulator simMesos = new MesosSimulator(csMesos, schedsMesos, mappingMesos, workloadsMesos, prefillMesos, allocator, false);
-            simMesos.run(null, null);
+            SteadyStateDetector detectorMesos = steadyState
+                ? new SteadyStateDetector(simMesos, STEADY_STATE_BATCH_LENGTH) : null;
+            simMesos.run(null, null, detectorMesos);
 
             out.println(String.format("mesos,num_successful_transactions,%d", mesos.getNumSuccessfulTransactions()));
             out.println(String.format("mesos,num_retried_transactions,%d", mesos.getNumRetriedTransactions()));
             out.println(String.format("mesos,total_useful_time_scheduling,%.3f", mesos.getTotalUsefulTimeScheduling()));
+            if (detectorMesos != null) {
+                printSteadyState(out, "mesos", detectorMesos);
+            }
         } catch (Exception e) {
             out.println("mesos,error," + e.getMessage());
         }
@@ -114,13 +130,25 @@ public class ExperimentRunner {
             mappingOmega.put("wl", Arrays.asList(omega.getName()));
 
             OmegaSimulator simOmega = new OmegaSimulator(csOmega, schedsOmega, mappingOmega, workloadsOmega, prefillOmega, false);
-            simOmega.run(null, null);
+            SteadyStateDetector detectorOmega = steadyState
+                ? new SteadyStateDetector(simOmega, STEADY_STATE_BATCH_LENGTH) : null;
+            simOmega.run(null, null, detectorOmega);
 
             out.println(String.format("omega,num_successful_transactions,%d", omega.getNumSuccessfulTransactions()));
             out.println(String.format("omega,num_retried_transactions,%d", omega.getNumRetriedTransactions()));
             out.println(String.format("omega,total_useful_time_scheduling,%.3f", omega.getTotalUsefulTimeScheduling()));
+            if (detectorOmega != null) {
+                printSteadyState(out, "omega", detectorOmega);
+            }
         } catch (Exception e) {
             out.println("omega,error," + e.getMessage());
         }
     }
-}
\ No newline at end of file
+
+    private static void printSteadyState(PrintWriter out, String experiment,
+                                         SteadyStateDetector detector) {
+        for (Map.Entry<String, Double> entry : detector.getSummary().entrySet()) {
+            out.println(String.format("%s,%s,%.6f", experiment, entry.getKey(), entry.getValue()));
+        }
+    }
+}
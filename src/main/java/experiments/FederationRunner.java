@@ -0,0 +1,140 @@
+package experiments;
+
+import scheduler.BestFitPlacement;
+import scheduler.FixedRetryPolicy;
+import scheduler.OmegaScheduler;
+import simulator.ClusterSimulator;
+import simulator.Federation;
+import simulator.LeastLoadedRoutingPolicy;
+import simulator.NextCellRoutingPolicy;
+import simulator.OmegaSimulator;
+import simulator.RoutingPolicy;
+import simulator.core.CellState;
+import simulator.core.Job;
+import simulator.core.Workload;
+
+import java.io.PrintWriter;
+import java.util.*;
+
+/**
+ * Runs federations of Omega cells and prints a CSV summary of each to stdout,
+ * for every combination of cell count, thread count and routing policy given.
+ * <pre>
+ *   java experiments.FederationRunner [--cells 1,2,4,8] [--threads 1,2,4]
+ *                                     [--routing none,next-cell,least-loaded]
+ *                                     [--machines M] [--horizon H] [--window W]
+ * </pre>
+ * Every cell gets the same number of machines, with 8 cpus on even cells and
+ * 4 on odd ones, and its own stream of jobs over horizon simulated seconds:
+ * every fourth cell is offered about 1.4 times what it can run, the others
+ * 0.6 times, and one job in twenty needs 6 cpus per task, which the small
+ * cells turn away. Routing "none" keeps jobs in their first cell, for
+ * comparison. Cells schedule with best fit, so runs are repeatable and the
+ * thread count only changes the wall time.
+ */
+public class FederationRunner {
+    public static void main(String[] args) throws Exception {
+        List<Integer> cellCounts = Arrays.asList(1, 2, 4, 8);
+        List<Integer> threadCounts = Collections.singletonList(Runtime.getRuntime().availableProcessors());
+        List<String> routings = Arrays.asList("none", "next-cell", "least-loaded");
+        int numMachines = 200;
+        double horizon = 1800.0;
+        double window = 1.0;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--cells": cellCounts = parseInts(args[i + 1]); break;
+                case "--threads": threadCounts = parseInts(args[i + 1]); break;
+                case "--routing": routings = Arrays.asList(args[i + 1].split(",")); break;
+                case "--machines": numMachines = Integer.parseInt(args[i + 1]); break;
+                case "--horizon": horizon = Double.parseDouble(args[i + 1]); break;
+                case "--window": window = Double.parseDouble(args[i + 1]); break;
+                default: throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        PrintWriter out = new PrintWriter(System.out, true);
+        out.println("experiment,metric,value");
+        for (String routing : routings) {
+            for (int numCells : cellCounts) {
+                for (int numThreads : threadCounts) {
+                    String experiment = String.format("%s-cells%d-threads%d", routing, numCells, numThreads);
+                    List<ClusterSimulator> cells = new ArrayList<>();
+                    for (int cell = 0; cell < numCells; cell++) {
+                        cells.add(buildCell(numMachines, cell % 2 == 0 ? 8.0 : 4.0));
+                    }
+                    Federation federation = new Federation(cells, routingPolicy(routing), window, numThreads);
+                    for (int cell = 0; cell < numCells; cell++) {
+                        double load = cell % 4 == 0 ? 1.4 : 0.6;
+                        for (Job job : jobs(cell, load, cells.get(cell).getCellState().getTotalCpus(), horizon)) {
+                            federation.submitJob(cell, job);
+                        }
+                    }
+                    federation.run(null);
+                    for (Map.Entry<String, Double> entry : federation.getSummary().entrySet()) {
+                        out.println(String.format("%s,%s,%.3f", experiment, entry.getKey(), entry.getValue()));
+                    }
+                }
+            }
+        }
+    }
+
+    private static List<Integer> parseInts(String list) {
+        List<Integer> values = new ArrayList<>();
+        for (String value : list.split(",")) {
+            values.add(Integer.parseInt(value.trim()));
+        }
+        return values;
+    }
+
+    private static RoutingPolicy routingPolicy(String name) {
+        switch (name) {
+            case "none": return (job, from, cells, tried) -> -1;
+            case "next-cell": return new NextCellRoutingPolicy();
+            case "least-loaded": return new LeastLoadedRoutingPolicy();
+            default: throw new IllegalArgumentException("Unknown routing policy " + name);
+        }
+    }
+
+    private static ClusterSimulator buildCell(int numMachines, double cpusPerMachine) {
+        Map<String, Double> constantThink = new HashMap<>();
+        Map<String, Double> perTaskThink = new HashMap<>();
+        constantThink.put("wl", 0.1);
+        perTaskThink.put("wl", 0.005);
+        Map<String, OmegaScheduler> schedulers = new HashMap<>();
+        for (int i = 0; i < 2; i++) {
+            OmegaScheduler omega = new OmegaScheduler("omega-" + i, constantThink, perTaskThink, 0);
+            omega.setPlacementPolicy(new BestFitPlacement());
+            // Give up on a job after half a minute without room, so it moves on
+            omega.setRetryPolicy(new FixedRetryPolicy(1.0, 30, 300));
+            schedulers.put(omega.getName(), omega);
+        }
+        Map<String, List<String>> mapping = new HashMap<>();
+        mapping.put("wl", new ArrayList<>(new TreeSet<>(schedulers.keySet())));
+        CellState cellState = new CellState(numMachines, cpusPerMachine, 32768.0,
+                                            "sequence-numbers", "incremental");
+        return new OmegaSimulator(cellState, schedulers, mapping, Collections.<Workload>emptyList(),
+                                  Collections.<Workload>emptyList(), false);
+    }
+
+    /**
+     * A cell's jobs: Poisson arrivals offering load times its cpus.
+     */
+    private static List<Job> jobs(int cell, double load, double totalCpus, double horizon) {
+        Random random = new Random(42 + cell);
+        // 1 to 20 tasks of 0.5 to 2 cpus for 60 seconds on average
+        double cpuSecondsPerJob = 10.5 * 1.25 * 60.0;
+        double jobsPerSecond = load * totalCpus / cpuSecondsPerJob;
+        List<Job> jobs = new ArrayList<>();
+        double time = 0.0;
+        long id = 1_000_000L * cell;
+        while ((time += -Math.log(1.0 - random.nextDouble()) / jobsPerSecond) < horizon) {
+            boolean big = random.nextInt(20) == 0;
+            int numTasks = 1 + random.nextInt(20);
+            double cpus = big ? 6.0 : 0.5 + 1.5 * random.nextDouble();
+            double mem = 1024.0 + 3072.0 * random.nextDouble();
+            double duration = -Math.log(1.0 - random.nextDouble()) * 60.0;
+            jobs.add(new Job(++id, time, numTasks, duration, "wl", cpus, mem));
+        }
+        return jobs;
+    }
+}
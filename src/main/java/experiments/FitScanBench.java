@@ -0,0 +1,198 @@
+package experiments;
+
+import simulator.core.FitScan;
+
+import java.io.PrintWriter;
+import java.util.*;
+
+/**
+ * Times the FitScan kernels against their scalar fallbacks and prints the mean
+ * microseconds per scan as a CSV to stdout, for every machine count and
+ * number of resource dimensions given.
+ * <pre>
+ *   java experiments.FitScanBench [--machines 10000,100000,1000000]
+ *                                 [--dimensions 2,4] [--seed S]
+ * </pre>
+ * Cells are busy and fragmented: every machine has 8 cpus and 12000 mem (and
+ * 8 of each further dimension), a random half-cpu multiple of cpus and a
+ * random amount of mem allocated, so a 1.5 cpu, 2000 mem task fits on some
+ * machines and not others at random. Several such layouts are scanned in
+ * turn, so the branch predictor can't learn one. firstFit is timed on a cell
+ * with every cpu taken, where it has to look at every machine; it has no
+ * branch-free version, so its two timings only show the noise. Two
+ * dimensions use the two-array kernels, more use the one-array-per-dimension
+ * ones. Before timing, each branch-free kernel is checked against its scalar
+ * fallback on every layout.
+ */
+public class FitScanBench {
+    // Kept so the JIT can't drop the scans
+    private static volatile long sink;
+
+    private interface Kernel {
+        int run(int layout);
+    }
+
+    public static void main(String[] args) {
+        List<Integer> machineCounts = Arrays.asList(10_000, 100_000, 1_000_000);
+        List<Integer> dimensionCounts = Arrays.asList(2, 4);
+        long seed = 7;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--machines": machineCounts = parseInts(args[i + 1]); break;
+                case "--dimensions": dimensionCounts = parseInts(args[i + 1]); break;
+                case "--seed": seed = Long.parseLong(args[i + 1]); break;
+                default: throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        boolean wasScalar = FitScan.isScalar();
+        PrintWriter out = new PrintWriter(System.out, true);
+        out.println("experiment,metric,value");
+        for (int numDimensions : dimensionCounts) {
+            if (numDimensions < 2) {
+                throw new IllegalArgumentException("At least 2 dimensions, but was " + numDimensions);
+            }
+            for (int numMachines : machineCounts) {
+                String experiment = String.format("machines%d-dimensions%d", numMachines, numDimensions);
+                Map<String, Double> summary = numDimensions == 2
+                    ? run2D(numMachines, new Random(seed))
+                    : runND(numMachines, numDimensions, new Random(seed));
+                for (Map.Entry<String, Double> entry : summary.entrySet()) {
+                    out.println(String.format("%s,%s,%.1f", experiment, entry.getKey(), entry.getValue()));
+                }
+            }
+        }
+        FitScan.setScalar(wasScalar);
+    }
+
+    private static Map<String, Double> run2D(int n, Random random) {
+        int numLayouts = numLayouts(n);
+        double[][] cpus = new double[numLayouts][];
+        double[][] mem = new double[numLayouts][];
+        for (int l = 0; l < numLayouts; l++) {
+            double[][] layout = layout(n, 2, random);
+            cpus[l] = layout[0];
+            mem[l] = layout[1];
+        }
+        double[] fullCpus = new double[n];
+        Arrays.fill(fullCpus, 8.0);
+        double cpuCapacity = 8.0, memCapacity = 12000.0, cpusNeeded = 1.5, memNeeded = 2000.0;
+
+        FitScan.setScalar(false);
+        for (int l = 0; l < numLayouts; l++) {
+            if (FitScan.countFitsScalar(cpus[l], mem[l], 0, n, cpuCapacity, memCapacity, cpusNeeded, memNeeded) !=
+                FitScan.countFits(cpus[l], mem[l], 0, n, cpuCapacity, memCapacity, cpusNeeded, memNeeded) ||
+                FitScan.argminFreeFractionScalar(cpus[l], mem[l], 0, n, cpuCapacity, memCapacity, cpusNeeded, memNeeded) !=
+                FitScan.argminFreeFraction(cpus[l], mem[l], 0, n, cpuCapacity, memCapacity, cpusNeeded, memNeeded)) {
+                throw new IllegalStateException("Branch-free kernel disagrees with its scalar fallback");
+            }
+        }
+
+        Map<String, Kernel> kernels = new LinkedHashMap<>();
+        kernels.put("count_fits",
+            l -> FitScan.countFits(cpus[l], mem[l], 0, n, cpuCapacity, memCapacity, cpusNeeded, memNeeded));
+        kernels.put("first_fit_none",
+            l -> FitScan.firstFit(fullCpus, mem[l], 0, n, cpuCapacity, memCapacity, cpusNeeded, memNeeded));
+        kernels.put("argmin_free_fraction",
+            l -> FitScan.argminFreeFraction(cpus[l], mem[l], 0, n, cpuCapacity, memCapacity, cpusNeeded, memNeeded));
+        return time(kernels, n, numLayouts);
+    }
+
+    private static Map<String, Double> runND(int n, int numDimensions, Random random) {
+        int numLayouts = numLayouts(n);
+        double[][][] allocated = new double[numLayouts][][];
+        for (int l = 0; l < numLayouts; l++) {
+            allocated[l] = layout(n, numDimensions, random);
+        }
+        double[][] full = new double[numDimensions][];
+        for (int d = 0; d < numDimensions; d++) {
+            full[d] = d == 0 ? new double[n] : allocated[0][d];
+        }
+        Arrays.fill(full[0], 8.0);
+        double[] capacity = new double[numDimensions];
+        double[] needed = new double[numDimensions];
+        capacity[0] = 8.0;
+        capacity[1] = 12000.0;
+        needed[0] = 1.5;
+        needed[1] = 2000.0;
+        for (int d = 2; d < numDimensions; d++) {
+            capacity[d] = 8.0;
+            needed[d] = 1.0;
+        }
+
+        FitScan.setScalar(false);
+        for (int l = 0; l < numLayouts; l++) {
+            if (FitScan.countFitsScalar(allocated[l], 0, n, capacity, needed) !=
+                FitScan.countFits(allocated[l], 0, n, capacity, needed) ||
+                FitScan.argminFreeFractionScalar(allocated[l], 0, n, capacity, needed) !=
+                FitScan.argminFreeFraction(allocated[l], 0, n, capacity, needed)) {
+                throw new IllegalStateException("Branch-free kernel disagrees with its scalar fallback");
+            }
+        }
+
+        Map<String, Kernel> kernels = new LinkedHashMap<>();
+        kernels.put("count_fits",
+            l -> FitScan.countFits(allocated[l], 0, n, capacity, needed));
+        kernels.put("first_fit_none",
+            l -> FitScan.firstFit(full, 0, n, capacity, needed));
+        kernels.put("argmin_free_fraction",
+            l -> FitScan.argminFreeFraction(allocated[l], 0, n, capacity, needed));
+        return time(kernels, n, numLayouts);
+    }
+
+    /**
+     * Mean microseconds per scan of each kernel, scalar then branch-free, over
+     * two rounds of which only the second is kept, so both are JIT-compiled.
+     */
+    private static Map<String, Double> time(Map<String, Kernel> kernels, int n, int numLayouts) {
+        int reps = Math.max(20, 20_000_000 / n);
+        Map<String, Double> summary = new LinkedHashMap<>();
+        for (int round = 0; round < 2; round++) {
+            for (Map.Entry<String, Kernel> entry : kernels.entrySet()) {
+                for (boolean scalar : new boolean[] {true, false}) {
+                    FitScan.setScalar(scalar);
+                    Kernel kernel = entry.getValue();
+                    for (int i = 0; i < 3; i++) {
+                        sink += kernel.run(i % numLayouts);
+                    }
+                    long start = System.nanoTime();
+                    for (int i = 0; i < reps; i++) {
+                        sink += kernel.run(i % numLayouts);
+                    }
+                    double micros = (System.nanoTime() - start) / 1e3 / reps;
+                    summary.put(entry.getKey() + (scalar ? "_scalar_us" : "_us"), micros);
+                }
+            }
+        }
+        for (String name : kernels.keySet()) {
+            summary.put(name + "_speedup", summary.get(name + "_scalar_us") / summary.get(name + "_us"));
+        }
+        return summary;
+    }
+
+    /** About 4M machines' worth of layouts, at least one. */
+    private static int numLayouts(int n) {
+        return Math.max(1, 4_000_000 / n);
+    }
+
+    /** A fragmented allocation, one array per dimension. */
+    private static double[][] layout(int n, int numDimensions, Random random) {
+        double[][] allocated = new double[numDimensions][n];
+        for (int i = 0; i < n; i++) {
+            allocated[0][i] = random.nextInt(17) * 0.5;
+            allocated[1][i] = random.nextDouble() * 12000.0;
+            for (int d = 2; d < numDimensions; d++) {
+                allocated[d][i] = random.nextInt(9);
+            }
+        }
+        return allocated;
+    }
+
+    private static List<Integer> parseInts(String list) {
+        List<Integer> values = new ArrayList<>();
+        for (String value : list.split(",")) {
+            values.add(Integer.parseInt(value.trim()));
+        }
+        return values;
+    }
+}
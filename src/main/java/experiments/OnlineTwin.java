@@ -0,0 +1,99 @@
+package experiments;
+
+import scheduler.OmegaScheduler;
+import simulator.OmegaSimulator;
+import simulator.OnlineSimulation;
+import simulator.core.CellState;
+import simulator.core.MachineAttributes;
+import simulator.core.MachineShapes;
+import simulator.core.Workload;
+
+import java.io.PrintWriter;
+import java.util.*;
+
+/**
+ * Runs an Omega cell as a digital twin fed with live job submissions, one
+ * line per job (see OnlineSimulation), from stdin or from local connections.
+ * Rolling metrics go to stdout as CSV, followed by a summary.
+ * <pre>
+ *   java experiments.OnlineTwin [--port N] [--time-scale S] [--metrics-interval I]
+ *                               [--buffer B] [--machines M] [--schedulers K]
+ *                               [--workloads a,b,...] [--machine-spec FILE]
+ *                               [--machine-attributes FILE]
+ * </pre>
+ * With --port, connections on that loopback port are read until the process
+ * is interrupted; otherwise stdin is read to the end. A time scale of 0 (the
+ * default) simulates as fast as possible. With --machine-spec, the cell's
+ * machines come from a machine-spec file (see MachineShapes) instead of
+ * --machines identical ones. With --machine-attributes, the machines get
+ * attributes from that file (see MachineAttributes), for jobs' placement
+ * constraints.
+ */
+public class OnlineTwin {
+    public static void main(String[] args) throws Exception {
+        int port = -1;
+        double timeScale = 0.0;
+        double metricsInterval = 10.0;
+        int bufferCapacity = 65536;
+        int numMachines = 100;
+        int numSchedulers = 2;
+        List<String> workloadNames = Collections.singletonList("wl");
+        String machineSpec = null;
+        String machineAttributes = null;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--port": port = Integer.parseInt(args[i + 1]); break;
+                case "--time-scale": timeScale = Double.parseDouble(args[i + 1]); break;
+                case "--metrics-interval": metricsInterval = Double.parseDouble(args[i + 1]); break;
+                case "--buffer": bufferCapacity = Integer.parseInt(args[i + 1]); break;
+                case "--machines": numMachines = Integer.parseInt(args[i + 1]); break;
+                case "--schedulers": numSchedulers = Integer.parseInt(args[i + 1]); break;
+                case "--workloads": workloadNames = Arrays.asList(args[i + 1].split(",")); break;
+                case "--machine-spec": machineSpec = args[i + 1]; break;
+                case "--machine-attributes": machineAttributes = args[i + 1]; break;
+                default: throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        Map<String, Double> constantThink = new HashMap<>();
+        Map<String, Double> perTaskThink = new HashMap<>();
+        for (String workloadName : workloadNames) {
+            constantThink.put(workloadName, 0.1);
+            perTaskThink.put(workloadName, 0.005);
+        }
+        Map<String, OmegaScheduler> schedulers = new HashMap<>();
+        for (int i = 0; i < numSchedulers; i++) {
+            OmegaScheduler omega = new OmegaScheduler("omega-" + i, constantThink, perTaskThink, 0);
+            schedulers.put(omega.getName(), omega);
+        }
+        Map<String, List<String>> mapping = new HashMap<>();
+        for (String workloadName : workloadNames) {
+            mapping.put(workloadName, new ArrayList<>(new TreeSet<>(schedulers.keySet())));
+        }
+
+        CellState cellState = machineSpec != null
+            ? new CellState(MachineShapes.load(machineSpec), "sequence-numbers", "incremental")
+            : new CellState(numMachines, 8.0, 12000.0, "sequence-numbers", "incremental");
+        if (machineAttributes != null) {
+            cellState.setAttributes(MachineAttributes.load(machineAttributes, cellState.getNumMachines()));
+        }
+        OmegaSimulator simulator = new OmegaSimulator(cellState, schedulers, mapping,
+            Collections.<Workload>emptyList(), Collections.<Workload>emptyList(), false);
+
+        PrintWriter out = new PrintWriter(System.out, true);
+        OnlineSimulation online = new OnlineSimulation(simulator, bufferCapacity, timeScale,
+                                                       metricsInterval, out);
+        if (port >= 0) {
+            int boundPort = online.listen(port);
+            System.err.println("Listening for jobs on 127.0.0.1:" + boundPort);
+        } else {
+            online.addSource(System.in, "stdin");
+        }
+        online.run();
+
+        for (Map.Entry<String, Double> entry : online.getSummary().entrySet()) {
+            out.println(String.format("online,%s,%.3f", entry.getKey(), entry.getValue()));
+        }
+        out.flush();
+    }
+}
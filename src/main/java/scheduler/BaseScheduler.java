@@ -3,7 +3,9 @@ package scheduler;
 import simulator.core.Job;
 import simulator.core.ClaimDelta;
 import simulator.core.CellState;
+import simulator.core.GangReservation;
 import simulator.ClusterSimulator;
+import simulator.Event;
 
 import java.util.*;
 
@@ -11,12 +13,14 @@ import java.util.*;
  * Base abstract class for schedulers that provides common functionality.
  */
 public abstract class BaseScheduler implements IScheduler {
+    private static final long serialVersionUID = 1L;
+    
     protected final String name;
     protected final Map<String, Double> constantThinkTimes;
     protected final Map<String, Double> perTaskThinkTimes;
     protected final int numMachinesToBlackList;
     
-    protected final Queue<Job> pendingQueue = new LinkedList<>();
+    protected final Queue<Job> pendingQueue;
     protected ClusterSimulator simulator;
     protected boolean scheduling = false;
     
@@ -34,6 +38,43 @@ public abstract class BaseScheduler implements IScheduler {
     protected double totalWastedTimeScheduling = 0.0;
     protected double firstAttemptUsefulTimeScheduling = 0.0;
     protected double firstAttemptWastedTimeScheduling = 0.0;
+    protected double totalTimeInQueue = 0.0;
+    protected int numTimeInQueueSamples = 0;
+    
+    // Failed transactions, and the think time they wasted, by what caused the conflict
+    protected final long[] numConflictsByKind = new long[CellState.ConflictKind.values().length];
+    protected final double[] wastedTimeByConflictKind = new double[CellState.ConflictKind.values().length];
+    
+    // Bias placement away from machines with recent conflicts; 0 disables it
+    protected double conflictAvoidanceWeight = 0.0;
+    
+    protected PlacementPolicy placementPolicy = new RandomFirstFitPlacement();
+    protected long numMachinesExamined = 0;
+    protected long numPlacementCalls = 0;
+    protected long placementNanos = 0;
+    
+    // Preemption: tasks this scheduler placed by evicting others, the tasks it
+    // evicted, and the tasks of its own it lost with the seconds they had run
+    protected boolean preemption = false;
+    protected long numPreemptingTasks = 0;
+    protected long numTasksEvicted = 0;
+    protected long numTasksPreempted = 0;
+    protected double preemptedTaskSeconds = 0.0;
+    
+    // Gang scheduling of rigid jobs: gangs placed and their wait from submission
+    // to placement, placements undone for not covering the whole gang, and
+    // reservations made for gangs that found no room
+    protected boolean gangBackfilling = true;
+    protected long numGangsScheduled = 0;
+    protected double totalGangWaitTime = 0.0;
+    protected long numGangRollbacks = 0;
+    protected long numGangReservations = 0;
+    
+    // When jobs with tasks left are tried again, and when they are given up on
+    protected RetryPolicy retryPolicy = new FixedRetryPolicy();
+    private CapacityWaitIndex capacityWaitIndex;
+    protected long numTimedRetries = 0;
+    protected long numCapacityWakeups = 0;
     
     protected final Map<String, Double> perWorkloadUsefulTimeScheduling = new HashMap<>();
     protected final Map<String, Double> perWorkloadWastedTimeScheduling = new HashMap<>();
@@ -42,10 +83,24 @@ public abstract class BaseScheduler implements IScheduler {
                         Map<String, Double> constantThinkTimes,
                         Map<String, Double> perTaskThinkTimes,
                         int numMachinesToBlackList) {
+        this(name, constantThinkTimes, perTaskThinkTimes, numMachinesToBlackList,
+             new LinkedList<>());
+    }
+    
+    /**
+     * @param pendingQueue Queue holding jobs waiting to be scheduled; a plain
+     *                     FIFO by default
+     */
+    public BaseScheduler(String name,
+                        Map<String, Double> constantThinkTimes,
+                        Map<String, Double> perTaskThinkTimes,
+                        int numMachinesToBlackList,
+                        Queue<Job> pendingQueue) {
         this.name = name;
         this.constantThinkTimes = new HashMap<>(constantThinkTimes);
         this.perTaskThinkTimes = new HashMap<>(perTaskThinkTimes);
         this.numMachinesToBlackList = numMachinesToBlackList;
+        this.pendingQueue = pendingQueue;
     }
 
     // Public getters for metrics so external runners can report results
@@ -62,7 +117,92 @@ public abstract class BaseScheduler implements IScheduler {
     public double getTotalWastedTimeScheduling() { return totalWastedTimeScheduling; }
     public double getFirstAttemptUsefulTimeScheduling() { return firstAttemptUsefulTimeScheduling; }
     public double getFirstAttemptWastedTimeScheduling() { return firstAttemptWastedTimeScheduling; }
+    public double getTotalTimeInQueue() { return totalTimeInQueue; }
+    public int getNumTimeInQueueSamples() { return numTimeInQueueSamples; }
 
+    public double getConflictAvoidanceWeight() { return conflictAvoidanceWeight; }
+    public int getNumMachinesToBlackList() { return numMachinesToBlackList; }
+    
+    public PlacementPolicy getPlacementPolicy() { return placementPolicy; }
+    
+    public void setPlacementPolicy(PlacementPolicy placementPolicy) {
+        if (placementPolicy == null) {
+            throw new IllegalArgumentException("placementPolicy cannot be null");
+        }
+        this.placementPolicy = placementPolicy;
+    }
+    
+    public boolean isPreemption() { return preemption; }
+    
+    /**
+     * Let jobs that can't be placed evict running tasks of lower priority.
+     * Only used by schedulers that commit straight to the common cell state
+     * (monolithic and Omega).
+     */
+    public void setPreemption(boolean preemption) { this.preemption = preemption; }
+    
+    public long getNumPreemptingTasks() { return numPreemptingTasks; }
+    public long getNumTasksEvicted() { return numTasksEvicted; }
+    public long getNumTasksPreempted() { return numTasksPreempted; }
+    public double getPreemptedTaskSeconds() { return preemptedTaskSeconds; }
+    
+    public RetryPolicy getRetryPolicy() { return retryPolicy; }
+    
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        if (retryPolicy == null) {
+            throw new IllegalArgumentException("retryPolicy cannot be null");
+        }
+        this.retryPolicy = retryPolicy;
+    }
+    
+    // Retries started by a timer, and by resources freed for a waiting job
+    public long getNumTimedRetries() { return numTimedRetries; }
+    public long getNumCapacityWakeups() { return numCapacityWakeups; }
+    
+    public int getNumJobsWaitingForCapacity() {
+        return capacityWaitIndex == null ? 0 : capacityWaitIndex.size();
+    }
+    
+    public boolean isGangBackfilling() { return gangBackfilling; }
+    
+    /**
+     * Reserve room for a rigid job that found none, so the gang is not starved by
+     * smaller jobs; those may still backfill around the reservation. On by
+     * default, it only matters for workloads with rigid jobs.
+     */
+    public void setGangBackfilling(boolean gangBackfilling) { this.gangBackfilling = gangBackfilling; }
+    
+    public long getNumGangsScheduled() { return numGangsScheduled; }
+    public double getTotalGangWaitTime() { return totalGangWaitTime; }
+    public long getNumGangRollbacks() { return numGangRollbacks; }
+    public long getNumGangReservations() { return numGangReservations; }
+    
+    public double getMeanGangWaitTime() {
+        return numGangsScheduled > 0 ? totalGangWaitTime / numGangsScheduled : 0.0;
+    }
+    
+    // Placement cost: machines looked at, and wall-clock time spent placing
+    public long getNumMachinesExamined() { return numMachinesExamined; }
+    public long getNumPlacementCalls() { return numPlacementCalls; }
+    public long getPlacementNanos() { return placementNanos; }
+    
+    /**
+     * Down-weight machines with recent conflicts when placing tasks with the
+     * random first-fit policy: a randomly drawn machine with conflict score s is
+     * kept with probability 1 / (1 + weight * s), otherwise another one is drawn,
+     * up to a few times.
+     */
+    public void setConflictAvoidanceWeight(double conflictAvoidanceWeight) {
+        if (conflictAvoidanceWeight < 0.0) {
+            throw new IllegalArgumentException(
+                "conflictAvoidanceWeight must be non-negative, but was " + conflictAvoidanceWeight);
+        }
+        this.conflictAvoidanceWeight = conflictAvoidanceWeight;
+    }
+    
+    public long getNumConflicts(CellState.ConflictKind kind) { return numConflictsByKind[kind.ordinal()]; }
+    public double getWastedTimeByConflictKind(CellState.ConflictKind kind) { return wastedTimeByConflictKind[kind.ordinal()]; }
+    
     public Map<String, Double> getPerWorkloadUsefulTimeScheduling() { return perWorkloadUsefulTimeScheduling; }
     public Map<String, Double> getPerWorkloadWastedTimeScheduling() { return perWorkloadWastedTimeScheduling; }
     
@@ -115,72 +255,261 @@ public abstract class BaseScheduler implements IScheduler {
     }
     
     /**
-     * Schedule a job using the randomized first-fit scheduling algorithm.
+     * Schedule a job using this scheduler's placement policy (randomized
+     * first-fit unless set otherwise).
      * This is the core scheduling logic shared by all schedulers.
      */
     @Override
     public List<ClaimDelta> scheduleJob(Job job, CellState cellState) {
+        return scheduleTasks(job, job.getUnscheduledTasks(), cellState);
+    }
+    
+    /**
+     * Place up to numTasks of the job's tasks in cellState with the placement
+     * policy, applying the returned deltas to it. A rigid job gets all numTasks
+     * or nothing: a partial placement is undone.
+     */
+    protected List<ClaimDelta> scheduleTasks(Job job, int numTasks, CellState cellState) {
         checkRegistered();
         if (cellState == null) {
             throw new IllegalArgumentException("CellState cannot be null");
         }
         
-        if (job.getCpusPerTask() > cellState.getCpusPerMachine() ||
-            job.getMemPerTask() > cellState.getMemPerMachine()) {
-            throw new IllegalArgumentException(
-                String.format("Job requires %f CPUs and %f mem per task, " +
-                            "but machines only have %f CPUs and %f mem.",
-                            job.getCpusPerTask(), job.getMemPerTask(),
-                            cellState.getCpusPerMachine(), cellState.getMemPerMachine()));
-        }
-        
-        List<ClaimDelta> claimDeltas = new ArrayList<>();
-        
-        // Create candidate pool of machine IDs
-        List<Integer> candidatePool = new ArrayList<>();
-        for (int i = 0; i < cellState.getNumMachines(); i++) {
-            candidatePool.add(i);
-        }
-        
-        int numRemainingTasks = job.getUnscheduledTasks();
-        int remainingCandidates = Math.max(0, 
-            cellState.getNumMachines() - numMachinesToBlackList);
-        
-        Random random = new Random();
-        
-        while (numRemainingTasks > 0 && remainingCandidates > 0) {
-            // Pick a random machine from the candidate pool
-            int candidateIndex = random.nextInt(remainingCandidates);
-            int currMachID = candidatePool.get(candidateIndex);
-            
-            // Check if a task fits on this machine
-            if (cellState.availableCpusPerMachine(currMachID) >= job.getCpusPerTask() &&
-                cellState.availableMemPerMachine(currMachID) >= job.getMemPerTask()) {
-                
-                // Create a claim delta for this task
-                ClaimDelta claimDelta = new ClaimDelta(
-                    this,
-                    currMachID,
-                    cellState.getMachineSeqNum(currMachID),
-                    job.getTaskDuration(),
-                    job.getCpusPerTask(),
-                    job.getMemPerTask()
-                );
-                
-                claimDelta.apply(cellState, false);
-                claimDeltas.add(claimDelta);
-                numRemainingTasks--;
-            } else {
-                failedFindVictimAttempts++;
-                // Move the chosen candidate to the end
-                Collections.swap(candidatePool, candidateIndex, remainingCandidates - 1);
-                remainingCandidates--;
-            }
+        if (!cellState.fitsOnEmptyMachine(job)) {
+            throw new IllegalArgumentException(String.format(
+                "Job %d needs more per task than any machine of the cell has in some " +
+                "resource dimension.", job.getId()));
         }
         
+        long startNanos = System.nanoTime();
+        List<ClaimDelta> claimDeltas = placementPolicy.placeTasks(this, job, numTasks, cellState);
+        placementNanos += System.nanoTime() - startNanos;
+        numPlacementCalls++;
+        if (job.isRigid() && claimDeltas.size() < numTasks && !claimDeltas.isEmpty()) {
+            for (ClaimDelta claimDelta : claimDeltas) {
+                claimDelta.unApply(cellState, false);
+            }
+            numGangRollbacks++;
+            simulator.log(String.format(
+                "Only %d of the %d tasks of rigid job %d fit, undoing its placement.",
+                claimDeltas.size(), numTasks, job.getId()));
+            return new ArrayList<>();
+        }
         return claimDeltas;
     }
     
+    /**
+     * Create a delta for one task of the job on the given machine, based on the
+     * machine's current sequence numbers in cellState, and apply it there.
+     */
+    ClaimDelta claimTask(Job job, int machineID, CellState cellState) {
+        ClaimDelta claimDelta = new ClaimDelta(
+            this,
+            machineID,
+            cellState.getMachineSeqNum(machineID),
+            cellState.getCpuSeqNum(machineID),
+            cellState.getMemSeqNum(machineID),
+            job.getTaskDuration(),
+            job.getCpusPerTask(),
+            job.getMemPerTask(),
+            job,
+            job.getExtraResourcesPerTask(),
+            cellState.getExtraSeqNums(machineID, job.getExtraResourcesPerTask())
+        );
+        claimDelta.apply(cellState, false);
+        return claimDelta;
+    }
+    
+    /**
+     * Start up to numTasks tasks of the job in the common cell state by evicting
+     * running tasks of lower priority, one machine at a time, and commit them.
+     * Updates the job's unscheduled task count.
+     * @return The deltas committed
+     */
+    protected List<ClaimDelta> preemptForTasks(Job job, int numTasks) {
+        CellState cellState = simulator.getCellState();
+        List<ClaimDelta> placed = new ArrayList<>();
+        for (int i = 0; i < numTasks; i++) {
+            int machineID = cellState.getRunningTasks().findVictimMachine(job, cellState);
+            if (machineID < 0) {
+                break;
+            }
+            List<ClaimDelta> victims = cellState.evictFor(machineID, job.getPriority(),
+                job.getCpusPerTask(), job.getMemPerTask(), job.getExtraResourcesPerTask());
+            numTasksEvicted += victims.size();
+            for (ClaimDelta victim : victims) {
+                if (victim.getScheduler() instanceof BaseScheduler) {
+                    ((BaseScheduler) victim.getScheduler()).taskPreempted(victim);
+                }
+            }
+            ClaimDelta claimDelta = new ClaimDelta(this, machineID,
+                cellState.getMachineSeqNum(machineID),
+                cellState.getCpuSeqNum(machineID),
+                cellState.getMemSeqNum(machineID),
+                job.getTaskDuration(), job.getCpusPerTask(), job.getMemPerTask(), job,
+                job.getExtraResourcesPerTask(),
+                cellState.getExtraSeqNums(machineID, job.getExtraResourcesPerTask()));
+            placed.addAll(cellState.commit(Collections.singletonList(claimDelta), true)
+                                   .getCommittedDeltas());
+        }
+        if (!placed.isEmpty()) {
+            job.setUnscheduledTasks(job.getUnscheduledTasks() - placed.size());
+            numPreemptingTasks += placed.size();
+            simulator.log(String.format(
+                "Job %d (priority %d) preempted its way onto %d machines.",
+                job.getId(), job.getPriority(), placed.size()));
+        }
+        return placed;
+    }
+    
+    /**
+     * One of this scheduler's running tasks was evicted: account the lost work
+     * and put the task back on its job, requeueing the job if it had finished
+     * scheduling.
+     */
+    protected void taskPreempted(ClaimDelta victim) {
+        numTasksPreempted++;
+        preemptedTaskSeconds += simulator.getCurrentTime() - victim.getStartTime();
+        Job job = victim.getJob();
+        if (job == null) {
+            return;
+        }
+        job.setUnscheduledTasks(job.getUnscheduledTasks() + 1);
+        if (job.getUnscheduledTasks() == 1) {
+            // Not queued or being scheduled any more, so bring it back
+            simulator.afterDelay(0.0, new Requeue(this, job));
+        }
+    }
+    
+    /**
+     * A rigid job has been placed in full: account its wait and free its reservation.
+     */
+    protected void gangScheduled(Job job) {
+        if (!job.isRigid()) {
+            return;
+        }
+        numGangsScheduled++;
+        totalGangWaitTime += simulator.getCurrentTime() - job.getSubmitted();
+        simulator.getCellState().releaseGangReservation(job);
+    }
+    
+    /**
+     * A rigid job found no room for its gang. Reserve room for it in the common
+     * cell state unless another gang holds the reservation; a reservation whose
+     * shadow time has passed without the gang fitting is worked out again.
+     */
+    protected void gangNotScheduled(Job job) {
+        gangNotScheduled(job, simulator.getCellState());
+    }
+    
+    /**
+     * @param freeNow View of the common cell, machine for machine, whose free
+     *                resources count as free right now
+     */
+    protected void gangNotScheduled(Job job, CellState freeNow) {
+        if (!job.isRigid() || !gangBackfilling) {
+            return;
+        }
+        CellState cellState = simulator.getCellState();
+        GangReservation reservation = cellState.getGangReservation();
+        double now = simulator.getCurrentTime();
+        if (reservation != null &&
+            (reservation.getJob() != job || reservation.getShadowTime() >= now)) {
+            return;
+        }
+        reservation = cellState.reserveGang(job, job.getUnscheduledTasks(),
+            PlacementPolicy.numCandidates(this, cellState), now, freeNow);
+        if (reservation != null) {
+            numGangReservations++;
+            simulator.log(String.format(
+                "Reserved room for the %d tasks of rigid job %d on %d machines from time %f.",
+                reservation.getNumTasks(), job.getId(), reservation.getNumMachinesReserved(),
+                reservation.getShadowTime()));
+        }
+    }
+    
+    /**
+     * Whether the job is a gang waiting on its reservation, which exempts it
+     * from being abandoned for never getting any tasks placed.
+     */
+    protected boolean isWaitingForGang(Job job) {
+        GangReservation reservation = simulator.getCellState().getGangReservation();
+        return reservation != null && reservation.getJob() == job;
+    }
+    
+    /**
+     * A rigid job is given up on: free its reservation, if it holds one.
+     */
+    protected void gangAbandoned(Job job) {
+        simulator.getCellState().releaseGangReservation(job);
+    }
+    
+    /**
+     * A job with tasks left is given up on: free its gang reservation, if it
+     * holds one, and tell the simulator's abandoned-job listeners.
+     */
+    protected void jobAbandoned(Job job) {
+        gangAbandoned(job);
+        simulator.jobAbandoned(job);
+    }
+    
+    /**
+     * Whether to give up on a job with tasks left, per the retry policy's attempt
+     * limits. A gang waiting on its reservation isn't failing to make progress.
+     */
+    protected boolean shouldAbandon(Job job) {
+        if (job.getNumSchedulingAttempts() > retryPolicy.getMaxAttempts()) {
+            return true;
+        }
+        return job.getNumSchedulingAttempts() > retryPolicy.getMaxAttemptsWithoutProgress() &&
+               job.getUnscheduledTasks() == job.getNumTasks() &&
+               !isWaitingForGang(job);
+    }
+    
+    /**
+     * Put a job with tasks left back in the queue later, as the retry policy
+     * says: after a delay, or once resources that fit it are freed if the
+     * attempt came up short for lack of room.
+     */
+    protected void retryLater(Job job, boolean lackOfRoom) {
+        double delay = retryPolicy.getRetryDelay(job, lackOfRoom);
+        if (!lackOfRoom || !retryPolicy.isCapacityTriggered()) {
+            simulator.afterDelay(delay, new TimedRetry(this, job));
+            return;
+        }
+        if (capacityWaitIndex == null) {
+            capacityWaitIndex = new CapacityWaitIndex();
+            CellState cellState = simulator.getCellState();
+            cellState.addResourcesFreedListener(new CapacityWakeup(this, cellState));
+        }
+        long ticket = capacityWaitIndex.park(job);
+        simulator.log(String.format("Job %d is waiting for %f cpus, %f mem to be freed.",
+            job.getId(), job.getCpusPerTask(), job.getMemPerTask()));
+        if (!Double.isInfinite(delay)) {
+            simulator.afterDelay(delay, new CapacityTimeout(this, job, ticket));
+        }
+    }
+    
+    /**
+     * Account machines a placement policy looked at; failed counts the ones
+     * the task turned out not to fit on.
+     */
+    void recordMachinesExamined(long examined, long failed) {
+        numMachinesExamined += examined;
+        failedFindVictimAttempts += failed;
+    }
+    
+    /**
+     * Update a job's queueing stats as it leaves the pending queue,
+     * and fold the wait into this scheduler's totals.
+     */
+    protected void recordTimeInQueue(Job job) {
+        double now = simulator.getCurrentTime();
+        totalTimeInQueue += now - job.getLastEnqueued();
+        numTimeInQueueSamples++;
+        job.updateTimeInQueueStats(now);
+    }
+    
     protected void recordUsefulTimeScheduling(Job job, double timeScheduling, 
                                               boolean isFirstSchedAttempt) {
         checkRegistered();
@@ -195,6 +524,18 @@ public abstract class BaseScheduler implements IScheduler {
             perWorkloadUsefulTimeScheduling.getOrDefault(workloadName, 0.0) + timeScheduling);
     }
     
+    /**
+     * Attribute a failed transaction, and the think time spent on it, to the
+     * kind of conflict that made it fail.
+     */
+    protected void recordConflict(CellState.ConflictKind kind, double timeScheduling) {
+        if (kind == null) {
+            return;
+        }
+        numConflictsByKind[kind.ordinal()]++;
+        wastedTimeByConflictKind[kind.ordinal()] += timeScheduling;
+    }
+    
     protected void recordWastedTimeScheduling(Job job, double timeScheduling,
                                              boolean isFirstSchedAttempt) {
         checkRegistered();
@@ -208,4 +549,89 @@ public abstract class BaseScheduler implements IScheduler {
         perWorkloadWastedTimeScheduling.put(workloadName,
             perWorkloadWastedTimeScheduling.getOrDefault(workloadName, 0.0) + timeScheduling);
     }
+    
+    /** A job going back on its scheduler's queue. */
+    private static final class Requeue implements Event {
+        private static final long serialVersionUID = 1L;
+        
+        private final BaseScheduler scheduler;
+        private final Job job;
+        
+        Requeue(BaseScheduler scheduler, Job job) {
+            this.scheduler = scheduler;
+            this.job = job;
+        }
+        
+        @Override
+        public void run() {
+            scheduler.addJob(job);
+        }
+    }
+    
+    /** A job's retry delay running out. */
+    private static final class TimedRetry implements Event {
+        private static final long serialVersionUID = 1L;
+        
+        private final BaseScheduler scheduler;
+        private final Job job;
+        
+        TimedRetry(BaseScheduler scheduler, Job job) {
+            this.scheduler = scheduler;
+            this.job = job;
+        }
+        
+        @Override
+        public void run() {
+            scheduler.numTimedRetries++;
+            scheduler.addJob(job);
+        }
+    }
+    
+    /**
+     * The retry delay of a job waiting for capacity running out; it is retried
+     * unless a freed machine woke it up since it parked with ticket.
+     */
+    private static final class CapacityTimeout implements Event {
+        private static final long serialVersionUID = 1L;
+        
+        private final BaseScheduler scheduler;
+        private final Job job;
+        private final long ticket;
+        
+        CapacityTimeout(BaseScheduler scheduler, Job job, long ticket) {
+            this.scheduler = scheduler;
+            this.job = job;
+            this.ticket = ticket;
+        }
+        
+        @Override
+        public void run() {
+            if (scheduler.capacityWaitIndex.remove(job, ticket)) {
+                scheduler.numTimedRetries++;
+                scheduler.addJob(job);
+            }
+        }
+    }
+    
+    /** Requeues the jobs waiting for capacity that a freed machine now fits. */
+    private static final class CapacityWakeup implements CellState.ResourcesFreedListener {
+        private static final long serialVersionUID = 1L;
+        
+        private final BaseScheduler scheduler;
+        private final CellState cellState;
+        
+        CapacityWakeup(BaseScheduler scheduler, CellState cellState) {
+            this.scheduler = scheduler;
+            this.cellState = cellState;
+        }
+        
+        @Override
+        public void accept(int machineID) {
+            for (Job woken : scheduler.capacityWaitIndex.machineFreed(cellState, machineID)) {
+                scheduler.numCapacityWakeups++;
+                // Not from inside the free, which may be part of a commit
+                scheduler.simulator.afterDelay(0.0, new Requeue(scheduler, woken));
+            }
+        }
+    }
 }
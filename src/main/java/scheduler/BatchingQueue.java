@@ -0,0 +1,20 @@
+package scheduler;
+
+import simulator.core.Job;
+
+import java.util.List;
+
+/**
+ * A pending queue that can hand out a batch of same-workload jobs for a
+ * batching OmegaScheduler in its own order and with its own accounting, which
+ * iterating over it and removing jobs would bypass.
+ */
+public interface BatchingQueue {
+    /**
+     * Remove and return the job poll would, followed by up to maxJobs - 1
+     * more jobs of its workload in the order poll would hand them out, each
+     * accounted as if polled; jobs of other workloads keep their places.
+     * Empty if the queue is.
+     */
+    List<Job> pollBatch(int maxJobs);
+}
@@ -0,0 +1,79 @@
+package scheduler;
+
+import simulator.core.CellState;
+import simulator.core.ClaimDelta;
+import simulator.core.Job;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Best-fit (bin packing): every task goes on the fitting machine with the least
+ * free resources left. All tasks of a job have the same shape, so the machine
+ * that was tightest stays tightest as it fills up; the policy therefore sorts
+ * the fitting machines once and fills them in order, O(m log m) per job.
+ * Small jobs instead take the tightest machine with a CellState.bestFit scan,
+ * fill it and scan again, O(m) per machine used: same placements, no sort.
+ */
+public class BestFitPlacement implements PlacementPolicy {
+    private static final long serialVersionUID = 1L;
+
+    // Jobs up to this many tasks are placed with repeated bestFit scans
+    private static final int MAX_TASKS_PER_SCAN = 16;
+
+    @Override
+    public List<ClaimDelta> placeTasks(BaseScheduler scheduler, Job job, int numTasks,
+                                       CellState cellState) {
+        int numCandidates = PlacementPolicy.numCandidates(scheduler, cellState);
+        double now = scheduler.getSimulator().getCurrentTime();
+        if (numTasks <= MAX_TASKS_PER_SCAN) {
+            return placeByScanning(scheduler, job, numTasks, cellState, numCandidates, now);
+        }
+        int[] ranges = cellState.candidateRanges(job, numCandidates);
+        double[] freeFractions = new double[numCandidates];
+        List<Integer> fitting = new ArrayList<>();
+        for (int r = 0; r < ranges.length; r += 2) {
+            for (int machineID = ranges[r]; machineID < ranges[r + 1]; machineID++) {
+                if (PlacementPolicy.fits(job, machineID, cellState, now)) {
+                    freeFractions[machineID] = PlacementPolicy.freeFraction(machineID, cellState);
+                    fitting.add(machineID);
+                }
+            }
+        }
+        fitting.sort((a, b) -> Double.compare(freeFractions[a], freeFractions[b]));
+
+        List<ClaimDelta> claimDeltas = new ArrayList<>();
+        for (int machineID : fitting) {
+            while (claimDeltas.size() < numTasks &&
+                   PlacementPolicy.fits(job, machineID, cellState, now)) {
+                claimDeltas.add(scheduler.claimTask(job, machineID, cellState));
+            }
+            if (claimDeltas.size() >= numTasks) {
+                break;
+            }
+        }
+        int numExamined = PlacementPolicy.numMachines(ranges);
+        scheduler.recordMachinesExamined(numExamined, numExamined - fitting.size());
+        return claimDeltas;
+    }
+
+    private List<ClaimDelta> placeByScanning(BaseScheduler scheduler, Job job, int numTasks,
+                                             CellState cellState, int numCandidates, double now) {
+        // Counted up front, as the sorting path does before placing anything
+        int numExamined = PlacementPolicy.numMachines(cellState.candidateRanges(job, numCandidates));
+        long failed = numExamined - cellState.countFits(job, numCandidates, now);
+        List<ClaimDelta> claimDeltas = new ArrayList<>();
+        while (claimDeltas.size() < numTasks) {
+            int machineID = cellState.bestFit(job, numCandidates, now);
+            if (machineID < 0) {
+                break;
+            }
+            while (claimDeltas.size() < numTasks &&
+                   PlacementPolicy.fits(job, machineID, cellState, now)) {
+                claimDeltas.add(scheduler.claimTask(job, machineID, cellState));
+            }
+        }
+        scheduler.recordMachinesExamined(numExamined, failed);
+        return claimDeltas;
+    }
+}
@@ -0,0 +1,48 @@
+package scheduler;
+
+import simulator.core.Job;
+
+/**
+ * Jobs that found no room wait for resources to be freed that fit their task
+ * shape (or, for a rigid job, its whole gang), or for maxWait seconds at most.
+ * Jobs that lost claims to a conflict are retried by the timer policy, since
+ * the room they need is there.
+ */
+public class CapacityTriggeredRetryPolicy implements RetryPolicy {
+    private static final long serialVersionUID = 1L;
+
+    private final RetryPolicy timerPolicy;
+    private final double maxWait;
+
+    /**
+     * @param maxWait Longest a job waits for capacity; infinite to rely on
+     *                wakeups alone
+     */
+    public CapacityTriggeredRetryPolicy(RetryPolicy timerPolicy, double maxWait) {
+        if (maxWait <= 0.0) {
+            throw new IllegalArgumentException("maxWait must be positive, but was " + maxWait);
+        }
+        this.timerPolicy = timerPolicy;
+        this.maxWait = maxWait;
+    }
+
+    public CapacityTriggeredRetryPolicy(double maxWait) {
+        this(new FixedRetryPolicy(), maxWait);
+    }
+
+    @Override
+    public double getRetryDelay(Job job, boolean lackOfRoom) {
+        return lackOfRoom ? maxWait : timerPolicy.getRetryDelay(job, false);
+    }
+
+    @Override
+    public boolean isCapacityTriggered() {
+        return true;
+    }
+
+    @Override
+    public long getMaxAttemptsWithoutProgress() { return timerPolicy.getMaxAttemptsWithoutProgress(); }
+
+    @Override
+    public long getMaxAttempts() { return timerPolicy.getMaxAttempts(); }
+}
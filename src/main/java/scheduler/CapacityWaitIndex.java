@@ -0,0 +1,156 @@
+package scheduler;
+
+import simulator.core.CellState;
+import simulator.core.Job;
+
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * Jobs waiting for room, indexed by task shape: shapes are ordered by cpus and
+ * then mem, each with a FIFO of the jobs of that shape. When resources are
+ * freed on a machine, only shapes that now fit there are looked at, and one
+ * job is woken per task of room, so a free costs O(log shapes + jobs woken)
+ * instead of a scan of every waiting job. Only jobs the machine can host are
+ * woken (see CellState.canHostIgnoringReservation): ones whose placement
+ * constraints or extra resources rule it out stay waiting, and are passed
+ * over at the cost of looking at them. Rigid jobs need room for their whole gang rather than one
+ * task and are checked against the cell's free totals.
+ */
+public class CapacityWaitIndex implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final TreeMap<Double, TreeMap<Double, ArrayDeque<Entry>>> shapes = new TreeMap<>();
+    private final List<Entry> gangs = new ArrayList<>();
+    private final Map<Job, Entry> entries = new IdentityHashMap<>();
+    private long nextSeq = 0;
+
+    private static class Entry implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final Job job;
+        final long seq;
+
+        Entry(Job job, long seq) {
+            this.job = job;
+            this.seq = seq;
+        }
+    }
+
+    /**
+     * Start waiting.
+     * @return A ticket identifying this wait, for remove
+     */
+    public long park(Job job) {
+        if (entries.containsKey(job)) {
+            throw new IllegalStateException("Job " + job.getId() + " is already waiting for capacity.");
+        }
+        Entry entry = new Entry(job, nextSeq++);
+        entries.put(job, entry);
+        if (job.isRigid()) {
+            gangs.add(entry);
+        } else {
+            shapes.computeIfAbsent(job.getCpusPerTask(), k -> new TreeMap<>())
+                  .computeIfAbsent(job.getMemPerTask(), k -> new ArrayDeque<>())
+                  .add(entry);
+        }
+        return entry.seq;
+    }
+
+    /**
+     * Stop the wait with the given ticket, if the job is still in it.
+     * @return Whether it was
+     */
+    public boolean remove(Job job, long ticket) {
+        Entry entry = entries.get(job);
+        if (entry == null || entry.seq != ticket) {
+            return false;
+        }
+        entries.remove(job);
+        if (job.isRigid()) {
+            gangs.remove(entry);
+            return true;
+        }
+        TreeMap<Double, ArrayDeque<Entry>> byMem = shapes.get(job.getCpusPerTask());
+        ArrayDeque<Entry> waiting = byMem.get(job.getMemPerTask());
+        waiting.remove(entry);
+        if (waiting.isEmpty()) {
+            byMem.remove(job.getMemPerTask());
+            if (byMem.isEmpty()) {
+                shapes.remove(job.getCpusPerTask());
+            }
+        }
+        return true;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Take the jobs that can now run after resources were freed on a machine:
+     * for every shape that fits in what the machine has free, in order of
+     * size, one job the machine can host per task of room left.
+     */
+    public List<Job> machineFreed(CellState cellState, int machineID) {
+        List<Job> woken = new ArrayList<>();
+        double cpusFree = cellState.availableCpusPerMachine(machineID);
+        double memFree = cellState.availableMemPerMachine(machineID);
+        Iterator<Map.Entry<Double, TreeMap<Double, ArrayDeque<Entry>>>> byCpus =
+            shapes.headMap(cpusFree, true).entrySet().iterator();
+        while (byCpus.hasNext()) {
+            Map.Entry<Double, TreeMap<Double, ArrayDeque<Entry>>> cpuEntry = byCpus.next();
+            double cpus = cpuEntry.getKey();
+            if (cpus > cpusFree) {
+                break;
+            }
+            Iterator<Map.Entry<Double, ArrayDeque<Entry>>> byMem =
+                cpuEntry.getValue().headMap(memFree, true).entrySet().iterator();
+            while (byMem.hasNext() && cpus <= cpusFree) {
+                Map.Entry<Double, ArrayDeque<Entry>> memEntry = byMem.next();
+                double mem = memEntry.getKey();
+                if (mem > memFree) {
+                    break;
+                }
+                ArrayDeque<Entry> waiting = memEntry.getValue();
+                Iterator<Entry> it = waiting.iterator();
+                while (it.hasNext() && cpus <= cpusFree && mem <= memFree) {
+                    Entry entry = it.next();
+                    if (!cellState.canHostIgnoringReservation(entry.job, machineID)) {
+                        continue;
+                    }
+                    it.remove();
+                    entries.remove(entry.job);
+                    woken.add(entry.job);
+                    cpusFree -= cpus;
+                    memFree -= mem;
+                }
+                if (waiting.isEmpty()) {
+                    byMem.remove();
+                }
+            }
+            if (cpuEntry.getValue().isEmpty()) {
+                byCpus.remove();
+            }
+        }
+
+        if (!gangs.isEmpty()) {
+            double cellCpusFree = cellState.getAvailableCpus();
+            double cellMemFree = cellState.getAvailableMem();
+            Iterator<Entry> it = gangs.iterator();
+            while (it.hasNext()) {
+                Job job = it.next().job;
+                double cpus = job.getUnscheduledTasks() * job.getCpusPerTask();
+                double mem = job.getUnscheduledTasks() * job.getMemPerTask();
+                if (cpus <= cellCpusFree && mem <= cellMemFree) {
+                    it.remove();
+                    entries.remove(job);
+                    woken.add(job);
+                    cellCpusFree -= cpus;
+                    cellMemFree -= mem;
+                }
+            }
+        }
+        return woken;
+    }
+}
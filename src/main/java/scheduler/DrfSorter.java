@@ -0,0 +1,321 @@
+package scheduler;
+
+import simulator.core.CellState;
+
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * Incremental (weighted) Dominant Resource Fairness ordering of Mesos frameworks.
+ * Every known framework carries its occupied cpus/mem, which the allocator updates
+ * as tasks are committed and finish. Frameworks that currently want offers live in
+ * an indexed binary min-heap keyed on weighted dominant share, so the next framework
+ * to offer to is found in O(1) and every request, cancel, assign or free costs
+ * O(log n) instead of re-sorting all requesters on every offer.
+ *
+ * In a cell with resource dimensions beyond cpus and mem the dominant share is
+ * the largest share over all of them; frameworks that never use the others
+ * are ranked exactly as in a cpu/mem cell.
+ */
+public class DrfSorter implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final double totalCpus;
+    private final double totalMem;
+    // Totals of dimensions 2 and up, or null for a cpu/mem cell
+    private final double[] totalExtra;
+    private final Map<MesosScheduler, Entry> entries = new HashMap<>();
+    private Entry[] heap = new Entry[16];
+    private int size = 0;
+    private long nextSeq = 0;
+
+    private static class Entry implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final MesosScheduler scheduler;
+        final long seq;
+        double weight = 1.0;
+        double cpus = 0.0;
+        double mem = 0.0;
+        // Usage of dimensions 2 and up, created on first use
+        double[] extra;
+        double share = 0.0;
+        int heapIndex = -1;
+
+        Entry(MesosScheduler scheduler, long seq) {
+            this.scheduler = scheduler;
+            this.seq = seq;
+        }
+    }
+
+    public DrfSorter(double totalCpus, double totalMem) {
+        this(new double[] {totalCpus, totalMem});
+    }
+    
+    /**
+     * @param totals Capacity of the cell by resource dimension, cpus and mem first
+     */
+    public DrfSorter(double[] totals) {
+        if (totals.length < 2) {
+            throw new IllegalArgumentException(
+                "DRF needs at least cpus and mem, but got " + totals.length + " resource dimensions.");
+        }
+        this.totalCpus = totals[0];
+        this.totalMem = totals[1];
+        this.totalExtra = totals.length > 2 ? Arrays.copyOfRange(totals, 2, totals.length) : null;
+    }
+    
+    public int getNumDimensions() {
+        return totalExtra == null ? 2 : 2 + totalExtra.length;
+    }
+
+    private Entry entry(MesosScheduler scheduler) {
+        Entry e = entries.get(scheduler);
+        if (e == null) {
+            e = new Entry(scheduler, nextSeq++);
+            entries.put(scheduler, e);
+        }
+        return e;
+    }
+
+    /**
+     * Register a framework's current usage, e.g. resources it held before the
+     * allocator started tracking it.
+     */
+    public void setUsage(MesosScheduler scheduler, double cpus, double mem) {
+        Entry e = entry(scheduler);
+        e.cpus = cpus;
+        e.mem = mem;
+        updateShare(e);
+    }
+    
+    /**
+     * setUsage in every dimension; usage is indexed by dimension, cpus and mem first.
+     */
+    public void setUsage(MesosScheduler scheduler, double[] usage) {
+        Entry e = entry(scheduler);
+        e.cpus = usage[0];
+        e.mem = usage[1];
+        if (totalExtra != null) {
+            e.extra = new double[totalExtra.length];
+            System.arraycopy(usage, 2, e.extra, 0, Math.min(totalExtra.length, usage.length - 2));
+        }
+        updateShare(e);
+    }
+
+    public boolean isTracked(MesosScheduler scheduler) {
+        return entries.containsKey(scheduler);
+    }
+
+    /**
+     * Set the weighted-DRF weight of a framework; its dominant share is divided by it.
+     */
+    public void setWeight(MesosScheduler scheduler, double weight) {
+        if (weight <= 0.0) {
+            throw new IllegalArgumentException("DRF weight must be positive, but was " + weight);
+        }
+        Entry e = entry(scheduler);
+        e.weight = weight;
+        updateShare(e);
+    }
+
+    public double getWeight(MesosScheduler scheduler) {
+        Entry e = entries.get(scheduler);
+        return e == null ? 1.0 : e.weight;
+    }
+
+    public void allocate(MesosScheduler scheduler, double cpus, double mem) {
+        Entry e = entry(scheduler);
+        e.cpus += cpus;
+        e.mem += mem;
+        updateShare(e);
+    }
+
+    public void free(MesosScheduler scheduler, double cpus, double mem) {
+        Entry e = entry(scheduler);
+        e.cpus -= cpus;
+        e.mem -= mem;
+        updateShare(e);
+    }
+    
+    /**
+     * allocate with amounts of dimensions 2 and up as well (extra, or null for none).
+     */
+    public void allocate(MesosScheduler scheduler, double cpus, double mem, double[] extra) {
+        Entry e = entry(scheduler);
+        e.cpus += cpus;
+        e.mem += mem;
+        addExtra(e, extra, 1.0);
+        updateShare(e);
+    }
+    
+    public void free(MesosScheduler scheduler, double cpus, double mem, double[] extra) {
+        Entry e = entry(scheduler);
+        e.cpus -= cpus;
+        e.mem -= mem;
+        addExtra(e, extra, -1.0);
+        updateShare(e);
+    }
+    
+    private void addExtra(Entry e, double[] extra, double sign) {
+        if (extra == null || totalExtra == null) {
+            return;
+        }
+        if (e.extra == null) {
+            e.extra = new double[totalExtra.length];
+        }
+        for (int k = 0; k < totalExtra.length && k < extra.length; k++) {
+            e.extra[k] += sign * extra[k];
+        }
+    }
+
+    /**
+     * Weighted dominant share of a framework.
+     */
+    public double getShare(MesosScheduler scheduler) {
+        Entry e = entries.get(scheduler);
+        return e == null ? 0.0 : e.share;
+    }
+
+    public String getDominantResource(MesosScheduler scheduler) {
+        Entry e = entries.get(scheduler);
+        if (e == null) {
+            return "cpus";
+        }
+        String dominant = e.cpus / totalCpus > e.mem / totalMem ? "cpus" : "mem";
+        if (e.extra != null) {
+            double max = Math.max(e.cpus / totalCpus, e.mem / totalMem);
+            for (int k = 0; k < totalExtra.length; k++) {
+                if (e.extra[k] / totalExtra[k] > max) {
+                    max = e.extra[k] / totalExtra[k];
+                    dominant = CellState.getResourceName(k + 2);
+                }
+            }
+        }
+        return dominant;
+    }
+
+    /**
+     * Mark a framework as wanting offers.
+     */
+    public void addRequester(MesosScheduler scheduler) {
+        Entry e = entry(scheduler);
+        if (e.heapIndex >= 0) {
+            return;
+        }
+        if (size == heap.length) {
+            heap = Arrays.copyOf(heap, size * 2);
+        }
+        heap[size] = e;
+        e.heapIndex = size;
+        size++;
+        siftUp(e.heapIndex);
+    }
+
+    public void removeRequester(MesosScheduler scheduler) {
+        Entry e = entries.get(scheduler);
+        if (e == null || e.heapIndex < 0) {
+            return;
+        }
+        int i = e.heapIndex;
+        size--;
+        if (i != size) {
+            Entry last = heap[size];
+            heap[i] = last;
+            last.heapIndex = i;
+            siftDown(i);
+            siftUp(last.heapIndex);
+        }
+        heap[size] = null;
+        e.heapIndex = -1;
+    }
+
+    public boolean isRequesting(MesosScheduler scheduler) {
+        Entry e = entries.get(scheduler);
+        return e != null && e.heapIndex >= 0;
+    }
+
+    public int getNumRequesters() {
+        return size;
+    }
+
+    public boolean hasRequesters() {
+        return size > 0;
+    }
+
+    /**
+     * The requesting framework with the lowest weighted dominant share,
+     * ties broken by registration order; null if nobody is requesting.
+     */
+    public MesosScheduler peekRequester() {
+        return size == 0 ? null : heap[0].scheduler;
+    }
+
+    /**
+     * Requesting frameworks in DRF order. O(n log n), meant for logging and
+     * callers that need more than the head.
+     */
+    public List<MesosScheduler> sortedRequesters() {
+        List<Entry> sorted = new ArrayList<>(Arrays.asList(heap).subList(0, size));
+        sorted.sort(DrfSorter::compare);
+        List<MesosScheduler> result = new ArrayList<>(size);
+        for (Entry e : sorted) {
+            result.add(e.scheduler);
+        }
+        return result;
+    }
+
+    private void updateShare(Entry e) {
+        double dominantShare = Math.max(e.cpus / totalCpus, e.mem / totalMem);
+        if (e.extra != null) {
+            for (int k = 0; k < totalExtra.length; k++) {
+                dominantShare = Math.max(dominantShare, e.extra[k] / totalExtra[k]);
+            }
+        }
+        e.share = dominantShare / e.weight;
+        if (e.heapIndex >= 0) {
+            siftUp(e.heapIndex);
+            siftDown(e.heapIndex);
+        }
+    }
+
+    private static int compare(Entry a, Entry b) {
+        int c = Double.compare(a.share, b.share);
+        return c != 0 ? c : Long.compare(a.seq, b.seq);
+    }
+
+    private void siftUp(int i) {
+        Entry e = heap[i];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (compare(e, heap[parent]) >= 0) {
+                break;
+            }
+            heap[i] = heap[parent];
+            heap[i].heapIndex = i;
+            i = parent;
+        }
+        heap[i] = e;
+        e.heapIndex = i;
+    }
+
+    private void siftDown(int i) {
+        Entry e = heap[i];
+        int half = size >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            int right = child + 1;
+            if (right < size && compare(heap[right], heap[child]) < 0) {
+                child = right;
+            }
+            if (compare(e, heap[child]) <= 0) {
+                break;
+            }
+            heap[i] = heap[child];
+            heap[i].heapIndex = i;
+            i = child;
+        }
+        heap[i] = e;
+        e.heapIndex = i;
+    }
+}
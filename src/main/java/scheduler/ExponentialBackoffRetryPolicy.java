@@ -0,0 +1,66 @@
+package scheduler;
+
+import simulator.core.Job;
+
+import java.util.Random;
+
+/**
+ * Exponential backoff: the n-th retry of a job waits initialDelay * factor^(n-1)
+ * seconds, capped at maxDelay, scaled by a uniform random factor in
+ * [1 - jitter, 1 + jitter] so jobs that failed together don't retry together.
+ */
+public class ExponentialBackoffRetryPolicy implements RetryPolicy {
+    private static final long serialVersionUID = 1L;
+
+    private final double initialDelay;
+    private final double factor;
+    private final double maxDelay;
+    private final double jitter;
+    private final long maxAttemptsWithoutProgress;
+    private final long maxAttempts;
+    private final Random random;
+
+    public ExponentialBackoffRetryPolicy(double initialDelay, double factor, double maxDelay,
+                                         double jitter, long maxAttemptsWithoutProgress,
+                                         long maxAttempts, Random random) {
+        if (initialDelay <= 0.0 || maxDelay < initialDelay) {
+            throw new IllegalArgumentException(String.format(
+                "Need 0 < initialDelay <= maxDelay, but they were %f and %f.",
+                initialDelay, maxDelay));
+        }
+        if (factor < 1.0) {
+            throw new IllegalArgumentException("factor must be at least 1, but was " + factor);
+        }
+        if (jitter < 0.0 || jitter >= 1.0) {
+            throw new IllegalArgumentException("jitter must be in [0, 1), but was " + jitter);
+        }
+        this.initialDelay = initialDelay;
+        this.factor = factor;
+        this.maxDelay = maxDelay;
+        this.jitter = jitter;
+        this.maxAttemptsWithoutProgress = maxAttemptsWithoutProgress;
+        this.maxAttempts = maxAttempts;
+        this.random = random;
+    }
+
+    public ExponentialBackoffRetryPolicy(double initialDelay, double factor, double maxDelay,
+                                         double jitter) {
+        this(initialDelay, factor, maxDelay, jitter, 100, 1000, new Random());
+    }
+
+    @Override
+    public double getRetryDelay(Job job, boolean lackOfRoom) {
+        long retries = Math.max(1, job.getNumSchedulingAttempts());
+        double delay = Math.min(maxDelay, initialDelay * Math.pow(factor, retries - 1));
+        if (jitter > 0.0) {
+            delay *= 1.0 + jitter * (2.0 * random.nextDouble() - 1.0);
+        }
+        return delay;
+    }
+
+    @Override
+    public long getMaxAttemptsWithoutProgress() { return maxAttemptsWithoutProgress; }
+
+    @Override
+    public long getMaxAttempts() { return maxAttempts; }
+}
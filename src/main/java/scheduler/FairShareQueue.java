@@ -0,0 +1,216 @@
+package scheduler;
+
+import simulator.core.Job;
+
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * Fair sharing of the scheduler across workloads. Each workload has its own FIFO
+ * and is charged the estimated think time of every job taken from it; the next
+ * job comes from the workload with the least weighted charge, so a workload of
+ * huge jobs can't monopolize the scheduler. A workload that becomes active again
+ * is charged at least as much as the least-charged active one, so it can't
+ * cash in credit saved while it was idle.
+ *
+ * With a positive agingRate (seconds of charge forgiven per second waited) a
+ * workload whose head job has waited long moves forward regardless of its charge.
+ * Workloads are kept in a sorted set: offer and poll cost O(log w).
+ */
+public class FairShareQueue extends AbstractQueue<Job> implements BatchingQueue, Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final Map<String, Double> constantThinkTimes;
+    private final Map<String, Double> perTaskThinkTimes;
+    private final double agingRate;
+    private final Map<String, WorkloadQueue> workloads = new HashMap<>();
+    private final TreeSet<WorkloadQueue> active = new TreeSet<>();
+    private long nextSeq = 0;
+    private int size = 0;
+
+    private static class WorkloadQueue implements Comparable<WorkloadQueue>, Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final String name;
+        final long seq;
+        final ArrayDeque<Job> jobs = new ArrayDeque<>();
+        double weight = 1.0;
+        double charge = 0.0;
+        // Ordering key while in the active set
+        double key = 0.0;
+
+        WorkloadQueue(String name, long seq) {
+            this.name = name;
+            this.seq = seq;
+        }
+
+        @Override
+        public int compareTo(WorkloadQueue other) {
+            int c = Double.compare(key, other.key);
+            return c != 0 ? c : Long.compare(seq, other.seq);
+        }
+    }
+
+    public FairShareQueue(Map<String, Double> constantThinkTimes,
+                          Map<String, Double> perTaskThinkTimes,
+                          double agingRate) {
+        if (agingRate < 0.0) {
+            throw new IllegalArgumentException("agingRate must be non-negative, but was " + agingRate);
+        }
+        this.constantThinkTimes = new HashMap<>(constantThinkTimes);
+        this.perTaskThinkTimes = new HashMap<>(perTaskThinkTimes);
+        this.agingRate = agingRate;
+    }
+
+    private WorkloadQueue workload(String name) {
+        WorkloadQueue wq = workloads.get(name);
+        if (wq == null) {
+            wq = new WorkloadQueue(name, nextSeq++);
+            workloads.put(name, wq);
+        }
+        return wq;
+    }
+
+    /**
+     * Give a workload a bigger (or smaller) share; its charge is divided by weight.
+     */
+    public void setWeight(String workloadName, double weight) {
+        if (weight <= 0.0) {
+            throw new IllegalArgumentException("weight must be positive, but was " + weight);
+        }
+        WorkloadQueue wq = workload(workloadName);
+        boolean wasActive = active.remove(wq);
+        wq.weight = weight;
+        if (wasActive) {
+            activate(wq);
+        }
+    }
+
+    public double getCharge(String workloadName) {
+        WorkloadQueue wq = workloads.get(workloadName);
+        return wq == null ? 0.0 : wq.charge;
+    }
+
+    private double thinkTime(Job job) {
+        return constantThinkTimes.getOrDefault(job.getWorkloadName(), 0.0) +
+               perTaskThinkTimes.getOrDefault(job.getWorkloadName(), 0.0) * job.getUnscheduledTasks();
+    }
+
+    // Re-key a non-empty workload from its charge and head job and (re)insert it
+    private void activate(WorkloadQueue wq) {
+        wq.key = wq.charge / wq.weight + agingRate * wq.jobs.peek().getLastEnqueued();
+        active.add(wq);
+    }
+
+    @Override
+    public boolean offer(Job job) {
+        WorkloadQueue wq = workload(job.getWorkloadName());
+        if (wq.jobs.isEmpty()) {
+            double minCharge = Double.POSITIVE_INFINITY;
+            for (WorkloadQueue other : active) {
+                minCharge = Math.min(minCharge, other.charge / other.weight);
+            }
+            if (minCharge != Double.POSITIVE_INFINITY) {
+                wq.charge = Math.max(wq.charge, minCharge * wq.weight);
+            }
+            wq.jobs.add(job);
+            activate(wq);
+        } else {
+            wq.jobs.add(job);
+        }
+        size++;
+        return true;
+    }
+
+    @Override
+    public Job poll() {
+        WorkloadQueue wq = active.pollFirst();
+        if (wq == null) {
+            return null;
+        }
+        Job job = wq.jobs.poll();
+        wq.charge += thinkTime(job);
+        size--;
+        if (!wq.jobs.isEmpty()) {
+            activate(wq);
+        }
+        return job;
+    }
+
+    /**
+     * The next jobs of the workload whose turn it is, each charged as poll
+     * charges it; the workload's turn ends with the batch.
+     */
+    @Override
+    public List<Job> pollBatch(int maxJobs) {
+        List<Job> batch = new ArrayList<>(maxJobs);
+        WorkloadQueue wq = active.pollFirst();
+        if (wq == null) {
+            return batch;
+        }
+        while (batch.size() < maxJobs && !wq.jobs.isEmpty()) {
+            Job job = wq.jobs.poll();
+            wq.charge += thinkTime(job);
+            size--;
+            batch.add(job);
+        }
+        if (!wq.jobs.isEmpty()) {
+            activate(wq);
+        }
+        return batch;
+    }
+
+    @Override
+    public Job peek() {
+        return active.isEmpty() ? null : active.first().jobs.peek();
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!(o instanceof Job)) {
+            return false;
+        }
+        WorkloadQueue wq = workloads.get(((Job) o).getWorkloadName());
+        if (wq == null || wq.jobs.isEmpty()) {
+            return false;
+        }
+        boolean wasHead = wq.jobs.peek().equals(o);
+        if (wasHead) {
+            active.remove(wq);
+        }
+        if (!wq.jobs.remove(o)) {
+            return false;
+        }
+        size--;
+        if (wasHead && !wq.jobs.isEmpty()) {
+            activate(wq);
+        }
+        return true;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void clear() {
+        for (WorkloadQueue wq : workloads.values()) {
+            wq.jobs.clear();
+        }
+        active.clear();
+        size = 0;
+    }
+
+    /**
+     * Read-only iteration, workload by workload rather than in queue order.
+     */
+    @Override
+    public Iterator<Job> iterator() {
+        List<Job> jobs = new ArrayList<>(size);
+        for (WorkloadQueue wq : workloads.values()) {
+            jobs.addAll(wq.jobs);
+        }
+        return Collections.unmodifiableList(jobs).iterator();
+    }
+}
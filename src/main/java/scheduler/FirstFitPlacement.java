@@ -0,0 +1,46 @@
+package scheduler;
+
+import simulator.core.CellState;
+import simulator.core.ClaimDelta;
+import simulator.core.Job;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Deterministic first-fit: tasks fill the lowest-numbered machines they fit on.
+ * The scan resumes after the last machine used, with CellState.firstFit, so a
+ * job costs at most one pass over the cell. Packs the front of the cell, which
+ * concentrates conflicts there when several schedulers use it at once.
+ */
+public class FirstFitPlacement implements PlacementPolicy {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public List<ClaimDelta> placeTasks(BaseScheduler scheduler, Job job, int numTasks,
+                                       CellState cellState) {
+        int numCandidates = PlacementPolicy.numCandidates(scheduler, cellState);
+        double now = scheduler.getSimulator().getCurrentTime();
+        List<ClaimDelta> claimDeltas = new ArrayList<>();
+        long examined = 0;
+        long failed = 0;
+        int from = 0;
+        while (claimDeltas.size() < numTasks && from < numCandidates) {
+            int machineID = cellState.firstFit(job, from, numCandidates, now);
+            if (machineID < 0) {
+                examined += numCandidates - from;
+                failed += numCandidates - from;
+                break;
+            }
+            examined += machineID - from + 1;
+            failed += machineID - from;
+            while (claimDeltas.size() < numTasks &&
+                   PlacementPolicy.fits(job, machineID, cellState, now)) {
+                claimDeltas.add(scheduler.claimTask(job, machineID, cellState));
+            }
+            from = machineID + 1;
+        }
+        scheduler.recordMachinesExamined(examined, failed);
+        return claimDeltas;
+    }
+}
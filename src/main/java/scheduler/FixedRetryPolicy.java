@@ -0,0 +1,43 @@
+package scheduler;
+
+import simulator.core.Job;
+
+/**
+ * Retry after the same delay every time, the simulator's original behaviour
+ * (1 second, abandoning after 100 attempts without progress or 1000 in all).
+ */
+public class FixedRetryPolicy implements RetryPolicy {
+    private static final long serialVersionUID = 1L;
+
+    private final double delay;
+    private final long maxAttemptsWithoutProgress;
+    private final long maxAttempts;
+
+    public FixedRetryPolicy(double delay, long maxAttemptsWithoutProgress, long maxAttempts) {
+        if (delay < 0.0) {
+            throw new IllegalArgumentException("delay must be non-negative, but was " + delay);
+        }
+        this.delay = delay;
+        this.maxAttemptsWithoutProgress = maxAttemptsWithoutProgress;
+        this.maxAttempts = maxAttempts;
+    }
+
+    public FixedRetryPolicy(double delay) {
+        this(delay, 100, 1000);
+    }
+
+    public FixedRetryPolicy() {
+        this(1.0);
+    }
+
+    @Override
+    public double getRetryDelay(Job job, boolean lackOfRoom) {
+        return delay;
+    }
+
+    @Override
+    public long getMaxAttemptsWithoutProgress() { return maxAttemptsWithoutProgress; }
+
+    @Override
+    public long getMaxAttempts() { return maxAttempts; }
+}
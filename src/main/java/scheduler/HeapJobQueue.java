@@ -0,0 +1,202 @@
+package scheduler;
+
+import simulator.core.Job;
+
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * Pending-job queue ordered by a key computed when a job is enqueued, lowest
+ * first, ties in arrival order. Backed by a binary heap, so offer and poll cost
+ * O(log n) however the discipline ranks jobs.
+ *
+ * Aging is folded into the key: a job that has waited w seconds is ranked as if
+ * its key were agingRate * w lower. Since every queued job ages at the same
+ * rate, that is the same order as key + agingRate * enqueueTime, which doesn't
+ * change while the job waits and so can live in a static heap.
+ */
+public abstract class HeapJobQueue extends AbstractQueue<Job> implements BatchingQueue, Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final double agingRate;
+    private Entry[] heap = new Entry[16];
+    private int size = 0;
+    private long nextSeq = 0;
+
+    private static class Entry implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final Job job;
+        final double key;
+        final long seq;
+
+        Entry(Job job, double key, long seq) {
+            this.job = job;
+            this.key = key;
+            this.seq = seq;
+        }
+    }
+
+    /**
+     * @param agingRate Key units a job gains per second waited; 0 disables aging
+     */
+    protected HeapJobQueue(double agingRate) {
+        if (agingRate < 0.0) {
+            throw new IllegalArgumentException("agingRate must be non-negative, but was " + agingRate);
+        }
+        this.agingRate = agingRate;
+    }
+
+    /**
+     * Rank of a job as it is enqueued, lower goes first.
+     */
+    protected abstract double key(Job job);
+
+    /**
+     * Called with every job leaving the queue through poll.
+     */
+    protected void onPoll(Job job) {
+    }
+
+    public double getAgingRate() { return agingRate; }
+
+    @Override
+    public boolean offer(Job job) {
+        insert(new Entry(job, key(job) + agingRate * job.getLastEnqueued(), nextSeq++));
+        return true;
+    }
+
+    private void insert(Entry entry) {
+        if (size == heap.length) {
+            heap = Arrays.copyOf(heap, size * 2);
+        }
+        heap[size] = entry;
+        siftUp(size++);
+    }
+
+    @Override
+    public Job poll() {
+        if (size == 0) {
+            return null;
+        }
+        Job job = heap[0].job;
+        removeAt(0);
+        onPoll(job);
+        return job;
+    }
+
+    /**
+     * Jobs of other workloads ahead of the batch's are taken off the heap and
+     * put back as they were, so this costs O(log n) per job up to the last
+     * one taken.
+     */
+    @Override
+    public List<Job> pollBatch(int maxJobs) {
+        List<Job> batch = new ArrayList<>(maxJobs);
+        if (size == 0) {
+            return batch;
+        }
+        String workloadName = heap[0].job.getWorkloadName();
+        List<Entry> passedOver = new ArrayList<>();
+        while (size > 0 && batch.size() < maxJobs) {
+            Entry entry = heap[0];
+            removeAt(0);
+            if (entry.job.getWorkloadName().equals(workloadName)) {
+                onPoll(entry.job);
+                batch.add(entry.job);
+            } else {
+                passedOver.add(entry);
+            }
+        }
+        for (Entry entry : passedOver) {
+            insert(entry);
+        }
+        return batch;
+    }
+
+    @Override
+    public Job peek() {
+        return size == 0 ? null : heap[0].job;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        for (int i = 0; i < size; i++) {
+            if (heap[i].job.equals(o)) {
+                removeAt(i);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(heap, 0, size, null);
+        size = 0;
+    }
+
+    /**
+     * Read-only iteration in heap order, not in queue order.
+     */
+    @Override
+    public Iterator<Job> iterator() {
+        List<Job> jobs = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            jobs.add(heap[i].job);
+        }
+        return Collections.unmodifiableList(jobs).iterator();
+    }
+
+    private void removeAt(int i) {
+        size--;
+        if (i != size) {
+            heap[i] = heap[size];
+            heap[size] = null;
+            siftDown(i);
+            siftUp(i);
+        } else {
+            heap[size] = null;
+        }
+    }
+
+    private static boolean less(Entry a, Entry b) {
+        return a.key < b.key || (a.key == b.key && a.seq < b.seq);
+    }
+
+    private void siftUp(int i) {
+        Entry e = heap[i];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!less(e, heap[parent])) {
+                break;
+            }
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = e;
+    }
+
+    private void siftDown(int i) {
+        Entry e = heap[i];
+        int half = size >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            int right = child + 1;
+            if (right < size && less(heap[right], heap[child])) {
+                child = right;
+            }
+            if (!less(heap[child], e)) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = e;
+    }
+}
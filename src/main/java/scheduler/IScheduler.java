@@ -5,12 +5,13 @@ import simulator.core.ClaimDelta;
 import simulator.core.CellState;
 import simulator.ClusterSimulator;
 
+import java.io.Serializable;
 import java.util.List;
 
 /**
  * Base interface for all schedulers in the cluster scheduling simulator.
  */
-public interface IScheduler {
+public interface IScheduler extends Serializable {
     /**
      * Add a job to the scheduler's queue.
      */
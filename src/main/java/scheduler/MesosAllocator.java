@@ -2,19 +2,27 @@ package scheduler;
 
 import simulator.core.CellState;
 import simulator.core.ClaimDelta;
+import simulator.core.GangReservation;
+import simulator.core.MachineShapes;
+import simulator.Event;
 import simulator.MesosSimulator;
 
+import java.io.Serializable;
 import java.util.*;
 
 /**
  * Mesos allocator that manages resource offers to schedulers.
  * Uses DRF (Dominant Resource Fairness) to determine which scheduler
- * should receive the next offer.
+ * should receive the next offer. Dominant shares are maintained incrementally
+ * in a DrfSorter, optionally weighted per framework.
  */
-public class MesosAllocator {
+public class MesosAllocator implements Serializable {
+    private static final long serialVersionUID = 1L;
+    
     private MesosSimulator simulator;
     private boolean allocating = false;
-    private final Set<MesosScheduler> schedulersRequestingResources = new HashSet<>();
+    private DrfSorter drf;
+    private final Map<MesosScheduler, Double> frameworkWeights = new HashMap<>();
     private double timeSpentAllocating = 0.0;
     private long nextOfferId = 0;
     private final Map<Long, List<ClaimDelta>> offeredDeltas = new HashMap<>();
@@ -24,15 +32,73 @@ public class MesosAllocator {
     private final double minCpuOffer;
     private final double minMemOffer;
     private final double offerBatchInterval;
+    private final int machinesPerOffer;
+    private final double offerTimeout;
+    
+    // Partitioned offer mode: machines that may have free capacity and are not
+    // part of an outstanding offer. Full machines are dropped lazily when polled
+    // and re-enqueued when resources are freed on them.
+    private final ArrayDeque<Integer> freeMachines = new ArrayDeque<>();
+    private boolean[] inFreeMachines;
+    private boolean[] machineOffered;
+    
+    // Decline filters: per framework, the time until which each machine is
+    // refused, plus the latest such time so unfiltered frameworks are cheap to test
+    private final Map<MesosScheduler, double[]> refusedUntil = new HashMap<>();
+    private final Map<MesosScheduler, Double> filterExpiry = new HashMap<>();
+    private final Set<Long> rescindedOffers = new HashSet<>();
+    
+    // Offer protocol statistics
+    private long numOfferRounds = 0;
+    private long numOffersSent = 0;
+    private long numOffersDeclined = 0;
+    private long numOffersRescinded = 0;
+    private long numFilteredFrameworkSkips = 0;
+    private long numOfferRoundsHeldForGang = 0;
     
+    /**
+     * @param machinesPerOffer If positive, offers are carved out of the free
+     *                         capacity in chunks of at most this many machines,
+     *                         and several frameworks may hold disjoint offers at
+     *                         once. If 0, every offer locks the whole cell.
+     * @param offerTimeout     Seconds a framework may hold an offer after receiving
+     *                         it before the allocator rescinds it. 0 disables timeouts.
+     */
     public MesosAllocator(double constantThinkTime,
                           double minCpuOffer,
                           double minMemOffer,
-                          double offerBatchInterval) {
+                          double offerBatchInterval,
+                          int machinesPerOffer,
+                          double offerTimeout) {
+        if (machinesPerOffer < 0) {
+            throw new IllegalArgumentException(
+                "machinesPerOffer must be non-negative, but was " + machinesPerOffer);
+        }
+        if (offerTimeout < 0.0) {
+            throw new IllegalArgumentException(
+                "offerTimeout must be non-negative, but was " + offerTimeout);
+        }
         this.constantThinkTime = constantThinkTime;
         this.minCpuOffer = minCpuOffer;
         this.minMemOffer = minMemOffer;
         this.offerBatchInterval = offerBatchInterval;
+        this.machinesPerOffer = machinesPerOffer;
+        this.offerTimeout = offerTimeout;
+    }
+    
+    public MesosAllocator(double constantThinkTime,
+                          double minCpuOffer,
+                          double minMemOffer,
+                          double offerBatchInterval,
+                          int machinesPerOffer) {
+        this(constantThinkTime, minCpuOffer, minMemOffer, offerBatchInterval, machinesPerOffer, 0.0);
+    }
+    
+    public MesosAllocator(double constantThinkTime,
+                          double minCpuOffer,
+                          double minMemOffer,
+                          double offerBatchInterval) {
+        this(constantThinkTime, minCpuOffer, minMemOffer, offerBatchInterval, 0);
     }
     
     public MesosAllocator(double constantThinkTime) {
@@ -41,8 +107,48 @@ public class MesosAllocator {
     
     public void setSimulator(MesosSimulator simulator) {
         this.simulator = simulator;
+        this.drf = new DrfSorter(simulator.getCellState().getTotalResources());
+        
+        if (machinesPerOffer > 0) {
+            int numMachines = simulator.getCellState().getNumMachines();
+            inFreeMachines = new boolean[numMachines];
+            machineOffered = new boolean[numMachines];
+            freeMachines.clear();
+            for (int mID = 0; mID < numMachines; mID++) {
+                enqueueFreeMachine(mID);
+            }
+            simulator.getCellState().addResourcesFreedListener(new MachineFreed(this));
+        }
+    }
+    
+    public int getMachinesPerOffer() {
+        return machinesPerOffer;
     }
     
+    public double getOfferTimeout() {
+        return offerTimeout;
+    }
+    
+    public double getMinCpuOffer() { return minCpuOffer; }
+    public double getMinMemOffer() { return minMemOffer; }
+    public double getOfferBatchInterval() { return offerBatchInterval; }
+    
+    /** Weight set with setFrameworkWeight, or 1. */
+    public double getFrameworkWeight(MesosScheduler scheduler) {
+        return frameworkWeights.getOrDefault(scheduler, 1.0);
+    }
+    
+    public double getTimeSpentAllocating() { return timeSpentAllocating; }
+    public long getNumOfferRounds() { return numOfferRounds; }
+    public long getNumOffersSent() { return numOffersSent; }
+    /** Offers answered without launching a single task, i.e. futile offers. */
+    public long getNumOffersDeclined() { return numOffersDeclined; }
+    public long getNumOffersRescinded() { return numOffersRescinded; }
+    /** Times a framework was passed over because its filters covered every free machine. */
+    public long getNumFilteredFrameworkSkips() { return numFilteredFrameworkSkips; }
+    /** Offer rounds put off so that a due gang gets the free capacity in one offer. */
+    public long getNumOfferRoundsHeldForGang() { return numOfferRoundsHeldForGang; }
+    
     public MesosSimulator getSimulator() {
         return simulator;
     }
@@ -58,13 +164,44 @@ public class MesosAllocator {
         return constantThinkTime;
     }
     
+    /**
+     * Set a framework's weighted-DRF weight. A framework with weight 2 is
+     * entitled to twice the dominant share of a framework with weight 1.
+     */
+    public void setFrameworkWeight(MesosScheduler scheduler, double weight) {
+        if (weight <= 0.0) {
+            throw new IllegalArgumentException("DRF weight must be positive, but was " + weight);
+        }
+        frameworkWeights.put(scheduler, weight);
+        if (drf != null && drf.isTracked(scheduler)) {
+            drf.setWeight(scheduler, weight);
+        }
+    }
+    
+    public DrfSorter getDrfSorter() {
+        return drf;
+    }
+    
+    /**
+     * Start tracking a framework's dominant share, seeding it with whatever
+     * the cell state already attributes to it.
+     */
+    private void trackFramework(MesosScheduler scheduler) {
+        if (!drf.isTracked(scheduler)) {
+            CellState cellState = simulator.getCellState();
+            drf.setUsage(scheduler, cellState.getOccupiedResources(scheduler.getName()));
+            drf.setWeight(scheduler, frameworkWeights.getOrDefault(scheduler, 1.0));
+        }
+    }
+    
     /**
      * Request an offer from a scheduler that needs resources.
      */
     public void requestOffer(MesosScheduler needySched) {
         checkRegistered();
         simulator.log("Received an offerRequest from " + needySched.getName() + ".");
-        schedulersRequestingResources.add(needySched);
+        trackFramework(needySched);
+        drf.addRequester(needySched);
         schedBuildAndSendOffer();
     }
     
@@ -74,7 +211,7 @@ public class MesosAllocator {
     public void cancelOfferRequest(MesosScheduler needySched) {
         simulator.log("Canceling the outstanding resourceRequest for scheduler " +
                      needySched.getName() + ".");
-        schedulersRequestingResources.remove(needySched);
+        drf.removeRequester(needySched);
     }
     
     /**
@@ -83,14 +220,19 @@ public class MesosAllocator {
     private void schedBuildAndSendOffer() {
         if (!buildAndSendOfferScheduled) {
             buildAndSendOfferScheduled = true;
-            simulator.afterDelay(offerBatchInterval, () -> {
-                simulator.log("Building and sending a batched offer");
-                buildAndSendOffer();
-                buildAndSendOfferScheduled = false;
-            });
+            simulator.afterDelay(offerBatchInterval, new OfferRound(this));
         }
     }
     
+    /**
+     * The end of an offer batch interval: build and send the batched offer.
+     */
+    private void offerRound() {
+        simulator.log("Building and sending a batched offer");
+        buildAndSendOffer();
+        buildAndSendOfferScheduled = false;
+    }
+    
     /**
      * Build and send a resource offer to a scheduler using DRF.
      */
@@ -107,47 +249,93 @@ public class MesosAllocator {
             simulator.getCellState().getTotalOccupiedMem() / 
                 simulator.getCellState().getTotalMem() * 100.0));
         
+        // A gang whose reservation is due can only start from a single offer, so
+        // don't split the free capacity further while other offers are out; the
+        // responses to those trigger the next round.
+        GangReservation reservation = simulator.getCellState().getGangReservation();
+        if (reservation != null && !offeredDeltas.isEmpty() &&
+            simulator.getCurrentTime() >= reservation.getShadowTime()) {
+            numOfferRoundsHeldForGang++;
+            simulator.log(String.format(
+                "Holding the offer round until %d outstanding offers come back, " +
+                "for the gang of job %d.", offeredDeltas.size(), reservation.getJob().getId()));
+            return;
+        }
+        
         // Build and send offer only if there are enough resources and schedulers want offers
-        if (!schedulersRequestingResources.isEmpty() &&
+        if (drf.hasRequesters() &&
             simulator.getCellState().getAvailableCpus() >= minCpuOffer &&
             simulator.getCellState().getAvailableMem() >= minMemOffer) {
             
-            // Use DRF to pick a candidate scheduler
-            List<MesosScheduler> sortedSchedulers = 
-                drfSortSchedulers(new ArrayList<>(schedulersRequestingResources));
+            if (machinesPerOffer > 0) {
+                buildAndSendPartialOffers();
+                return;
+            }
             
-            if (!sortedSchedulers.isEmpty()) {
-                MesosScheduler candidateSched = sortedSchedulers.get(0);
+            // Use DRF to pick a candidate scheduler, passing over frameworks
+            // whose decline filters cover every machine with free resources.
+            // A framework that has filters, or whose jobs only fit some shape
+            // classes, is offered just the machines it could use.
+            MesosScheduler candidateSched = null;
+            int[] unfilteredMachines = null;
+            List<MesosScheduler> skipped = new ArrayList<>();
+            while (drf.hasRequesters()) {
+                MesosScheduler sched = drf.peekRequester();
+                boolean[] shapeClasses = sched.wantedShapeClasses(simulator.getCellState());
+                if (!hasActiveFilters(sched) && shapeClasses == null) {
+                    // Offered the whole cell, not the machines of a framework skipped before it
+                    unfilteredMachines = null;
+                    candidateSched = sched;
+                    break;
+                }
+                unfilteredMachines = unfilteredFreeMachines(sched, shapeClasses);
+                if (unfilteredMachines.length > 0) {
+                    candidateSched = sched;
+                    break;
+                }
+                simulator.log(sched.getName() + " has filtered or can't use every free machine, skipping it.");
+                numFilteredFrameworkSkips++;
+                drf.removeRequester(sched);
+                skipped.add(sched);
+            }
+            for (MesosScheduler sched : skipped) {
+                drf.addRequester(sched);
+            }
+            
+            if (candidateSched != null) {
+                simulator.log(String.format(
+                    "%s's dominant share is %s (%f%s).",
+                    candidateSched.getName(), drf.getDominantResource(candidateSched),
+                    drf.getShare(candidateSched), "%"));
                 
-                // Create an offer by taking a snapshot of cell state
-                CellState privCellState = simulator.getCellState().copy();
-                Offer offer = new Offer(nextOfferId, candidateSched, privCellState);
+                Offer offer;
+                List<ClaimDelta> claimDeltas;
+                if (unfilteredMachines == null) {
+                    // Create an offer by taking a snapshot of cell state
+                    CellState privCellState = simulator.getCellState().copy();
+                    offer = new Offer(nextOfferId, candidateSched, privCellState);
+                    
+                    // Lock resources in common cell state
+                    claimDeltas = 
+                        candidateSched.scheduleAllAvailable(simulator.getCellState(), true);
+                } else {
+                    // Only offer (and lock) the machines this framework hasn't refused
+                    offer = new Offer(nextOfferId, candidateSched,
+                        simulator.getCellState().copyMachines(unfilteredMachines),
+                        unfilteredMachines);
+                    claimDeltas = candidateSched.scheduleAllAvailable(
+                        simulator.getCellState(), unfilteredMachines, true);
+                }
                 nextOfferId++;
                 
-                // Lock resources in common cell state
-                List<ClaimDelta> claimDeltas = 
-                    candidateSched.scheduleAllAvailable(simulator.getCellState(), true);
-                
                 if (!claimDeltas.isEmpty()) {
-                    offeredDeltas.put(offer.getId(), claimDeltas);
-                    
-                    double thinkTime = getThinkTime();
-                    final Offer finalOffer = offer;
-                    simulator.afterDelay(thinkTime, () -> {
-                        timeSpentAllocating += thinkTime;
-                        simulator.log(String.format(
-                            "Allocator done thinking, sending offer to %s. " +
-                            "Offer contains private cell state with %f cpu, %f mem available.",
-                            candidateSched.getName(),
-                            finalOffer.getCellState().getAvailableCpus(),
-                            finalOffer.getCellState().getAvailableMem()));
-                        candidateSched.resourceOffer(finalOffer);
-                    });
+                    numOfferRounds++;
+                    sendOffer(offer, claimDeltas);
                 }
             }
         } else {
             String reason = "";
-            if (schedulersRequestingResources.isEmpty()) {
+            if (!drf.hasRequesters()) {
                 reason = "No schedulers currently want offers.";
             }
             if (simulator.getCellState().getAvailableCpus() < minCpuOffer ||
@@ -163,21 +351,287 @@ public class MesosAllocator {
         }
     }
     
+    /**
+     * Remember the deltas locking an offer's resources and deliver the offer
+     * once the allocator is done thinking.
+     */
+    private void sendOffer(Offer offer, List<ClaimDelta> claimDeltas) {
+        offeredDeltas.put(offer.getId(), claimDeltas);
+        numOffersSent++;
+        
+        double thinkTime = getThinkTime();
+        simulator.afterDelay(thinkTime, new OfferDelivery(this, offer, thinkTime));
+        if (offerTimeout > 0.0) {
+            simulator.afterDelay(thinkTime + offerTimeout, new OfferTimeout(this, offer));
+        }
+    }
+    
+    /**
+     * The allocator is done thinking about an offer: hand it to its framework.
+     */
+    private void deliverOffer(Offer offer, double thinkTime) {
+        MesosScheduler candidateSched = offer.getScheduler();
+        timeSpentAllocating += thinkTime;
+        simulator.log(String.format(
+            "Allocator done thinking, sending offer to %s. " +
+            "Offer contains private cell state with %f cpu, %f mem available.",
+            candidateSched.getName(),
+            offer.getCellState().getAvailableCpus(),
+            offer.getCellState().getAvailableMem()));
+        candidateSched.resourceOffer(offer);
+    }
+    
+    /**
+     * Take back an offer the framework has been sitting on for longer than
+     * offerTimeout, unlocking its resources for other frameworks.
+     */
+    private void rescindOffer(Offer offer) {
+        List<ClaimDelta> savedDeltas = offeredDeltas.remove(offer.getId());
+        if (savedDeltas == null) {
+            // Already answered
+            return;
+        }
+        simulator.log(String.format(
+            "Offer %d to %s timed out after %f seconds, rescinding it.",
+            offer.getId(), offer.getScheduler().getName(), offerTimeout));
+        numOffersRescinded++;
+        // Until the framework acknowledges it (see acknowledgeRescind)
+        rescindedOffers.add(offer.getId());
+        releaseOffer(offer, savedDeltas);
+        offer.getScheduler().offerRescinded(offer);
+        schedBuildAndSendOffer();
+    }
+    
+    /**
+     * Called by a framework once it has dropped a rescinded offer, so that no
+     * response to it will come; until then a response is ignored.
+     */
+    public void acknowledgeRescind(Offer offer) {
+        rescindedOffers.remove(offer.getId());
+    }
+    
+    /**
+     * Unlock an offer's resources in the common cell state.
+     */
+    private void releaseOffer(Offer offer, List<ClaimDelta> savedDeltas) {
+        // Machines of a partitioned offer become offerable again once unlocked
+        if (offer.isPartial() && machineOffered != null) {
+            for (int mID : offer.getMachineIDs()) {
+                machineOffered[mID] = false;
+            }
+        }
+        for (ClaimDelta delta : savedDeltas) {
+            delta.unApply(simulator.getCellState(), true);
+        }
+    }
+    
+    private boolean hasActiveFilters(MesosScheduler sched) {
+        Double expiry = filterExpiry.get(sched);
+        return expiry != null && expiry > simulator.getCurrentTime();
+    }
+    
+    private boolean isFiltered(MesosScheduler sched, int mID) {
+        double[] until = refusedUntil.get(sched);
+        return until != null && until[mID] > simulator.getCurrentTime();
+    }
+    
+    /**
+     * Machines with free cpu and mem that the framework has not refused, of
+     * the given shape classes (all if null).
+     */
+    private int[] unfilteredFreeMachines(MesosScheduler sched, boolean[] shapeClasses) {
+        CellState cellState = simulator.getCellState();
+        MachineShapes shapes = cellState.getShapes();
+        int[] machineIDs = new int[cellState.getNumMachines()];
+        int n = 0;
+        for (int c = 0; c < shapes.getNumClasses(); c++) {
+            if (shapeClasses != null && !shapeClasses[c]) {
+                continue;
+            }
+            for (int mID = shapes.getStart(c); mID < shapes.getEnd(c); mID++) {
+                if (!isFiltered(sched, mID) &&
+                    (machineOffered == null || !machineOffered[mID]) &&
+                    cellState.availableCpusPerMachine(mID) > 0.000001 &&
+                    cellState.availableMemPerMachine(mID) > 0.000001) {
+                    machineIDs[n++] = mID;
+                }
+            }
+        }
+        return Arrays.copyOf(machineIDs, n);
+    }
+    
+    /**
+     * Install a decline filter: the framework won't be offered these machines
+     * again for refuseSeconds. A new offer round is triggered when it expires.
+     */
+    private void installFilter(MesosScheduler sched, Collection<Integer> machineIDs,
+                               double refuseSeconds) {
+        double until = simulator.getCurrentTime() + refuseSeconds;
+        double[] refused = refusedUntil.computeIfAbsent(
+            sched, k -> new double[simulator.getCellState().getNumMachines()]);
+        for (int mID : machineIDs) {
+            refused[mID] = Math.max(refused[mID], until);
+        }
+        filterExpiry.put(sched, Math.max(filterExpiry.getOrDefault(sched, 0.0), until));
+        simulator.log(String.format("%s refused %d machines for %f seconds.",
+            sched.getName(), machineIDs.size(), refuseSeconds));
+        simulator.afterDelay(refuseSeconds, new FilterExpiry(this));
+    }
+    
+    /**
+     * Carve the free capacity into machine-subset offers, one per requesting
+     * framework in DRF order, until either runs out. Each framework gets at most
+     * one offer per round, so frameworks hold disjoint offers concurrently.
+     */
+    private void buildAndSendPartialOffers() {
+        CellState cellState = simulator.getCellState();
+        List<MesosScheduler> served = new ArrayList<>();
+        boolean sentOffer = false;
+        
+        while (drf.hasRequesters()) {
+            MesosScheduler candidateSched = drf.peekRequester();
+            drf.removeRequester(candidateSched);
+            served.add(candidateSched);
+            
+            int[] machineIDs = takeFreeMachines(candidateSched);
+            if (machineIDs.length == 0) {
+                if (freeMachines.isEmpty()) {
+                    simulator.log("No more unoffered machines with free resources this round.");
+                    break;
+                }
+                simulator.log(candidateSched.getName() +
+                              " has filtered every free machine, skipping it.");
+                numFilteredFrameworkSkips++;
+                continue;
+            }
+            simulator.log(String.format(
+                "%s's dominant share is %s (%f%s); offering it %d machines.",
+                candidateSched.getName(), drf.getDominantResource(candidateSched),
+                drf.getShare(candidateSched), "%", machineIDs.length));
+            
+            // Snapshot just the offered machines, then lock them in the common cell state
+            Offer offer = new Offer(nextOfferId, candidateSched,
+                                    cellState.copyMachines(machineIDs), machineIDs);
+            nextOfferId++;
+            for (int mID : machineIDs) {
+                machineOffered[mID] = true;
+            }
+            List<ClaimDelta> claimDeltas =
+                candidateSched.scheduleAllAvailable(cellState, machineIDs, true);
+            sendOffer(offer, claimDeltas);
+            sentOffer = true;
+        }
+        if (sentOffer) {
+            numOfferRounds++;
+        }
+        
+        for (MesosScheduler sched : served) {
+            drf.addRequester(sched);
+        }
+    }
+    
+    /**
+     * Poll up to machinesPerOffer unoffered machines that have both cpu and mem
+     * free, and are of a shape class the framework has a use for. Amortized
+     * cost is proportional to the offer size.
+     */
+    private int[] takeFreeMachines(MesosScheduler sched) {
+        CellState cellState = simulator.getCellState();
+        boolean filtered = hasActiveFilters(sched);
+        boolean[] shapeClasses = sched.wantedShapeClasses(cellState);
+        List<Integer> refused = new ArrayList<>();
+        int[] machineIDs = new int[machinesPerOffer];
+        int n = 0;
+        while (n < machinesPerOffer && !freeMachines.isEmpty()) {
+            int mID = freeMachines.poll();
+            inFreeMachines[mID] = false;
+            if (!machineOffered[mID] &&
+                cellState.availableCpusPerMachine(mID) > 0.000001 &&
+                cellState.availableMemPerMachine(mID) > 0.000001) {
+                if ((filtered && isFiltered(sched, mID)) ||
+                    (shapeClasses != null && !shapeClasses[cellState.getShapeClass(mID)])) {
+                    // Leave it for other frameworks
+                    refused.add(mID);
+                } else {
+                    machineIDs[n++] = mID;
+                }
+            }
+        }
+        for (int mID : refused) {
+            enqueueFreeMachine(mID);
+        }
+        return n == machinesPerOffer ? machineIDs : Arrays.copyOf(machineIDs, n);
+    }
+    
+    private void enqueueFreeMachine(int mID) {
+        if (!inFreeMachines[mID] && !machineOffered[mID]) {
+            inFreeMachines[mID] = true;
+            freeMachines.add(mID);
+        }
+    }
+    
     /**
      * Handle a scheduler's response to a resource offer.
      */
-    public void respondToOffer(Offer offer, List<ClaimDelta> claimDeltas) {
+    public List<ClaimDelta> respondToOffer(Offer offer, List<ClaimDelta> claimDeltas) {
+        return respondToOffer(offer, claimDeltas, 0.0);
+    }
+    
+    /**
+     * Handle a scheduler's response to a resource offer, declining the offered
+     * machines it didn't use for refuseSeconds (Mesos-style decline filter).
+     * The offer held the resources, so the response commits unless a task
+     * would now share a machine with one of a job it must not: a task of that
+     * job may have started there after the framework placed on the offer.
+     * @return The deltas rejected for that (ConflictKind.ANTI_AFFINITY), whose
+     *         tasks the framework gets back; usually none
+     */
+    public List<ClaimDelta> respondToOffer(Offer offer, List<ClaimDelta> claimDeltas,
+                                           double refuseSeconds) {
         checkRegistered();
         simulator.log(String.format(
             "------Scheduler %s responded to offer %d with %d claimDeltas.",
             offer.getScheduler().getName(), offer.getId(), claimDeltas.size()));
         
+        if (rescindedOffers.remove(offer.getId())) {
+            simulator.log("Ignoring response to rescinded offer " + offer.getId() + ".");
+            return Collections.emptyList();
+        }
+        if (claimDeltas.isEmpty()) {
+            numOffersDeclined++;
+        }
+        
+        // The response's deltas of a partial offer are translated back to
+        // common cell machine IDs
+        if (offer.isPartial()) {
+            List<ClaimDelta> translated = new ArrayList<>(claimDeltas.size());
+            for (ClaimDelta delta : claimDeltas) {
+                int mID = offer.toCellMachineID(delta.getMachineID());
+                translated.add(new ClaimDelta(delta.getScheduler(), mID,
+                    simulator.getCellState().getMachineSeqNum(mID), -1, -1,
+                    delta.getDuration(), delta.getCpus(), delta.getMem(), delta.getJob(),
+                    delta.getExtraResources(), null));
+            }
+            claimDeltas = translated;
+        }
+        
         // Unapply saved deltas to unlock resources
         if (offeredDeltas.containsKey(offer.getId())) {
             List<ClaimDelta> savedDeltas = offeredDeltas.remove(offer.getId());
             if (savedDeltas != null) {
-                for (ClaimDelta delta : savedDeltas) {
-                    delta.unApply(simulator.getCellState(), true);
+                releaseOffer(offer, savedDeltas);
+                
+                if (refuseSeconds > 0.0) {
+                    Set<Integer> unused = new HashSet<>();
+                    for (ClaimDelta delta : savedDeltas) {
+                        unused.add(delta.getMachineID());
+                    }
+                    for (ClaimDelta delta : claimDeltas) {
+                        unused.remove(delta.getMachineID());
+                    }
+                    if (!unused.isEmpty()) {
+                        installFilter(offer.getScheduler(), unused, refuseSeconds);
+                    }
                 }
             }
         }
@@ -198,69 +652,185 @@ public class MesosAllocator {
         simulator.log("Committing all " + claimDeltas.size() + 
                      " deltas that were part of response " + offer.getId());
         
+        List<ClaimDelta> rejected = new ArrayList<>();
         if (!claimDeltas.isEmpty()) {
-            CellState.CommitResult commitResult = 
-                simulator.getCellState().commit(claimDeltas, false);
-            
-            if (!commitResult.getConflictedDeltas().isEmpty()) {
-                throw new IllegalStateException(
-                    "Expecting no conflicts, but there were " + 
-                    commitResult.getConflictedDeltas().size());
+            // A job at a time, so a rigid one commits all-or-nothing on its
+            // own, and the next job's constraints see the tasks it started
+            List<ClaimDelta> committed = new ArrayList<>(claimDeltas.size());
+            for (List<ClaimDelta> jobDeltas : splitByJob(claimDeltas)) {
+                CellState.CommitResult commitResult =
+                    simulator.getCellState().commit(jobDeltas, false);
+                if (!commitResult.getConflictedDeltas().isEmpty()) {
+                    if (commitResult.getConflictKind() != CellState.ConflictKind.ANTI_AFFINITY) {
+                        throw new IllegalStateException(
+                            "Expecting no conflicts but anti-affinity ones, but there were " +
+                            commitResult.getConflictedDeltas().size() + " (" +
+                            commitResult.getConflictKind() + ")");
+                    }
+                    rejected.addAll(commitResult.getConflictedDeltas());
+                }
+                for (ClaimDelta delta : commitResult.getCommittedDeltas()) {
+                    // Tracked so gang reservations can tell when room frees up
+                    simulator.getCellState().taskStarted(delta);
+                    committed.add(delta);
+                }
             }
             
             // Create end events for all tasks committed
-            for (ClaimDelta delta : commitResult.getCommittedDeltas()) {
-                final ClaimDelta finalDelta = delta;
-                simulator.afterDelay(delta.getDuration(), () -> {
-                    finalDelta.unApply(simulator.getCellState(), false);
-                    simulator.log(String.format(
-                        "A task started by scheduler %s finished. " +
-                        "Freeing %f cpus, %f mem. Available: %f cpus, %f mem. " +
-                        "Also, triggering a new batched offer round.",
-                        finalDelta.getScheduler().getName(),
-                        finalDelta.getCpus(), finalDelta.getMem(),
-                        simulator.getCellState().getAvailableCpus(),
-                        simulator.getCellState().getAvailableMem()));
-                    schedBuildAndSendOffer();
-                });
+            MesosScheduler framework = offer.getScheduler();
+            double committedCpus = 0.0;
+            double committedMem = 0.0;
+            for (ClaimDelta delta : committed) {
+                committedCpus += delta.getCpus();
+                committedMem += delta.getMem();
+                simulator.afterDelay(delta.getDuration(), new TaskEnd(this, framework, delta));
             }
+            drf.allocate(framework, committedCpus, committedMem,
+                         ClaimDelta.sumExtraResources(committed));
         }
         
         schedBuildAndSendOffer();
+        return rejected;
     }
     
     /**
-     * Sort schedulers using DRF (Dominant Resource Fairness).
-     * Returns schedulers sorted by their dominant share (ascending).
+     * A task committed by respondToOffer finished: free its resources and
+     * start a new offer round.
      */
-    private List<MesosScheduler> drfSortSchedulers(List<MesosScheduler> schedulers) {
-        List<Map.Entry<MesosScheduler, Double>> schedulerDominantShares = new ArrayList<>();
+    private void taskEnded(MesosScheduler framework, ClaimDelta delta) {
+        simulator.getCellState().taskFinished(delta);
+        delta.unApply(simulator.getCellState(), false);
+        drf.free(framework, delta.getCpus(), delta.getMem(),
+                 delta.getExtraResources());
+        simulator.log(String.format(
+            "A task started by scheduler %s finished. " +
+            "Freeing %f cpus, %f mem. Available: %f cpus, %f mem. " +
+            "Also, triggering a new batched offer round.",
+            delta.getScheduler().getName(),
+            delta.getCpus(), delta.getMem(),
+            simulator.getCellState().getAvailableCpus(),
+            simulator.getCellState().getAvailableMem()));
+        schedBuildAndSendOffer();
+    }
+    
+    /**
+     * Consecutive deltas of the same job, in order.
+     */
+    private static List<List<ClaimDelta>> splitByJob(List<ClaimDelta> claimDeltas) {
+        List<List<ClaimDelta>> runs = new ArrayList<>();
+        int start = 0;
+        for (int i = 1; i <= claimDeltas.size(); i++) {
+            if (i == claimDeltas.size() || claimDeltas.get(i).getJob() != claimDeltas.get(start).getJob()) {
+                runs.add(claimDeltas.subList(start, i));
+                start = i;
+            }
+        }
+        return runs;
+    }
+    
+    /** The end of an offer batch interval. */
+    private static final class OfferRound implements Event {
+        private static final long serialVersionUID = 1L;
         
-        for (MesosScheduler scheduler : schedulers) {
-            double shareOfCpus = simulator.getCellState().getOccupiedCpus()
-                .getOrDefault(scheduler.getName(), 0.0);
-            double shareOfMem = simulator.getCellState().getOccupiedMem()
-                .getOrDefault(scheduler.getName(), 0.0);
-            
-            double domShare = Math.max(
-                shareOfCpus / simulator.getCellState().getTotalCpus(),
-                shareOfMem / simulator.getCellState().getTotalMem());
-            
-            String nameOfDomShare = shareOfCpus > shareOfMem ? "cpus" : "mem";
-            simulator.log(String.format(
-                "%s's dominant share is %s (%f%s).",
-                scheduler.getName(), nameOfDomShare, domShare, "%"));
-            
-            schedulerDominantShares.add(new AbstractMap.SimpleEntry<>(scheduler, domShare));
+        private final MesosAllocator allocator;
+        
+        OfferRound(MesosAllocator allocator) {
+            this.allocator = allocator;
+        }
+        
+        @Override
+        public void run() {
+            allocator.offerRound();
+        }
+    }
+    
+    /** The allocator done thinking about an offer. */
+    private static final class OfferDelivery implements Event {
+        private static final long serialVersionUID = 1L;
+        
+        private final MesosAllocator allocator;
+        private final Offer offer;
+        private final double thinkTime;
+        
+        OfferDelivery(MesosAllocator allocator, Offer offer, double thinkTime) {
+            this.allocator = allocator;
+            this.offer = offer;
+            this.thinkTime = thinkTime;
         }
         
-        // Sort by dominant share (ascending)
-        schedulerDominantShares.sort(Comparator.comparing(Map.Entry::getValue));
+        @Override
+        public void run() {
+            allocator.deliverOffer(offer, thinkTime);
+        }
+    }
+    
+    /** An offer's offerTimeout running out. */
+    private static final class OfferTimeout implements Event {
+        private static final long serialVersionUID = 1L;
+        
+        private final MesosAllocator allocator;
+        private final Offer offer;
+        
+        OfferTimeout(MesosAllocator allocator, Offer offer) {
+            this.allocator = allocator;
+            this.offer = offer;
+        }
+        
+        @Override
+        public void run() {
+            allocator.rescindOffer(offer);
+        }
+    }
+    
+    /** A decline filter expiring. */
+    private static final class FilterExpiry implements Event {
+        private static final long serialVersionUID = 1L;
+        
+        private final MesosAllocator allocator;
+        
+        FilterExpiry(MesosAllocator allocator) {
+            this.allocator = allocator;
+        }
+        
+        @Override
+        public void run() {
+            allocator.schedBuildAndSendOffer();
+        }
+    }
+    
+    /** A task committed by respondToOffer finishing. */
+    private static final class TaskEnd implements Event {
+        private static final long serialVersionUID = 1L;
+        
+        private final MesosAllocator allocator;
+        private final MesosScheduler framework;
+        private final ClaimDelta delta;
+        
+        TaskEnd(MesosAllocator allocator, MesosScheduler framework, ClaimDelta delta) {
+            this.allocator = allocator;
+            this.framework = framework;
+            this.delta = delta;
+        }
+        
+        @Override
+        public void run() {
+            allocator.taskEnded(framework, delta);
+        }
+    }
+    
+    /** Puts machines with resources freed back among the ones to offer. */
+    private static final class MachineFreed implements CellState.ResourcesFreedListener {
+        private static final long serialVersionUID = 1L;
+        
+        private final MesosAllocator allocator;
+        
+        MachineFreed(MesosAllocator allocator) {
+            this.allocator = allocator;
+        }
         
-        List<MesosScheduler> result = new ArrayList<>();
-        for (Map.Entry<MesosScheduler, Double> entry : schedulerDominantShares) {
-            result.add(entry.getKey());
+        @Override
+        public void accept(int machineID) {
+            allocator.enqueueFreeMachine(machineID);
         }
-        return result;
     }
 }
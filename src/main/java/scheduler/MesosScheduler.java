@@ -3,6 +3,7 @@ package scheduler;
 import simulator.core.Job;
 import simulator.core.ClaimDelta;
 import simulator.core.CellState;
+import simulator.Event;
 import simulator.MesosSimulator;
 
 import java.util.*;
@@ -12,17 +13,38 @@ import java.util.*;
  * Receives resource offers from a MesosAllocator and schedules jobs onto offered resources.
  */
 public class MesosScheduler extends BaseScheduler {
+    private static final long serialVersionUID = 1L;
+    
     private MesosSimulator mesosSimulator;
     private final Queue<Offer> offerQueue = new LinkedList<>();
     private final boolean schedulePartialJobs;
+    private final double declineRefuseSeconds;
+    private final Set<Long> rescindedOffers = new HashSet<>();
+    private int numOffersRescinded = 0;
+    private int numShortPathRejections = 0;
+    // Waiting jobs whose tasks fit an empty machine, by shape class, kept as
+    // jobs enter and leave the queue; null in a uniform cell
+    private int[] waitingByShapeClass;
+    private int numWantedShapeClasses = 0;
     
+    /**
+     * @param declineRefuseSeconds When an offer is declined outright, ask the
+     *                             allocator not to re-offer those machines for
+     *                             this long. 0 declines without a filter.
+     * @param pendingQueue         Queue of jobs waiting for offers. With a
+     *                             ShapeBucketedQueue, offers are matched only
+     *                             against jobs whose task shape fits them.
+     */
     public MesosScheduler(String name,
                          Map<String, Double> constantThinkTimes,
                          Map<String, Double> perTaskThinkTimes,
                          boolean schedulePartialJobs,
-                         int numMachinesToBlackList) {
-        super(name, constantThinkTimes, perTaskThinkTimes, numMachinesToBlackList);
+                         int numMachinesToBlackList,
+                         double declineRefuseSeconds,
+                         Queue<Job> pendingQueue) {
+        super(name, constantThinkTimes, perTaskThinkTimes, numMachinesToBlackList, pendingQueue);
         this.schedulePartialJobs = schedulePartialJobs;
+        this.declineRefuseSeconds = declineRefuseSeconds;
         
         System.out.println(String.format("scheduler-id-info: %d, %s, %d, %s, %s",
             Thread.currentThread().getId(),
@@ -32,6 +54,30 @@ public class MesosScheduler extends BaseScheduler {
             perTaskThinkTimes.toString()));
     }
     
+    public MesosScheduler(String name,
+                         Map<String, Double> constantThinkTimes,
+                         Map<String, Double> perTaskThinkTimes,
+                         boolean schedulePartialJobs,
+                         int numMachinesToBlackList,
+                         double declineRefuseSeconds) {
+        this(name, constantThinkTimes, perTaskThinkTimes, schedulePartialJobs,
+             numMachinesToBlackList, declineRefuseSeconds, new LinkedList<>());
+    }
+    
+    public MesosScheduler(String name,
+                         Map<String, Double> constantThinkTimes,
+                         Map<String, Double> perTaskThinkTimes,
+                         boolean schedulePartialJobs,
+                         int numMachinesToBlackList) {
+        this(name, constantThinkTimes, perTaskThinkTimes, schedulePartialJobs,
+             numMachinesToBlackList, 0.0);
+    }
+    
+    public double getDeclineRefuseSeconds() { return declineRefuseSeconds; }
+    public int getNumOffersRescinded() { return numOffersRescinded; }
+    /** Jobs pulled from the queue for an offer that couldn't fit even one of their tasks. */
+    public int getNumShortPathRejections() { return numShortPathRejections; }
+    
     public void setMesosSimulator(MesosSimulator mesosSimulator) {
         this.mesosSimulator = mesosSimulator;
         this.simulator = mesosSimulator;
@@ -58,6 +104,22 @@ public class MesosScheduler extends BaseScheduler {
         handleNextResourceOffer();
     }
     
+    /**
+     * Called by the allocator when it takes back an offer this scheduler held
+     * too long. Tasks placed on it are returned to their jobs when the pending
+     * response would have been sent; either way the allocator is told once
+     * the offer is dropped.
+     */
+    public void offerRescinded(Offer offer) {
+        simulator.log(name + " had offer " + offer.getId() + " rescinded.");
+        numOffersRescinded++;
+        if (offerQueue.remove(offer)) {
+            mesosSimulator.getAllocator().acknowledgeRescind(offer);
+        } else {
+            rescindedOffers.add(offer.getId());
+        }
+    }
+    
     /**
      * Handles the next resource offer in the queue.
      */
@@ -70,23 +132,48 @@ public class MesosScheduler extends BaseScheduler {
             
             List<ClaimDelta> offerResponse = new ArrayList<>();
             final double[] aggThinkTime = {0.0};
+            // Jobs that got tasks on this offer, and how many, in case it is rescinded
+            final Map<Job, Integer> placedTasks = new LinkedHashMap<>();
             
-            // Try to schedule jobs while resources are available
+            // Try to schedule jobs while resources are available, and stop early
+            // enough to respond before the allocator would rescind the offer
+            double offerTimeout = mesosSimulator.getAllocator().getOfferTimeout();
             while (offer.getCellState().getAvailableCpus() > 0.000001 &&
                    offer.getCellState().getAvailableMem() > 0.000001 &&
                    !pendingQueue.isEmpty()) {
                 
-                Job job = pendingQueue.poll();
-                job.updateTimeInQueueStats(simulator.getCurrentTime());
+                Job job = peekJobForOffer(offer);
+                if (job == null) {
+                    mesosSimulator.log(String.format(
+                        "No pending job of %s has tasks that fit the rest of offer %d.",
+                        name, offer.getId()));
+                    break;
+                }
+                // Budget with the think time of the job the offer would actually
+                // get, which with a shape-bucketed queue need not be the head
+                if (offerTimeout > 0.0 && aggThinkTime[0] > 0.0 &&
+                    aggThinkTime[0] + getThinkTime(job) >= offerTimeout) {
+                    break;
+                }
+                pollJobForOffer(offer);
+                recordTimeInQueue(job);
                 double jobThinkTime = getThinkTime(job);
                 aggThinkTime[0] += jobThinkTime;
                 job.setNumSchedulingAttempts(job.getNumSchedulingAttempts() + 1);
                 job.setNumTaskSchedulingAttempts(
                     job.getNumTaskSchedulingAttempts() + job.getUnscheduledTasks());
                 
-                // Check if at least one task can fit
-                if (offer.getCellState().getAvailableCpus() > job.getCpusPerTask() &&
-                    offer.getCellState().getAvailableMem() > job.getMemPerTask()) {
+                // Check if at least one task can fit, or the whole gang of a rigid
+                // job; an offer may hold no machine of a shape the tasks fit on, or
+                // none meeting their placement constraints
+                boolean mayFit = offer.getCellState().hasEligibleMachine(job) && (job.isRigid()
+                    ? offer.getCellState().getAvailableCpus() >=
+                          job.getUnscheduledTasks() * job.getCpusPerTask() &&
+                      offer.getCellState().getAvailableMem() >=
+                          job.getUnscheduledTasks() * job.getMemPerTask()
+                    : offer.getCellState().getAvailableCpus() > job.getCpusPerTask() &&
+                      offer.getCellState().getAvailableMem() > job.getMemPerTask());
+                if (mayFit) {
                     
                     List<ClaimDelta> claimDeltas = scheduleJob(job, offer.getCellState());
                     
@@ -101,6 +188,7 @@ public class MesosScheduler extends BaseScheduler {
                             "Assigning %d tasks to it.",
                             job.getId(), offer.getId(), jobThinkTime, claimDeltas.size()));
                         offerResponse.addAll(claimDeltas);
+                        placedTasks.merge(job, claimDeltas.size(), Integer::sum);
                         job.setUnscheduledTasks(job.getUnscheduledTasks() - claimDeltas.size());
                     } else {
                         mesosSimulator.log(String.format(
@@ -108,8 +196,10 @@ public class MesosScheduler extends BaseScheduler {
                             "with %f cpu, %f mem. Not counting busy time for this sched attempt.",
                             offer.getId(), job.getId(), job.getCpusPerTask(), job.getMemPerTask()));
                         numNoResourcesFoundSchedulingAttempts++;
+                        gangNotScheduled(job, offerFreeView(offer));
                     }
                 } else {
+                    numShortPathRejections++;
                     mesosSimulator.log(String.format(
                         "Short-path rejecting all of offer %d for job %d because a single " +
                         "one of its tasks (%f cpu, %f mem) wouldn't fit into the sum of " +
@@ -117,6 +207,7 @@ public class MesosScheduler extends BaseScheduler {
                         offer.getId(), job.getId(), job.getCpusPerTask(), job.getMemPerTask(),
                         offer.getCellState().getAvailableCpus(), 
                         offer.getCellState().getAvailableMem()));
+                    gangNotScheduled(job, offerFreeView(offer));
                 }
                 
                 String jobEventType = "";
@@ -128,10 +219,8 @@ public class MesosScheduler extends BaseScheduler {
                         "tasks remain unscheduled) so putting it back in the queue.",
                         job.getId(), job.getUnscheduledTasks(), job.getNumTasks()));
                     
-                    // Give up on job if it hasn't scheduled in 100 tries or after 1000 tries
-                    if ((job.getNumSchedulingAttempts() > 100 &&
-                         job.getUnscheduledTasks() == job.getNumTasks()) ||
-                        job.getNumSchedulingAttempts() > 1000) {
+                    // Give up on job if the retry policy says it has been tried too often
+                    if (shouldAbandon(job)) {
                         System.out.println(String.format(
                             "Abandoning job %d (%f cpu %f mem) with %d/%d " +
                             "remaining tasks, after %d scheduling attempts.",
@@ -139,12 +228,14 @@ public class MesosScheduler extends BaseScheduler {
                             job.getUnscheduledTasks(), job.getNumTasks(),
                             job.getNumSchedulingAttempts()));
                         numJobsTimedOutScheduling++;
+                        jobAbandoned(job);
                         jobEventType = "abandoned";
                     } else {
-                        simulator.afterDelay(1.0, () -> addJob(job));
+                        retryLater(job, true);
                     }
                     job.setLastEnqueued(simulator.getCurrentTime());
                 } else {
+                    gangScheduled(job);
                     jobEventType = "fully-scheduled";
                 }
             }
@@ -161,22 +252,142 @@ public class MesosScheduler extends BaseScheduler {
             }
             
             // Send response to offer after aggregate think time
-            final Offer finalOffer = offer;
-            final List<ClaimDelta> finalResponse = offerResponse;
-            final double finalAggThinkTime = aggThinkTime[0];
-            mesosSimulator.afterDelay(finalAggThinkTime, () -> {
-                mesosSimulator.log(String.format(
-                    "Waited %f seconds of aggThinkTime, now responding to offer %d " +
-                    "with %d responses after.", finalAggThinkTime, finalOffer.getId(),
-                    finalResponse.size()));
-                mesosSimulator.getAllocator().respondToOffer(finalOffer, finalResponse);
-            });
+            mesosSimulator.afterDelay(aggThinkTime[0],
+                new OfferResponse(this, offer, offerResponse, placedTasks, aggThinkTime[0]));
             
             scheduling = false;
             handleNextResourceOffer();
         }
     }
     
+    /**
+     * Answer an offer after thinking about it for aggThinkTime, unless the
+     * allocator rescinded it meanwhile.
+     * @param placedTasks Tasks placed on the offer, by job
+     */
+    private void respondToOffer(Offer offer, List<ClaimDelta> response,
+                                Map<Job, Integer> placedTasks, double aggThinkTime) {
+        if (rescindedOffers.remove(offer.getId())) {
+            returnRescindedTasks(offer, placedTasks);
+            mesosSimulator.getAllocator().acknowledgeRescind(offer);
+            return;
+        }
+        mesosSimulator.log(String.format(
+            "Waited %f seconds of aggThinkTime, now responding to offer %d " +
+            "with %d responses after.", aggThinkTime, offer.getId(),
+            response.size()));
+        // Decline an offer we couldn't use at all, filtering its machines
+        List<ClaimDelta> rejected = mesosSimulator.getAllocator().respondToOffer(
+            offer, response, response.isEmpty() ? declineRefuseSeconds : 0.0);
+        if (!rejected.isEmpty()) {
+            returnRejectedTasks(offer, placedTasks, rejected);
+        }
+    }
+    
+    /**
+     * Next job to try against an offer, left in the queue. A shape-bucketed
+     * queue only hands out jobs whose tasks fit the offer's remaining
+     * resources, in O(shape classes); any other queue just yields its head.
+     */
+    private Job peekJobForOffer(Offer offer) {
+        if (pendingQueue instanceof ShapeBucketedQueue) {
+            return ((ShapeBucketedQueue) pendingQueue).peekFitting(
+                offer.getCellState().getAvailableCpus(),
+                offer.getCellState().getAvailableMem(),
+                simulator.getCurrentTime());
+        }
+        return pendingQueue.peek();
+    }
+    
+    /**
+     * Take the job peekJobForOffer returns for the same offer off the queue.
+     */
+    private Job pollJobForOffer(Offer offer) {
+        if (pendingQueue instanceof ShapeBucketedQueue) {
+            return countWaiting(((ShapeBucketedQueue) pendingQueue).pollFitting(
+                offer.getCellState().getAvailableCpus(),
+                offer.getCellState().getAvailableMem(),
+                simulator.getCurrentTime()), -1);
+        }
+        return countWaiting(pendingQueue.poll(), -1);
+    }
+    
+    /**
+     * What is free right now for a gang reservation: an offer over the whole
+     * cell still shows the resources it locks as free, a partial offer only
+     * covers some machines so the common cell is used instead.
+     */
+    private CellState offerFreeView(Offer offer) {
+        return offer.isPartial() ? simulator.getCellState() : offer.getCellState();
+    }
+    
+    /**
+     * Undo the placements made on a rescinded offer: the tasks go back to their
+     * jobs, and jobs that had been fully scheduled are re-enqueued.
+     */
+    private void returnRescindedTasks(Offer offer, Map<Job, Integer> placedTasks) {
+        returnTasks(offer, placedTasks, placedTasks, "was rescinded");
+    }
+    
+    /**
+     * Undo the placements the allocator rejected at commit for breaking an
+     * anti-affinity constraint. A job that kept none of its tasks on the
+     * offer counts as a failed transaction, as with a rescinded offer.
+     */
+    private void returnRejectedTasks(Offer offer, Map<Job, Integer> placedTasks,
+                                     List<ClaimDelta> rejected) {
+        Map<Job, Integer> rejectedTasks = new LinkedHashMap<>();
+        for (ClaimDelta delta : rejected) {
+            rejectedTasks.merge(delta.getJob(), 1, Integer::sum);
+        }
+        // One conflict per job; its think time was counted useful when it was placed
+        for (int i = 0; i < rejectedTasks.size(); i++) {
+            recordConflict(CellState.ConflictKind.ANTI_AFFINITY, 0.0);
+        }
+        returnTasks(offer, rejectedTasks, placedTasks, "had tasks rejected at commit");
+    }
+    
+    /**
+     * Give returned tasks back to their jobs, re-enqueueing jobs that had
+     * been fully scheduled.
+     * @param returnedTasks Tasks returned, by job
+     * @param placedTasks   Tasks each job placed on the offer
+     */
+    private void returnTasks(Offer offer, Map<Job, Integer> returnedTasks,
+                             Map<Job, Integer> placedTasks, String what) {
+        for (Map.Entry<Job, Integer> entry : returnedTasks.entrySet()) {
+            Job job = entry.getKey();
+            int numTasks = entry.getValue();
+            boolean wasFullyScheduled = job.getUnscheduledTasks() == 0;
+            job.setUnscheduledTasks(job.getUnscheduledTasks() + numTasks);
+            if (numTasks == placedTasks.get(job)) {
+                numSuccessfulTransactions--;
+                numFailedTransactions++;
+            }
+            numSuccessfulTaskTransactions -= numTasks;
+            numFailedTaskTransactions += numTasks;
+            mesosSimulator.log(String.format(
+                "Offer %d %s, returning %d tasks to job %d.",
+                offer.getId(), what, numTasks, job.getId()));
+            if (!wasFullyScheduled) {
+                // Already back in the queue, or abandoned
+                continue;
+            }
+            if (job.getNumSchedulingAttempts() > retryPolicy.getMaxAttempts()) {
+                System.out.println(String.format(
+                    "Abandoning job %d (%f cpu %f mem) with %d/%d " +
+                    "remaining tasks, after %d scheduling attempts.",
+                    job.getId(), job.getCpusPerTask(), job.getMemPerTask(),
+                    job.getUnscheduledTasks(), job.getNumTasks(),
+                    job.getNumSchedulingAttempts()));
+                numJobsTimedOutScheduling++;
+                jobAbandoned(job);
+            } else {
+                addJob(job);
+            }
+        }
+    }
+    
     @Override
     public void addJob(Job job) {
         checkRegistered();
@@ -195,11 +406,100 @@ public class MesosScheduler extends BaseScheduler {
         
         job.setLastEnqueued(simulator.getCurrentTime());
         pendingQueue.offer(job);
-        simulator.log("Enqueued job " + job.getId() + " of workload type " + 
+        countWaiting(job, 1);
+        simulator.log("Enqueued job " +job.getId() + " of workload type " + 
                      job.getWorkloadName() + ".");
         mesosSimulator.getAllocator().requestOffer(this);
     }
     
+    /**
+     * The shape classes of the cell that some waiting job's tasks fit on, by
+     * class, or null if that is every class (always, in a uniform cell). The
+     * allocator leaves machines of the other classes out of this framework's
+     * offers, since nothing it has could use them.
+     */
+    public boolean[] wantedShapeClasses(CellState cellState) {
+        int numClasses = cellState.getNumShapeClasses();
+        if (numClasses == 1 || numWantedShapeClasses == numClasses) {
+            return null;
+        }
+        boolean[] wanted = new boolean[numClasses];
+        if (waitingByShapeClass != null) {
+            for (int c = 0; c < numClasses; c++) {
+                wanted[c] = waitingByShapeClass[c] > 0;
+            }
+        }
+        return wanted;
+    }
+    
+    /**
+     * Add delta to the waiting counts of the shape classes the job's tasks
+     * fit on, as it enters (1) or leaves (-1) the pending queue.
+     * @return The job, which may be null when nothing was polled
+     */
+    private Job countWaiting(Job job, int delta) {
+        CellState cellState = simulator.getCellState();
+        int numClasses = cellState.getNumShapeClasses();
+        if (job == null || numClasses == 1) {
+            return job;
+        }
+        if (waitingByShapeClass == null) {
+            waitingByShapeClass = new int[numClasses];
+        }
+        for (int c = 0; c < numClasses; c++) {
+            if (cellState.shapeClassFits(c, job)) {
+                int before = waitingByShapeClass[c];
+                waitingByShapeClass[c] += delta;
+                if (before == 0) {
+                    numWantedShapeClasses++;
+                } else if (waitingByShapeClass[c] == 0) {
+                    numWantedShapeClasses--;
+                }
+            }
+        }
+        return job;
+    }
+    
+    /**
+     * Claim everything still free on a machine, in every resource dimension.
+     * @return The delta, or null if nothing was free
+     */
+    private ClaimDelta lockAvailable(CellState cellState, int mID, boolean locked) {
+        double cpusAvail = cellState.availableCpusPerMachine(mID);
+        double memAvail = cellState.availableMemPerMachine(mID);
+        double[] extraAvail = cellState.availableExtraResourcesPerMachine(mID);
+        
+        if (cpusAvail > 0.0 || memAvail > 0.0 || anyPositive(extraAvail)) {
+            ClaimDelta claimDelta = new ClaimDelta(
+                this,
+                mID,
+                cellState.getMachineSeqNum(mID),
+                -1,
+                -1,
+                -1.0,
+                cpusAvail,
+                memAvail,
+                null,
+                extraAvail,
+                null
+            );
+            claimDelta.apply(cellState, locked);
+            return claimDelta;
+        }
+        return null;
+    }
+    
+    private static boolean anyPositive(double[] amounts) {
+        if (amounts != null) {
+            for (double amount : amounts) {
+                if (amount > 0.0) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+    
     /**
      * Schedule all available resources in the cell state.
      * Used by the allocator to pessimistically lock resources.
@@ -208,23 +508,56 @@ public class MesosScheduler extends BaseScheduler {
         List<ClaimDelta> claimDeltas = new ArrayList<>();
         
         for (int mID = 0; mID < cellState.getNumMachines(); mID++) {
-            double cpusAvail = cellState.availableCpusPerMachine(mID);
-            double memAvail = cellState.availableMemPerMachine(mID);
-            
-            if (cpusAvail > 0.0 || memAvail > 0.0) {
-                ClaimDelta claimDelta = new ClaimDelta(
-                    this,
-                    mID,
-                    cellState.getMachineSeqNum(mID),
-                    -1.0,
-                    cpusAvail,
-                    memAvail
-                );
-                claimDelta.apply(cellState, locked);
+            ClaimDelta claimDelta = lockAvailable(cellState, mID, locked);
+            if (claimDelta != null) {
                 claimDeltas.add(claimDelta);
             }
         }
         
         return claimDeltas;
     }
+    
+    /**
+     * Schedule all available resources on the given machines only.
+     * Used by the allocator to lock a partial offer; cost scales with the
+     * number of machines offered rather than with the cell.
+     */
+    public List<ClaimDelta> scheduleAllAvailable(CellState cellState, int[] machineIDs,
+                                                 boolean locked) {
+        List<ClaimDelta> claimDeltas = new ArrayList<>(machineIDs.length);
+        
+        for (int mID : machineIDs) {
+            ClaimDelta claimDelta = lockAvailable(cellState, mID, locked);
+            if (claimDelta != null) {
+                claimDeltas.add(claimDelta);
+            }
+        }
+        
+        return claimDeltas;
+    }
+    
+    /** A framework done thinking about an offer (see handleNextResourceOffer). */
+    private static final class OfferResponse implements Event {
+        private static final long serialVersionUID = 1L;
+        
+        private final MesosScheduler scheduler;
+        private final Offer offer;
+        private final List<ClaimDelta> response;
+        private final Map<Job, Integer> placedTasks;
+        private final double aggThinkTime;
+        
+        OfferResponse(MesosScheduler scheduler, Offer offer, List<ClaimDelta> response,
+                      Map<Job, Integer> placedTasks, double aggThinkTime) {
+            this.scheduler = scheduler;
+            this.offer = offer;
+            this.response = response;
+            this.placedTasks = placedTasks;
+            this.aggThinkTime = aggThinkTime;
+        }
+        
+        @Override
+        public void run() {
+            scheduler.respondToOffer(offer, response, placedTasks, aggThinkTime);
+        }
+    }
 }
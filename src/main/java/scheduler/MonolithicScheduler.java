@@ -3,20 +3,26 @@ package scheduler;
 import simulator.core.Job;
 import simulator.core.ClaimDelta;
 import simulator.core.CellState;
+import simulator.Event;
 
 import java.util.*;
 
 /**
  * Monolithic scheduler implementation.
- * Uses a simple FIFO queue and directly accesses the shared cell state.
+ * Uses a FIFO queue by default and directly accesses the shared cell state.
  */
 public class MonolithicScheduler extends BaseScheduler {
+    private static final long serialVersionUID = 1L;
     
+    /**
+     * @param pendingQueue Queue discipline for waiting jobs, e.g. a PriorityClassQueue
+     */
     public MonolithicScheduler(String name,
                               Map<String, Double> constantThinkTimes,
                               Map<String, Double> perTaskThinkTimes,
-                              int numMachinesToBlackList) {
-        super(name, constantThinkTimes, perTaskThinkTimes, numMachinesToBlackList);
+                              int numMachinesToBlackList,
+                              Queue<Job> pendingQueue) {
+        super(name, constantThinkTimes, perTaskThinkTimes, numMachinesToBlackList, pendingQueue);
         
         System.out.println(String.format("scheduler-id-info: %d, %s, %d, %s, %s",
             Thread.currentThread().getId(),
@@ -26,6 +32,14 @@ public class MonolithicScheduler extends BaseScheduler {
             perTaskThinkTimes.toString()));
     }
     
+    public MonolithicScheduler(String name,
+                              Map<String, Double> constantThinkTimes,
+                              Map<String, Double> perTaskThinkTimes,
+                              int numMachinesToBlackList) {
+        this(name, constantThinkTimes, perTaskThinkTimes, numMachinesToBlackList,
+             new LinkedList<>());
+    }
+    
     @Override
     public void addJob(Job job) {
         checkRegistered();
@@ -47,81 +61,114 @@ public class MonolithicScheduler extends BaseScheduler {
         if (!scheduling && !pendingQueue.isEmpty()) {
             scheduling = true;
             Job job = pendingQueue.poll();
-            job.updateTimeInQueueStats(simulator.getCurrentTime());
+            recordTimeInQueue(job);
             job.setLastSchedulingStartTime(simulator.getCurrentTime());
             double thinkTime = getThinkTime(job);
             
             simulator.log("getThinkTime returned " + thinkTime);
             
             // Schedule the job after think time
-            final Job finalJob = job;
-            simulator.afterDelay(thinkTime, () -> {
-                simulator.log(String.format(
-                    "Scheduler %s finished scheduling job %d. " +
-                    "Attempting to schedule next job in scheduler's pendingQueue.",
-                    name, finalJob.getId()));
-                
-                finalJob.setNumSchedulingAttempts(finalJob.getNumSchedulingAttempts() + 1);
-                finalJob.setNumTaskSchedulingAttempts(
-                    finalJob.getNumTaskSchedulingAttempts() + finalJob.getUnscheduledTasks());
-                
-                List<ClaimDelta> claimDeltas = scheduleJob(finalJob, simulator.getCellState());
-                
-                if (!claimDeltas.isEmpty()) {
-                    simulator.getCellState().scheduleEndEvents(claimDeltas);
-                    finalJob.setUnscheduledTasks(
-                        finalJob.getUnscheduledTasks() - claimDeltas.size());
-                    simulator.log(String.format(
-                        "scheduled %d tasks of job %d's, %d remaining.",
-                        claimDeltas.size(), finalJob.getId(), finalJob.getUnscheduledTasks()));
-                    numSuccessfulTransactions++;
-                    numSuccessfulTaskTransactions += claimDeltas.size();
-                    recordUsefulTimeScheduling(finalJob, thinkTime,
-                        finalJob.getNumSchedulingAttempts() == 1);
-                } else {
-                    simulator.log(String.format(
-                        "No tasks scheduled for job %d (%f cpu %f mem) " +
-                        "during this scheduling attempt, not recording any busy time. " +
-                        "%d unscheduled tasks remaining.",
-                        finalJob.getId(), finalJob.getCpusPerTask(), finalJob.getMemPerTask(),
-                        finalJob.getUnscheduledTasks()));
-                }
-                
-                String jobEventType = "";
-                
-                // If job isn't fully scheduled, put it back in queue
-                if (finalJob.getUnscheduledTasks() > 0) {
-                    simulator.log(String.format(
-                        "Job %s didn't fully schedule, %d / %d tasks remain " +
-                        "(shape: %f cpus, %f mem). Putting it back in the queue",
-                        finalJob.getId(), finalJob.getUnscheduledTasks(), finalJob.getNumTasks(),
-                        finalJob.getCpusPerTask(), finalJob.getMemPerTask()));
-                    
-                    // Give up on job if it hasn't scheduled in 100 tries or after 1000 tries
-                    if ((finalJob.getNumSchedulingAttempts() > 100 &&
-                         finalJob.getUnscheduledTasks() == finalJob.getNumTasks()) ||
-                        finalJob.getNumSchedulingAttempts() > 1000) {
-                        System.out.println(String.format(
-                            "Abandoning job %d (%f cpu %f mem) with %d/%d " +
-                            "remaining tasks, after %d scheduling attempts.",
-                            finalJob.getId(), finalJob.getCpusPerTask(), finalJob.getMemPerTask(),
-                            finalJob.getUnscheduledTasks(), finalJob.getNumTasks(),
-                            finalJob.getNumSchedulingAttempts()));
-                        numJobsTimedOutScheduling++;
-                        jobEventType = "abandoned";
-                    } else {
-                        // Re-queue the job after a delay
-                        simulator.afterDelay(1.0, () -> addJob(finalJob));
-                    }
-                } else {
-                    jobEventType = "fully-scheduled";
-                }
-                
-                scheduling = false;
-                scheduleNextJobAction();
-            });
+            simulator.afterDelay(thinkTime, new JobAttempt(this, job, thinkTime));
             
             simulator.log("Scheduler named '" + name + "' started scheduling job " + job.getId());
         }
     }
+    
+    /**
+     * The end of a job's think time: place its tasks in the common cell state
+     * and move on to the next job.
+     */
+    private void finishScheduling(Job job, double thinkTime) {
+        simulator.log(String.format(
+            "Scheduler %s finished scheduling job %d. " +
+            "Attempting to schedule next job in scheduler's pendingQueue.",
+            name, job.getId()));
+        
+        job.setNumSchedulingAttempts(job.getNumSchedulingAttempts() + 1);
+        job.setNumTaskSchedulingAttempts(
+            job.getNumTaskSchedulingAttempts() + job.getUnscheduledTasks());
+        
+        List<ClaimDelta> claimDeltas = scheduleJob(job, simulator.getCellState());
+        if (!claimDeltas.isEmpty()) {
+            simulator.getCellState().scheduleEndEvents(claimDeltas);
+            job.setUnscheduledTasks(
+                job.getUnscheduledTasks() - claimDeltas.size());
+        }
+        // A gang waits for its reservation instead of preempting task by task
+        if (preemption && !job.isRigid() && job.getUnscheduledTasks() > 0) {
+            claimDeltas = new ArrayList<>(claimDeltas);
+            claimDeltas.addAll(preemptForTasks(job, job.getUnscheduledTasks()));
+        }
+        
+        if (!claimDeltas.isEmpty()) {
+            simulator.log(String.format(
+                "scheduled %d tasks of job %d's, %d remaining.",
+                claimDeltas.size(), job.getId(), job.getUnscheduledTasks()));
+            numSuccessfulTransactions++;
+            numSuccessfulTaskTransactions += claimDeltas.size();
+            recordUsefulTimeScheduling(job, thinkTime,
+                job.getNumSchedulingAttempts() == 1);
+        } else {
+            simulator.log(String.format(
+                "No tasks scheduled for job %d (%f cpu %f mem) " +
+                "during this scheduling attempt, not recording any busy time. " +
+                "%d unscheduled tasks remaining.",
+                job.getId(), job.getCpusPerTask(), job.getMemPerTask(),
+                job.getUnscheduledTasks()));
+            gangNotScheduled(job);
+        }
+        
+        String jobEventType = "";
+        
+        // If job isn't fully scheduled, put it back in queue
+        if (job.getUnscheduledTasks() > 0) {
+            simulator.log(String.format(
+                "Job %s didn't fully schedule, %d / %d tasks remain " +
+                "(shape: %f cpus, %f mem). Putting it back in the queue",
+                job.getId(), job.getUnscheduledTasks(), job.getNumTasks(),
+                job.getCpusPerTask(), job.getMemPerTask()));
+            
+            // Give up on job if the retry policy says it has been tried too often
+            if (shouldAbandon(job)) {
+                System.out.println(String.format(
+                    "Abandoning job %d (%f cpu %f mem) with %d/%d " +
+                    "remaining tasks, after %d scheduling attempts.",
+                    job.getId(), job.getCpusPerTask(), job.getMemPerTask(),
+                    job.getUnscheduledTasks(), job.getNumTasks(),
+                    job.getNumSchedulingAttempts()));
+                numJobsTimedOutScheduling++;
+                jobAbandoned(job);
+                jobEventType = "abandoned";
+            } else {
+                // Re-queue the job later; it came up short for lack of room
+                retryLater(job, true);
+            }
+        } else {
+            gangScheduled(job);
+            jobEventType = "fully-scheduled";
+        }
+        
+        scheduling = false;
+        scheduleNextJobAction();
+    }
+    
+    /** A job done thinking (see scheduleNextJobAction). */
+    private static final class JobAttempt implements Event {
+        private static final long serialVersionUID = 1L;
+        
+        private final MonolithicScheduler scheduler;
+        private final Job job;
+        private final double thinkTime;
+        
+        JobAttempt(MonolithicScheduler scheduler, Job job, double thinkTime) {
+            this.scheduler = scheduler;
+            this.job = job;
+            this.thinkTime = thinkTime;
+        }
+        
+        @Override
+        public void run() {
+            scheduler.finishScheduling(job, thinkTime);
+        }
+    }
 }
@@ -2,18 +2,31 @@ package scheduler;
 
 import simulator.core.CellState;
 
+import java.io.Serializable;
+
 /**
  * Represents a resource offer made by the Mesos allocator to a scheduler.
+ * An offer either covers the whole cell, or only a subset of machines, in which
+ * case its cell state is a snapshot of just those machines and machine IDs in it
+ * are local indexes into getMachineIDs().
  */
-public class Offer {
+public class Offer implements Serializable {
+    private static final long serialVersionUID = 1L;
+    
     private final long id;
     private final MesosScheduler scheduler;
     private final CellState cellState;
+    private final int[] machineIDs;
     
     public Offer(long id, MesosScheduler scheduler, CellState cellState) {
+        this(id, scheduler, cellState, null);
+    }
+    
+    public Offer(long id, MesosScheduler scheduler, CellState cellState, int[] machineIDs) {
         this.id = id;
         this.scheduler = scheduler;
         this.cellState = cellState;
+        this.machineIDs = machineIDs;
     }
     
     public long getId() {
@@ -27,4 +40,25 @@ public class Offer {
     public CellState getCellState() {
         return cellState;
     }
+    
+    /**
+     * Whether this offer only covers a subset of the cell's machines.
+     */
+    public boolean isPartial() {
+        return machineIDs != null;
+    }
+    
+    /**
+     * Cell machine IDs covered by a partial offer, or null for a whole-cell offer.
+     */
+    public int[] getMachineIDs() {
+        return machineIDs;
+    }
+    
+    /**
+     * Translate a machine ID in this offer's cell state to the common cell's ID.
+     */
+    public int toCellMachineID(int offerMachineID) {
+        return machineIDs == null ? offerMachineID : machineIDs[offerMachineID];
+    }
 }
@@ -3,6 +3,7 @@ package scheduler;
 import simulator.core.Job;
 import simulator.core.ClaimDelta;
 import simulator.core.CellState;
+import simulator.Event;
 import simulator.OmegaSimulator;
 
 import java.util.*;
@@ -10,18 +11,77 @@ import java.util.*;
 /**
  * Omega scheduler implementation.
  * Uses optimistic concurrency control with a private cell state copy.
+ * With a parallelism above 1, up to that many jobs are in flight at once, each
+ * in its own scheduling slot with its own private snapshot and transaction,
+ * modelling a multi-threaded Omega scheduler.
  */
 public class OmegaScheduler extends BaseScheduler {
+    private static final long serialVersionUID = 1L;
+    
     private OmegaSimulator omegaSimulator;
     private CellState privateCellState;
     private final Map<Integer, Integer> dailySuccessTransactions = new HashMap<>();
     private final Map<Integer, Integer> dailyFailedTransactions = new HashMap<>();
     
+    private final int parallelism;
+    private final Deque<Integer> freeSlots = new ArrayDeque<>();
+    private final double[] slotUsefulTimeScheduling;
+    private final double[] slotWastedTimeScheduling;
+    
+    private final int batchSize;
+    private final double batchWindow;
+    private double batchDeadline = -1.0;
+    private int numBatchTransactions = 0;
+    private int numBatchedJobs = 0;
+    
+    private final boolean fastRetry;
+    private final double retryThinkTimeFactor;
+    private int numFastRetries = 0;
+    
+    /**
+     * @param parallelism Maximum number of jobs (or batches) this scheduler
+     *                    thinks about concurrently
+     * @param batchSize   Maximum number of same-workload jobs placed together and
+     *                    committed as one transaction; 1 disables batching
+     * @param batchWindow Seconds a free slot waits for a partial batch to fill up
+     * @param fastRetry   On a conflict, keep the job in its slot, resync only the
+     *                    conflicted machines and re-place only the conflicted tasks,
+     *                    instead of requeueing the whole job
+     * @param retryThinkTimeFactor Fraction of the normal think time (for the
+     *                    conflicted tasks) charged for a fast retry
+     * @param pendingQueue Queue discipline for waiting jobs
+     */
     public OmegaScheduler(String name,
                          Map<String, Double> constantThinkTimes,
                          Map<String, Double> perTaskThinkTimes,
-                         int numMachinesToBlackList) {
-        super(name, constantThinkTimes, perTaskThinkTimes, numMachinesToBlackList);
+                         int numMachinesToBlackList,
+                         int parallelism,
+                         int batchSize,
+                         double batchWindow,
+                         boolean fastRetry,
+                         double retryThinkTimeFactor,
+                         Queue<Job> pendingQueue) {
+        super(name, constantThinkTimes, perTaskThinkTimes, numMachinesToBlackList, pendingQueue);
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1, but was " + parallelism);
+        }
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be at least 1, but was " + batchSize);
+        }
+        this.parallelism = parallelism;
+        this.batchSize = batchSize;
+        this.batchWindow = batchWindow;
+        if (retryThinkTimeFactor < 0.0) {
+            throw new IllegalArgumentException(
+                "retryThinkTimeFactor must be non-negative, but was " + retryThinkTimeFactor);
+        }
+        this.fastRetry = fastRetry;
+        this.retryThinkTimeFactor = retryThinkTimeFactor;
+        this.slotUsefulTimeScheduling = new double[parallelism];
+        this.slotWastedTimeScheduling = new double[parallelism];
+        for (int slot = parallelism - 1; slot >= 0; slot--) {
+            freeSlots.push(slot);
+        }
         
         System.out.println(String.format("scheduler-id-info: %d, %s, %d, %s, %s",
             Thread.currentThread().getId(),
@@ -31,6 +91,57 @@ public class OmegaScheduler extends BaseScheduler {
             perTaskThinkTimes.toString()));
     }
     
+    public OmegaScheduler(String name,
+                         Map<String, Double> constantThinkTimes,
+                         Map<String, Double> perTaskThinkTimes,
+                         int numMachinesToBlackList,
+                         int parallelism,
+                         int batchSize,
+                         double batchWindow,
+                         boolean fastRetry,
+                         double retryThinkTimeFactor) {
+        this(name, constantThinkTimes, perTaskThinkTimes, numMachinesToBlackList,
+             parallelism, batchSize, batchWindow, fastRetry, retryThinkTimeFactor,
+             new LinkedList<>());
+    }
+    
+    public OmegaScheduler(String name,
+                         Map<String, Double> constantThinkTimes,
+                         Map<String, Double> perTaskThinkTimes,
+                         int numMachinesToBlackList,
+                         int parallelism,
+                         int batchSize,
+                         double batchWindow) {
+        this(name, constantThinkTimes, perTaskThinkTimes, numMachinesToBlackList,
+             parallelism, batchSize, batchWindow, false, 1.0);
+    }
+    
+    public OmegaScheduler(String name,
+                         Map<String, Double> constantThinkTimes,
+                         Map<String, Double> perTaskThinkTimes,
+                         int numMachinesToBlackList,
+                         int parallelism) {
+        this(name, constantThinkTimes, perTaskThinkTimes, numMachinesToBlackList,
+             parallelism, 1, 0.0);
+    }
+    
+    public OmegaScheduler(String name,
+                         Map<String, Double> constantThinkTimes,
+                         Map<String, Double> perTaskThinkTimes,
+                         int numMachinesToBlackList) {
+        this(name, constantThinkTimes, perTaskThinkTimes, numMachinesToBlackList, 1);
+    }
+    
+    public int getParallelism() { return parallelism; }
+    public int getNumJobsInFlight() { return parallelism - freeSlots.size(); }
+    public double getSlotUsefulTimeScheduling(int slot) { return slotUsefulTimeScheduling[slot]; }
+    public double getSlotWastedTimeScheduling(int slot) { return slotWastedTimeScheduling[slot]; }
+    public int getBatchSize() { return batchSize; }
+    public int getNumBatchTransactions() { return numBatchTransactions; }
+    public int getNumBatchedJobs() { return numBatchedJobs; }
+    public boolean isFastRetry() { return fastRetry; }
+    public int getNumFastRetries() { return numFastRetries; }
+    
     public void setOmegaSimulator(OmegaSimulator omegaSimulator) {
         this.omegaSimulator = omegaSimulator;
         this.simulator = omegaSimulator;
@@ -70,126 +181,506 @@ public class OmegaScheduler extends BaseScheduler {
         simulator.log("Scheduler " + name + " enqueued job " + job.getId() + 
                      " of workload type " + job.getWorkloadName() + ".");
         
-        if (!scheduling) {
-            omegaSimulator.log("Set " + name + " scheduling to TRUE to schedule job " + job.getId() + ".");
-            scheduling = true;
-            handleJob(pendingQueue.poll());
+        fillSlots();
+    }
+    
+    /**
+     * Start jobs from the queue while there are free scheduling slots. In batching
+     * mode a slot takes up to batchSize jobs at once, waiting at most batchWindow
+     * seconds for a partial batch to fill up.
+     */
+    private void fillSlots() {
+        while (!freeSlots.isEmpty() && !pendingQueue.isEmpty()) {
+            if (batchSize > 1) {
+                if (pendingQueue.size() < batchSize && batchWindow > 0.0) {
+                    if (batchDeadline < 0.0) {
+                        batchDeadline = simulator.getCurrentTime() + batchWindow;
+                        omegaSimulator.afterDelay(batchWindow, new BatchWindowEnd(this));
+                    }
+                    if (simulator.getCurrentTime() < batchDeadline) {
+                        return;
+                    }
+                }
+                batchDeadline = -1.0;
+                handleBatch(drainBatch());
+            } else {
+                Job job = pendingQueue.poll();
+                omegaSimulator.log("Set " + name + " scheduling to TRUE to schedule job " + job.getId() + ".");
+                handleJob(job);
+            }
+        }
+    }
+    
+    private int takeSlot(Job job) {
+        if (freeSlots.isEmpty()) {
+            throw new IllegalStateException(
+                "Scheduler " + name + " has no free slot to handle job " + job.getId());
+        }
+        scheduling = true;
+        return freeSlots.pop();
+    }
+    
+    private void releaseSlot(int slot) {
+        freeSlots.push(slot);
+        if (freeSlots.size() == parallelism) {
+            omegaSimulator.log("Set " + name + " scheduling to FALSE");
+            scheduling = false;
         }
+        
+        // Keep trying to schedule as long as we have jobs in the queue
+        fillSlots();
     }
     
     /**
-     * Handle a job: sync cell state, schedule it, and submit transaction.
+     * Handle a job in a free slot: sync cell state, schedule it, and submit transaction.
      */
     public void handleJob(Job job) {
-        job.updateTimeInQueueStats(simulator.getCurrentTime());
-        syncCellState();
-        double jobThinkTime = getThinkTime(job);
-        
-        final Job finalJob = job;
-        omegaSimulator.afterDelay(jobThinkTime, () -> {
-            finalJob.setNumSchedulingAttempts(finalJob.getNumSchedulingAttempts() + 1);
-            finalJob.setNumTaskSchedulingAttempts(
-                finalJob.getNumTaskSchedulingAttempts() + finalJob.getUnscheduledTasks());
-            
-            // Schedule the job in private cell state
-            if (finalJob.getUnscheduledTasks() <= 0) {
-                throw new IllegalStateException("Job must have unscheduled tasks");
+        final int slot = takeSlot(job);
+        recordTimeInQueue(job);
+        attemptJob(job, syncCellState(), getThinkTime(job), slot);
+    }
+    
+    /**
+     * Think for the given time, place the job's unscheduled tasks in jobCellState
+     * and submit a transaction. On a conflict in fast retry mode the job stays in
+     * its slot and tries again on the same snapshot, with just the conflicted
+     * machines resynced.
+     */
+    private void attemptJob(Job job, CellState jobCellState, double jobThinkTime, int slot) {
+        omegaSimulator.afterDelay(jobThinkTime, new JobAttempt(this, job, jobCellState, jobThinkTime, slot));
+    }
+    
+    /**
+     * The end of attemptJob's think time: place the job and commit.
+     */
+    private void placeAndCommit(Job job, CellState jobCellState, double jobThinkTime, int slot) {
+        List<ClaimDelta> claimDeltas = placeJob(job, jobCellState, jobThinkTime);
+        
+        CellState.CommitResult commitResult = null;
+        if (!claimDeltas.isEmpty()) {
+            // Attempt to claim resources in common cell state by committing transaction
+            omegaSimulator.log("Submitting a transaction for " + claimDeltas.size() + 
+                             " tasks for job " + job.getId() + ".");
+            commitResult = omegaSimulator.getCellState().commit(claimDeltas, true);
+        }
+        if (preemption && !job.isRigid() &&
+            (commitResult == null || commitResult.getConflictedDeltas().isEmpty())) {
+            // Tasks are missing for lack of room rather than a conflict
+            int numMissing = job.getUnscheduledTasks() -
+                (commitResult == null ? 0 : commitResult.getCommittedDeltas().size());
+            if (numMissing > 0) {
+                preemptForTasks(job, numMissing);
             }
+        }
+        
+        if (finishAttempt(job, claimDeltas, commitResult, jobThinkTime, slot)) {
+            if (fastRetry && commitResult != null &&
+                !commitResult.getConflictedDeltas().isEmpty()) {
+                startFastRetry(job, jobCellState, claimDeltas, commitResult, slot);
+                return;
+            }
+            requeueJob(job, commitResult);
+        }
+        
+        releaseSlot(slot);
+    }
+    
+    private void startFastRetry(Job job, CellState jobCellState, List<ClaimDelta> claimDeltas,
+                                CellState.CommitResult commitResult, int slot) {
+        numFastRetries++;
+        int[] machineIDs = uncommittedMachines(claimDeltas, commitResult);
+        jobCellState.refreshMachines(omegaSimulator.getCellState(), machineIDs);
+        double retryThinkTime = retryThinkTimeFactor * getThinkTime(job);
+        simulator.log(String.format(
+            "Fast retry of %d conflicted tasks for job %d on %d resynced machines, " +
+            "thinking for %f seconds.",
+            job.getUnscheduledTasks(), job.getId(), machineIDs.length, retryThinkTime));
+        fastRetryJob(job, jobCellState, machineIDs, retryThinkTime, slot);
+    }
+    
+    /**
+     * Re-place a job's conflicted tasks, preferring the just-resynced machines:
+     * everything else in the snapshot is as old as the job's first attempt, so
+     * it is much more likely to conflict again. They are placed on a copy of
+     * just those machines, which carry their conflict scores along and keep
+     * the scheduler's blacklist in terms of the cell (see CellState.numCandidates).
+     */
+    private void fastRetryJob(Job job, CellState jobCellState, int[] refreshedMachines,
+                              double retryThinkTime, int slot) {
+        omegaSimulator.afterDelay(retryThinkTime,
+            new FastRetryAttempt(this, job, jobCellState, refreshedMachines, retryThinkTime, slot));
+    }
+    
+    /**
+     * The end of fastRetryJob's think time: re-place the job and commit.
+     */
+    private void placeAndCommitRetry(Job job, CellState jobCellState, int[] refreshedMachines,
+                                     double retryThinkTime, int slot) {
+        job.setNumSchedulingAttempts(job.getNumSchedulingAttempts() + 1);
+        job.setNumTaskSchedulingAttempts(
+            job.getNumTaskSchedulingAttempts() + job.getUnscheduledTasks());
+        
+        CellState fresh = jobCellState.copyMachines(refreshedMachines);
+        List<ClaimDelta> claimDeltas = new ArrayList<>();
+        for (ClaimDelta d : scheduleTasks(job, job.getUnscheduledTasks(), fresh)) {
+            ClaimDelta cellDelta = new ClaimDelta(this, refreshedMachines[d.getMachineID()],
+                d.getMachineSeqNum(), d.getCpuSeqNum(), d.getMemSeqNum(),
+                d.getDuration(), d.getCpus(), d.getMem(), job,
+                d.getExtraResources(), d.getExtraSeqNums());
+            cellDelta.apply(jobCellState, false);
+            claimDeltas.add(cellDelta);
+        }
+        int numLeft = job.getUnscheduledTasks() - claimDeltas.size();
+        if (numLeft > 0) {
+            claimDeltas.addAll(scheduleTasks(job, numLeft, jobCellState));
+        }
+        
+        CellState.CommitResult commitResult = null;
+        if (!claimDeltas.isEmpty()) {
+            commitResult = omegaSimulator.getCellState().commit(claimDeltas, true);
+        }
+        if (finishAttempt(job, claimDeltas, commitResult, retryThinkTime, slot)) {
+            if (commitResult != null && !commitResult.getConflictedDeltas().isEmpty()) {
+                startFastRetry(job, jobCellState, claimDeltas, commitResult, slot);
+                return;
+            }
+            requeueJob(job, commitResult);
+        }
+        
+        releaseSlot(slot);
+    }
+    
+    /**
+     * Distinct machines of the transaction's deltas that weren't committed, in
+     * increasing order, so that a copy of them has the blacklisted ones last.
+     * That is more than the conflicted deltas' when an all-or-nothing commit
+     * stopped at the first conflict: the deltas after it were never tried, and
+     * their claims must go from the snapshot too.
+     */
+    private static int[] uncommittedMachines(List<ClaimDelta> claimDeltas,
+                                             CellState.CommitResult commitResult) {
+        Set<ClaimDelta> committed = Collections.newSetFromMap(new IdentityHashMap<>());
+        committed.addAll(commitResult.getCommittedDeltas());
+        Set<Integer> machineIDs = new TreeSet<>();
+        for (ClaimDelta d : claimDeltas) {
+            if (!committed.contains(d)) {
+                machineIDs.add(d.getMachineID());
+            }
+        }
+        int[] result = new int[machineIDs.size()];
+        int i = 0;
+        for (int machineID : machineIDs) {
+            result[i++] = machineID;
+        }
+        return result;
+    }
+    
+    /**
+     * Put a job back in the queue later: it lost a conflict if its transaction
+     * had conflicted deltas, and otherwise found too little room.
+     */
+    private void requeueJob(Job job, CellState.CommitResult commitResult) {
+        simulator.log("Job " + job.getId() + " still has " + 
+                     job.getUnscheduledTasks() + " unscheduled tasks, " +
+                     "adding it back to scheduler " + name + "'s job queue.");
+        retryLater(job, commitResult == null || commitResult.getConflictedDeltas().isEmpty());
+    }
+    
+    /**
+     * Take the head of the queue plus up to batchSize - 1 more queued jobs of the
+     * same workload, in queue order: through the queue's own pollBatch if it
+     * has one, otherwise by iterating over it, which a plain FIFO does in
+     * queue order.
+     */
+    private List<Job> drainBatch() {
+        if (pendingQueue instanceof BatchingQueue) {
+            return ((BatchingQueue) pendingQueue).pollBatch(batchSize);
+        }
+        List<Job> batch = new ArrayList<>(batchSize);
+        Job head = pendingQueue.poll();
+        batch.add(head);
+        for (Job job : pendingQueue) {
+            if (batch.size() >= batchSize) {
+                break;
+            }
+            if (job.getWorkloadName().equals(head.getWorkloadName())) {
+                batch.add(job);
+            }
+        }
+        for (int i = 1; i < batch.size(); i++) {
+            pendingQueue.remove(batch.get(i));
+        }
+        return batch;
+    }
+    
+    /**
+     * Think time for placing a batch of same-workload jobs together: the
+     * workload's constant think time once, plus per-task time for every
+     * unscheduled task in the batch.
+     */
+    public double getBatchThinkTime(List<Job> batch) {
+        double thinkTime = getThinkTime(batch.get(0));
+        for (int i = 1; i < batch.size(); i++) {
+            thinkTime += perTaskThinkTimes.get(batch.get(i).getWorkloadName()) *
+                         batch.get(i).getUnscheduledTasks();
+        }
+        return thinkTime;
+    }
+    
+    /**
+     * Handle a batch of jobs in one free slot: place all of them against a single
+     * snapshot and submit them as one transaction in which each job's deltas
+     * commit or conflict on their own.
+     */
+    public void handleBatch(List<Job> batch) {
+        final int slot = takeSlot(batch.get(0));
+        for (Job job : batch) {
+            recordTimeInQueue(job);
+        }
+        final CellState batchCellState = syncCellState();
+        final double batchThinkTime = getBatchThinkTime(batch);
+        // Each job is charged the constant part evenly plus its own per-task part
+        final double[] jobThinkTimes = new double[batch.size()];
+        double constantShare = constantThinkTimes.get(batch.get(0).getWorkloadName()) / batch.size();
+        for (int i = 0; i < batch.size(); i++) {
+            jobThinkTimes[i] = constantShare +
+                perTaskThinkTimes.get(batch.get(i).getWorkloadName()) *
+                batch.get(i).getUnscheduledTasks();
+        }
+        omegaSimulator.log(String.format("%s started a batch of %d jobs, thinking for %f seconds.",
+            name, batch.size(), batchThinkTime));
+        
+        omegaSimulator.afterDelay(batchThinkTime,
+            new BatchAttempt(this, batch, batchCellState, jobThinkTimes, slot));
+    }
+    
+    /**
+     * The end of handleBatch's think time: place the batch's jobs and commit
+     * them together.
+     */
+    private void placeAndCommitBatch(List<Job> batch, CellState batchCellState,
+                                     double[] jobThinkTimes, int slot) {
+        // Later jobs in the batch see earlier jobs' placements in the snapshot
+        List<List<ClaimDelta>> jobDeltas = new ArrayList<>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            jobDeltas.add(placeJob(batch.get(i), batchCellState, jobThinkTimes[i]));
+        }
+        
+        List<CellState.CommitResult> commitResults =
+            omegaSimulator.getCellState().commitBatch(jobDeltas, true);
+        numBatchTransactions++;
+        numBatchedJobs += batch.size();
+        
+        for (int i = 0; i < batch.size(); i++) {
+            if (finishAttempt(batch.get(i), jobDeltas.get(i),
+                    jobDeltas.get(i).isEmpty() ? null : commitResults.get(i),
+                    jobThinkTimes[i], slot)) {
+                requeueJob(batch.get(i),
+                    jobDeltas.get(i).isEmpty() ? null : commitResults.get(i));
+            }
+        }
+        
+        releaseSlot(slot);
+    }
+    
+    /**
+     * Count a scheduling attempt for the job and place its unscheduled tasks in
+     * the given private cell state.
+     */
+    private List<ClaimDelta> placeJob(Job job, CellState privCellState, double thinkTime) {
+        job.setNumSchedulingAttempts(job.getNumSchedulingAttempts() + 1);
+        job.setNumTaskSchedulingAttempts(
+            job.getNumTaskSchedulingAttempts() + job.getUnscheduledTasks());
+        
+        // Schedule the job in private cell state
+        if (job.getUnscheduledTasks() <= 0) {
+            throw new IllegalStateException("Job must have unscheduled tasks");
+        }
+        
+        List<ClaimDelta> claimDeltas = scheduleJob(job, privCellState);
+        
+        simulator.log(String.format(
+            "Job %d (%s) finished %f seconds of scheduling thinktime; " +
+            "now trying to claim resources for %d tasks with %f cpus and %f mem each.",
+            job.getId(), job.getWorkloadName(), thinkTime,
+            job.getNumTasks(), job.getCpusPerTask(), job.getMemPerTask()));
+        return claimDeltas;
+    }
+    
+    /**
+     * Record the outcome of a job's transaction (null if nothing was placed), and
+     * abandon the job if it has been tried too often.
+     * @return Whether the job has tasks left and should be tried again
+     */
+    private boolean finishAttempt(Job job, List<ClaimDelta> claimDeltas,
+                               CellState.CommitResult commitResult,
+                               double thinkTime, int slot) {
+        if (commitResult != null) {
+            job.setUnscheduledTasks(
+                job.getUnscheduledTasks() - commitResult.getCommittedDeltas().size());
+            omegaSimulator.log(commitResult.getCommittedDeltas().size() + 
+                             " tasks successfully committed for job " + job.getId() + ".");
             
-            List<ClaimDelta> claimDeltas = scheduleJob(finalJob, privateCellState);
-            
-            simulator.log(String.format(
-                "Job %d (%s) finished %f seconds of scheduling thinktime; " +
-                "now trying to claim resources for %d tasks with %f cpus and %f mem each.",
-                finalJob.getId(), finalJob.getWorkloadName(), jobThinkTime,
-                finalJob.getNumTasks(), finalJob.getCpusPerTask(), finalJob.getMemPerTask()));
+            numSuccessfulTaskTransactions += commitResult.getCommittedDeltas().size();
+            numFailedTaskTransactions += commitResult.getConflictedDeltas().size();
             
-            if (!claimDeltas.isEmpty()) {
-                // Attempt to claim resources in common cell state by committing transaction
-                omegaSimulator.log("Submitting a transaction for " + claimDeltas.size() + 
-                                 " tasks for job " + finalJob.getId() + ".");
-                
-                CellState.CommitResult commitResult = 
-                    omegaSimulator.getCellState().commit(claimDeltas, true);
-                
-                finalJob.setUnscheduledTasks(
-                    finalJob.getUnscheduledTasks() - commitResult.getCommittedDeltas().size());
-                omegaSimulator.log(commitResult.getCommittedDeltas().size() + 
-                                 " tasks successfully committed for job " + finalJob.getId() + ".");
-                
-                numSuccessfulTaskTransactions += commitResult.getCommittedDeltas().size();
-                numFailedTaskTransactions += commitResult.getConflictedDeltas().size();
-                
-                if (finalJob.getNumSchedulingAttempts() > 1) {
-                    numRetriedTransactions++;
-                }
-                
-                // Record job-level stats
-                if (commitResult.getConflictedDeltas().isEmpty()) {
-                    numSuccessfulTransactions++;
-                    incrementDailyCounter(dailySuccessTransactions);
-                    recordUsefulTimeScheduling(finalJob, jobThinkTime,
-                        finalJob.getNumSchedulingAttempts() == 1);
-                } else {
-                    numFailedTransactions++;
-                    incrementDailyCounter(dailyFailedTransactions);
-                    recordWastedTimeScheduling(finalJob, jobThinkTime,
-                        finalJob.getNumSchedulingAttempts() == 1);
-                }
-            } else {
-                simulator.log("Not enough resources of the right shape were available " +
-                             "to schedule even one task of job " + finalJob.getId() + 
-                             ", so not submitting a transaction.");
-                numNoResourcesFoundSchedulingAttempts++;
+            if (job.getNumSchedulingAttempts() > 1) {
+                numRetriedTransactions++;
             }
             
-            String jobEventType = "";
-            
-            // If job isn't fully scheduled, put it back in queue
-            if (finalJob.getUnscheduledTasks() > 0) {
-                // Give up on job if it hasn't scheduled in 100 tries or after 1000 tries
-                if ((finalJob.getNumSchedulingAttempts() > 100 &&
-                     finalJob.getUnscheduledTasks() == finalJob.getNumTasks()) ||
-                    finalJob.getNumSchedulingAttempts() > 1000) {
-                    System.out.println(String.format(
-                        "Abandoning job %d (%f cpu %f mem) with %d/%d " +
-                        "remaining tasks, after %d scheduling attempts.",
-                        finalJob.getId(), finalJob.getCpusPerTask(), finalJob.getMemPerTask(),
-                        finalJob.getUnscheduledTasks(), finalJob.getNumTasks(),
-                        finalJob.getNumSchedulingAttempts()));
-                    numJobsTimedOutScheduling++;
-                    jobEventType = "abandoned";
-                } else {
-                    simulator.log("Job " + finalJob.getId() + " still has " + 
-                                 finalJob.getUnscheduledTasks() + " unscheduled tasks, " +
-                                 "adding it back to scheduler " + name + "'s job queue.");
-                    simulator.afterDelay(1.0, () -> addJob(finalJob));
-                }
+            // Record job-level stats
+            if (commitResult.getConflictedDeltas().isEmpty()) {
+                numSuccessfulTransactions++;
+                incrementDailyCounter(dailySuccessTransactions);
+                recordUsefulTimeScheduling(job, thinkTime,
+                    job.getNumSchedulingAttempts() == 1);
+                slotUsefulTimeScheduling[slot] += thinkTime;
             } else {
-                jobEventType = "fully-scheduled";
+                numFailedTransactions++;
+                incrementDailyCounter(dailyFailedTransactions);
+                recordWastedTimeScheduling(job, thinkTime,
+                    job.getNumSchedulingAttempts() == 1);
+                recordConflict(commitResult.getConflictKind(), thinkTime);
+                slotWastedTimeScheduling[slot] += thinkTime;
             }
-            
-            omegaSimulator.log("Set " + name + " scheduling to FALSE");
-            scheduling = false;
-            
-            // Keep trying to schedule as long as we have jobs in the queue
-            if (!pendingQueue.isEmpty()) {
-                scheduling = true;
-                handleJob(pendingQueue.poll());
+        } else {
+            simulator.log("Not enough resources of the right shape were available " +
+                         "to schedule even one task of job " + job.getId() + 
+                         ", so not submitting a transaction.");
+            numNoResourcesFoundSchedulingAttempts++;
+            gangNotScheduled(job);
+        }
+        
+        String jobEventType = "";
+        
+        // If job isn't fully scheduled, put it back in queue
+        if (job.getUnscheduledTasks() > 0) {
+            // Give up on job if the retry policy says it has been tried too often
+            if (shouldAbandon(job)) {
+                System.out.println(String.format(
+                    "Abandoning job %d (%f cpu %f mem) with %d/%d " +
+                    "remaining tasks, after %d scheduling attempts.",
+                    job.getId(), job.getCpusPerTask(), job.getMemPerTask(),
+                    job.getUnscheduledTasks(), job.getNumTasks(),
+                    job.getNumSchedulingAttempts()));
+                numJobsTimedOutScheduling++;
+                jobAbandoned(job);
+                jobEventType = "abandoned";
+            } else {
+                return true;
             }
-        });
+        } else {
+            gangScheduled(job);
+            jobEventType = "fully-scheduled";
+        }
+        return false;
     }
     
     /**
      * Sync with common cell state by getting a copy.
+     * @return The fresh private copy, which is also the scheduler's latest private cell state
      */
-    public void syncCellState() {
+    public CellState syncCellState() {
         checkRegistered();
         privateCellState = omegaSimulator.getCellState().copy();
         simulator.log(name + " synced private cellstate.");
+        return privateCellState;
     }
     
     public CellState getPrivateCellState() {
         return privateCellState;
     }
+    
+    /** The end of a batching window, when a partial batch goes ahead. */
+    private static final class BatchWindowEnd implements Event {
+        private static final long serialVersionUID = 1L;
+        
+        private final OmegaScheduler scheduler;
+        
+        BatchWindowEnd(OmegaScheduler scheduler) {
+            this.scheduler = scheduler;
+        }
+        
+        @Override
+        public void run() {
+            scheduler.fillSlots();
+        }
+    }
+    
+    /** A job done thinking in its slot (see attemptJob). */
+    private static final class JobAttempt implements Event {
+        private static final long serialVersionUID = 1L;
+        
+        private final OmegaScheduler scheduler;
+        private final Job job;
+        private final CellState jobCellState;
+        private final double jobThinkTime;
+        private final int slot;
+        
+        JobAttempt(OmegaScheduler scheduler, Job job, CellState jobCellState,
+                   double jobThinkTime, int slot) {
+            this.scheduler = scheduler;
+            this.job = job;
+            this.jobCellState = jobCellState;
+            this.jobThinkTime = jobThinkTime;
+            this.slot = slot;
+        }
+        
+        @Override
+        public void run() {
+            scheduler.placeAndCommit(job, jobCellState, jobThinkTime, slot);
+        }
+    }
+    
+    /** A job done thinking about a fast retry (see fastRetryJob). */
+    private static final class FastRetryAttempt implements Event {
+        private static final long serialVersionUID = 1L;
+        
+        private final OmegaScheduler scheduler;
+        private final Job job;
+        private final CellState jobCellState;
+        private final int[] refreshedMachines;
+        private final double retryThinkTime;
+        private final int slot;
+        
+        FastRetryAttempt(OmegaScheduler scheduler, Job job, CellState jobCellState,
+                         int[] refreshedMachines, double retryThinkTime, int slot) {
+            this.scheduler = scheduler;
+            this.job = job;
+            this.jobCellState = jobCellState;
+            this.refreshedMachines = refreshedMachines;
+            this.retryThinkTime = retryThinkTime;
+            this.slot = slot;
+        }
+        
+        @Override
+        public void run() {
+            scheduler.placeAndCommitRetry(job, jobCellState, refreshedMachines, retryThinkTime, slot);
+        }
+    }
+    
+    /** A batch done thinking in its slot (see handleBatch). */
+    private static final class BatchAttempt implements Event {
+        private static final long serialVersionUID = 1L;
+        
+        private final OmegaScheduler scheduler;
+        private final List<Job> batch;
+        private final CellState batchCellState;
+        private final double[] jobThinkTimes;
+        private final int slot;
+        
+        BatchAttempt(OmegaScheduler scheduler, List<Job> batch, CellState batchCellState,
+                     double[] jobThinkTimes, int slot) {
+            this.scheduler = scheduler;
+            this.batch = batch;
+            this.batchCellState = batchCellState;
+            this.jobThinkTimes = jobThinkTimes;
+            this.slot = slot;
+        }
+        
+        @Override
+        public void run() {
+            scheduler.placeAndCommitBatch(batch, batchCellState, jobThinkTimes, slot);
+        }
+    }
 }
@@ -0,0 +1,98 @@
+package scheduler;
+
+import simulator.core.CellState;
+import simulator.core.ClaimDelta;
+import simulator.core.Job;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Decides which machines a job's tasks go on. Implementations place tasks one at
+ * a time with BaseScheduler.claimTask, which applies each delta to the given
+ * cell state so later tasks see earlier ones, and must leave the last
+ * numMachinesToBlackList machines of the cell alone.
+ */
+public interface PlacementPolicy extends Serializable {
+    /**
+     * Place up to numTasks tasks of the job.
+     * @return The deltas of the tasks placed, already applied to cellState
+     */
+    List<ClaimDelta> placeTasks(BaseScheduler scheduler, Job job, int numTasks, CellState cellState);
+
+    /**
+     * Number of machines a policy may use: everything but the blacklisted
+     * tail of the common cell, also in a snapshot of some of its machines
+     * (see CellState.numCandidates).
+     */
+    static int numCandidates(BaseScheduler scheduler, CellState cellState) {
+        return cellState.numCandidates(scheduler.getNumMachinesToBlackList());
+    }
+
+    /**
+     * The candidates whose shape class could host a task of the job at all,
+     * and that meet its placement constraints, as from/to ranges of machine
+     * IDs (CellState.candidateRanges). Policies look only at these.
+     */
+    static int[] candidateRanges(Job job, BaseScheduler scheduler, CellState cellState) {
+        return cellState.candidateRanges(job, numCandidates(scheduler, cellState));
+    }
+
+    /**
+     * Number of machines in from/to ranges.
+     */
+    static int numMachines(int[] ranges) {
+        int n = 0;
+        for (int r = 0; r < ranges.length; r += 2) {
+            n += ranges[r + 1] - ranges[r];
+        }
+        return n;
+    }
+
+    /**
+     * Number of machines in from/to ranges before each range, and in all of
+     * them last; what machineAt searches.
+     */
+    static int[] prefixCounts(int[] ranges) {
+        int[] prefixCounts = new int[ranges.length / 2 + 1];
+        for (int r = 0; r < ranges.length; r += 2) {
+            prefixCounts[r / 2 + 1] = prefixCounts[r / 2] + ranges[r + 1] - ranges[r];
+        }
+        return prefixCounts;
+    }
+
+    /**
+     * The index-th machine of from/to ranges, counting from 0, by binary
+     * search of their prefixCounts: constrained jobs may have thousands of
+     * ranges.
+     */
+    static int machineAt(int[] ranges, int[] prefixCounts, int index) {
+        int lo = 0;
+        int hi = prefixCounts.length - 2;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (prefixCounts[mid] <= index) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return ranges[2 * lo] + index - prefixCounts[lo];
+    }
+
+    /**
+     * Whether a task of the job fits on the machine at time now, respecting any
+     * gang reservation in the cell.
+     */
+    static boolean fits(Job job, int machineID, CellState cellState, double now) {
+        return cellState.canHost(job, machineID, now);
+    }
+
+    /**
+     * Free resources of a machine as a fraction of its capacity, summed over
+     * its resource dimensions (CellState.freeFraction).
+     */
+    static double freeFraction(int machineID, CellState cellState) {
+        return cellState.freeFraction(machineID);
+    }
+}
@@ -0,0 +1,95 @@
+package scheduler;
+
+import simulator.core.CellState;
+import simulator.core.ClaimDelta;
+import simulator.core.Job;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Power-of-d-choices sampling: for every task, look at d machines drawn at
+ * random and put the task on the emptiest one it fits on. Cost is O(d) per task,
+ * independent of the cell size, instead of a scan that may touch every machine.
+ * If none of the d sampled machines fits, up to maxRounds fresh samples are
+ * tried before the rest of the job is left for a later attempt. Samples come
+ * only from shape classes big enough for the job's tasks, and from machines
+ * that meet its placement constraints.
+ */
+public class PowerOfDChoicesPlacement implements PlacementPolicy {
+    private static final long serialVersionUID = 1L;
+
+    private final int d;
+    private final int maxRounds;
+    private final Random random;
+
+    /**
+     * @param d         Machines sampled per task
+     * @param maxRounds Samples of d machines tried for a task before giving up
+     * @param random    Source of the samples; seeded, it makes runs repeatable
+     */
+    public PowerOfDChoicesPlacement(int d, int maxRounds, Random random) {
+        if (d < 1) {
+            throw new IllegalArgumentException("d must be at least 1, but was " + d);
+        }
+        if (maxRounds < 1) {
+            throw new IllegalArgumentException("maxRounds must be at least 1, but was " + maxRounds);
+        }
+        this.d = d;
+        this.maxRounds = maxRounds;
+        this.random = random;
+    }
+
+    public PowerOfDChoicesPlacement(int d, int maxRounds) {
+        this(d, maxRounds, new Random());
+    }
+
+    public PowerOfDChoicesPlacement(int d) {
+        this(d, 3);
+    }
+
+    public int getD() { return d; }
+
+    @Override
+    public List<ClaimDelta> placeTasks(BaseScheduler scheduler, Job job, int numTasks,
+                                       CellState cellState) {
+        int[] ranges = PlacementPolicy.candidateRanges(job, scheduler, cellState);
+        int[] prefixCounts = PlacementPolicy.prefixCounts(ranges);
+        int numCandidates = prefixCounts[prefixCounts.length - 1];
+        double now = scheduler.getSimulator().getCurrentTime();
+        List<ClaimDelta> claimDeltas = new ArrayList<>();
+        long examined = 0;
+        long failed = 0;
+        if (numCandidates == 0) {
+            return claimDeltas;
+        }
+
+        while (claimDeltas.size() < numTasks) {
+            int chosen = -1;
+            double chosenFree = -1.0;
+            for (int round = 0; round < maxRounds && chosen < 0; round++) {
+                for (int i = 0; i < d; i++) {
+                    int machineID = PlacementPolicy.machineAt(ranges, prefixCounts,
+                                                              random.nextInt(numCandidates));
+                    examined++;
+                    if (!PlacementPolicy.fits(job, machineID, cellState, now)) {
+                        failed++;
+                        continue;
+                    }
+                    double free = PlacementPolicy.freeFraction(machineID, cellState);
+                    if (free > chosenFree) {
+                        chosen = machineID;
+                        chosenFree = free;
+                    }
+                }
+            }
+            if (chosen < 0) {
+                break;
+            }
+            claimDeltas.add(scheduler.claimTask(job, chosen, cellState));
+        }
+        scheduler.recordMachinesExamined(examined, failed);
+        return claimDeltas;
+    }
+}
@@ -0,0 +1,25 @@
+package scheduler;
+
+import simulator.core.Job;
+
+/**
+ * Strict priority classes on Job.getPriority(), highest first and FIFO within a
+ * class. With a positive agingRate a job climbs one class per 1/agingRate
+ * seconds waited, so low classes can't starve forever.
+ */
+public class PriorityClassQueue extends HeapJobQueue {
+    private static final long serialVersionUID = 1L;
+
+    public PriorityClassQueue(double agingRate) {
+        super(agingRate);
+    }
+
+    public PriorityClassQueue() {
+        this(0.0);
+    }
+
+    @Override
+    protected double key(Job job) {
+        return -job.getPriority();
+    }
+}
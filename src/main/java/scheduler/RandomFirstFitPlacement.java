@@ -0,0 +1,99 @@
+package scheduler;
+
+import simulator.core.CellState;
+import simulator.core.ClaimDelta;
+import simulator.core.Job;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Randomized first-fit, the simulator's original placement: draw machines at
+ * random without replacement and put a task on each one it fits on. A machine a
+ * task doesn't fit on is dropped from the pool for the rest of the job. Honours
+ * the scheduler's conflict avoidance weight. Machines of shape classes too
+ * small for the job's tasks, or that don't meet its placement constraints,
+ * are never drawn.
+ */
+public class RandomFirstFitPlacement implements PlacementPolicy {
+    private static final long serialVersionUID = 1L;
+
+    private static final int MAX_CONFLICT_AVOIDANCE_DRAWS = 4;
+
+    private final Random random;
+
+    /**
+     * @param random Source of the draws; seeded, it makes runs repeatable
+     */
+    public RandomFirstFitPlacement(Random random) {
+        this.random = random;
+    }
+
+    public RandomFirstFitPlacement() {
+        this(new Random());
+    }
+
+    @Override
+    public List<ClaimDelta> placeTasks(BaseScheduler scheduler, Job job, int numTasks,
+                                       CellState cellState) {
+        List<ClaimDelta> claimDeltas = new ArrayList<>();
+        int[] ranges = PlacementPolicy.candidateRanges(job, scheduler, cellState);
+        int numCandidates = PlacementPolicy.numMachines(ranges);
+        double now = scheduler.getSimulator().getCurrentTime();
+
+        // On a full cell every draw would fail: find that out with one scan,
+        // accounted as if each candidate had been drawn and dropped
+        if (numTasks > 0 &&
+            cellState.firstFit(job, 0, PlacementPolicy.numCandidates(scheduler, cellState), now) < 0) {
+            scheduler.recordMachinesExamined(numCandidates, numCandidates);
+            return claimDeltas;
+        }
+
+        // Create candidate pool of machine IDs
+        List<Integer> candidatePool = new ArrayList<>(numCandidates);
+        for (int r = 0; r < ranges.length; r += 2) {
+            for (int i = ranges[r]; i < ranges[r + 1]; i++) {
+                candidatePool.add(i);
+            }
+        }
+
+        int numRemainingTasks = numTasks;
+        int remainingCandidates = numCandidates;
+        double conflictAvoidanceWeight = scheduler.getConflictAvoidanceWeight();
+
+        long examined = 0;
+        long failed = 0;
+
+        while (numRemainingTasks > 0 && remainingCandidates > 0) {
+            // Pick a random machine from the candidate pool
+            int candidateIndex = random.nextInt(remainingCandidates);
+            if (conflictAvoidanceWeight > 0.0) {
+                for (int draw = 1; draw < MAX_CONFLICT_AVOIDANCE_DRAWS; draw++) {
+                    double score = cellState.getConflictScore(candidatePool.get(candidateIndex), now);
+                    if (random.nextDouble() * (1.0 + conflictAvoidanceWeight * score) < 1.0) {
+                        break;
+                    }
+                    candidateIndex = random.nextInt(remainingCandidates);
+                }
+            }
+            int currMachID = candidatePool.get(candidateIndex);
+            examined++;
+
+            // Check if a task fits on this machine
+            if (PlacementPolicy.fits(job, currMachID, cellState, now)) {
+                claimDeltas.add(scheduler.claimTask(job, currMachID, cellState));
+                numRemainingTasks--;
+            } else {
+                failed++;
+                // Move the chosen candidate to the end
+                Collections.swap(candidatePool, candidateIndex, remainingCandidates - 1);
+                remainingCandidates--;
+            }
+        }
+
+        scheduler.recordMachinesExamined(examined, failed);
+        return claimDeltas;
+    }
+}
@@ -0,0 +1,41 @@
+package scheduler;
+
+import simulator.core.Job;
+
+import java.io.Serializable;
+
+/**
+ * Decides when a job that still has unscheduled tasks after an attempt is
+ * tried again, and when it is given up on.
+ */
+public interface RetryPolicy extends Serializable {
+    /**
+     * Seconds until the job is tried again.
+     * @param lackOfRoom Whether the attempt came up short for lack of room, as
+     *                   opposed to losing its claims in a conflict
+     */
+    double getRetryDelay(Job job, boolean lackOfRoom);
+
+    /**
+     * Whether a job that found no room waits until enough resources are freed
+     * for its task shape instead of being retried on a timer. getRetryDelay is
+     * then only the longest it waits.
+     */
+    default boolean isCapacityTriggered() {
+        return false;
+    }
+
+    /**
+     * Attempts after which a job none of whose tasks could be placed is abandoned.
+     */
+    default long getMaxAttemptsWithoutProgress() {
+        return 100;
+    }
+
+    /**
+     * Attempts after which any job with tasks left is abandoned.
+     */
+    default long getMaxAttempts() {
+        return 1000;
+    }
+}
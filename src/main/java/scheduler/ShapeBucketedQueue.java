@@ -0,0 +1,255 @@
+package scheduler;
+
+import simulator.core.Job;
+
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * Pending-job queue indexed by task shape. Jobs are grouped into classes by the
+ * power-of-two bucket of their cpus and mem per task (relative to cpuUnit and
+ * memUnit), each class a FIFO. pollFitting hands out the oldest job whose task
+ * fits the given resources by looking at one head per class, so an offer is
+ * matched in O(shape classes) instead of walking and requeueing the whole
+ * backlog. Plain poll() keeps global FIFO order.
+ *
+ * To keep big jobs from being starved by a stream of small ones, once the
+ * oldest job has waited longer than agingBound it must go first: pollFitting
+ * returns it if it fits and otherwise nothing, so resources can accumulate.
+ */
+public class ShapeBucketedQueue extends AbstractQueue<Job> implements BatchingQueue, Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final double cpuUnit;
+    private final double memUnit;
+    private final double agingBound;
+    private final Map<Long, ShapeClass> classesByKey = new HashMap<>();
+    private final List<ShapeClass> classes = new ArrayList<>();
+    private long nextSeq = 0;
+    private int size = 0;
+
+    private static class Entry implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final Job job;
+        final long seq;
+
+        Entry(Job job, long seq) {
+            this.job = job;
+            this.seq = seq;
+        }
+    }
+
+    private static class ShapeClass implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        // Smallest task shape that can land in this class
+        final double minCpus;
+        final double minMem;
+        final ArrayDeque<Entry> jobs = new ArrayDeque<>();
+
+        ShapeClass(double minCpus, double minMem) {
+            this.minCpus = minCpus;
+            this.minMem = minMem;
+        }
+    }
+
+    /**
+     * @param cpuUnit    Cpus per task of the smallest shape class boundary
+     * @param memUnit    Mem per task of the smallest shape class boundary
+     * @param agingBound Seconds the oldest job may wait before it blocks younger
+     *                   jobs from being matched ahead of it
+     */
+    public ShapeBucketedQueue(double cpuUnit, double memUnit, double agingBound) {
+        if (cpuUnit <= 0.0 || memUnit <= 0.0) {
+            throw new IllegalArgumentException("Shape class units must be positive.");
+        }
+        this.cpuUnit = cpuUnit;
+        this.memUnit = memUnit;
+        this.agingBound = agingBound;
+    }
+
+    public int getNumShapeClasses() {
+        return classes.size();
+    }
+
+    private ShapeClass shapeClassOf(Job job) {
+        int cpuClass = Math.getExponent(job.getCpusPerTask() / cpuUnit);
+        int memClass = Math.getExponent(job.getMemPerTask() / memUnit);
+        long key = ((long) cpuClass << 32) | (memClass & 0xffffffffL);
+        ShapeClass shapeClass = classesByKey.get(key);
+        if (shapeClass == null) {
+            shapeClass = new ShapeClass(Math.scalb(cpuUnit, cpuClass), Math.scalb(memUnit, memClass));
+            classesByKey.put(key, shapeClass);
+            classes.add(shapeClass);
+        }
+        return shapeClass;
+    }
+
+    @Override
+    public boolean offer(Job job) {
+        shapeClassOf(job).jobs.add(new Entry(job, nextSeq++));
+        size++;
+        return true;
+    }
+
+    private ShapeClass oldestClass() {
+        ShapeClass oldest = null;
+        for (ShapeClass shapeClass : classes) {
+            Entry head = shapeClass.jobs.peek();
+            if (head != null && (oldest == null || head.seq < oldest.jobs.peek().seq)) {
+                oldest = shapeClass;
+            }
+        }
+        return oldest;
+    }
+
+    @Override
+    public Job poll() {
+        ShapeClass oldest = oldestClass();
+        if (oldest == null) {
+            return null;
+        }
+        size--;
+        return oldest.jobs.poll().job;
+    }
+
+    /**
+     * In global FIFO order, like poll. Jobs of other workloads ahead of the
+     * batch's are taken off and put back at the front of their classes.
+     */
+    @Override
+    public List<Job> pollBatch(int maxJobs) {
+        List<Job> batch = new ArrayList<>(maxJobs);
+        ShapeClass oldest = oldestClass();
+        if (oldest == null) {
+            return batch;
+        }
+        String workloadName = oldest.jobs.peek().job.getWorkloadName();
+        List<Entry> passedOver = new ArrayList<>();
+        List<ShapeClass> passedOverFrom = new ArrayList<>();
+        while (oldest != null && batch.size() < maxJobs) {
+            Entry entry = oldest.jobs.poll();
+            if (entry.job.getWorkloadName().equals(workloadName)) {
+                size--;
+                batch.add(entry.job);
+            } else {
+                passedOver.add(entry);
+                passedOverFrom.add(oldest);
+            }
+            oldest = oldestClass();
+        }
+        for (int i = passedOver.size() - 1; i >= 0; i--) {
+            passedOverFrom.get(i).jobs.addFirst(passedOver.get(i));
+        }
+        return batch;
+    }
+
+    @Override
+    public Job peek() {
+        ShapeClass oldest = oldestClass();
+        return oldest == null ? null : oldest.jobs.peek().job;
+    }
+
+    /**
+     * The job pollFitting would hand out for the same arguments, left in
+     * the queue, or null if there is none.
+     */
+    public Job peekFitting(double cpusAvail, double memAvail, double currentTime) {
+        ShapeClass best = fittingClass(cpusAvail, memAvail, currentTime);
+        return best == null ? null : best.jobs.peek().job;
+    }
+
+    /**
+     * Remove and return the oldest job with a task that fits in the given
+     * resources, or null if there is none (or an overdue job doesn't fit).
+     * A rigid job only fits if its whole gang does.
+     */
+    public Job pollFitting(double cpusAvail, double memAvail, double currentTime) {
+        ShapeClass best = fittingClass(cpusAvail, memAvail, currentTime);
+        if (best == null) {
+            return null;
+        }
+        size--;
+        return best.jobs.poll().job;
+    }
+
+    private ShapeClass fittingClass(double cpusAvail, double memAvail, double currentTime) {
+        ShapeClass best = null;
+        ShapeClass oldest = null;
+        for (ShapeClass shapeClass : classes) {
+            Entry head = shapeClass.jobs.peek();
+            if (head == null) {
+                continue;
+            }
+            if (oldest == null || head.seq < oldest.jobs.peek().seq) {
+                oldest = shapeClass;
+            }
+            if (shapeClass.minCpus > cpusAvail || shapeClass.minMem > memAvail) {
+                // Nothing in this class can fit
+                continue;
+            }
+            if (fits(head.job, cpusAvail, memAvail) &&
+                (best == null || head.seq < best.jobs.peek().seq)) {
+                best = shapeClass;
+            }
+        }
+        if (oldest == null) {
+            return null;
+        }
+        Job oldestJob = oldest.jobs.peek().job;
+        if (best != oldest && currentTime - oldestJob.getLastEnqueued() > agingBound) {
+            // The oldest job has waited too long to be overtaken again
+            best = fits(oldestJob, cpusAvail, memAvail) ? oldest : null;
+        }
+        return best;
+    }
+
+    private static boolean fits(Job job, double cpusAvail, double memAvail) {
+        int numTasks = job.isRigid() ? job.getUnscheduledTasks() : 1;
+        return numTasks * job.getCpusPerTask() <= cpusAvail &&
+               numTasks * job.getMemPerTask() <= memAvail;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        for (ShapeClass shapeClass : classes) {
+            Iterator<Entry> it = shapeClass.jobs.iterator();
+            while (it.hasNext()) {
+                if (it.next().job.equals(o)) {
+                    it.remove();
+                    size--;
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void clear() {
+        for (ShapeClass shapeClass : classes) {
+            shapeClass.jobs.clear();
+        }
+        size = 0;
+    }
+
+    /**
+     * Read-only iteration, class by class rather than in global FIFO order.
+     */
+    @Override
+    public Iterator<Job> iterator() {
+        List<Job> jobs = new ArrayList<>(size);
+        for (ShapeClass shapeClass : classes) {
+            for (Entry entry : shapeClass.jobs) {
+                jobs.add(entry.job);
+            }
+        }
+        return Collections.unmodifiableList(jobs).iterator();
+    }
+}
@@ -0,0 +1,33 @@
+package scheduler;
+
+import simulator.core.Job;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Shortest-job-first on the estimated think time of the job's unscheduled tasks,
+ * using the same think time model as the scheduler. Small jobs no longer wait
+ * behind a huge job's think time; with a positive agingRate (seconds of think
+ * time forgiven per second waited) huge jobs still get their turn.
+ */
+public class ShortestThinkTimeFirstQueue extends HeapJobQueue {
+    private static final long serialVersionUID = 1L;
+
+    private final Map<String, Double> constantThinkTimes;
+    private final Map<String, Double> perTaskThinkTimes;
+
+    public ShortestThinkTimeFirstQueue(Map<String, Double> constantThinkTimes,
+                                       Map<String, Double> perTaskThinkTimes,
+                                       double agingRate) {
+        super(agingRate);
+        this.constantThinkTimes = new HashMap<>(constantThinkTimes);
+        this.perTaskThinkTimes = new HashMap<>(perTaskThinkTimes);
+    }
+
+    @Override
+    protected double key(Job job) {
+        return constantThinkTimes.getOrDefault(job.getWorkloadName(), 0.0) +
+               perTaskThinkTimes.getOrDefault(job.getWorkloadName(), 0.0) * job.getUnscheduledTasks();
+    }
+}
@@ -0,0 +1,52 @@
+package scheduler;
+
+import simulator.core.CellState;
+import simulator.core.ClaimDelta;
+import simulator.core.Job;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Worst-fit (spread): every task goes on the fitting machine with the most free
+ * resources left, so a job's tasks are spread thinly across the cell. Keeps the
+ * fitting machines in a max-heap on free fraction: O(m + t log m) per job.
+ */
+public class WorstFitPlacement implements PlacementPolicy {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public List<ClaimDelta> placeTasks(BaseScheduler scheduler, Job job, int numTasks,
+                                       CellState cellState) {
+        int numCandidates = PlacementPolicy.numCandidates(scheduler, cellState);
+        int[] ranges = cellState.candidateRanges(job, numCandidates);
+        double now = scheduler.getSimulator().getCurrentTime();
+        double[] freeFractions = new double[numCandidates];
+        PriorityQueue<Integer> emptiest = new PriorityQueue<>(Math.max(1, numCandidates),
+            (a, b) -> Double.compare(freeFractions[b], freeFractions[a]));
+        long failed = 0;
+        for (int r = 0; r < ranges.length; r += 2) {
+            for (int machineID = ranges[r]; machineID < ranges[r + 1]; machineID++) {
+                if (PlacementPolicy.fits(job, machineID, cellState, now)) {
+                    freeFractions[machineID] = PlacementPolicy.freeFraction(machineID, cellState);
+                    emptiest.add(machineID);
+                } else {
+                    failed++;
+                }
+            }
+        }
+
+        List<ClaimDelta> claimDeltas = new ArrayList<>();
+        while (claimDeltas.size() < numTasks && !emptiest.isEmpty()) {
+            int machineID = emptiest.poll();
+            claimDeltas.add(scheduler.claimTask(job, machineID, cellState));
+            if (PlacementPolicy.fits(job, machineID, cellState, now)) {
+                freeFractions[machineID] = PlacementPolicy.freeFraction(machineID, cellState);
+                emptiest.add(machineID);
+            }
+        }
+        scheduler.recordMachinesExamined(PlacementPolicy.numMachines(ranges), failed);
+        return claimDeltas;
+    }
+}
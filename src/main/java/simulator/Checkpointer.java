@@ -0,0 +1,203 @@
+package simulator;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Writes checkpoints of a running simulator to a file, from which restore
+ * rebuilds it to carry on with resume. A checkpoint holds everything the
+ * simulator reaches: the clock and the agenda of events (see Event), the
+ * cell state, the schedulers with their queues, policies and counters, and a
+ * Mesos allocator with its outstanding offers.
+ * Resumed, a run goes on exactly as it would have without stopping, as long
+ * as its random numbers come from seeded Randoms it holds (see e.g.
+ * RandomFirstFitPlacement); objects outside it, like the caller's own
+ * references to the schedulers, aren't in it and must be found again from
+ * the restored simulator.
+ *
+ * Set on a simulator with setCheckpointer, it is asked after every event
+ * during run and resume, and checkpoints whenever the simulated or the wall
+ * clock has passed the next multiple of its interval. The run only stops for
+ * Java serialization of the simulator into memory; a background thread
+ * compresses that into a temporary file and moves it over the checkpoint,
+ * so a crash mid-write leaves the previous one intact. At most one
+ * checkpoint is being written at a time.
+ *
+ * Events, listeners and everything else in a checkpoint are named classes
+ * with a serialVersionUID, so a later build of the simulator can restore it
+ * as long as those classes keep their fields; a change that doesn't should
+ * bump the class's serialVersionUID.
+ */
+public class Checkpointer {
+    private final String path;
+    private final Double simulatedInterval;
+    private final Double wallClockInterval;
+
+    private double nextSimulatedTime = Double.NaN;
+    private long nextWallNanos;
+    private Thread writer;
+
+    private long numCheckpoints = 0;
+    private long totalPauseNanos = 0;
+    private long maxPauseNanos = 0;
+    private int lastBytes = 0;
+    // Written by the writer threads
+    private volatile long lastFileBytes = 0;
+    private volatile long totalWriteNanos = 0;
+    private volatile long numFailed = 0;
+
+    /**
+     * @param path              File the checkpoints are written to, each replacing the last
+     * @param simulatedInterval Optional simulated seconds between checkpoints
+     * @param wallClockInterval Optional wall clock seconds between checkpoints
+     */
+    public Checkpointer(String path, Double simulatedInterval, Double wallClockInterval) {
+        if (simulatedInterval != null && simulatedInterval <= 0.0) {
+            throw new IllegalArgumentException(
+                "simulatedInterval must be positive, but was " + simulatedInterval);
+        }
+        if (wallClockInterval != null && wallClockInterval <= 0.0) {
+            throw new IllegalArgumentException(
+                "wallClockInterval must be positive, but was " + wallClockInterval);
+        }
+        this.path = path;
+        this.simulatedInterval = simulatedInterval;
+        this.wallClockInterval = wallClockInterval;
+        this.nextWallNanos = wallClockInterval == null
+            ? Long.MAX_VALUE : System.nanoTime() + (long) (wallClockInterval * 1e9);
+    }
+
+    public String getPath() { return path; }
+    public long getNumCheckpoints() { return numCheckpoints; }
+
+    /**
+     * Called by the simulator after every event; checkpoints if an interval has passed.
+     */
+    void afterEvent(Simulator simulator) {
+        if (simulatedInterval != null) {
+            double now = simulator.getCurrentTime();
+            if (Double.isNaN(nextSimulatedTime)) {
+                // Multiples of the interval, so a restored run checkpoints
+                // at the same times as the one it came from
+                nextSimulatedTime = nextMultiple(now);
+            } else if (now >= nextSimulatedTime) {
+                nextSimulatedTime = nextMultiple(now);
+                checkpoint(simulator);
+                return;
+            }
+        }
+        if (wallClockInterval != null && System.nanoTime() >= nextWallNanos) {
+            checkpoint(simulator);
+        }
+    }
+
+    private double nextMultiple(double time) {
+        return (Math.floor(time / simulatedInterval) + 1.0) * simulatedInterval;
+    }
+
+    /**
+     * Checkpoint the simulator now; only between events. Returns once it is
+     * serialized, before it is written.
+     */
+    public void checkpoint(Simulator simulator) {
+        awaitWritten();
+        long start = System.nanoTime();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(lastBytes + lastBytes / 8 + 4096);
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(simulator);
+        } catch (IOException e) {
+            // Only NotSerializableException and friends: nothing touches a file here
+            throw new IllegalStateException("The simulator could not be serialized for a checkpoint.", e);
+        }
+        long end = System.nanoTime();
+        numCheckpoints++;
+        totalPauseNanos += end - start;
+        maxPauseNanos = Math.max(maxPauseNanos, end - start);
+        lastBytes = bytes.size();
+        if (wallClockInterval != null) {
+            nextWallNanos = end + (long) (wallClockInterval * 1e9);
+        }
+        double time = simulator.getCurrentTime();
+        writer = new Thread(() -> write(bytes, time), "checkpointer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private void write(ByteArrayOutputStream bytes, double time) {
+        long start = System.nanoTime();
+        Path target = Paths.get(path);
+        Path temp = Paths.get(path + ".tmp");
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            try (OutputStream out = new DeflaterOutputStream(Files.newOutputStream(temp), deflater, 1 << 16)) {
+                bytes.writeTo(out);
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            lastFileBytes = Files.size(target);
+        } catch (IOException e) {
+            numFailed++;
+            System.out.println(String.format("Checkpoint at time %f to %s failed: %s", time, path, e));
+        } finally {
+            deflater.end();
+            totalWriteNanos += System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Wait until the last checkpoint taken is on disk (or failed to get there).
+     */
+    public void awaitWritten() {
+        Thread pending = writer;
+        if (pending == null) {
+            return;
+        }
+        try {
+            pending.join();
+            writer = null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Rebuild a simulator from a checkpoint; carry on with resume, after
+     * setting a checkpointer again if wanted. A checkpoint holding classes
+     * this build lacks, or has changed incompatibly, throws InvalidClassException.
+     */
+    @SuppressWarnings("unchecked")
+    public static <S extends Simulator> S restore(String path) throws IOException {
+        try (ObjectInputStream in = new ObjectInputStream(new InflaterInputStream(
+                 new BufferedInputStream(Files.newInputStream(Paths.get(path)), 1 << 16)))) {
+            return (S) in.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new InvalidClassException("Checkpoint " + path + " holds a class this build lacks: " +
+                                            e.getMessage());
+        }
+    }
+
+    /**
+     * Totals so far, with snake_case keys like SteadyStateDetector.getSummary.
+     * Pauses are the time runs stood still for serialization, bytes are the
+     * last checkpoint's, serialized and on disk.
+     */
+    public Map<String, Double> getSummary() {
+        Map<String, Double> summary = new LinkedHashMap<>();
+        summary.put("num_checkpoints", (double) numCheckpoints);
+        summary.put("num_failed_checkpoints", (double) numFailed);
+        summary.put("total_pause_seconds", totalPauseNanos / 1e9);
+        summary.put("mean_pause_seconds", numCheckpoints > 0 ? totalPauseNanos / 1e9 / numCheckpoints : 0.0);
+        summary.put("max_pause_seconds", maxPauseNanos / 1e9);
+        summary.put("total_write_seconds", totalWriteNanos / 1e9);
+        summary.put("last_serialized_bytes", (double) lastBytes);
+        summary.put("last_file_bytes", (double) lastFileBytes);
+        return summary;
+    }
+}
@@ -7,18 +7,25 @@ import simulator.core.Job;
 import simulator.core.ClaimDelta;
 import simulator.core.Workload;
 
+import java.io.Serializable;
 import java.util.*;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
 
 /**
  * A simulator to compare different cluster scheduling architectures.
  * Manages schedulers, workloads, and the cell state.
  */
 public class ClusterSimulator extends Simulator {
+    private static final long serialVersionUID = 1L;
+    
     protected final CellState cellState;
     protected final Map<String, IScheduler> schedulers;
     protected final Map<String, List<String>> workloadToSchedulerMap;
     protected final List<Workload> workloads;
     private final java.util.concurrent.atomic.AtomicInteger roundRobinCounter = new java.util.concurrent.atomic.AtomicInteger(0);
+    // Notified with every job a scheduler gives up on
+    private final List<JobAbandonedListener> jobAbandonedListeners = new ArrayList<>();
     
     public ClusterSimulator(CellState cellState,
                            Map<String, IScheduler> schedulers,
@@ -73,6 +80,10 @@ public class ClusterSimulator extends Simulator {
         return cellState;
     }
     
+    public Map<String, IScheduler> getSchedulers() {
+        return schedulers;
+    }
+    
     public void log(String message) {
         super.log(message);
     }
@@ -88,14 +99,7 @@ public class ClusterSimulator extends Simulator {
                              " jobs from workload " + workload.getName() + ".");
             
             for (Job job : workload.getJobs()) {
-                if (job.getCpusPerTask() > cellState.getCpusPerMachine() ||
-                    job.getMemPerTask() > cellState.getMemPerMachine()) {
-                    System.out.println(String.format(
-                        "IGNORING A JOB REQUIRING %f CPU & %f MEM PER TASK " +
-                        "BECAUSE machines only have %f cpu / %f mem.",
-                        job.getCpusPerTask(), job.getMemPerTask(),
-                        cellState.getCpusPerMachine(), cellState.getMemPerMachine()));
-                } else {
+                if (admits(job)) {
                     // Create a simple prefill scheduler
                     BaseScheduler prefillScheduler = new BaseScheduler("prefillScheduler",
                         new HashMap<>(), new HashMap<>(), 0) {
@@ -138,6 +142,8 @@ public class ClusterSimulator extends Simulator {
                         job.getWorkloadName() + ") that has not been mapped to any " +
                         "registered schedulers. Please update a mapping for this scheduler.");
                     numSkipped++;
+                } else if (!admits(job)) {
+                    numSkipped++;
                 } else {
                     // Validate job fits in cluster
                     if (job.getCpusPerTask() * job.getNumTasks() > 
@@ -157,7 +163,7 @@ public class ClusterSimulator extends Simulator {
                     // Schedule the job to be submitted at its submission time
                     double delay = job.getSubmitted() - currentTime;
                     if (delay < 0) delay = 0;
-                    afterDelay(delay, () -> scheduler.addJob(job));
+                    afterDelay(delay, new JobArrival(scheduler, job));
                     numLoaded++;
                 }
             }
@@ -167,6 +173,84 @@ public class ClusterSimulator extends Simulator {
         }
     }
     
+    /**
+     * Submit a job after the simulator was constructed, e.g. from a live stream.
+     * It reaches its scheduler at its submission time, or right away if that
+     * has passed. Jobs of an unmapped workload, with tasks bigger than a
+     * machine, or whose attribute constraints no big enough machine meets,
+     * are turned away.
+     * @return Whether the job was accepted
+     */
+    public boolean submitJob(Job job) {
+        IScheduler scheduler = getSchedulerForWorkloadName(job.getWorkloadName());
+        if (scheduler == null || !admits(job)) {
+            return false;
+        }
+        double delay = Math.max(0.0, job.getSubmitted() - currentTime);
+        afterDelay(delay, new JobArrival(scheduler, job));
+        return true;
+    }
+    
+    /**
+     * Whether the job can ever run in this cell: some machine meeting its
+     * attribute constraints could hold one of its tasks when empty. Every job
+     * is checked here once, as it is prefilled, loaded or submitted, so
+     * schedulers never see one that can't be placed.
+     */
+    private boolean admits(Job job) {
+        if (cellState.hasEligibleMachine(job)) {
+            return true;
+        }
+        System.out.println(String.format(
+            "Rejecting job %d (%f cpu, %f mem per task, constraints %s): no machine " +
+            "of the cell meeting its constraints could hold one of its tasks.",
+            job.getId(), job.getCpusPerTask(), job.getMemPerTask(), job.getConstraints()));
+        return false;
+    }
+    
+    /** A job reaching its scheduler. */
+    private static final class JobArrival implements Event {
+        private static final long serialVersionUID = 1L;
+        
+        private final IScheduler scheduler;
+        private final Job job;
+        
+        JobArrival(IScheduler scheduler, Job job) {
+            this.scheduler = scheduler;
+            this.job = job;
+        }
+        
+        @Override
+        public void run() {
+            scheduler.addJob(job);
+        }
+    }
+    
+    /**
+     * A callback for addJobAbandonedListener. Serializable, since the
+     * simulator is checkpointed with its listeners.
+     */
+    public interface JobAbandonedListener extends Consumer<Job>, Serializable {
+    }
+    
+    /**
+     * Call listener with every job a scheduler of this simulator gives up on
+     * with tasks left, e.g. to hand them to another cell (see Federation).
+     * The job's unscheduled tasks are the ones that were never placed.
+     */
+    public void addJobAbandonedListener(JobAbandonedListener listener) {
+        jobAbandonedListeners.add(listener);
+    }
+    
+    /**
+     * Called by schedulers as they abandon a job.
+     */
+    public void jobAbandoned(Job job) {
+        for (int i = 0; i < jobAbandonedListeners.size(); i++) {
+            jobAbandonedListeners.get(i).accept(job);
+        }
+    }
+    
     /**
      * Get the scheduler for a workload name using round-robin if multiple schedulers.
      */
@@ -186,7 +270,7 @@ public class ClusterSimulator extends Simulator {
     }
     
     @Override
-    public boolean run(Double runTime, Double wallClockTimeout) {
+    public boolean run(Double runTime, Double wallClockTimeout, BooleanSupplier stopCondition) {
         if (currentTime != 0.0) {
             throw new IllegalStateException("currentTime must be 0 at simulator run time.");
         }
@@ -200,7 +284,7 @@ public class ClusterSimulator extends Simulator {
             }
         }
         
-        return super.run(runTime, wallClockTimeout);
+        return super.run(runTime, wallClockTimeout, stopCondition);
     }
 }
 
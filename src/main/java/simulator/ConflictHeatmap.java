@@ -0,0 +1,110 @@
+package simulator;
+
+import java.io.PrintWriter;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Records where transaction conflicts happen over simulated time. Every
+ * interval seconds it takes the per-machine conflict counts accumulated in the
+ * common cell state since the previous row, giving a (time x machine) matrix
+ * that shows whether conflicts cluster on a few hot machines.
+ */
+public class ConflictHeatmap implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final ClusterSimulator simulator;
+    private final double interval;
+    private final long[] lastCounts;
+    private final List<Double> rowTimes = new ArrayList<>();
+    private final List<long[]> rows = new ArrayList<>();
+
+    public ConflictHeatmap(ClusterSimulator simulator, double interval) {
+        if (interval <= 0.0) {
+            throw new IllegalArgumentException("interval must be positive, but was " + interval);
+        }
+        this.simulator = simulator;
+        this.interval = interval;
+        this.lastCounts = new long[simulator.getCellState().getNumMachines()];
+        simulator.afterDelay(interval, new CloseRow(this));
+    }
+
+    private void closeRow() {
+        long[] counts = simulator.getCellState().getConflictsPerMachine();
+        long[] row = new long[counts.length];
+        for (int i = 0; i < counts.length; i++) {
+            row[i] = counts[i] - lastCounts[i];
+            lastCounts[i] = counts[i];
+        }
+        rowTimes.add(simulator.getCurrentTime());
+        rows.add(row);
+        // Only keep sampling while there is other work left
+        if (simulator.getAgendaSize() > 0) {
+            simulator.afterDelay(interval, new CloseRow(this));
+        }
+    }
+
+    public int getNumRows() { return rows.size(); }
+    public double getRowTime(int row) { return rowTimes.get(row); }
+    public long[] getRow(int row) { return rows.get(row); }
+
+    /**
+     * Fraction of all recorded conflicts that hit the busiest topFraction of
+     * machines, e.g. 0.1 for the hottest 10%.
+     */
+    public double getTopMachineShare(double topFraction) {
+        long[] totals = simulator.getCellState().getConflictsPerMachine().clone();
+        Arrays.sort(totals);
+        long all = 0;
+        for (long total : totals) {
+            all += total;
+        }
+        if (all == 0) {
+            return 0.0;
+        }
+        int top = Math.max(1, (int) Math.ceil(topFraction * totals.length));
+        long topSum = 0;
+        for (int i = totals.length - top; i < totals.length; i++) {
+            topSum += totals[i];
+        }
+        return (double) topSum / all;
+    }
+
+    /**
+     * Write the heatmap as CSV: one row per interval, a time column followed by
+     * the number of conflicts on each machine during that interval.
+     */
+    public void writeCsv(PrintWriter out) {
+        StringBuilder header = new StringBuilder("time");
+        for (int i = 0; i < lastCounts.length; i++) {
+            header.append(",machine_").append(i);
+        }
+        out.println(header);
+        for (int r = 0; r < rows.size(); r++) {
+            StringBuilder line = new StringBuilder(String.format("%.3f", rowTimes.get(r)));
+            for (long count : rows.get(r)) {
+                line.append(',').append(count);
+            }
+            out.println(line);
+        }
+        out.flush();
+    }
+
+    /** The end of a row's interval. */
+    private static final class CloseRow implements Event {
+        private static final long serialVersionUID = 1L;
+
+        private final ConflictHeatmap heatmap;
+
+        CloseRow(ConflictHeatmap heatmap) {
+            this.heatmap = heatmap;
+        }
+
+        @Override
+        public void run() {
+            heatmap.closeRow();
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package simulator;
+
+import java.io.Serializable;
+
+/**
+ * An action on the simulator's agenda. Serializable, so a checkpoint can
+ * hold the events still to run (see Checkpointer). Events are small named
+ * classes, like CellState's TaskEnd, rather than lambdas: a serialized lambda
+ * refers to a synthetic method of the code that made it, which any rebuild
+ * may rename, so its checkpoint would only restore in the same build.
+ */
+public interface Event extends Runnable, Serializable {
+}
@@ -0,0 +1,313 @@
+package simulator;
+
+import scheduler.BaseScheduler;
+import scheduler.IScheduler;
+import simulator.core.Job;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs several cells side by side, each a ClusterSimulator with its own cell
+ * state and schedulers, and moves jobs a cell can't take on to the others.
+ *
+ * Time advances in windows of windowLength simulated seconds. In a window,
+ * every cell runs its own events up to the window's end, without touching
+ * the others, on one of numThreads threads (the calling one and a pool), by
+ * default a thread per cell; then all cells wait for each other. Jobs a cell's schedulers gave
+ * up on in the window (see ClusterSimulator.addJobAbandonedListener) are
+ * handed to the RoutingPolicy, and reach the cell it picks at the start of
+ * the next window with the tasks that were never placed: crossing cells
+ * takes up to a window, as a round trip through a federation controller
+ * would. Cells only affect each other between windows, in cell order, so
+ * the number of threads doesn't change what happens, unless the cells' own
+ * schedulers draw unseeded random numbers.
+ *
+ * Cells are set up as usual, with their own workloads; jobs can also be given
+ * to a cell with submitJob, and are routed on at once if it turns them away.
+ * The cells must not be run by anything else.
+ */
+public class Federation {
+    private final List<ClusterSimulator> cells;
+    private final RoutingPolicy routingPolicy;
+    private final double windowLength;
+    private final int numThreads;
+    // Jobs each cell abandoned in the current window; only touched by the
+    // cell's thread in a window, and by run() between windows
+    private final List<Outbox> abandoned = new ArrayList<>();
+    // Cells each forwarded job has been in, by the job it was forwarded as
+    private final Map<Job, BitSet> tried = new IdentityHashMap<>();
+
+    private double currentTime = 0.0;
+    // End of the window being run, read by the cells' threads
+    private double windowEnd = 0.0;
+    private boolean started = false;
+
+    private long numWindows = 0;
+    private long numSubmitted = 0;
+    private long numRejected = 0;
+    private long numForwarded = 0;
+    private long numForwardedTasks = 0;
+    private long numDropped = 0;
+    // Per cell, each only written by the thread running the cell
+    private final long[] numEvents;
+    private final long[] busyNanos;
+    // Sum over windows of the slowest cell's time: the wall time the run
+    // would take with a core per cell and free synchronization
+    private long criticalPathNanos = 0;
+    private long wallNanos = 0;
+
+    /**
+     * @param windowLength Simulated seconds between synchronizations, and the
+     *                     longest a forwarded job waits to reach its new cell
+     * @param numThreads   Cells run at once; the number of cells gives each its own thread
+     */
+    public Federation(List<ClusterSimulator> cells, RoutingPolicy routingPolicy,
+                      double windowLength, int numThreads) {
+        if (cells.isEmpty()) {
+            throw new IllegalArgumentException("A federation needs at least one cell.");
+        }
+        if (windowLength <= 0.0) {
+            throw new IllegalArgumentException("windowLength must be positive, but was " + windowLength);
+        }
+        if (numThreads < 1) {
+            throw new IllegalArgumentException("numThreads must be at least 1, but was " + numThreads);
+        }
+        if (new HashSet<>(cells).size() != cells.size()) {
+            throw new IllegalArgumentException("A cell can only be in a federation once.");
+        }
+        this.cells = new ArrayList<>(cells);
+        this.routingPolicy = routingPolicy;
+        this.windowLength = windowLength;
+        this.numThreads = Math.min(numThreads, cells.size());
+        this.numEvents = new long[cells.size()];
+        this.busyNanos = new long[cells.size()];
+        for (ClusterSimulator cell : this.cells) {
+            Outbox outbox = new Outbox();
+            abandoned.add(outbox);
+            cell.addJobAbandonedListener(outbox);
+        }
+    }
+
+    public Federation(List<ClusterSimulator> cells, RoutingPolicy routingPolicy, double windowLength) {
+        this(cells, routingPolicy, windowLength, cells.size());
+    }
+
+    public List<ClusterSimulator> getCells() { return Collections.unmodifiableList(cells); }
+    public double getCurrentTime() { return currentTime; }
+    public int getNumThreads() { return numThreads; }
+    public long getNumForwarded() { return numForwarded; }
+    /** Jobs no cell was left to take. */
+    public long getNumDropped() { return numDropped; }
+
+    /**
+     * Submit a job to a cell, before the run or between windows; if the cell
+     * turns it away (see ClusterSimulator.submitJob), it is routed on at once.
+     * @return Whether some cell took it
+     */
+    public boolean submitJob(int cell, Job job) {
+        if (cells.get(cell).submitJob(job)) {
+            numSubmitted++;
+            return true;
+        }
+        numRejected++;
+        return route(job, cell, new BitSet());
+    }
+
+    /**
+     * Run window after window until no cell has anything left to do, or
+     * until runTime if given.
+     */
+    public void run(Double runTime) throws InterruptedException {
+        if (started) {
+            throw new IllegalStateException("A Federation can only be run once.");
+        }
+        started = true;
+        // The calling thread runs cells too, so one thread needs no pool and
+        // no hand-offs, which cost more than a short window's work
+        AtomicInteger numWorkers = new AtomicInteger();
+        ExecutorService pool = numThreads == 1 ? null : Executors.newFixedThreadPool(numThreads - 1, task -> {
+            Thread thread = new Thread(task, "federation-" + numWorkers.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        long[] windowNanos = new long[cells.size()];
+        AtomicInteger nextCell = new AtomicInteger();
+        Runnable runCells = () -> {
+            for (int cell = nextCell.getAndIncrement(); cell < cells.size(); cell = nextCell.getAndIncrement()) {
+                long start = System.nanoTime();
+                numEvents[cell] += cells.get(cell).advanceTo(windowEnd);
+                windowNanos[cell] = System.nanoTime() - start;
+                busyNanos[cell] += windowNanos[cell];
+            }
+        };
+        List<Future<?>> workers = new ArrayList<>();
+        System.out.println(String.format("*** Federation of %d cells started on %d threads. ***",
+                                         cells.size(), numThreads));
+        long wallStart = System.nanoTime();
+        try {
+            while (runTime == null || currentTime < runTime) {
+                double next = Double.POSITIVE_INFINITY;
+                for (ClusterSimulator cell : cells) {
+                    next = Math.min(next, cell.getNextEventTime());
+                }
+                if (Double.isInfinite(next)) {
+                    break;
+                }
+                // Skip stretches where no cell has anything to do
+                windowEnd = Math.max(currentTime, next) + windowLength;
+                if (runTime != null) {
+                    windowEnd = Math.min(windowEnd, runTime);
+                }
+                nextCell.set(0);
+                workers.clear();
+                for (int i = 1; i < numThreads; i++) {
+                    workers.add(pool.submit(runCells));
+                }
+                runCells.run();
+                for (Future<?> worker : workers) {
+                    finished(worker);
+                }
+                long slowest = 0;
+                for (long nanos : windowNanos) {
+                    slowest = Math.max(slowest, nanos);
+                }
+                criticalPathNanos += slowest;
+                numWindows++;
+                currentTime = windowEnd;
+                forwardAbandoned();
+            }
+        } finally {
+            if (pool != null) {
+                pool.shutdownNow();
+            }
+            wallNanos = System.nanoTime() - wallStart;
+        }
+        System.out.println(String.format(
+            "*** Federation finished, time = %f, after %.3f wall seconds. ***",
+            currentTime, wallNanos / 1e9));
+    }
+
+    private static void finished(Future<?> worker) throws InterruptedException {
+        try {
+            worker.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new IllegalStateException("A cell failed.", e.getCause());
+        }
+    }
+
+    /**
+     * Route on the unplaced tasks of every job abandoned in the window just
+     * run, cell by cell.
+     */
+    private void forwardAbandoned() {
+        for (int cell = 0; cell < cells.size(); cell++) {
+            List<Job> outbox = abandoned.get(cell).jobs;
+            for (Job job : outbox) {
+                BitSet jobTried = tried.remove(job);
+                route(job.remainder(currentTime), cell, jobTried != null ? jobTried : new BitSet());
+            }
+            outbox.clear();
+        }
+    }
+
+    /**
+     * Hand a job the cell from won't have to the cell the routing policy
+     * picks, and on from there while cells keep turning it away.
+     * @param jobTried Cells the job was in before from
+     * @return Whether some cell took it
+     */
+    private boolean route(Job job, int from, BitSet jobTried) {
+        jobTried.set(from);
+        while (true) {
+            int to = routingPolicy.route(job, from, cells, jobTried);
+            if (to < 0) {
+                numDropped++;
+                System.out.println(String.format(
+                    "Dropping job %d (%d tasks of %f cpu %f mem), which no cell is left to take.",
+                    job.getId(), job.getNumTasks(), job.getCpusPerTask(), job.getMemPerTask()));
+                return false;
+            }
+            if (to >= cells.size() || jobTried.get(to)) {
+                throw new IllegalStateException(String.format(
+                    "The routing policy sent job %d to cell %d, which it was already in or doesn't exist.",
+                    job.getId(), to));
+            }
+            jobTried.set(to);
+            if (cells.get(to).submitJob(job)) {
+                numForwarded++;
+                numForwardedTasks += job.getNumTasks();
+                tried.put(job, jobTried);
+                return true;
+            }
+            numRejected++;
+        }
+    }
+
+    /**
+     * Totals for the whole run, with snake_case keys like SteadyStateDetector.getSummary.
+     * max_speedup is what the run could gain over one thread with a core per
+     * cell, given how unevenly the windows' work falls on the cells.
+     */
+    public Map<String, Double> getSummary() {
+        Map<String, Double> summary = new LinkedHashMap<>();
+        long events = 0;
+        long busy = 0;
+        for (int cell = 0; cell < cells.size(); cell++) {
+            events += numEvents[cell];
+            busy += busyNanos[cell];
+        }
+        double successful = 0;
+        double timedOut = 0;
+        for (ClusterSimulator cell : cells) {
+            for (IScheduler scheduler : cell.getSchedulers().values()) {
+                if (scheduler instanceof BaseScheduler) {
+                    successful += ((BaseScheduler) scheduler).getNumSuccessfulTransactions();
+                    timedOut += ((BaseScheduler) scheduler).getNumJobsTimedOutScheduling();
+                }
+            }
+        }
+        double wallSeconds = wallNanos / 1e9;
+        summary.put("num_cells", (double) cells.size());
+        summary.put("num_threads", (double) numThreads);
+        summary.put("num_windows", (double) numWindows);
+        summary.put("sim_time", currentTime);
+        summary.put("num_events", (double) events);
+        summary.put("num_submitted", (double) numSubmitted);
+        summary.put("num_rejected", (double) numRejected);
+        summary.put("num_jobs_timed_out_scheduling", timedOut);
+        summary.put("num_forwarded", (double) numForwarded);
+        summary.put("num_forwarded_tasks", (double) numForwardedTasks);
+        summary.put("num_dropped", (double) numDropped);
+        summary.put("num_successful_transactions", successful);
+        summary.put("wall_seconds", wallSeconds);
+        summary.put("events_per_wall_second", wallSeconds > 0.0 ? events / wallSeconds : 0.0);
+        summary.put("busy_seconds", busy / 1e9);
+        summary.put("critical_path_seconds", criticalPathNanos / 1e9);
+        summary.put("max_speedup", criticalPathNanos > 0 ? (double) busy / criticalPathNanos : 0.0);
+        summary.put("parallel_efficiency", wallNanos > 0 ? busy / ((double) wallNanos * numThreads) : 0.0);
+        return summary;
+    }
+
+    /** Collects the jobs a cell abandons. */
+    private static final class Outbox implements ClusterSimulator.JobAbandonedListener {
+        private static final long serialVersionUID = 1L;
+
+        final List<Job> jobs = new ArrayList<>();
+
+        @Override
+        public void accept(Job job) {
+            jobs.add(job);
+        }
+    }
+}
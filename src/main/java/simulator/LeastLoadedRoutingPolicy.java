@@ -0,0 +1,51 @@
+package simulator;
+
+import scheduler.IScheduler;
+import simulator.core.CellState;
+import simulator.core.Job;
+
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Sends a job to the least loaded cell among those it hasn't been in yet and
+ * that have a machine able to hold its tasks: the one with the smallest
+ * share of its cpus or mem, whichever is higher, in use or locked. Ties go
+ * to the cell with the fewest queued jobs, then to the lowest index.
+ */
+public class LeastLoadedRoutingPolicy implements RoutingPolicy {
+    @Override
+    public int route(Job job, int from, List<ClusterSimulator> cells, BitSet tried) {
+        int best = -1;
+        double bestLoad = Double.POSITIVE_INFINITY;
+        int bestQueued = Integer.MAX_VALUE;
+        for (int cell = 0; cell < cells.size(); cell++) {
+            ClusterSimulator simulator = cells.get(cell);
+            if (tried.get(cell) || !simulator.getCellState().hasEligibleMachine(job)) {
+                continue;
+            }
+            double load = load(simulator.getCellState());
+            int queued = queuedJobs(simulator);
+            if (load < bestLoad || (load == bestLoad && queued < bestQueued)) {
+                best = cell;
+                bestLoad = load;
+                bestQueued = queued;
+            }
+        }
+        return best;
+    }
+
+    private static double load(CellState cellState) {
+        return Math.max(
+            (cellState.getTotalOccupiedCpus() + cellState.getTotalLockedCpus()) / cellState.getTotalCpus(),
+            (cellState.getTotalOccupiedMem() + cellState.getTotalLockedMem()) / cellState.getTotalMem());
+    }
+
+    private static int queuedJobs(ClusterSimulator simulator) {
+        int queued = 0;
+        for (IScheduler scheduler : simulator.getSchedulers().values()) {
+            queued += scheduler.getJobQueueSize();
+        }
+        return queued;
+    }
+}
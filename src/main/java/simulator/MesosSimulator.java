@@ -13,6 +13,8 @@ import java.util.*;
  * Manages Mesos schedulers and the Mesos allocator.
  */
 public class MesosSimulator extends ClusterSimulator {
+    private static final long serialVersionUID = 1L;
+    
     private final MesosAllocator allocator;
     
     public MesosSimulator(CellState cellState,
@@ -0,0 +1,24 @@
+package simulator;
+
+import simulator.core.Job;
+
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Sends a job around the cells in a ring: to the next cell after the one it
+ * leaves that it hasn't been in yet and that has a machine able to hold its
+ * tasks. Ignores how busy the cells are.
+ */
+public class NextCellRoutingPolicy implements RoutingPolicy {
+    @Override
+    public int route(Job job, int from, List<ClusterSimulator> cells, BitSet tried) {
+        for (int i = 1; i < cells.size(); i++) {
+            int cell = (from + i) % cells.size();
+            if (!tried.get(cell) && cells.get(cell).getCellState().hasEligibleMachine(job)) {
+                return cell;
+            }
+        }
+        return -1;
+    }
+}
@@ -12,6 +12,7 @@ import java.util.*;
  * Manages Omega schedulers that use optimistic concurrency control.
  */
 public class OmegaSimulator extends ClusterSimulator {
+    private static final long serialVersionUID = 1L;
     
     public OmegaSimulator(CellState cellState,
                          Map<String, OmegaScheduler> schedulers,
@@ -0,0 +1,404 @@
+package simulator;
+
+import scheduler.BaseScheduler;
+import scheduler.IScheduler;
+import simulator.core.CellState;
+import simulator.core.Job;
+import simulator.core.PlacementConstraint;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives a ClusterSimulator as a "digital twin" of a live cluster: jobs keep
+ * arriving from line-delimited streams (stdin, files, local sockets) while
+ * the simulation runs, instead of all being loaded up front.
+ *
+ * Each source gets a reader thread that parses lines into a bounded buffer;
+ * when the simulation falls behind, the buffer fills up and the readers block,
+ * which pushes back on the writers through the pipe or socket. The simulation
+ * itself stays single-threaded: run() drains the buffer in batches, submits the
+ * jobs and advances the simulator either in step with wall-clock time
+ * (timeScale wall seconds per simulated second) or, with a timeScale of 0, as
+ * fast as possible, ordered by the submission times in the stream. Every
+ * metricsInterval simulated seconds it writes a CSV row of rolling metrics.
+ *
+ * One job per line:
+ * <pre>
+ *   id,submitted,numTasks,taskDuration,workload,cpusPerTask,memPerTask[,rigid[,priority[,constraints]]]
+ * </pre>
+ * An empty or "-" submitted time means "now". Constraints are a ';'-separated
+ * list as PlacementConstraint.parseList reads it, e.g. "zone=a;kernel&gt;=5". Blank lines and lines starting
+ * with '#' are ignored; malformed lines are counted and skipped.
+ */
+public class OnlineSimulation {
+    private static final int MAX_BATCH = 4096;
+    private static final long IDLE_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final ClusterSimulator simulator;
+    private final ArrayBlockingQueue<Record> buffer;
+    private final double timeScale;
+    private final double metricsInterval;
+    private final PrintWriter metricsOut;
+    private final List<BaseScheduler> schedulers = new ArrayList<>();
+
+    // Updated by the reader threads
+    private final AtomicInteger numOpenSources = new AtomicInteger();
+    private final AtomicLong numIngested = new AtomicLong();
+    private final AtomicLong numMalformed = new AtomicLong();
+    private final AtomicLong numBlockedPuts = new AtomicLong();
+    private volatile ServerSocket serverSocket = null;
+
+    // Only touched by the thread in run()
+    private long numSubmitted = 0;
+    private long numRejected = 0;
+    private long wallStartNanos;
+    private double simStartTime;
+    private double nextMetricsTime;
+    private long lastMetricsNanos;
+    private long lastMetricsIngested = 0;
+    private boolean started = false;
+
+    /**
+     * A parsed line, turned into a Job by the simulation thread once it knows
+     * what "now" is.
+     */
+    private static class Record {
+        final long id;
+        final double submitted;
+        final int numTasks;
+        final double taskDuration;
+        final String workloadName;
+        final double cpusPerTask;
+        final double memPerTask;
+        final boolean rigid;
+        final int priority;
+        final List<PlacementConstraint> constraints;
+
+        Record(long id, double submitted, int numTasks, double taskDuration, String workloadName,
+               double cpusPerTask, double memPerTask, boolean rigid, int priority,
+               List<PlacementConstraint> constraints) {
+            this.id = id;
+            this.submitted = submitted;
+            this.numTasks = numTasks;
+            this.taskDuration = taskDuration;
+            this.workloadName = workloadName;
+            this.cpusPerTask = cpusPerTask;
+            this.memPerTask = memPerTask;
+            this.rigid = rigid;
+            this.priority = priority;
+            this.constraints = constraints;
+        }
+    }
+
+    /**
+     * @param bufferCapacity  Parsed jobs that may wait for the simulation before the readers block
+     * @param timeScale       Wall seconds per simulated second, or 0 to run as fast as possible
+     * @param metricsInterval Simulated seconds between rows of rolling metrics
+     * @param metricsOut      Where the metric rows go
+     */
+    public OnlineSimulation(ClusterSimulator simulator,
+                            int bufferCapacity,
+                            double timeScale,
+                            double metricsInterval,
+                            PrintWriter metricsOut) {
+        if (bufferCapacity <= 0) {
+            throw new IllegalArgumentException("bufferCapacity must be positive, but was " + bufferCapacity);
+        }
+        if (timeScale < 0.0) {
+            throw new IllegalArgumentException("timeScale must not be negative, but was " + timeScale);
+        }
+        if (metricsInterval <= 0.0) {
+            throw new IllegalArgumentException("metricsInterval must be positive, but was " + metricsInterval);
+        }
+        this.simulator = simulator;
+        this.buffer = new ArrayBlockingQueue<>(bufferCapacity);
+        this.timeScale = timeScale;
+        this.metricsInterval = metricsInterval;
+        this.metricsOut = metricsOut;
+        for (IScheduler scheduler : simulator.getSchedulers().values()) {
+            if (scheduler instanceof BaseScheduler) {
+                schedulers.add((BaseScheduler) scheduler);
+            }
+        }
+    }
+
+    public OnlineSimulation(ClusterSimulator simulator, double timeScale) {
+        this(simulator, 65536, timeScale, 10.0, new PrintWriter(System.out, true));
+    }
+
+    public long getNumIngested() { return numIngested.get(); }
+    public long getNumMalformed() { return numMalformed.get(); }
+    /** Parsed jobs whose reader had to wait for room in the buffer. */
+    public long getNumBlockedPuts() { return numBlockedPuts.get(); }
+    public long getNumSubmitted() { return numSubmitted; }
+    /** Jobs the simulator turned away, see ClusterSimulator.submitJob. */
+    public long getNumRejected() { return numRejected; }
+    public int getBufferDepth() { return buffer.size(); }
+
+    /**
+     * Read jobs from a stream on a new thread until it ends. The run goes on
+     * as long as any source is open.
+     */
+    public void addSource(InputStream in, String name) {
+        numOpenSources.incrementAndGet();
+        Thread reader = new Thread(() -> {
+            try (BufferedReader lines = new BufferedReader(
+                    new InputStreamReader(in, StandardCharsets.UTF_8), 1 << 16)) {
+                String line;
+                while ((line = lines.readLine()) != null) {
+                    Record record = parse(line);
+                    if (record == null) {
+                        continue;
+                    }
+                    if (!buffer.offer(record)) {
+                        numBlockedPuts.incrementAndGet();
+                        buffer.put(record);
+                    }
+                    numIngested.incrementAndGet();
+                }
+            } catch (IOException e) {
+                System.out.println(String.format("Source %s failed: %s", name, e.getMessage()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                numOpenSources.decrementAndGet();
+            }
+        }, "online-source-" + name);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Accept connections on a loopback port, each becoming a source. Counts as
+     * an open source itself until stop() is called.
+     * @return The bound port, useful when asking for port 0
+     */
+    public int listen(int port) throws IOException {
+        ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        serverSocket = server;
+        numOpenSources.incrementAndGet();
+        Thread acceptor = new Thread(() -> {
+            try {
+                while (true) {
+                    Socket socket = server.accept();
+                    addSource(socket.getInputStream(), socket.getRemoteSocketAddress().toString());
+                }
+            } catch (IOException e) {
+                // Closed by stop()
+            } finally {
+                numOpenSources.decrementAndGet();
+            }
+        }, "online-listener-" + server.getLocalPort());
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return server.getLocalPort();
+    }
+
+    /**
+     * Stop accepting connections. Sources already connected are read to the end.
+     */
+    public void stop() {
+        ServerSocket server = serverSocket;
+        if (server != null) {
+            try {
+                server.close();
+            } catch (IOException e) {
+                // Nothing left to clean up
+            }
+        }
+    }
+
+    private Record parse(String line) {
+        if (line.isEmpty() || line.charAt(0) == '#') {
+            return null;
+        }
+        String[] fields = line.split(",");
+        if (fields.length < 7 || fields.length > 10) {
+            numMalformed.incrementAndGet();
+            return null;
+        }
+        try {
+            String submitted = fields[1].trim();
+            Record record = new Record(
+                Long.parseLong(fields[0].trim()),
+                submitted.isEmpty() || submitted.equals("-") ? Double.NaN : Double.parseDouble(submitted),
+                Integer.parseInt(fields[2].trim()),
+                Double.parseDouble(fields[3].trim()),
+                fields[4].trim(),
+                Double.parseDouble(fields[5].trim()),
+                Double.parseDouble(fields[6].trim()),
+                fields.length > 7 && Boolean.parseBoolean(fields[7].trim()),
+                fields.length > 8 ? Integer.parseInt(fields[8].trim()) : 0,
+                fields.length > 9 ? PlacementConstraint.parseList(fields[9])
+                                  : Collections.<PlacementConstraint>emptyList());
+            if (record.numTasks <= 0 || record.taskDuration < 0.0 ||
+                record.cpusPerTask < 0.0 || record.memPerTask < 0.0) {
+                numMalformed.incrementAndGet();
+                return null;
+            }
+            return record;
+        } catch (IllegalArgumentException e) {
+            // Also covers NumberFormatException
+            numMalformed.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * Simulate until every source has ended and every job has run its course,
+     * writing rolling metrics along the way. Once the sources are done, the
+     * remaining events run as fast as possible even when paced.
+     */
+    public void run() throws InterruptedException {
+        if (started) {
+            throw new IllegalStateException("An OnlineSimulation can only be run once.");
+        }
+        started = true;
+        wallStartNanos = System.nanoTime();
+        lastMetricsNanos = wallStartNanos;
+        simStartTime = simulator.getCurrentTime();
+        nextMetricsTime = simStartTime + metricsInterval;
+        metricsOut.println("sim_time,wall_seconds,ingested,ingest_rate,submitted,rejected,malformed," +
+                           "buffer_depth,blocked_puts,queued_jobs,successful_transactions," +
+                           "failed_transactions,cpu_utilization,mem_utilization,agenda_size,lag");
+
+        List<Record> batch = new ArrayList<>(MAX_BATCH);
+        while (true) {
+            // Read before draining, so a source that ends right after is still drained next round
+            boolean sourcesOpen = numOpenSources.get() > 0;
+            buffer.drainTo(batch, MAX_BATCH);
+            if (batch.isEmpty()) {
+                if (!sourcesOpen) {
+                    break;
+                }
+                Record record = buffer.poll(idleWaitNanos(), TimeUnit.NANOSECONDS);
+                if (record != null) {
+                    batch.add(record);
+                } else if (timeScale > 0.0) {
+                    advance(wallClockSimTime());
+                }
+                continue;
+            }
+            if (timeScale > 0.0) {
+                advance(wallClockSimTime());
+            }
+            for (Record record : batch) {
+                if (timeScale == 0.0 && record.submitted > simulator.getCurrentTime()) {
+                    advance(record.submitted);
+                }
+                submit(record);
+            }
+            batch.clear();
+            // Let the jobs just submitted "now" reach their schedulers
+            advance(timeScale > 0.0 ? wallClockSimTime() : simulator.getCurrentTime());
+        }
+
+        while (simulator.getAgendaSize() > 0) {
+            advance(simulator.getNextEventTime());
+        }
+        emitMetrics();
+        metricsOut.flush();
+    }
+
+    private void submit(Record record) {
+        double submitted = Double.isNaN(record.submitted)
+                           ? simulator.getCurrentTime() : record.submitted;
+        Job job = new Job(record.id, submitted, record.numTasks, record.taskDuration,
+                          record.workloadName, record.cpusPerTask, record.memPerTask, record.rigid);
+        job.setPriority(record.priority);
+        job.setConstraints(record.constraints);
+        if (simulator.submitJob(job)) {
+            numSubmitted++;
+        } else {
+            numRejected++;
+            simulator.log(String.format("Rejected job %d of workload %s.", job.getId(), job.getWorkloadName()));
+        }
+    }
+
+    /**
+     * Run the simulation up to the given time, stopping at each metrics
+     * boundary on the way.
+     */
+    private void advance(double time) {
+        while (nextMetricsTime <= time) {
+            simulator.advanceTo(nextMetricsTime);
+            emitMetrics();
+            nextMetricsTime += metricsInterval;
+        }
+        simulator.advanceTo(time);
+    }
+
+    private double wallClockSimTime() {
+        return simStartTime + (System.nanoTime() - wallStartNanos) / 1e9 / timeScale;
+    }
+
+    /**
+     * How long to wait for input when idle: when paced, no longer than until
+     * the next event is due.
+     */
+    private long idleWaitNanos() {
+        if (timeScale == 0.0) {
+            return IDLE_POLL_NANOS;
+        }
+        double untilDue = (Math.min(simulator.getNextEventTime(), nextMetricsTime) - wallClockSimTime())
+                          * timeScale * 1e9;
+        return (long) Math.max(0.0, Math.min(untilDue, IDLE_POLL_NANOS));
+    }
+
+    private void emitMetrics() {
+        long now = System.nanoTime();
+        long ingested = numIngested.get();
+        double sinceLast = (now - lastMetricsNanos) / 1e9;
+        double ingestRate = sinceLast > 0.0 ? (ingested - lastMetricsIngested) / sinceLast : 0.0;
+        lastMetricsNanos = now;
+        lastMetricsIngested = ingested;
+
+        long queuedJobs = 0;
+        long successful = 0;
+        long failed = 0;
+        for (IScheduler scheduler : simulator.getSchedulers().values()) {
+            queuedJobs += scheduler.getJobQueueSize();
+        }
+        for (BaseScheduler scheduler : schedulers) {
+            successful += scheduler.getNumSuccessfulTransactions();
+            failed += scheduler.getNumFailedTransactions();
+        }
+        CellState cellState = simulator.getCellState();
+        // How far the simulation trails wall-clock time, in simulated seconds
+        double lag = timeScale > 0.0 ? Math.max(0.0, wallClockSimTime() - simulator.getCurrentTime()) : 0.0;
+        metricsOut.println(String.format(Locale.ROOT,
+            "%.3f,%.3f,%d,%.1f,%d,%d,%d,%d,%d,%d,%d,%d,%.4f,%.4f,%d,%.3f",
+            simulator.getCurrentTime(), (now - wallStartNanos) / 1e9, ingested, ingestRate,
+            numSubmitted, numRejected, numMalformed.get(), buffer.size(), numBlockedPuts.get(),
+            queuedJobs, successful, failed,
+            cellState.getTotalOccupiedCpus() / cellState.getTotalCpus(),
+            cellState.getTotalOccupiedMem() / cellState.getTotalMem(),
+            simulator.getAgendaSize(), lag));
+    }
+
+    /**
+     * Totals for the whole run, with snake_case keys like SteadyStateDetector.getSummary.
+     */
+    public Map<String, Double> getSummary() {
+        Map<String, Double> summary = new LinkedHashMap<>();
+        double wallSeconds = started ? (System.nanoTime() - wallStartNanos) / 1e9 : 0.0;
+        summary.put("num_ingested", (double) numIngested.get());
+        summary.put("num_submitted", (double) numSubmitted);
+        summary.put("num_rejected", (double) numRejected);
+        summary.put("num_malformed", (double) numMalformed.get());
+        summary.put("num_blocked_puts", (double) numBlockedPuts.get());
+        summary.put("sim_time", simulator.getCurrentTime() - simStartTime);
+        summary.put("wall_seconds", wallSeconds);
+        summary.put("jobs_per_wall_second", wallSeconds > 0.0 ? numSubmitted / wallSeconds : 0.0);
+        return summary;
+    }
+}
@@ -0,0 +1,22 @@
+package simulator;
+
+import simulator.core.Job;
+
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Decides which cell of a Federation a job goes to when the cell it was in
+ * turned it away or gave up on it. Called between time windows, while no
+ * cell is running, so it may look at every cell's state.
+ */
+public interface RoutingPolicy {
+    /**
+     * @param job   The job, holding only the tasks still to be placed
+     * @param from  Index of the cell it leaves
+     * @param cells The federation's cells
+     * @param tried Cells the job has already been in, from included
+     * @return Index of the cell to send it to, one not in tried, or -1 to drop it
+     */
+    int route(Job job, int from, List<ClusterSimulator> cells, BitSet tried);
+}
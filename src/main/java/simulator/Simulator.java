@@ -1,17 +1,25 @@
 package simulator;
 
-import java.util.Comparator;
+import java.io.Serializable;
 import java.util.PriorityQueue;
+import java.util.function.BooleanSupplier;
 
 /**
  * A simple, generic, discrete event simulator.
  * Based on the discrete event simulator from "Programming In Scala".
+ * A simulator and everything its events reach are Serializable, so a run can
+ * be checkpointed and resumed later (see Checkpointer).
  */
-public abstract class Simulator {
+public abstract class Simulator implements Serializable {
+    private static final long serialVersionUID = 1L;
+    
     protected double currentTime = 0.0;
-    protected final PriorityQueue<WorkItem> agenda = new PriorityQueue<>(
-        Comparator.comparing(WorkItem::getTime).reversed());
+    // Earliest event first; events due at the same time run in the order they were added.
+    protected final PriorityQueue<WorkItem> agenda = new PriorityQueue<>();
+    private long nextSeq = 0;
     private final boolean logging;
+    // Not part of a checkpoint: set it again on a restored simulator
+    private transient Checkpointer checkpointer;
     
     public Simulator(boolean logging) {
         this.logging = logging;
@@ -25,6 +33,26 @@ public abstract class Simulator {
         return agenda.size();
     }
     
+    /**
+     * Time of the next event on the agenda, or positive infinity if there is none.
+     */
+    public double getNextEventTime() {
+        WorkItem item = agenda.peek();
+        return item == null ? Double.POSITIVE_INFINITY : item.getTime();
+    }
+    
+    /**
+     * Have run and resume write checkpoints of this simulator as they go;
+     * null to stop.
+     */
+    public void setCheckpointer(Checkpointer checkpointer) {
+        this.checkpointer = checkpointer;
+    }
+    
+    public Checkpointer getCheckpointer() {
+        return checkpointer;
+    }
+    
     protected void log(String message) {
         if (logging) {
             System.out.println(currentTime + " " + message);
@@ -34,8 +62,8 @@ public abstract class Simulator {
     /**
      * Schedule an action to be executed after a delay.
      */
-    public void afterDelay(double delay, Runnable action) {
-        WorkItem item = new WorkItem(currentTime + delay, action);
+    public void afterDelay(double delay, Event action) {
+        WorkItem item = new WorkItem(currentTime + delay, nextSeq++, action);
         agenda.offer(item);
     }
     
@@ -47,6 +75,24 @@ public abstract class Simulator {
         }
     }
     
+    /**
+     * Run every event due up to the given time, then move the clock there.
+     * For driving the simulation from outside instead of with run, e.g. in
+     * step with wall-clock time while jobs are still being submitted.
+     * @return The number of events run
+     */
+    public long advanceTo(double time) {
+        long numEvents = 0;
+        while (!agenda.isEmpty() && agenda.peek().getTime() <= time) {
+            next();
+            numEvents++;
+        }
+        if (time > currentTime) {
+            currentTime = time;
+        }
+        return numEvents;
+    }
+    
     /**
      * Run the simulation for the specified time or until completion.
      * @param runTime Optional maximum simulation time
@@ -54,10 +100,42 @@ public abstract class Simulator {
      * @return true if simulation ran till runTime or completion, false if timed out
      */
     public boolean run(Double runTime, Double wallClockTimeout) {
-        afterDelay(0, () -> {
-            System.out.println("*** Simulation started, time = " + currentTime + ". ***");
-        });
-        
+        return run(runTime, wallClockTimeout, null);
+    }
+    
+    /**
+     * Run the simulation, additionally stopping as soon as stopCondition holds.
+     * The condition is polled between events, so it should be cheap to evaluate.
+     * @param stopCondition Optional early-termination test, e.g. a SteadyStateDetector
+     * @return true if simulation ran till runTime, completion or stopCondition,
+     *         false if timed out
+     */
+    public boolean run(Double runTime, Double wallClockTimeout, BooleanSupplier stopCondition) {
+        afterDelay(0, new Started(this));
+        return resume(runTime, wallClockTimeout, stopCondition);
+    }
+    
+    /**
+     * Carry on with the events on the agenda, like run but without starting
+     * the simulation: for a simulator restored from a checkpoint, or one run
+     * stopped by runTime, wallClockTimeout or stopCondition. With a
+     * checkpointer set, checkpoints are taken between events as it asks, and
+     * once more before giving up on wallClockTimeout, so the run can go on
+     * from there; they are all written by the time this returns.
+     * @return true if simulation ran till runTime, completion or stopCondition,
+     *         false if timed out
+     */
+    public boolean resume(Double runTime, Double wallClockTimeout, BooleanSupplier stopCondition) {
+        try {
+            return runEvents(runTime, wallClockTimeout, stopCondition);
+        } finally {
+            if (checkpointer != null) {
+                checkpointer.awaitWritten();
+            }
+        }
+    }
+    
+    private boolean runEvents(Double runTime, Double wallClockTimeout, BooleanSupplier stopCondition) {
         long startWallTime = System.currentTimeMillis();
         
         while (!agenda.isEmpty()) {
@@ -70,27 +148,64 @@ public abstract class Simulator {
                     System.out.println(String.format(
                         "Execution timed out after %f seconds, ending simulation now.",
                         (currWallTime - startWallTime) / 1000.0));
+                    if (checkpointer != null) {
+                        checkpointer.checkpoint(this);
+                    }
                     return false;
                 }
             }
+            if (stopCondition != null && stopCondition.getAsBoolean()) {
+                System.out.println("Stop condition reached at time " + currentTime +
+                                   ", ending simulation now.");
+                break;
+            }
             next();
+            if (checkpointer != null) {
+                checkpointer.afterEvent(this);
+            }
         }
         
         System.out.println("*** Simulation finished running, time = " + currentTime + ". ***");
         return true;
     }
     
-    private static class WorkItem {
+    private static class WorkItem implements Comparable<WorkItem>, Serializable {
+        private static final long serialVersionUID = 1L;
+        
         private final double time;
-        private final Runnable action;
+        private final long seq;
+        private final Event action;
         
-        public WorkItem(double time, Runnable action) {
+        public WorkItem(double time, long seq, Event action) {
             this.time = time;
+            this.seq = seq;
             this.action = action;
         }
         
         public double getTime() { return time; }
-        public Runnable getAction() { return action; }
+        public long getSeq() { return seq; }
+        public Event getAction() { return action; }
+        
+        @Override
+        public int compareTo(WorkItem other) {
+            int c = Double.compare(time, other.time);
+            return c != 0 ? c : Long.compare(seq, other.seq);
+        }
+    }
+    
+    /** The first event of a run. */
+    private static final class Started implements Event {
+        private static final long serialVersionUID = 1L;
+        
+        private final Simulator simulator;
+        
+        Started(Simulator simulator) {
+            this.simulator = simulator;
+        }
+        
+        @Override
+        public void run() {
+            System.out.println("*** Simulation started, time = " + simulator.currentTime + ". ***");
+        }
     }
 }
-
@@ -0,0 +1,280 @@
+package simulator;
+
+import scheduler.BaseScheduler;
+import scheduler.IScheduler;
+
+import java.io.Serializable;
+import java.util.*;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongFunction;
+
+/**
+ * Online steady-state detector built on the statistics counters in BaseScheduler.
+ * Every batchLength simulated seconds it closes a batch and records the batch's
+ * busy fraction, conflict fraction and mean queue wait time. Using the method of
+ * batch means, the run is considered converged once the confidence-interval
+ * half-width of every watched metric is within tolerance.
+ *
+ * Pass it as the stop condition to Simulator.run to terminate early:
+ * <pre>
+ *   SteadyStateDetector detector = new SteadyStateDetector(sim, 100.0);
+ *   sim.run(null, null, detector);
+ * </pre>
+ */
+public class SteadyStateDetector implements BooleanSupplier, Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public static final String BUSY_FRACTION = "busy_fraction";
+    public static final String CONFLICT_FRACTION = "conflict_fraction";
+    public static final String WAIT_TIME = "wait_time";
+
+    private final ClusterSimulator simulator;
+    private final List<BaseScheduler> schedulers = new ArrayList<>();
+    private final double batchLength;
+    private final int warmupBatches;
+    private final int minBatches;
+    private final double zScore;
+    private final double relativeTolerance;
+    private final double absoluteTolerance;
+
+    private final BatchMeans busyFraction = new BatchMeans();
+    private final BatchMeans conflictFraction = new BatchMeans();
+    private final BatchMeans waitTime = new BatchMeans();
+
+    // Counter values at the start of the current batch
+    private double lastBusyTime = 0.0;
+    private long lastSuccessful = 0;
+    private long lastFailed = 0;
+    private double lastTimeInQueue = 0.0;
+    private long lastTimeInQueueSamples = 0;
+
+    private int numBatches = 0;
+    private boolean converged = false;
+    private double convergenceTime = -1.0;
+
+    /**
+     * @param batchLength       Simulated seconds per batch
+     * @param warmupBatches     Initial batches discarded as transient
+     * @param minBatches        Batches required (after warmup) before testing convergence
+     * @param zScore            Normal quantile of the confidence level, e.g. 1.96 for 95%
+     * @param relativeTolerance Target half-width relative to the metric mean
+     * @param absoluteTolerance Half-width that always counts as converged, for metrics near 0
+     */
+    public SteadyStateDetector(ClusterSimulator simulator,
+                               double batchLength,
+                               int warmupBatches,
+                               int minBatches,
+                               double zScore,
+                               double relativeTolerance,
+                               double absoluteTolerance) {
+        if (batchLength <= 0.0) {
+            throw new IllegalArgumentException("batchLength must be positive, but was " + batchLength);
+        }
+        if (minBatches < 2) {
+            throw new IllegalArgumentException("minBatches must be at least 2, but was " + minBatches);
+        }
+        this.simulator = simulator;
+        this.batchLength = batchLength;
+        this.warmupBatches = warmupBatches;
+        this.minBatches = minBatches;
+        this.zScore = zScore;
+        this.relativeTolerance = relativeTolerance;
+        this.absoluteTolerance = absoluteTolerance;
+
+        for (IScheduler scheduler : simulator.getSchedulers().values()) {
+            if (scheduler instanceof BaseScheduler) {
+                schedulers.add((BaseScheduler) scheduler);
+            }
+        }
+        simulator.afterDelay(batchLength, new CloseBatch(this));
+    }
+
+    public SteadyStateDetector(ClusterSimulator simulator, double batchLength) {
+        this(simulator, batchLength, 2, 10, 1.96, 0.05, 0.01);
+    }
+
+    @Override
+    public boolean getAsBoolean() {
+        return converged;
+    }
+
+    public boolean isConverged() { return converged; }
+    public double getConvergenceTime() { return convergenceTime; }
+    public int getNumBatches() { return numBatches; }
+    public double getZScore() { return zScore; }
+
+    public BatchMeans getBusyFraction() { return busyFraction; }
+    public BatchMeans getConflictFraction() { return conflictFraction; }
+    public BatchMeans getWaitTime() { return waitTime; }
+
+    /**
+     * Close out the current batch, fold its metrics in and test for convergence.
+     */
+    private void closeBatch() {
+        double busyTime = 0.0;
+        long successful = 0;
+        long failed = 0;
+        double timeInQueue = 0.0;
+        long timeInQueueSamples = 0;
+        for (BaseScheduler scheduler : schedulers) {
+            busyTime += scheduler.getTotalUsefulTimeScheduling() +
+                        scheduler.getTotalWastedTimeScheduling();
+            successful += scheduler.getNumSuccessfulTransactions();
+            failed += scheduler.getNumFailedTransactions();
+            timeInQueue += scheduler.getTotalTimeInQueue();
+            timeInQueueSamples += scheduler.getNumTimeInQueueSamples();
+        }
+
+        numBatches++;
+        if (numBatches > warmupBatches) {
+            busyFraction.add((busyTime - lastBusyTime) / (batchLength * schedulers.size()));
+            long transactions = (successful - lastSuccessful) + (failed - lastFailed);
+            if (transactions > 0) {
+                conflictFraction.add((double) (failed - lastFailed) / transactions);
+            }
+            long waits = timeInQueueSamples - lastTimeInQueueSamples;
+            if (waits > 0) {
+                waitTime.add((timeInQueue - lastTimeInQueue) / waits);
+            }
+        }
+        lastBusyTime = busyTime;
+        lastSuccessful = successful;
+        lastFailed = failed;
+        lastTimeInQueue = timeInQueue;
+        lastTimeInQueueSamples = timeInQueueSamples;
+
+        if (busyFraction.isConverged(minBatches, zScore, relativeTolerance, absoluteTolerance) &&
+            conflictFraction.isConverged(minBatches, zScore, relativeTolerance, absoluteTolerance) &&
+            waitTime.isConverged(minBatches, zScore, relativeTolerance, absoluteTolerance)) {
+            converged = true;
+            convergenceTime = simulator.getCurrentTime();
+            simulator.log(String.format(
+                "Steady state reached after %d batches: busy %f +/- %f, " +
+                "conflict %f +/- %f, wait %f +/- %f.",
+                numBatches,
+                busyFraction.getMean(), busyFraction.getHalfWidth(zScore),
+                conflictFraction.getMean(), conflictFraction.getHalfWidth(zScore),
+                waitTime.getMean(), waitTime.getHalfWidth(zScore)));
+        } else if (simulator.getAgendaSize() > 0) {
+            // Only keep batching while there is other work left, otherwise the
+            // detector would keep the agenda alive forever.
+            simulator.afterDelay(batchLength, new CloseBatch(this));
+        }
+    }
+
+    /**
+     * Summary of the stop decision and the achieved confidence, keyed by metric
+     * name, suitable for writing next to the experiment results.
+     */
+    public Map<String, Double> getSummary() {
+        Map<String, Double> summary = new LinkedHashMap<>();
+        summary.put("steady_state_reached", converged ? 1.0 : 0.0);
+        summary.put("steady_state_time", convergenceTime);
+        summary.put("steady_state_batches", (double) numBatches);
+        summary.put("steady_state_z_score", zScore);
+        putMetric(summary, BUSY_FRACTION, busyFraction);
+        putMetric(summary, CONFLICT_FRACTION, conflictFraction);
+        putMetric(summary, WAIT_TIME, waitTime);
+        return summary;
+    }
+
+    private void putMetric(Map<String, Double> summary, String name, BatchMeans stat) {
+        summary.put(name + "_mean", stat.getMean());
+        summary.put(name + "_half_width", stat.getHalfWidth(zScore));
+    }
+
+    /**
+     * Run independent replicas, one seed at a time, and stop adding seeds once
+     * every metric's across-replica confidence interval is within tolerance.
+     * @param replica Runs one replica for the given seed and returns its metrics
+     * @return Per-metric statistics across the replicas that were run
+     */
+    public static Map<String, BatchMeans> runReplicas(LongFunction<Map<String, Double>> replica,
+                                                      long firstSeed,
+                                                      int minReplicas,
+                                                      int maxReplicas,
+                                                      double zScore,
+                                                      double relativeTolerance,
+                                                      double absoluteTolerance) {
+        Map<String, BatchMeans> stats = new LinkedHashMap<>();
+        for (int i = 0; i < maxReplicas; i++) {
+            for (Map.Entry<String, Double> entry : replica.apply(firstSeed + i).entrySet()) {
+                stats.computeIfAbsent(entry.getKey(), k -> new BatchMeans()).add(entry.getValue());
+            }
+            boolean allConverged = true;
+            for (BatchMeans stat : stats.values()) {
+                if (!stat.isConverged(minReplicas, zScore, relativeTolerance, absoluteTolerance)) {
+                    allConverged = false;
+                    break;
+                }
+            }
+            if (allConverged) {
+                System.out.println("Replica metrics converged after " + (i + 1) + " seeds.");
+                break;
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Running mean and variance (Welford) over a sequence of batch means or
+     * replica results, with a normal-approximation confidence interval.
+     */
+    public static class BatchMeans implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private long count = 0;
+        private double mean = 0.0;
+        private double m2 = 0.0;
+
+        public void add(double value) {
+            count++;
+            double delta = value - mean;
+            mean += delta / count;
+            m2 += delta * (value - mean);
+        }
+
+        public long getCount() { return count; }
+        public double getMean() { return mean; }
+
+        public double getVariance() {
+            return count > 1 ? m2 / (count - 1) : Double.NaN;
+        }
+
+        /**
+         * Half-width of the confidence interval around the mean.
+         */
+        public double getHalfWidth(double zScore) {
+            if (count < 2) {
+                return Double.POSITIVE_INFINITY;
+            }
+            return zScore * Math.sqrt(getVariance() / count);
+        }
+
+        public boolean isConverged(int minCount, double zScore,
+                                   double relativeTolerance, double absoluteTolerance) {
+            if (count < minCount) {
+                return false;
+            }
+            double halfWidth = getHalfWidth(zScore);
+            return halfWidth <= absoluteTolerance ||
+                   halfWidth <= relativeTolerance * Math.abs(mean);
+        }
+    }
+
+    /** The end of a batch. */
+    private static final class CloseBatch implements Event {
+        private static final long serialVersionUID = 1L;
+
+        private final SteadyStateDetector detector;
+
+        CloseBatch(SteadyStateDetector detector) {
+            this.detector = detector;
+        }
+
+        @Override
+        public void run() {
+            detector.closeBatch();
+        }
+    }
+}
@@ -0,0 +1,824 @@
+package simulator;
+
+import scheduler.DrfSorter;
+import scheduler.IScheduler;
+import scheduler.MesosAllocator;
+import scheduler.MesosScheduler;
+import scheduler.Offer;
+import scheduler.RetryPolicy;
+import simulator.core.CellState;
+import simulator.core.ClaimDelta;
+import simulator.core.Job;
+import simulator.core.Workload;
+
+import java.lang.reflect.Method;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the two-level offer protocol of a MesosSimulator for real: the
+ * allocator is one thread, every framework (MesosScheduler) is another, and
+ * offer requests, offers and responses travel between them as messages through
+ * bounded queues. The allocator thread owns the cell state and the DrfSorter
+ * outright, so neither needs locking; frameworks only ever see the private cell
+ * state of the offers they are sent. Frameworks are virtual threads when the
+ * JVM has them (Java 21+) and platform threads otherwise, so thousands of them
+ * are cheap where it matters.
+ *
+ * Offers are built as MesosAllocator builds them: DRF picks the framework,
+ * offers lock either every free resource of the cell or, with machinesPerOffer,
+ * disjoint subsets of machines, offer rounds are batched every
+ * offerBatchInterval, and a response unlocks the offer and commits its tasks.
+ * Think times, task durations, arrivals and retry delays take timeScale
+ * wall seconds per simulated second. Decline filters, offer timeouts
+ * and gang reservations are not modelled here.
+ *
+ * A framework that sends to a full allocator queue blocks until there is room,
+ * which is counted. The allocator never blocks on a framework: a framework
+ * holding as many unanswered offers as its queue takes is passed over in DRF
+ * order until it answers one, as MesosAllocator passes over filtered ones.
+ */
+public class ThreadedMesosRunner {
+    private static final int REQUEST = 0;
+    private static final int CANCEL = 1;
+    private static final int RESPONSE = 2;
+    private static final int DONE = 3;
+    private static final int OFFER = 4;
+
+    // Thread.ofVirtual().unstarted(Runnable), if this JVM has virtual threads
+    private static final Method OF_VIRTUAL;
+    private static final Method UNSTARTED;
+
+    static {
+        Method ofVirtual = null;
+        Method unstarted = null;
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            unstarted = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+        } catch (ReflectiveOperationException e) {
+            ofVirtual = null;
+            unstarted = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        UNSTARTED = unstarted;
+    }
+
+    private final MesosSimulator simulator;
+    private final MesosAllocator allocator;
+    private final double timeScale;
+    private final int frameworkQueueCapacity;
+    private final CellState cellState;
+    private final DrfSorter drf;
+    private final BlockingQueue<Message> allocatorQueue;
+    private final Map<MesosScheduler, Framework> frameworks = new LinkedHashMap<>();
+    private boolean virtualThreads = false;
+    private long startNanos;
+
+    // Allocator thread state
+    private final PriorityQueue<TimedEvent> timedEvents = new PriorityQueue<>();
+    private final Map<Long, OutstandingOffer> outstandingOffers = new HashMap<>();
+    private boolean[] machineOffered;
+    private boolean roundScheduled = false;
+    private long nextOfferId = 0;
+    private long nextEventSeq = 0;
+    private int numActiveFrameworks;
+
+    // Allocator statistics, read once the run is over
+    private long numOfferRounds = 0;
+    private long numOffersSent = 0;
+    private long numOffersDeclined = 0;
+    private long numOffersDropped = 0;
+    private long numFullFrameworkSkips = 0;
+    private long numMessagesHandled = 0;
+    private long allocatorBusyNanos = 0;
+    private long allocatorQueueDepthSum = 0;
+    private int maxAllocatorQueueDepth = 0;
+    private int maxFrameworkQueueDepth = 0;
+    private final LatencySamples responseLatency = new LatencySamples();
+    private double wallSeconds = 0.0;
+
+    private static class Message {
+        final int kind;
+        final Framework framework;
+        final Offer offer;
+        final List<ClaimDelta> claimDeltas;
+        final long sentNanos;
+
+        Message(int kind, Framework framework, Offer offer, List<ClaimDelta> claimDeltas) {
+            this.kind = kind;
+            this.framework = framework;
+            this.offer = offer;
+            this.claimDeltas = claimDeltas;
+            this.sentNanos = System.nanoTime();
+        }
+    }
+
+    private static class OutstandingOffer {
+        final Offer offer;
+        final List<ClaimDelta> lockDeltas;
+        final Framework framework;
+
+        OutstandingOffer(Offer offer, List<ClaimDelta> lockDeltas, Framework framework) {
+            this.offer = offer;
+            this.lockDeltas = lockDeltas;
+            this.framework = framework;
+        }
+    }
+
+    private static class TimedEvent implements Comparable<TimedEvent> {
+        final long dueNanos;
+        final long seq;
+        final Runnable action;
+
+        TimedEvent(long dueNanos, long seq, Runnable action) {
+            this.dueNanos = dueNanos;
+            this.seq = seq;
+            this.action = action;
+        }
+
+        @Override
+        public int compareTo(TimedEvent other) {
+            int c = Long.compare(dueNanos, other.dueNanos);
+            return c != 0 ? c : Long.compare(seq, other.seq);
+        }
+    }
+
+    private static class PendingJob implements Comparable<PendingJob> {
+        final Job job;
+        final long readyNanos;
+        final long seq;
+
+        PendingJob(Job job, long readyNanos, long seq) {
+            this.job = job;
+            this.readyNanos = readyNanos;
+            this.seq = seq;
+        }
+
+        @Override
+        public int compareTo(PendingJob other) {
+            int c = Long.compare(readyNanos, other.readyNanos);
+            return c != 0 ? c : Long.compare(seq, other.seq);
+        }
+    }
+
+    /**
+     * Wall-clock durations, kept individually for quantiles.
+     */
+    private static class LatencySamples {
+        private long[] nanos = new long[1024];
+        private int size = 0;
+
+        void add(long sample) {
+            if (size == nanos.length) {
+                nanos = Arrays.copyOf(nanos, 2 * size);
+            }
+            nanos[size++] = sample;
+        }
+
+        void addAll(LatencySamples other) {
+            for (int i = 0; i < other.size; i++) {
+                add(other.nanos[i]);
+            }
+        }
+
+        double meanMicros() {
+            long total = 0;
+            for (int i = 0; i < size; i++) {
+                total += nanos[i];
+            }
+            return size == 0 ? 0.0 : total / 1000.0 / size;
+        }
+
+        double quantileMicros(double quantile) {
+            if (size == 0) {
+                return 0.0;
+            }
+            long[] sorted = Arrays.copyOf(nanos, size);
+            Arrays.sort(sorted);
+            int index = (int) Math.min(size - 1, Math.ceil(quantile * size) - 1);
+            return sorted[Math.max(0, index)] / 1000.0;
+        }
+    }
+
+    /**
+     * A framework's thread, its queue of offers and its results; the results
+     * are only touched by that thread until the run is over.
+     */
+    public static class Framework {
+        private final MesosScheduler scheduler;
+        private final BlockingQueue<Message> queue;
+        private final List<Job> jobs = new ArrayList<>();
+        private boolean done = false;
+        // Offers sent and not yet answered; kept by the allocator thread
+        private int numOutstandingOffers = 0;
+
+        private int numSuccessfulTransactions = 0;
+        private int numNoResourcesFoundSchedulingAttempts = 0;
+        private int numJobsTimedOutScheduling = 0;
+        private int numJobsFullyScheduled = 0;
+        private long numSuccessfulTaskTransactions = 0;
+        private long numBlockedSends = 0;
+        private double totalUsefulTimeScheduling = 0.0;
+        private double totalJobWaitTime = 0.0;
+        private final LatencySamples offerLatency = new LatencySamples();
+
+        Framework(MesosScheduler scheduler, int queueCapacity) {
+            this.scheduler = scheduler;
+            this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        }
+
+        public MesosScheduler getScheduler() { return scheduler; }
+        public int getNumSuccessfulTransactions() { return numSuccessfulTransactions; }
+        public int getNumNoResourcesFoundSchedulingAttempts() { return numNoResourcesFoundSchedulingAttempts; }
+        public int getNumJobsTimedOutScheduling() { return numJobsTimedOutScheduling; }
+        public int getNumJobsFullyScheduled() { return numJobsFullyScheduled; }
+        public long getNumSuccessfulTaskTransactions() { return numSuccessfulTaskTransactions; }
+        /** Sends that found the allocator's queue full and had to wait. */
+        public long getNumBlockedSends() { return numBlockedSends; }
+        public double getTotalUsefulTimeScheduling() { return totalUsefulTimeScheduling; }
+
+        /** Mean simulated seconds from submission until fully scheduled. */
+        public double getMeanJobWaitTime() {
+            return numJobsFullyScheduled == 0 ? 0.0 : totalJobWaitTime / numJobsFullyScheduled;
+        }
+    }
+
+    /**
+     * @param timeScale              Wall-clock seconds per simulated second
+     * @param allocatorQueueCapacity Messages the allocator's queue holds before
+     *                               frameworks block sending to it
+     * @param frameworkQueueCapacity Offers a framework's queue holds before
+     *                               further ones are dropped
+     */
+    public ThreadedMesosRunner(MesosSimulator simulator, double timeScale,
+                               int allocatorQueueCapacity, int frameworkQueueCapacity) {
+        if (timeScale <= 0.0) {
+            throw new IllegalArgumentException("timeScale must be positive, but it was " + timeScale);
+        }
+        if (allocatorQueueCapacity <= 0 || frameworkQueueCapacity <= 0) {
+            throw new IllegalArgumentException("Queue capacities must be positive.");
+        }
+        this.simulator = simulator;
+        this.allocator = simulator.getAllocator();
+        this.timeScale = timeScale;
+        this.frameworkQueueCapacity = frameworkQueueCapacity;
+        this.cellState = simulator.getCellState().copy();
+        this.drf = new DrfSorter(cellState.getTotalResources());
+        this.allocatorQueue = new ArrayBlockingQueue<>(allocatorQueueCapacity);
+        for (IScheduler scheduler : simulator.getSchedulers().values()) {
+            MesosScheduler mesosScheduler = (MesosScheduler) scheduler;
+            frameworks.put(mesosScheduler, new Framework(mesosScheduler, frameworkQueueCapacity));
+        }
+        if (allocator.getMachinesPerOffer() > 0) {
+            machineOffered = new boolean[cellState.getNumMachines()];
+        }
+    }
+
+    public ThreadedMesosRunner(MesosSimulator simulator, double timeScale) {
+        this(simulator, timeScale, 1024, 4);
+    }
+
+    public Collection<Framework> getFrameworks() { return frameworks.values(); }
+    /** Whether the frameworks ran on virtual threads. */
+    public boolean isVirtualThreads() { return virtualThreads; }
+    public double getWallSeconds() { return wallSeconds; }
+    public long getNumOfferRounds() { return numOfferRounds; }
+    public long getNumOffersSent() { return numOffersSent; }
+    public long getNumOffersDeclined() { return numOffersDeclined; }
+    /** Offers unlocked again because the framework's queue was full. */
+    public long getNumOffersDropped() { return numOffersDropped; }
+    /** Times a framework was passed over because it held a full queue's worth of offers. */
+    public long getNumFullFrameworkSkips() { return numFullFrameworkSkips; }
+
+    /**
+     * Fraction of the run the allocator thread spent handling messages and
+     * building offers rather than waiting for work.
+     */
+    public double getAllocatorUtilization() {
+        return wallSeconds == 0.0 ? 0.0 : allocatorBusyNanos / 1e9 / wallSeconds;
+    }
+
+    private long toNanos(double simulatedSeconds) {
+        return (long) (simulatedSeconds * timeScale * 1e9);
+    }
+
+    private double simulatedNow() {
+        return (System.nanoTime() - startNanos) / 1e9 / timeScale;
+    }
+
+    private Thread newFrameworkThread(Runnable task, String name) {
+        if (OF_VIRTUAL != null) {
+            try {
+                Thread thread = (Thread) UNSTARTED.invoke(OF_VIRTUAL.invoke(null), task);
+                thread.setName(name);
+                virtualThreads = true;
+                return thread;
+            } catch (ReflectiveOperationException e) {
+                // Fall back to a platform thread
+            }
+        }
+        return new Thread(task, name);
+    }
+
+    /**
+     * Route every job of the simulator's workloads to a framework, round-robin
+     * over the workload's schedulers as the simulator does.
+     */
+    private void routeJobs() {
+        Map<String, Integer> nextScheduler = new HashMap<>();
+        for (Workload workload : simulator.workloads) {
+            for (Job job : workload.getJobs()) {
+                List<String> names = simulator.workloadToSchedulerMap.get(job.getWorkloadName());
+                if (names == null || names.isEmpty()) {
+                    throw new IllegalStateException(
+                        "No scheduler is assigned to workload " + job.getWorkloadName());
+                }
+                int next = nextScheduler.getOrDefault(job.getWorkloadName(), 0);
+                nextScheduler.put(job.getWorkloadName(), next + 1);
+                IScheduler scheduler = simulator.getSchedulers().get(names.get(next % names.size()));
+                frameworks.get(scheduler).jobs.add(job);
+            }
+        }
+    }
+
+    /**
+     * Run the allocator and every framework until all jobs are scheduled or
+     * abandoned.
+     */
+    public void run() throws InterruptedException {
+        routeJobs();
+        numActiveFrameworks = frameworks.size();
+        startNanos = System.nanoTime();
+
+        List<Thread> threads = new ArrayList<>();
+        for (Framework framework : frameworks.values()) {
+            threads.add(newFrameworkThread(() -> runFramework(framework),
+                                           framework.scheduler.getName()));
+        }
+        Thread allocatorThread = new Thread(this::runAllocator, "allocator");
+        System.out.println(String.format(
+            "*** Threaded Mesos run started with %d frameworks on %s threads. ***",
+            threads.size(), virtualThreads ? "virtual" : "platform"));
+        allocatorThread.start();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        allocatorThread.join();
+        wallSeconds = (System.nanoTime() - startNanos) / 1e9;
+        System.out.println(String.format("*** Threaded Mesos run finished after %.3f wall seconds. ***",
+            wallSeconds));
+    }
+
+    // ---- Framework side ----
+
+    private void send(Framework framework, Message message) {
+        if (allocatorQueue.offer(message)) {
+            return;
+        }
+        framework.numBlockedSends++;
+        boolean interrupted = false;
+        while (true) {
+            try {
+                allocatorQueue.put(message);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A framework's thread: ask for offers while it has jobs ready, answer
+     * every offer it gets, and tell the allocator when all its jobs are done.
+     */
+    private void runFramework(Framework framework) {
+        PriorityQueue<PendingJob> waiting = new PriorityQueue<>();
+        ArrayDeque<Job> ready = new ArrayDeque<>();
+        long nextSeq = 0;
+        for (Job job : framework.jobs) {
+            waiting.add(new PendingJob(job, startNanos + toNanos(job.getSubmitted()), nextSeq++));
+        }
+        // Responses still being thought about; like MesosScheduler, the framework
+        // takes on further offers meanwhile
+        PriorityQueue<TimedEvent> responses = new PriorityQueue<>();
+        boolean requested = false;
+
+        while (true) {
+            long now = System.nanoTime();
+            while (!responses.isEmpty() && responses.peek().dueNanos <= now) {
+                responses.poll().action.run();
+            }
+            while (!waiting.isEmpty() && waiting.peek().readyNanos <= now) {
+                ready.add(waiting.poll().job);
+            }
+            if (!ready.isEmpty() && !requested) {
+                send(framework, new Message(REQUEST, framework, null, null));
+                requested = true;
+            }
+            if (ready.isEmpty() && waiting.isEmpty() && responses.isEmpty()) {
+                send(framework, new Message(DONE, framework, null, null));
+                return;
+            }
+            long wakeNanos = Long.MAX_VALUE;
+            if (!waiting.isEmpty()) {
+                wakeNanos = waiting.peek().readyNanos;
+            }
+            if (!responses.isEmpty()) {
+                wakeNanos = Math.min(wakeNanos, responses.peek().dueNanos);
+            }
+            Message message;
+            try {
+                message = wakeNanos == Long.MAX_VALUE
+                    ? framework.queue.take()
+                    : framework.queue.poll(wakeNanos - now, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (message == null) {
+                continue;
+            }
+            framework.offerLatency.add(System.nanoTime() - message.sentNanos);
+            for (PendingJob retry : answerOffer(framework, message.offer, ready, responses, nextSeq)) {
+                waiting.add(new PendingJob(retry.job, retry.readyNanos, nextSeq++));
+            }
+            nextSeq++;
+            if (ready.isEmpty() && requested) {
+                send(framework, new Message(CANCEL, framework, null, null));
+                requested = false;
+            }
+        }
+    }
+
+    /**
+     * Place ready jobs on an offer as MesosScheduler.handleNextResourceOffer
+     * does, and add the response to responses, due once the framework is done
+     * thinking about all of them.
+     * @return Jobs to retry, with the time they are ready again
+     */
+    private List<PendingJob> answerOffer(Framework framework, Offer offer, ArrayDeque<Job> ready,
+                                         PriorityQueue<TimedEvent> responses, long seq) {
+        MesosScheduler scheduler = framework.scheduler;
+        RetryPolicy retryPolicy = scheduler.getRetryPolicy();
+        CellState offerCellState = offer.getCellState();
+        List<ClaimDelta> response = new ArrayList<>();
+        List<PendingJob> retries = new ArrayList<>();
+        long offerStart = System.nanoTime();
+        double aggThinkTime = 0.0;
+
+        while (offerCellState.getAvailableCpus() > 0.000001 &&
+               offerCellState.getAvailableMem() > 0.000001 &&
+               !ready.isEmpty()) {
+            Job job = ready.poll();
+            double jobThinkTime = scheduler.getThinkTime(job);
+            aggThinkTime += jobThinkTime;
+            job.setNumSchedulingAttempts(job.getNumSchedulingAttempts() + 1);
+            job.setNumTaskSchedulingAttempts(
+                job.getNumTaskSchedulingAttempts() + job.getUnscheduledTasks());
+
+            boolean mayFit = offerCellState.hasEligibleMachine(job) && (job.isRigid()
+                ? offerCellState.getAvailableCpus() >= job.getUnscheduledTasks() * job.getCpusPerTask() &&
+                  offerCellState.getAvailableMem() >= job.getUnscheduledTasks() * job.getMemPerTask()
+                : offerCellState.getAvailableCpus() > job.getCpusPerTask() &&
+                  offerCellState.getAvailableMem() > job.getMemPerTask());
+            List<ClaimDelta> claimDeltas = mayFit
+                ? scheduler.scheduleJob(job, offerCellState) : Collections.<ClaimDelta>emptyList();
+            if (!claimDeltas.isEmpty()) {
+                framework.numSuccessfulTransactions++;
+                framework.numSuccessfulTaskTransactions += claimDeltas.size();
+                framework.totalUsefulTimeScheduling += jobThinkTime;
+                response.addAll(claimDeltas);
+                job.setUnscheduledTasks(job.getUnscheduledTasks() - claimDeltas.size());
+            } else {
+                framework.numNoResourcesFoundSchedulingAttempts++;
+            }
+
+            if (job.getUnscheduledTasks() == 0) {
+                framework.numJobsFullyScheduled++;
+                framework.totalJobWaitTime += simulatedNow() + aggThinkTime - job.getSubmitted();
+            } else if (job.getNumSchedulingAttempts() > retryPolicy.getMaxAttempts() ||
+                       (job.getUnscheduledTasks() == job.getNumTasks() &&
+                        job.getNumSchedulingAttempts() > retryPolicy.getMaxAttemptsWithoutProgress())) {
+                System.out.println(String.format(
+                    "Abandoning job %d (%f cpu %f mem) with %d/%d remaining tasks, " +
+                    "after %d scheduling attempts.",
+                    job.getId(), job.getCpusPerTask(), job.getMemPerTask(),
+                    job.getUnscheduledTasks(), job.getNumTasks(), job.getNumSchedulingAttempts()));
+                framework.numJobsTimedOutScheduling++;
+            } else {
+                retries.add(new PendingJob(job,
+                    offerStart + toNanos(retryPolicy.getRetryDelay(job, true)), 0));
+            }
+        }
+
+        responses.add(new TimedEvent(offerStart + toNanos(aggThinkTime), seq,
+            () -> send(framework, new Message(RESPONSE, framework, offer, response))));
+        return retries;
+    }
+
+    // ---- Allocator side ----
+
+    private void after(double simulatedSeconds, Runnable action) {
+        timedEvents.add(new TimedEvent(System.nanoTime() + toNanos(simulatedSeconds),
+                                       nextEventSeq++, action));
+    }
+
+    private void runAllocator() {
+        while (numActiveFrameworks > 0) {
+            Message message;
+            try {
+                TimedEvent next = timedEvents.peek();
+                message = next == null
+                    ? allocatorQueue.take()
+                    : allocatorQueue.poll(next.dueNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long busyStart = System.nanoTime();
+            if (message != null) {
+                int depth = allocatorQueue.size();
+                allocatorQueueDepthSum += depth;
+                maxAllocatorQueueDepth = Math.max(maxAllocatorQueueDepth, depth);
+                numMessagesHandled++;
+                handle(message);
+            }
+            while (!timedEvents.isEmpty() && timedEvents.peek().dueNanos <= System.nanoTime()) {
+                timedEvents.poll().action.run();
+            }
+            allocatorBusyNanos += System.nanoTime() - busyStart;
+        }
+    }
+
+    private void handle(Message message) {
+        Framework framework = message.framework;
+        MesosScheduler scheduler = framework.scheduler;
+        switch (message.kind) {
+            case REQUEST:
+                if (!drf.isTracked(scheduler)) {
+                    drf.setUsage(scheduler, cellState.getOccupiedResources(scheduler.getName()));
+                    drf.setWeight(scheduler, allocator.getFrameworkWeight(scheduler));
+                }
+                drf.addRequester(scheduler);
+                scheduleRound();
+                break;
+            case CANCEL:
+                drf.removeRequester(scheduler);
+                break;
+            case RESPONSE:
+                responseLatency.add(System.nanoTime() - message.sentNanos);
+                respond(message.offer, message.claimDeltas);
+                break;
+            case DONE:
+                framework.done = true;
+                numActiveFrameworks--;
+                drf.removeRequester(scheduler);
+                // Offers it never got to answer
+                Iterator<OutstandingOffer> it = outstandingOffers.values().iterator();
+                while (it.hasNext()) {
+                    OutstandingOffer outstanding = it.next();
+                    if (outstanding.framework == framework) {
+                        it.remove();
+                        releaseOffer(outstanding);
+                    }
+                }
+                scheduleRound();
+                break;
+            default:
+                throw new IllegalStateException("Unknown message kind " + message.kind);
+        }
+    }
+
+    private void scheduleRound() {
+        if (!roundScheduled) {
+            roundScheduled = true;
+            after(allocator.getOfferBatchInterval(), () -> {
+                roundScheduled = false;
+                buildAndSendOffers();
+            });
+        }
+    }
+
+    /**
+     * One offer round, as MesosAllocator.buildAndSendOffer: the requester with
+     * the lowest dominant share gets every free resource of the cell, or, with
+     * machinesPerOffer, every requester in DRF order gets its own chunk of
+     * free machines.
+     */
+    private void buildAndSendOffers() {
+        if (!drf.hasRequesters() ||
+            cellState.getAvailableCpus() < allocator.getMinCpuOffer() ||
+            cellState.getAvailableMem() < allocator.getMinMemOffer()) {
+            return;
+        }
+        List<MesosScheduler> skipped = new ArrayList<>();
+        while (drf.hasRequesters() &&
+               frameworks.get(drf.peekRequester()).numOutstandingOffers >= frameworkQueueCapacity) {
+            numFullFrameworkSkips++;
+            MesosScheduler full = drf.peekRequester();
+            drf.removeRequester(full);
+            skipped.add(full);
+        }
+        if (drf.hasRequesters()) {
+            sendOffers();
+        }
+        for (MesosScheduler scheduler : skipped) {
+            drf.addRequester(scheduler);
+        }
+    }
+
+    /**
+     * Build the round's offers, the head of the DRF order having room for one.
+     */
+    private void sendOffers() {
+        if (machineOffered == null) {
+            MesosScheduler scheduler = drf.peekRequester();
+            Offer offer = new Offer(nextOfferId++, scheduler, cellState.copy());
+            List<ClaimDelta> lockDeltas = scheduler.scheduleAllAvailable(cellState, true);
+            if (!lockDeltas.isEmpty()) {
+                numOfferRounds++;
+                sendOffer(new OutstandingOffer(offer, lockDeltas, frameworks.get(scheduler)));
+            }
+            return;
+        }
+
+        List<MesosScheduler> served = new ArrayList<>();
+        int nextMachine = 0;
+        boolean sentOffer = false;
+        while (drf.hasRequesters()) {
+            MesosScheduler scheduler = drf.peekRequester();
+            drf.removeRequester(scheduler);
+            served.add(scheduler);
+            if (frameworks.get(scheduler).numOutstandingOffers >= frameworkQueueCapacity) {
+                numFullFrameworkSkips++;
+                continue;
+            }
+            int[] machineIDs = new int[allocator.getMachinesPerOffer()];
+            int n = 0;
+            while (n < machineIDs.length && nextMachine < cellState.getNumMachines()) {
+                int mID = nextMachine++;
+                if (!machineOffered[mID] &&
+                    cellState.availableCpusPerMachine(mID) > 0.000001 &&
+                    cellState.availableMemPerMachine(mID) > 0.000001) {
+                    machineIDs[n++] = mID;
+                }
+            }
+            if (n == 0) {
+                break;
+            }
+            machineIDs = Arrays.copyOf(machineIDs, n);
+            Offer offer = new Offer(nextOfferId++, scheduler, cellState.copyMachines(machineIDs), machineIDs);
+            for (int mID : machineIDs) {
+                machineOffered[mID] = true;
+            }
+            List<ClaimDelta> lockDeltas = scheduler.scheduleAllAvailable(cellState, machineIDs, true);
+            sendOffer(new OutstandingOffer(offer, lockDeltas, frameworks.get(scheduler)));
+            sentOffer = true;
+        }
+        if (sentOffer) {
+            numOfferRounds++;
+        }
+        for (MesosScheduler scheduler : served) {
+            drf.addRequester(scheduler);
+        }
+    }
+
+    /**
+     * Lock an offer's resources and deliver it once the allocator is done
+     * thinking, unless the framework has gone or its queue is full.
+     */
+    private void sendOffer(OutstandingOffer outstanding) {
+        long offerId = outstanding.offer.getId();
+        outstandingOffers.put(offerId, outstanding);
+        outstanding.framework.numOutstandingOffers++;
+        numOffersSent++;
+        after(allocator.getThinkTime(), () -> {
+            if (outstandingOffers.get(offerId) != outstanding) {
+                return;
+            }
+            Framework framework = outstanding.framework;
+            if (framework.done ||
+                !framework.queue.offer(new Message(OFFER, framework, outstanding.offer, null))) {
+                if (!framework.done) {
+                    numOffersDropped++;
+                }
+                outstandingOffers.remove(offerId);
+                releaseOffer(outstanding);
+                scheduleRound();
+                return;
+            }
+            maxFrameworkQueueDepth = Math.max(maxFrameworkQueueDepth, framework.queue.size());
+        });
+    }
+
+    private void releaseOffer(OutstandingOffer outstanding) {
+        outstanding.framework.numOutstandingOffers--;
+        if (outstanding.offer.isPartial()) {
+            for (int mID : outstanding.offer.getMachineIDs()) {
+                machineOffered[mID] = false;
+            }
+        }
+        for (ClaimDelta delta : outstanding.lockDeltas) {
+            delta.unApply(cellState, true);
+        }
+    }
+
+    /**
+     * Unlock an answered offer and commit the tasks of the response, as
+     * MesosAllocator.respondToOffer.
+     */
+    private void respond(Offer offer, List<ClaimDelta> claimDeltas) {
+        OutstandingOffer outstanding = outstandingOffers.remove(offer.getId());
+        if (outstanding == null) {
+            throw new IllegalStateException("Response to unknown offer " + offer.getId());
+        }
+        releaseOffer(outstanding);
+        if (claimDeltas.isEmpty()) {
+            numOffersDeclined++;
+        }
+        if (offer.isPartial()) {
+            List<ClaimDelta> translated = new ArrayList<>(claimDeltas.size());
+            for (ClaimDelta delta : claimDeltas) {
+                int mID = offer.toCellMachineID(delta.getMachineID());
+                translated.add(new ClaimDelta(delta.getScheduler(), mID,
+                    cellState.getMachineSeqNum(mID), delta.getCpuSeqNum(), delta.getMemSeqNum(),
+                    delta.getDuration(), delta.getCpus(), delta.getMem(), delta.getJob(),
+                    delta.getExtraResources(), delta.getExtraSeqNums()));
+            }
+            claimDeltas = translated;
+        }
+        if (!claimDeltas.isEmpty()) {
+            CellState.CommitResult commitResult = cellState.commit(claimDeltas, false);
+            if (!commitResult.getConflictedDeltas().isEmpty()) {
+                throw new IllegalStateException(
+                    "Expecting no conflicts, but there were " +
+                    commitResult.getConflictedDeltas().size());
+            }
+            MesosScheduler scheduler = offer.getScheduler();
+            double committedCpus = 0.0;
+            double committedMem = 0.0;
+            for (ClaimDelta delta : commitResult.getCommittedDeltas()) {
+                committedCpus += delta.getCpus();
+                committedMem += delta.getMem();
+                after(delta.getDuration(), () -> {
+                    delta.unApply(cellState, false);
+                    drf.free(scheduler, delta.getCpus(), delta.getMem(), delta.getExtraResources());
+                    scheduleRound();
+                });
+            }
+            drf.allocate(scheduler, committedCpus, committedMem,
+                         ClaimDelta.sumExtraResources(commitResult.getCommittedDeltas()));
+        }
+        scheduleRound();
+    }
+
+    /**
+     * Totals over all frameworks, under the metric names the simulated runs
+     * report, plus the wall-clock measurements of the offer protocol.
+     */
+    public Map<String, Double> getSummary() {
+        Map<String, Double> summary = new LinkedHashMap<>();
+        double successful = 0, noResources = 0, timedOut = 0, useful = 0;
+        double waitTime = 0, fullyScheduled = 0, blockedSends = 0;
+        LatencySamples offerLatency = new LatencySamples();
+        for (Framework f : frameworks.values()) {
+            successful += f.numSuccessfulTransactions;
+            noResources += f.numNoResourcesFoundSchedulingAttempts;
+            timedOut += f.numJobsTimedOutScheduling;
+            useful += f.totalUsefulTimeScheduling;
+            waitTime += f.totalJobWaitTime;
+            fullyScheduled += f.numJobsFullyScheduled;
+            blockedSends += f.numBlockedSends;
+            offerLatency.addAll(f.offerLatency);
+        }
+        summary.put("num_successful_transactions", successful);
+        summary.put("num_no_resources_found_scheduling_attempts", noResources);
+        summary.put("num_jobs_timed_out_scheduling", timedOut);
+        summary.put("total_useful_time_scheduling", useful);
+        summary.put("mean_job_wait_time", fullyScheduled == 0 ? 0.0 : waitTime / fullyScheduled);
+        summary.put("num_offer_rounds", (double) numOfferRounds);
+        summary.put("num_offers_sent", (double) numOffersSent);
+        summary.put("num_offers_declined", (double) numOffersDeclined);
+        summary.put("num_offers_dropped", (double) numOffersDropped);
+        summary.put("num_full_framework_skips", (double) numFullFrameworkSkips);
+        summary.put("offer_latency_mean_us", offerLatency.meanMicros());
+        summary.put("offer_latency_p99_us", offerLatency.quantileMicros(0.99));
+        summary.put("response_latency_mean_us", responseLatency.meanMicros());
+        summary.put("response_latency_p99_us", responseLatency.quantileMicros(0.99));
+        summary.put("allocator_utilization", getAllocatorUtilization());
+        summary.put("allocator_queue_depth_mean",
+            numMessagesHandled == 0 ? 0.0 : (double) allocatorQueueDepthSum / numMessagesHandled);
+        summary.put("allocator_queue_depth_max", (double) maxAllocatorQueueDepth);
+        summary.put("framework_queue_depth_max", (double) maxFrameworkQueueDepth);
+        summary.put("num_blocked_sends", blockedSends);
+        summary.put("virtual_threads", virtualThreads ? 1.0 : 0.0);
+        summary.put("wall_seconds", wallSeconds);
+        return summary;
+    }
+}
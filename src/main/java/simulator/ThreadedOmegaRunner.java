@@ -0,0 +1,383 @@
+package simulator;
+
+import scheduler.IScheduler;
+import scheduler.OmegaScheduler;
+import scheduler.RetryPolicy;
+import simulator.core.AtomicCellState;
+import simulator.core.CellState;
+import simulator.core.ClaimDelta;
+import simulator.core.Job;
+import simulator.core.PlacementConstraint;
+import simulator.core.Workload;
+
+import java.util.*;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs the schedulers of an OmegaSimulator for real: each OmegaScheduler gets
+ * its own platform thread, and all of them commit to one AtomicCellState
+ * concurrently, instead of taking turns in the simulator's event loop. Think
+ * times, task durations, arrivals and retry delays are slept out in wall-clock
+ * time, timeScale wall seconds per simulated second, so the schedulers overlap
+ * as they would in the simulation; conflicts, retries, CAS contention and
+ * commit latency are then whatever actually happens between the threads.
+ *
+ * The simulator only provides the setup: its cell state's shape, modes and
+ * prefill, its schedulers (with their placement and retry policies) and its
+ * workloads and routing. It must not also be run, since the jobs are shared.
+ * Each scheduler works on one job at a time; a capacity-triggered retry
+ * policy falls back to its timer delay, as nothing here signals freed room.
+ */
+public class ThreadedOmegaRunner {
+    private final OmegaSimulator simulator;
+    private final double timeScale;
+    private final AtomicCellState cellState;
+    private final Map<String, SchedulerStats> stats = new TreeMap<>();
+    private final DelayQueue<TaskEnd> taskEnds = new DelayQueue<>();
+    private double wallSeconds = 0.0;
+
+    /**
+     * Per-scheduler results, each only touched by that scheduler's thread
+     * until the run is over.
+     */
+    public static class SchedulerStats {
+        private int numSuccessfulTransactions = 0;
+        private int numFailedTransactions = 0;
+        private int numRetriedTransactions = 0;
+        private int numNoResourcesFoundSchedulingAttempts = 0;
+        private int numJobsTimedOutScheduling = 0;
+        private int numJobsFullyScheduled = 0;
+        private long numSuccessfulTaskTransactions = 0;
+        private long numFailedTaskTransactions = 0;
+        private double totalUsefulTimeScheduling = 0.0;
+        private double totalWastedTimeScheduling = 0.0;
+        private double totalJobWaitTime = 0.0;
+        private long[] commitNanos = new long[1024];
+        private int numCommits = 0;
+
+        public int getNumSuccessfulTransactions() { return numSuccessfulTransactions; }
+        public int getNumFailedTransactions() { return numFailedTransactions; }
+        public int getNumRetriedTransactions() { return numRetriedTransactions; }
+        public int getNumNoResourcesFoundSchedulingAttempts() { return numNoResourcesFoundSchedulingAttempts; }
+        public int getNumJobsTimedOutScheduling() { return numJobsTimedOutScheduling; }
+        public int getNumJobsFullyScheduled() { return numJobsFullyScheduled; }
+        public long getNumSuccessfulTaskTransactions() { return numSuccessfulTaskTransactions; }
+        public long getNumFailedTaskTransactions() { return numFailedTaskTransactions; }
+        public double getTotalUsefulTimeScheduling() { return totalUsefulTimeScheduling; }
+        public double getTotalWastedTimeScheduling() { return totalWastedTimeScheduling; }
+        public int getNumCommits() { return numCommits; }
+
+        /** Mean simulated seconds from submission until fully scheduled. */
+        public double getMeanJobWaitTime() {
+            return numJobsFullyScheduled == 0 ? 0.0 : totalJobWaitTime / numJobsFullyScheduled;
+        }
+
+        private void recordCommit(long nanos) {
+            if (numCommits == commitNanos.length) {
+                commitNanos = Arrays.copyOf(commitNanos, 2 * numCommits);
+            }
+            commitNanos[numCommits++] = nanos;
+        }
+
+        public double getMeanCommitMicros() {
+            long total = 0;
+            for (int i = 0; i < numCommits; i++) {
+                total += commitNanos[i];
+            }
+            return numCommits == 0 ? 0.0 : total / 1000.0 / numCommits;
+        }
+
+        /** Wall-clock commit latency at the given quantile, in microseconds. */
+        public double getCommitMicros(double quantile) {
+            if (numCommits == 0) {
+                return 0.0;
+            }
+            long[] sorted = Arrays.copyOf(commitNanos, numCommits);
+            Arrays.sort(sorted);
+            int index = (int) Math.min(numCommits - 1, Math.ceil(quantile * numCommits) - 1);
+            return sorted[Math.max(0, index)] / 1000.0;
+        }
+    }
+
+    private static class TaskEnd implements Delayed {
+        final ClaimDelta delta;
+        final long endNanos;
+
+        TaskEnd(ClaimDelta delta, long endNanos) {
+            this.delta = delta;
+            this.endNanos = endNanos;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(endNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(endNanos, ((TaskEnd) other).endNanos);
+        }
+    }
+
+    private static class PendingJob implements Comparable<PendingJob> {
+        final Job job;
+        final long readyNanos;
+        final long seq;
+
+        PendingJob(Job job, long readyNanos, long seq) {
+            this.job = job;
+            this.readyNanos = readyNanos;
+            this.seq = seq;
+        }
+
+        @Override
+        public int compareTo(PendingJob other) {
+            int c = Long.compare(readyNanos, other.readyNanos);
+            return c != 0 ? c : Long.compare(seq, other.seq);
+        }
+    }
+
+    /**
+     * @param timeScale Wall-clock seconds per simulated second
+     */
+    public ThreadedOmegaRunner(OmegaSimulator simulator, double timeScale) {
+        if (timeScale <= 0.0) {
+            throw new IllegalArgumentException("timeScale must be positive, but it was " + timeScale);
+        }
+        this.simulator = simulator;
+        this.timeScale = timeScale;
+        this.cellState = new AtomicCellState(simulator.getCellState());
+        for (String name : simulator.getSchedulers().keySet()) {
+            stats.put(name, new SchedulerStats());
+        }
+    }
+
+    public AtomicCellState getCellState() { return cellState; }
+    public double getWallSeconds() { return wallSeconds; }
+
+    public SchedulerStats getStats(String schedulerName) {
+        return stats.get(schedulerName);
+    }
+
+    private long toNanos(double simulatedSeconds) {
+        return (long) (simulatedSeconds * timeScale * 1e9);
+    }
+
+    private static void sleepUntil(long deadlineNanos) {
+        long left;
+        while ((left = deadlineNanos - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(left);
+        }
+    }
+
+    /**
+     * Route every job of the simulator's workloads to a scheduler, round-robin
+     * over the workload's schedulers as the simulator does.
+     */
+    private Map<String, List<Job>> routeJobs() {
+        Map<String, List<Job>> jobsByScheduler = new HashMap<>();
+        for (String name : simulator.getSchedulers().keySet()) {
+            jobsByScheduler.put(name, new ArrayList<>());
+        }
+        Map<String, Integer> nextScheduler = new HashMap<>();
+        for (Workload workload : simulator.workloads) {
+            for (Job job : workload.getJobs()) {
+                List<String> names = simulator.workloadToSchedulerMap.get(job.getWorkloadName());
+                if (names == null || names.isEmpty()) {
+                    throw new IllegalStateException(
+                        "No scheduler is assigned to workload " + job.getWorkloadName());
+                }
+                int next = nextScheduler.getOrDefault(job.getWorkloadName(), 0);
+                nextScheduler.put(job.getWorkloadName(), next + 1);
+                jobsByScheduler.get(names.get(next % names.size())).add(job);
+            }
+        }
+        return jobsByScheduler;
+    }
+
+    private static boolean hasAntiAffinity(Map<String, List<Job>> jobsByScheduler) {
+        for (List<Job> jobs : jobsByScheduler.values()) {
+            for (Job job : jobs) {
+                for (PlacementConstraint constraint : job.getConstraints()) {
+                    if (!constraint.isOnAttributes()) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Run every scheduler on its own thread until all of its jobs are scheduled
+     * or abandoned.
+     */
+    public void run() throws InterruptedException {
+        Map<String, List<Job>> jobsByScheduler = routeJobs();
+        if (hasAntiAffinity(jobsByScheduler)) {
+            cellState.trackJobs();
+        }
+        long startNanos = System.nanoTime();
+
+        Thread releaser = new Thread(() -> {
+            try {
+                while (true) {
+                    cellState.release(taskEnds.take().delta);
+                }
+            } catch (InterruptedException e) {
+                // Run is over
+            }
+        }, "task-ends");
+        releaser.setDaemon(true);
+        releaser.start();
+
+        List<Thread> threads = new ArrayList<>();
+        for (Map.Entry<String, IScheduler> entry : simulator.getSchedulers().entrySet()) {
+            OmegaScheduler scheduler = (OmegaScheduler) entry.getValue();
+            List<Job> jobs = jobsByScheduler.get(entry.getKey());
+            SchedulerStats schedulerStats = stats.get(entry.getKey());
+            Thread thread = new Thread(
+                () -> schedule(scheduler, jobs, schedulerStats, startNanos), entry.getKey());
+            threads.add(thread);
+        }
+        System.out.println(String.format("*** Threaded Omega run started with %d schedulers. ***",
+            threads.size()));
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        wallSeconds = (System.nanoTime() - startNanos) / 1e9;
+        releaser.interrupt();
+        releaser.join();
+        System.out.println(String.format("*** Threaded Omega run finished after %.3f wall seconds. ***",
+            wallSeconds));
+    }
+
+    /**
+     * One scheduler's thread: take jobs in the order they become ready, think,
+     * place them in a fresh snapshot and commit, and requeue what is left.
+     */
+    private void schedule(OmegaScheduler scheduler, List<Job> jobs, SchedulerStats schedulerStats,
+                          long startNanos) {
+        PriorityQueue<PendingJob> pending = new PriorityQueue<>();
+        long nextSeq = 0;
+        for (Job job : jobs) {
+            pending.add(new PendingJob(job, startNanos + toNanos(job.getSubmitted()), nextSeq++));
+        }
+        RetryPolicy retryPolicy = scheduler.getRetryPolicy();
+
+        while (!pending.isEmpty()) {
+            PendingJob next = pending.poll();
+            Job job = next.job;
+            sleepUntil(next.readyNanos);
+            // Snapshot first and think on it, as OmegaScheduler does; the cell
+            // moves on meanwhile, which is where conflicts come from
+            CellState snapshot = cellState.snapshot();
+            double thinkTime = scheduler.getThinkTime(job);
+            sleepUntil(System.nanoTime() + toNanos(thinkTime));
+            job.setNumSchedulingAttempts(job.getNumSchedulingAttempts() + 1);
+            job.setNumTaskSchedulingAttempts(
+                job.getNumTaskSchedulingAttempts() + job.getUnscheduledTasks());
+
+            List<ClaimDelta> claimDeltas = scheduler.scheduleJob(job, snapshot);
+            CellState.CommitResult commitResult = null;
+            if (!claimDeltas.isEmpty()) {
+                long commitStart = System.nanoTime();
+                commitResult = cellState.commit(claimDeltas);
+                long now = System.nanoTime();
+                schedulerStats.recordCommit(now - commitStart);
+                for (ClaimDelta d : commitResult.getCommittedDeltas()) {
+                    taskEnds.add(new TaskEnd(d, now + toNanos(d.getDuration())));
+                }
+            }
+
+            if (commitResult != null) {
+                job.setUnscheduledTasks(
+                    job.getUnscheduledTasks() - commitResult.getCommittedDeltas().size());
+                schedulerStats.numSuccessfulTaskTransactions += commitResult.getCommittedDeltas().size();
+                schedulerStats.numFailedTaskTransactions += commitResult.getConflictedDeltas().size();
+                if (job.getNumSchedulingAttempts() > 1) {
+                    schedulerStats.numRetriedTransactions++;
+                }
+                if (commitResult.getConflictedDeltas().isEmpty()) {
+                    schedulerStats.numSuccessfulTransactions++;
+                    schedulerStats.totalUsefulTimeScheduling += thinkTime;
+                } else {
+                    schedulerStats.numFailedTransactions++;
+                    schedulerStats.totalWastedTimeScheduling += thinkTime;
+                }
+            } else {
+                schedulerStats.numNoResourcesFoundSchedulingAttempts++;
+            }
+
+            double simulatedNow = (System.nanoTime() - startNanos) / 1e9 / timeScale;
+            if (job.getUnscheduledTasks() == 0) {
+                schedulerStats.numJobsFullyScheduled++;
+                schedulerStats.totalJobWaitTime += simulatedNow - job.getSubmitted();
+                continue;
+            }
+            boolean noProgress = job.getUnscheduledTasks() == job.getNumTasks();
+            if (job.getNumSchedulingAttempts() > retryPolicy.getMaxAttempts() ||
+                (noProgress && job.getNumSchedulingAttempts() > retryPolicy.getMaxAttemptsWithoutProgress())) {
+                System.out.println(String.format(
+                    "Abandoning job %d (%f cpu %f mem) with %d/%d remaining tasks, " +
+                    "after %d scheduling attempts.",
+                    job.getId(), job.getCpusPerTask(), job.getMemPerTask(),
+                    job.getUnscheduledTasks(), job.getNumTasks(), job.getNumSchedulingAttempts()));
+                schedulerStats.numJobsTimedOutScheduling++;
+                continue;
+            }
+            boolean lackOfRoom = commitResult == null || commitResult.getConflictedDeltas().isEmpty();
+            double delay = retryPolicy.getRetryDelay(job, lackOfRoom);
+            pending.add(new PendingJob(job, System.nanoTime() + toNanos(delay), nextSeq++));
+        }
+    }
+
+    /**
+     * Totals over all schedulers, under the metric names the simulated runs
+     * report, plus the wall-clock measurements only a threaded run has.
+     */
+    public Map<String, Double> getSummary() {
+        Map<String, Double> summary = new LinkedHashMap<>();
+        double successful = 0, failed = 0, retried = 0, noResources = 0, timedOut = 0;
+        double useful = 0, wasted = 0, waitTime = 0, fullyScheduled = 0;
+        double commits = 0, commitMicros = 0;
+        SchedulerStats all = new SchedulerStats();
+        for (SchedulerStats s : stats.values()) {
+            successful += s.numSuccessfulTransactions;
+            failed += s.numFailedTransactions;
+            retried += s.numRetriedTransactions;
+            noResources += s.numNoResourcesFoundSchedulingAttempts;
+            timedOut += s.numJobsTimedOutScheduling;
+            useful += s.totalUsefulTimeScheduling;
+            wasted += s.totalWastedTimeScheduling;
+            waitTime += s.totalJobWaitTime;
+            fullyScheduled += s.numJobsFullyScheduled;
+            commits += s.numCommits;
+            commitMicros += s.getMeanCommitMicros() * s.numCommits;
+            for (int i = 0; i < s.numCommits; i++) {
+                all.recordCommit(s.commitNanos[i]);
+            }
+        }
+        summary.put("num_successful_transactions", successful);
+        summary.put("num_failed_transactions", failed);
+        summary.put("num_retried_transactions", retried);
+        summary.put("num_no_resources_found_scheduling_attempts", noResources);
+        summary.put("num_jobs_timed_out_scheduling", timedOut);
+        summary.put("total_useful_time_scheduling", useful);
+        summary.put("total_wasted_time_scheduling", wasted);
+        summary.put("conflict_fraction", successful + failed == 0 ? 0.0 : failed / (successful + failed));
+        summary.put("mean_job_wait_time", fullyScheduled == 0 ? 0.0 : waitTime / fullyScheduled);
+        summary.put("num_cas_failures", (double) cellState.getNumCasFailures());
+        summary.put("cas_failures_per_commit", commits == 0 ? 0.0 : cellState.getNumCasFailures() / commits);
+        summary.put("commit_latency_mean_us", commits == 0 ? 0.0 : commitMicros / commits);
+        summary.put("commit_latency_p99_us", all.getCommitMicros(0.99));
+        summary.put("wall_seconds", wallSeconds);
+        return summary;
+    }
+}
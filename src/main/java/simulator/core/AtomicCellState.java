@@ -0,0 +1,320 @@
+package simulator.core;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A cell state that many scheduler threads can commit to at once without
+ * locks. Each machine is one word of an AtomicLongArray packing its sequence
+ * number (22 bits), allocated cpus (21 bits) and allocated mem (21 bits), the
+ * resources in fixed point with the machine's capacity at CAPACITY_UNITS. A
+ * delta is validated and applied with a single compare-and-set of its
+ * machine's word; a failed CAS means another thread got to the machine first,
+ * and the delta is validated again against the new word.
+ *
+ * Conflicts are detected as in CellState for "sequence-numbers" and
+ * "resource-fit". Deltas of a rigid job, or all deltas in "all-or-nothing"
+ * mode, are rolled back if any of them conflicts, by subtracting what was
+ * already added (sequence numbers stay bumped, as with CellState.commit).
+ * Sequence numbers wrap at 2^22; they are only compared for equality, so a
+ * wrong match needs that many commits to one machine during one think time.
+ *
+ * Once trackJobs is called, which jobs run where is kept in a JobMachineIndex
+ * that snapshots share, so NOT_WITH_JOB constraints hold at placement, and
+ * commit checks them again (ANTI_AFFINITY) between reading a machine's word
+ * and the CAS. A delta is entered in the index before its CAS, so of two
+ * racing transactions on a machine, the one whose job must avoid the other's
+ * either sees it in the index or loses the CAS and looks again.
+ */
+public class AtomicCellState {
+    public static final int CAPACITY_UNITS = 1 << 20;
+    private static final int RESOURCE_BITS = 21;
+    private static final long RESOURCE_MASK = (1L << RESOURCE_BITS) - 1;
+    private static final int SEQ_SHIFT = 2 * RESOURCE_BITS;
+    private static final long SEQ_MASK = (1L << (64 - SEQ_SHIFT)) - 1;
+
+    private final int numMachines;
+    private final double cpusPerMachine;
+    private final double memPerMachine;
+    private final String conflictMode;
+    private final String transactionMode;
+    private final AtomicLongArray machines;
+    // Machine attributes snapshots are given, for placement constraints
+    private MachineAttributes attributes;
+    // Machines running each job's committed deltas, shared with snapshots;
+    // kept up to date only while trackingJobs
+    private JobMachineIndex jobMachines = new JobMachineIndex();
+    private boolean trackingJobs = false;
+
+    private final LongAdder numCasFailures = new LongAdder();
+    private final LongAdder numCommits = new LongAdder();
+    private final LongAdder numReleases = new LongAdder();
+    private final LongAdder[] numConflictsByKind = new LongAdder[CellState.ConflictKind.values().length];
+
+    public AtomicCellState(int numMachines, double cpusPerMachine, double memPerMachine,
+                           String conflictMode, String transactionMode) {
+        if (!conflictMode.equals("sequence-numbers") && !conflictMode.equals("resource-fit")) {
+            throw new IllegalArgumentException(
+                "conflictMode must be one of: {'sequence-numbers', 'resource-fit'}, " +
+                "but it was " + conflictMode);
+        }
+        if (!transactionMode.equals("all-or-nothing") && !transactionMode.equals("incremental")) {
+            throw new IllegalArgumentException(
+                "transactionMode must be one of: {'all-or-nothing', 'incremental'}, " +
+                "but it was " + transactionMode);
+        }
+        this.numMachines = numMachines;
+        this.cpusPerMachine = cpusPerMachine;
+        this.memPerMachine = memPerMachine;
+        this.conflictMode = conflictMode;
+        this.transactionMode = transactionMode;
+        this.machines = new AtomicLongArray(numMachines);
+        this.attributes = MachineAttributes.none(numMachines);
+        for (int i = 0; i < numConflictsByKind.length; i++) {
+            numConflictsByKind[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * A lock-free cell with the same shape, modes, machine attributes and
+     * current allocations as the given one.
+     */
+    public AtomicCellState(CellState source) {
+        this(source.getNumMachines(), source.getCpusPerMachine(), source.getMemPerMachine(),
+             source.getConflictMode(), source.getTransactionMode());
+        if (source.getNumDimensions() > 2) {
+            throw new IllegalArgumentException(
+                "A lock-free cell packs only cpus and mem, but the cell has " +
+                source.getNumDimensions() + " resource dimensions.");
+        }
+        if (source.getNumShapeClasses() > 1) {
+            throw new IllegalArgumentException(
+                "A lock-free cell has machines of one shape, but the cell has " +
+                source.getNumShapeClasses() + " shape classes.");
+        }
+        this.attributes = source.getAttributes();
+        this.jobMachines = source.getJobMachines().copy();
+        for (int m = 0; m < numMachines; m++) {
+            long cpus = cpuUnits(cpusPerMachine - source.availableCpusPerMachine(m));
+            long mem = memUnits(memPerMachine - source.availableMemPerMachine(m));
+            machines.set(m, pack(source.getMachineSeqNum(m), cpus, mem));
+        }
+    }
+
+    /**
+     * Keep which jobs run where from now on, for NOT_WITH_JOB constraints.
+     * Off by default, as it costs every commit and release a map update;
+     * call before any thread commits.
+     */
+    public void trackJobs() {
+        trackingJobs = true;
+    }
+
+    public int getNumMachines() { return numMachines; }
+    public String getConflictMode() { return conflictMode; }
+    public String getTransactionMode() { return transactionMode; }
+
+    /** Compare-and-sets that lost to another thread and had to be redone. */
+    public long getNumCasFailures() { return numCasFailures.sum(); }
+    public long getNumCommits() { return numCommits.sum(); }
+    public long getNumReleases() { return numReleases.sum(); }
+
+    public long getNumConflicts(CellState.ConflictKind kind) {
+        return numConflictsByKind[kind.ordinal()].sum();
+    }
+
+    private static long pack(long seqNum, long cpus, long mem) {
+        return ((seqNum & SEQ_MASK) << SEQ_SHIFT) | (cpus << RESOURCE_BITS) | mem;
+    }
+
+    private static int seqNum(long word) { return (int) (word >>> SEQ_SHIFT); }
+    private static long cpus(long word) { return (word >>> RESOURCE_BITS) & RESOURCE_MASK; }
+    private static long mem(long word) { return word & RESOURCE_MASK; }
+
+    private long cpuUnits(double cpus) {
+        return Math.round(cpus / cpusPerMachine * CAPACITY_UNITS);
+    }
+
+    private long memUnits(double mem) {
+        return Math.round(mem / memPerMachine * CAPACITY_UNITS);
+    }
+
+    public double allocatedCpusPerMachine(int machineID) {
+        return cpus(machines.get(machineID)) * cpusPerMachine / CAPACITY_UNITS;
+    }
+
+    public double allocatedMemPerMachine(int machineID) {
+        return mem(machines.get(machineID)) * memPerMachine / CAPACITY_UNITS;
+    }
+
+    /**
+     * A private CellState to place tasks in. Each machine is read atomically,
+     * the cell as a whole is not: machines changed while it is taken show up
+     * as conflicts at commit time, exactly like a stale Omega snapshot.
+     */
+    public CellState snapshot() {
+        CellState snapshot = new CellState(numMachines, cpusPerMachine, memPerMachine,
+                                           conflictMode, transactionMode);
+        snapshot.setAttributes(attributes);
+        snapshot.setJobMachines(jobMachines);
+        for (int m = 0; m < numMachines; m++) {
+            long word = machines.get(m);
+            snapshot.loadMachine(m, cpus(word) * cpusPerMachine / CAPACITY_UNITS,
+                                 mem(word) * memPerMachine / CAPACITY_UNITS, seqNum(word));
+        }
+        return snapshot;
+    }
+
+    /**
+     * Attempt to commit a list of deltas. Same semantics as CellState.commit,
+     * without scheduling end events: call release for each committed delta
+     * when its task ends. Safe to call from any number of threads.
+     */
+    public CellState.CommitResult commit(List<ClaimDelta> deltas) {
+        boolean allOrNothing = transactionMode.equals("all-or-nothing") ||
+            (!deltas.isEmpty() && deltas.get(0).getJob() != null &&
+             deltas.get(0).getJob().isRigid());
+        List<ClaimDelta> appliedDeltas = new ArrayList<>();
+        List<ClaimDelta> conflictDeltas = new ArrayList<>();
+        CellState.ConflictKind firstConflictKind = null;
+        // As in CellState.commit: a later delta on a machine that already
+        // conflicted must not pass on a coincidental sequence number match.
+        Set<Integer> conflictedMachines = null;
+
+        for (ClaimDelta d : deltas) {
+            boolean seqNumsValid = conflictedMachines == null ||
+                                   !conflictedMachines.contains(d.getMachineID());
+            if (trackingJobs && d.getJob() != null) {
+                // Before the CAS, see the class comment
+                jobMachines.add(d.getJob().getId(), d.getMachineID());
+            }
+            CellState.ConflictKind kind = tryApply(d, seqNumsValid, appliedDeltas);
+            if (kind == null) {
+                appliedDeltas.add(d);
+                continue;
+            }
+            if (trackingJobs && d.getJob() != null) {
+                jobMachines.remove(d.getJob().getId(), d.getMachineID());
+            }
+            numConflictsByKind[kind.ordinal()].increment();
+            if (firstConflictKind == null) {
+                firstConflictKind = kind;
+            }
+            if (conflictedMachines == null) {
+                conflictedMachines = new HashSet<>();
+            }
+            conflictedMachines.add(d.getMachineID());
+            conflictDeltas.add(d);
+            if (allOrNothing) {
+                for (ClaimDelta applied : appliedDeltas) {
+                    release(applied);
+                    conflictDeltas.add(applied);
+                }
+                appliedDeltas.clear();
+                break;
+            }
+        }
+        numCommits.increment();
+        return new CellState.CommitResult(appliedDeltas, conflictDeltas, firstConflictKind);
+    }
+
+    /**
+     * Validate a delta against its machine's word and claim its resources in
+     * one CAS, redoing both if another thread changed the word in between.
+     * @param appliedDeltas Deltas of the transaction applied before this one
+     * @return The kind of conflict, or null if the delta was applied
+     */
+    private CellState.ConflictKind tryApply(ClaimDelta d, boolean seqNumsValid,
+                                            List<ClaimDelta> appliedDeltas) {
+        int machineID = d.getMachineID();
+        long cpus = cpuUnits(d.getCpus());
+        long mem = memUnits(d.getMem());
+        boolean checkSeqNum = conflictMode.equals("sequence-numbers");
+        while (true) {
+            long word = machines.get(machineID);
+            if (checkSeqNum && (!seqNumsValid || seqNum(word) != d.getMachineSeqNum())) {
+                return CellState.ConflictKind.SEQUENCE_NUMBER;
+            }
+            if (cpus(word) + cpus > CAPACITY_UNITS) {
+                return CellState.ConflictKind.CPU_OVERCOMMIT;
+            }
+            if (mem(word) + mem > CAPACITY_UNITS) {
+                return CellState.ConflictKind.MEM_OVERCOMMIT;
+            }
+            if (trackingJobs && violatesAntiAffinity(d, appliedDeltas)) {
+                return CellState.ConflictKind.ANTI_AFFINITY;
+            }
+            long updated = pack(seqNum(word) + 1L, cpus(word) + cpus, mem(word) + mem);
+            if (machines.compareAndSet(machineID, word, updated)) {
+                return null;
+            }
+            numCasFailures.increment();
+        }
+    }
+
+    /**
+     * Free the resources of a committed delta, when its task ends or its
+     * transaction is rolled back. Leaves the sequence number alone, like
+     * CellState.freeResources.
+     */
+    public void release(ClaimDelta d) {
+        int machineID = d.getMachineID();
+        long cpus = cpuUnits(d.getCpus());
+        long mem = memUnits(d.getMem());
+        while (true) {
+            long word = machines.get(machineID);
+            if (cpus(word) < cpus || mem(word) < mem) {
+                throw new IllegalStateException(String.format(
+                    "Tried to free %f cpus, %f mem on machine %d, but only %f cpus, %f mem " +
+                    "are allocated there.", d.getCpus(), d.getMem(), machineID,
+                    cpus(word) * cpusPerMachine / CAPACITY_UNITS,
+                    mem(word) * memPerMachine / CAPACITY_UNITS));
+            }
+            long updated = pack(seqNum(word), cpus(word) - cpus, mem(word) - mem);
+            if (machines.compareAndSet(machineID, word, updated)) {
+                if (trackingJobs && d.getJob() != null) {
+                    jobMachines.remove(d.getJob().getId(), machineID);
+                }
+                numReleases.increment();
+                return;
+            }
+            numCasFailures.increment();
+        }
+    }
+
+    /**
+     * Whether the delta's machine runs a task of a job that the delta's job
+     * must not share a machine with, as CellState.commit checks. The delta
+     * and the deltas of its job this transaction applied are in the index
+     * already, so don't count against a constraint of the job on itself.
+     */
+    private boolean violatesAntiAffinity(ClaimDelta d, List<ClaimDelta> appliedDeltas) {
+        Job job = d.getJob();
+        if (job == null || !job.hasConstraints()) {
+            return false;
+        }
+        int machineID = d.getMachineID();
+        for (PlacementConstraint constraint : job.getConstraints()) {
+            if (constraint.isOnAttributes()) {
+                continue;
+            }
+            int own = 0;
+            if (constraint.getJobId() == job.getId()) {
+                own = 1;
+                for (ClaimDelta applied : appliedDeltas) {
+                    if (applied.getJob() == job && applied.getMachineID() == machineID) {
+                        own++;
+                    }
+                }
+            }
+            if (jobMachines.count(constraint.getJobId(), machineID) > own) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
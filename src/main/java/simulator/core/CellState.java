@@ -2,29 +2,79 @@ package simulator.core;
 
 import scheduler.IScheduler;
 import simulator.ClusterSimulator;
+import simulator.Event;
 
+import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.IntConsumer;
 
 /**
  * Represents the state of a cluster cell, tracking resource allocation
  * across all machines and schedulers.
+ *
+ * Optimistic transactions are checked with one of these conflict modes:
+ * <ul>
+ *   <li>"sequence-numbers": any claim on the machine since the snapshot conflicts.</li>
+ *   <li>"resource-sequence-numbers": only a claim on a resource dimension the
+ *       delta also asks for conflicts, using per-dimension version counters.</li>
+ *   <li>"fits-unless-overcommitted": a changed sequence number conflicts only if
+ *       the delta would now overcommit the machine; unchanged machines are
+ *       accepted without looking at resources.</li>
+ *   <li>"resource-fit": only current free resources matter.</li>
+ * </ul>
+ *
+ * The deltas of a rigid job's gang are always committed all-or-nothing,
+ * whatever the transaction mode.
+ *
+ * Per-machine state lives in a MachineStore: heap arrays by default, or one
+ * off-heap buffer for very large cells, with the same API either way.
+ *
+ * Machines have cpus and mem, and optionally further resource dimensions (GPUs,
+ * disk, network bandwidth, ...) fixed when the cell is made: dimension 0 is
+ * cpus, 1 is mem, and the rest are numbered from 2. Fit checks, conflict checks
+ * and accounting cover every dimension; the cpu/mem methods stay the fast path,
+ * and a cell of just those two pays nothing for the others.
+ *
+ * Machines need not all be alike: a cell made from MachineShapes has shape
+ * classes of machines with their own capacities, each class a contiguous range
+ * of machine IDs. Scans go class by class and skip the classes a task is too
+ * big for. The per-machine capacity getters (getCpusPerMachine, ...) then give
+ * the largest machine's.
+ *
+ * Jobs with placement constraints may only use some machines: those whose
+ * attributes (setAttributes) meet the job's attribute constraints, found by
+ * intersecting compressed machine sets of the attribute index, less those
+ * running tasks of jobs it must not share a machine with. Scans of such a job
+ * run their kernels over just the eligible ranges of machine IDs, and canHost
+ * checks the constraints too. As a task of the other job may have started on
+ * a machine since the snapshot a job was placed in, commit checks its
+ * NOT_WITH_JOB constraints again (ConflictKind.ANTI_AFFINITY).
  */
-public class CellState {
+public class CellState implements Serializable {
+    private static final long serialVersionUID = 1L;
+    
     private final int numMachines;
     private final double cpusPerMachine;
     private final double memPerMachine;
+    private final int numDimensions;
+    // Capacity by dimension, cpus and mem first; the largest machine's if
+    // they differ
+    private final double[] resourcesPerMachine;
+    private final MachineShapes shapes;
+    // All machines have resourcesPerMachine, so shapes need not be looked at
+    private final boolean uniform;
     private final String conflictMode;
     private final String transactionMode;
     
     private ClusterSimulator simulator;
     
-    // Per-machine resource tracking
-    private final double[] allocatedCpusPerMachine;
-    private final double[] allocatedMemPerMachine;
-    private final int[] machineSeqNums;
+    // Per-machine allocations, sequence numbers and conflict scores
+    private final MachineStore machines;
     
     // Per-scheduler resource tracking
     private final Map<String, Double> occupiedCpus = new HashMap<>();
@@ -38,11 +88,173 @@ public class CellState {
     private double totalLockedCpus = 0.0;
     private double totalLockedMem = 0.0;
     
+    // The same for dimensions 2 and up, indexed by dimension - 2; the maps are
+    // only filled for schedulers that claim something in those dimensions
+    private final Map<String, double[]> occupiedExtra = new HashMap<>();
+    private final Map<String, double[]> lockedExtra = new HashMap<>();
+    private final double[] totalOccupiedExtra;
+    private final double[] totalLockedExtra;
+    
+    // Notified with the machine ID whenever resources are released on it
+    private final List<ResourcesFreedListener> resourcesFreedListeners = new ArrayList<>();
+    
+    /**
+     * What made a delta conflict.
+     */
+    public enum ConflictKind {
+        // The machine changed at all ("sequence-numbers")
+        SEQUENCE_NUMBER,
+        // Cpus or mem were claimed by someone else ("resource-sequence-numbers")
+        CPU_VERSION,
+        MEM_VERSION,
+        // The delta no longer fits ("resource-fit", "fits-unless-overcommitted")
+        CPU_OVERCOMMIT,
+        MEM_OVERCOMMIT,
+        // The same for a resource dimension beyond cpus and mem
+        RESOURCE_VERSION,
+        RESOURCE_OVERCOMMIT,
+        // The machine runs a task of a job the delta's must not share one with
+        ANTI_AFFINITY
+    }
+    
+    private final long[] numConflictsByKind = new long[ConflictKind.values().length];
+    // Deltas whose machine changed since the snapshot without interfering with them
+    private long numHarmlessChanges = 0;
+    
+    // Conflicts per machine, created on first use like runningTasks, and a
+    // score (in the machine store) that halves every conflictHalfLife seconds.
+    // Scores are decayed lazily from the time they were last touched.
+    private long[] conflictsPerMachine;
+    private double conflictHalfLife = 60.0;
+    
+    // Tasks started through scheduleEndEvents, for preemption; created on first
+    // use, so snapshots, which never start tasks, don't pay for it
+    private RunningTaskIndex runningTasks;
+    
+    // Room held for the gang of a rigid job, or null; shared with snapshots
+    private GangReservation gangReservation;
+    
+    // Attributes of the machines, for placement constraints; shared with snapshots
+    private MachineAttributes attributes;
+    // Machines running each job's tasks, kept by taskStarted and taskFinished;
+    // shared with snapshots
+    private JobMachineIndex jobMachines = new JobMachineIndex();
+    // In a snapshot of some machines (copyMachines), the machine of the common
+    // cell each one is; null if the numbering is the same
+    private int[] sourceMachineIDs;
+    // Machines of the common cell, whose tail schedulers blacklist
+    private int sourceNumMachines;
+    // Machines the constrained job last scanned for may use
+    private Eligibility eligibility;
+    // Eligible runs shorter than this are checked machine by machine in the
+    // scans; a FitScan kernel call costs more than it saves on a few machines
+    private static final int SHORT_RUN = 32;
+    
+    private static final class Eligibility implements Serializable {
+        private static final long serialVersionUID = 1L;
+        
+        final Job job;
+        // Meeting the job's attribute constraints, or null if it has none
+        final MachineSet onAttributes;
+        // Of those, the ones that also meet its NOT_WITH_JOB constraints
+        final MachineSet machines;
+        // machines as from/to runs of machine IDs, or null with it
+        final int[] runs;
+        // jobMachines version machines was worked out for
+        final long version;
+        
+        Eligibility(Job job, MachineSet onAttributes, MachineSet machines, int numMachines, long version) {
+            this.job = job;
+            this.onAttributes = onAttributes;
+            this.machines = machines;
+            this.runs = machines == null ? null : machines.ranges(0, numMachines);
+            this.version = version;
+        }
+    }
+    
+    /**
+     * @param offHeap Keep the per-machine state in an off-heap buffer, for cells
+     *                of millions of machines; see OffHeapMachineStore. Copies
+     *                and snapshots stay off-heap.
+     */
+    public CellState(int numMachines, double cpusPerMachine, double memPerMachine,
+                    String conflictMode, String transactionMode, boolean offHeap) {
+        this(numMachines, cpusPerMachine, memPerMachine, conflictMode, transactionMode,
+             offHeap ? new OffHeapMachineStore(numMachines, cpusPerMachine, memPerMachine)
+                     : new HeapMachineStore(numMachines));
+    }
+    
     public CellState(int numMachines, double cpusPerMachine, double memPerMachine,
                     String conflictMode, String transactionMode) {
-        if (!conflictMode.equals("resource-fit") && !conflictMode.equals("sequence-numbers")) {
+        this(numMachines, cpusPerMachine, memPerMachine, conflictMode, transactionMode, false);
+    }
+    
+    /**
+     * A cell whose machines have the given capacity in each resource dimension,
+     * cpus and mem first. The number of dimensions is fixed from here on.
+     */
+    public CellState(int numMachines, double[] resourcesPerMachine,
+                    String conflictMode, String transactionMode, boolean offHeap) {
+        this(numMachines, resourcesPerMachine, conflictMode, transactionMode,
+             offHeap ? new OffHeapMachineStore(numMachines, checkDimensions(resourcesPerMachine))
+                     : new HeapMachineStore(numMachines, checkDimensions(resourcesPerMachine).length));
+    }
+    
+    public CellState(int numMachines, double[] resourcesPerMachine,
+                    String conflictMode, String transactionMode) {
+        this(numMachines, resourcesPerMachine, conflictMode, transactionMode, false);
+    }
+    
+    /**
+     * A cell of machines of the given shape classes, numbered class by class.
+     */
+    public CellState(MachineShapes shapes, String conflictMode, String transactionMode,
+                     boolean offHeap) {
+        this(shapes, conflictMode, transactionMode,
+             offHeap ? new OffHeapMachineStore(shapes.getNumMachines(), shapes.maxCapacities())
+                     : new HeapMachineStore(shapes.getNumMachines(), shapes.getNumDimensions()));
+    }
+    
+    public CellState(MachineShapes shapes, String conflictMode, String transactionMode) {
+        this(shapes, conflictMode, transactionMode, false);
+    }
+    
+    private CellState(int numMachines, double cpusPerMachine, double memPerMachine,
+                      String conflictMode, String transactionMode, MachineStore machines) {
+        this(numMachines, new double[] {cpusPerMachine, memPerMachine},
+             conflictMode, transactionMode, machines);
+    }
+    
+    private static double[] checkDimensions(double[] resourcesPerMachine) {
+        if (resourcesPerMachine.length < 2) {
+            throw new IllegalArgumentException(
+                "Machines need at least cpus and mem, but got " + resourcesPerMachine.length +
+                " resource dimensions.");
+        }
+        for (int d = 0; d < resourcesPerMachine.length; d++) {
+            if (!(resourcesPerMachine[d] > 0.0)) {
+                throw new IllegalArgumentException(String.format(
+                    "Machine capacity must be positive, but %s was %f.",
+                    getResourceName(d), resourcesPerMachine[d]));
+            }
+        }
+        return resourcesPerMachine;
+    }
+    
+    private CellState(int numMachines, double[] resourcesPerMachine,
+                      String conflictMode, String transactionMode, MachineStore machines) {
+        this(MachineShapes.uniform(numMachines, resourcesPerMachine),
+             conflictMode, transactionMode, machines);
+    }
+    
+    private CellState(MachineShapes shapes, String conflictMode, String transactionMode,
+                      MachineStore machines) {
+        if (!conflictMode.equals("resource-fit") && !conflictMode.equals("sequence-numbers") &&
+            !conflictMode.equals("resource-sequence-numbers") &&
+            !conflictMode.equals("fits-unless-overcommitted")) {
             throw new IllegalArgumentException(
-                "conflictMode must be one of: {'resource-fit', 'sequence-numbers'}, " +
+                "conflictMode must be one of: {'resource-fit', 'sequence-numbers', " +
+                "'resource-sequence-numbers', 'fits-unless-overcommitted'}, " +
                 "but it was " + conflictMode);
         }
         if (!transactionMode.equals("all-or-nothing") && !transactionMode.equals("incremental")) {
@@ -51,31 +263,85 @@ public class CellState {
                 "but it was " + transactionMode);
         }
         
-        this.numMachines = numMachines;
-        this.cpusPerMachine = cpusPerMachine;
-        this.memPerMachine = memPerMachine;
+        this.numMachines = shapes.getNumMachines();
+        this.shapes = shapes;
+        this.uniform = shapes.isUniform();
+        this.resourcesPerMachine = shapes.maxCapacities().clone();
+        this.numDimensions = resourcesPerMachine.length;
+        this.cpusPerMachine = resourcesPerMachine[0];
+        this.memPerMachine = resourcesPerMachine[1];
         this.conflictMode = conflictMode;
         this.transactionMode = transactionMode;
-        this.allocatedCpusPerMachine = new double[numMachines];
-        this.allocatedMemPerMachine = new double[numMachines];
-        this.machineSeqNums = new int[numMachines];
+        this.machines = machines;
+        this.totalOccupiedExtra = new double[numDimensions - 2];
+        this.totalLockedExtra = new double[numDimensions - 2];
+        this.attributes = MachineAttributes.none(numMachines);
     }
     
     // Getters
     public int getNumMachines() { return numMachines; }
+    
+    /**
+     * Number of machines, counted from 0, that a scheduler blacklisting the
+     * last numMachinesToBlackList machines of the common cell may use. In a
+     * snapshot of some machines (copyMachines) that is those before the first
+     * one taken from the blacklisted tail, all of them if the machines were
+     * taken in increasing order.
+     */
+    public int numCandidates(int numMachinesToBlackList) {
+        if (sourceMachineIDs == null) {
+            return Math.max(0, numMachines - numMachinesToBlackList);
+        }
+        int limit = sourceNumMachines - numMachinesToBlackList;
+        int n = 0;
+        while (n < numMachines && sourceMachineIDs[n] < limit) {
+            n++;
+        }
+        return n;
+    }
     public double getCpusPerMachine() { return cpusPerMachine; }
     public double getMemPerMachine() { return memPerMachine; }
+    public int getNumDimensions() { return numDimensions; }
     public String getConflictMode() { return conflictMode; }
     public String getTransactionMode() { return transactionMode; }
+    public boolean isOffHeap() { return machines instanceof OffHeapMachineStore; }
+    public MachineShapes getShapes() { return shapes; }
+    public int getNumShapeClasses() { return shapes.getNumClasses(); }
+    public int getShapeClass(int machineID) { return shapes.getShapeClass(machineID); }
+    public MachineAttributes getAttributes() { return attributes; }
+    JobMachineIndex getJobMachines() { return jobMachines; }
     public ClusterSimulator getSimulator() { return simulator; }
     public void setSimulator(ClusterSimulator simulator) { this.simulator = simulator; }
     
+    /**
+     * Give the machines attributes for placement constraints to be checked
+     * against. Snapshots taken from here on share them.
+     */
+    public void setAttributes(MachineAttributes attributes) {
+        if (attributes.getNumMachines() != numMachines) {
+            throw new IllegalArgumentException(String.format(
+                "The attributes are for %d machines, but the cell has %d.",
+                attributes.getNumMachines(), numMachines));
+        }
+        this.attributes = attributes;
+        this.eligibility = null;
+    }
+    
+    /**
+     * Use the given index of where each job's tasks run, e.g. that of an
+     * AtomicCellState this is a snapshot of, instead of this cell's own.
+     */
+    void setJobMachines(JobMachineIndex jobMachines) {
+        this.jobMachines = jobMachines;
+        this.eligibility = null;
+    }
+    
     public double getTotalCpus() {
-        return numMachines * cpusPerMachine;
+        return shapes.getTotalCapacity(0);
     }
     
     public double getTotalMem() {
-        return numMachines * memPerMachine;
+        return shapes.getTotalCapacity(1);
     }
     
     public double getAvailableCpus() {
@@ -94,32 +360,861 @@ public class CellState {
     public Map<String, Double> getOccupiedCpus() { return occupiedCpus; }
     public Map<String, Double> getOccupiedMem() { return occupiedMem; }
     
+    /**
+     * Name of a resource dimension for messages: "cpus", "mem", then
+     * "resource-2", "resource-3", ...
+     */
+    public static String getResourceName(int dimension) {
+        return dimension == 0 ? "cpus" : dimension == 1 ? "mem" : "resource-" + dimension;
+    }
+    
+    private void checkDimension(int dimension) {
+        if (dimension < 0 || dimension >= numDimensions) {
+            throw new IllegalArgumentException(String.format(
+                "There is no resource dimension %d, the cell has %d.", dimension, numDimensions));
+        }
+    }
+    
+    /**
+     * Capacity of a machine in a dimension; the most any machine has if they
+     * differ.
+     */
+    public double getResourcePerMachine(int dimension) {
+        checkDimension(dimension);
+        return resourcesPerMachine[dimension];
+    }
+    
+    /**
+     * Capacity of the given machine in a dimension.
+     */
+    public double getCapacity(int machineID, int dimension) {
+        checkDimension(dimension);
+        return capacity(machineID, dimension);
+    }
+    
+    private double capacity(int machineID, int dimension) {
+        return uniform ? resourcesPerMachine[dimension]
+                       : shapes.getCapacity(shapes.getShapeClass(machineID), dimension);
+    }
+    
+    public double getTotalResource(int dimension) {
+        checkDimension(dimension);
+        return shapes.getTotalCapacity(dimension);
+    }
+    
+    /**
+     * Capacity of the whole cell by dimension, cpus and mem first.
+     */
+    public double[] getTotalResources() {
+        double[] total = new double[numDimensions];
+        for (int d = 0; d < numDimensions; d++) {
+            total[d] = shapes.getTotalCapacity(d);
+        }
+        return total;
+    }
+    
+    public double getTotalOccupiedResource(int dimension) {
+        checkDimension(dimension);
+        return dimension == 0 ? totalOccupiedCpus
+             : dimension == 1 ? totalOccupiedMem : totalOccupiedExtra[dimension - 2];
+    }
+    
+    public double getTotalLockedResource(int dimension) {
+        checkDimension(dimension);
+        return dimension == 0 ? totalLockedCpus
+             : dimension == 1 ? totalLockedMem : totalLockedExtra[dimension - 2];
+    }
+    
+    public double getAvailableResource(int dimension) {
+        return getTotalResource(dimension) -
+               (getTotalOccupiedResource(dimension) + getTotalLockedResource(dimension));
+    }
+    
+    /**
+     * What a scheduler occupies in each dimension, cpus and mem first. A copy.
+     */
+    public double[] getOccupiedResources(String schedulerName) {
+        double[] occupied = new double[numDimensions];
+        occupied[0] = occupiedCpus.getOrDefault(schedulerName, 0.0);
+        occupied[1] = occupiedMem.getOrDefault(schedulerName, 0.0);
+        double[] extra = occupiedExtra.get(schedulerName);
+        if (extra != null) {
+            System.arraycopy(extra, 0, occupied, 2, extra.length);
+        }
+        return occupied;
+    }
+    
     public int getMachineSeqNum(int machineID) {
-        return machineSeqNums[machineID];
+        return machines.getSeqNum(machineID);
     }
     
     public void incrementMachineSeqNum(int machineID) {
-        machineSeqNums[machineID]++;
+        machines.incrementSeqNum(machineID);
+    }
+    
+    public int getCpuSeqNum(int machineID) {
+        return machines.getCpuSeqNum(machineID);
+    }
+    
+    public void incrementCpuSeqNum(int machineID) {
+        machines.incrementCpuSeqNum(machineID);
+    }
+    
+    public int getMemSeqNum(int machineID) {
+        return machines.getMemSeqNum(machineID);
+    }
+    
+    public void incrementMemSeqNum(int machineID) {
+        machines.incrementMemSeqNum(machineID);
+    }
+    
+    /**
+     * Version of one resource dimension of a machine; dimensions 0 and 1 are
+     * the cpu and mem sequence numbers.
+     */
+    public int getResourceSeqNum(int machineID, int dimension) {
+        checkDimension(dimension);
+        return machines.getResourceSeqNum(machineID, dimension);
+    }
+    
+    public void incrementResourceSeqNum(int machineID, int dimension) {
+        checkDimension(dimension);
+        machines.incrementResourceSeqNum(machineID, dimension);
+    }
+    
+    /**
+     * Current versions of a machine's dimensions 2 and up, for a delta claiming
+     * extraResources there (as in ClaimDelta); -1 for dimensions the cell
+     * lacks. Null if extraResources is.
+     */
+    public int[] getExtraSeqNums(int machineID, double[] extraResources) {
+        if (extraResources == null) {
+            return null;
+        }
+        int[] seqNums = new int[extraResources.length];
+        for (int k = 0; k < seqNums.length; k++) {
+            seqNums[k] = k + 2 < numDimensions ? machines.getResourceSeqNum(machineID, k + 2) : -1;
+        }
+        return seqNums;
+    }
+    
+    /**
+     * Number of deltas that conflicted for the given reason in commits to this cell state.
+     */
+    public long getNumConflicts(ConflictKind kind) {
+        return numConflictsByKind[kind.ordinal()];
+    }
+    
+    /**
+     * Number of committed deltas whose machine had changed since their snapshot,
+     * but in a way the conflict mode judged harmless. Under "sequence-numbers"
+     * each of these would have been a conflict.
+     */
+    public long getNumHarmlessChanges() {
+        return numHarmlessChanges;
+    }
+    
+    public RunningTaskIndex getRunningTasks() {
+        if (runningTasks == null) {
+            runningTasks = new RunningTaskIndex(numMachines, numDimensions);
+        }
+        return runningTasks;
+    }
+    
+    /**
+     * Start tracking a task that was committed without scheduleEndEvents, e.g. by
+     * the Mesos allocator. Its end event must call taskFinished.
+     */
+    public void taskStarted(ClaimDelta delta) {
+        delta.startTime = simulator.getCurrentTime();
+        getRunningTasks().add(delta);
+        if (delta.getJob() != null) {
+            jobMachines.add(delta.getJob().getId(), sourceMachineID(delta.getMachineID()));
+        }
+    }
+    
+    public void taskFinished(ClaimDelta delta) {
+        if (runningTasks != null) {
+            runningTasks.remove(delta);
+        }
+        if (delta.getJob() != null) {
+            jobMachines.remove(delta.getJob().getId(), sourceMachineID(delta.getMachineID()));
+        }
+    }
+    
+    private int sourceMachineID(int machineID) {
+        return sourceMachineIDs == null ? machineID : sourceMachineIDs[machineID];
+    }
+    
+    /**
+     * Whether a task of the job fits on the machine at the given time. Room
+     * held by another job's gang reservation only counts as free for tasks
+     * that will be done before that gang is due to start.
+     */
+    public boolean canHost(Job job, int machineID, double now) {
+        double cpusFree = availableCpusPerMachine(machineID);
+        double memFree = availableMemPerMachine(machineID);
+        if (cpusFree < job.getCpusPerTask() || memFree < job.getMemPerTask()) {
+            return false;
+        }
+        if (job.getExtraResourcesPerTask() != null &&
+            !extraResourcesFit(machineID, job.getExtraResourcesPerTask())) {
+            return false;
+        }
+        if (job.hasConstraints() && !meetsConstraints(job, machineID)) {
+            return false;
+        }
+        return gangReservation == null ||
+               gangReservation.admits(job, machineID, cpusFree, memFree, now);
+    }
+    
+    /**
+     * canHost without the gang reservation, which can go away without any
+     * resources being freed: for waking jobs that wait for room on a
+     * machine (see CapacityWaitIndex).
+     */
+    public boolean canHostIgnoringReservation(Job job, int machineID) {
+        return fitsResources(job, machineID) && (!job.hasConstraints() || meetsConstraints(job, machineID));
+    }
+    
+    /**
+     * canHost without placement constraints or the gang reservation.
+     */
+    private boolean fitsResources(Job job, int machineID) {
+        if (availableCpusPerMachine(machineID) < job.getCpusPerTask() ||
+            availableMemPerMachine(machineID) < job.getMemPerTask()) {
+            return false;
+        }
+        return job.getExtraResourcesPerTask() == null ||
+               extraResourcesFit(machineID, job.getExtraResourcesPerTask());
+    }
+    
+    /**
+     * Whether a machine has room for the given amounts of dimensions 2 and up
+     * right now. A positive amount of a dimension the cell lacks never fits.
+     */
+    private boolean extraResourcesFit(int machineID, double[] extraResources) {
+        for (int k = 0; k < extraResources.length; k++) {
+            double needed = extraResources[k];
+            if (needed > 0.0 && (k + 2 >= numDimensions ||
+                capacity(machineID, k + 2) - machines.getResource(machineID, k + 2) < needed)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Whether the machine meets every placement constraint of the job.
+     */
+    public boolean meetsConstraints(Job job, int machineID) {
+        for (PlacementConstraint constraint : job.getConstraints()) {
+            if (constraint.isOnAttributes()) {
+                if (!attributes.meets(machineID, constraint)) {
+                    return false;
+                }
+            } else if (jobMachines.runsOn(constraint.getJobId(), sourceMachineID(machineID))) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * The machines that meet every placement constraint of the job right
+     * now, or null if it has none. Worked out from the attribute index and
+     * kept for the job's further scans until a task starts or ends somewhere,
+     * if it has NOT_WITH_JOB constraints, or it asks about another job.
+     */
+    public MachineSet getEligibleMachines(Job job) {
+        return job.hasConstraints() ? eligibility(job).machines : null;
+    }
+    
+    private Eligibility eligibility(Job job) {
+        Eligibility cached = eligibility;
+        long version = jobMachines.getVersion();
+        if (cached != null && cached.job == job && cached.version == version) {
+            return cached;
+        }
+        MachineSet onAttributes = cached != null && cached.job == job
+            ? cached.onAttributes : attributes.getMachinesMeeting(job.getConstraints());
+        MachineSet machines = onAttributes;
+        for (PlacementConstraint constraint : job.getConstraints()) {
+            if (!constraint.isOnAttributes()) {
+                if (machines == null) {
+                    machines = MachineSet.range(0, numMachines);
+                }
+                machines = machines.andNot(machinesRunning(constraint.getJobId()));
+            }
+        }
+        cached = new Eligibility(job, onAttributes, machines, numMachines, version);
+        eligibility = cached;
+        return cached;
+    }
+    
+    /**
+     * Machines of this cell running a task of the job.
+     */
+    private MachineSet machinesRunning(long jobId) {
+        if (sourceMachineIDs == null) {
+            return jobMachines.machinesOf(jobId);
+        }
+        MachineSet.Builder running = new MachineSet.Builder();
+        for (int machineID = 0; machineID < numMachines; machineID++) {
+            if (jobMachines.runsOn(jobId, sourceMachineIDs[machineID])) {
+                running.add(machineID);
+            }
+        }
+        return running.build();
+    }
+    
+    /**
+     * Whether a task of the job fits on an empty machine of this cell, of
+     * some shape class, in every dimension it needs.
+     */
+    public boolean fitsOnEmptyMachine(Job job) {
+        for (int c = 0; c < shapes.getNumClasses(); c++) {
+            if (shapes.fits(c, job)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Whether some machine that meets the job's attribute constraints could
+     * hold a task of it when empty. Tasks of jobs it must not share a machine
+     * with only keep it off machines for a while, so aren't counted here.
+     */
+    public boolean hasEligibleMachine(Job job) {
+        MachineSet allowed = job.hasConstraints() ? eligibility(job).onAttributes : null;
+        for (int c = 0; c < shapes.getNumClasses(); c++) {
+            if (shapes.fits(c, job)) {
+                if (allowed == null) {
+                    return true;
+                }
+                int machineID = allowed.nextMachine(shapes.getStart(c));
+                if (machineID >= 0 && machineID < shapes.getEnd(c)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Whether a task of the job fits on an empty machine of the shape class.
+     */
+    public boolean shapeClassFits(int shapeClass, Job job) {
+        return shapes.fits(shapeClass, job);
+    }
+    
+    /**
+     * The machines below numCandidates whose shape class has room for a task
+     * of the job when empty, and that meet its placement constraints, as
+     * ranges of machine IDs: from/to pairs, in increasing order. Just
+     * {0, numCandidates} in a uniform cell the job fits, if it has no
+     * constraints.
+     */
+    public int[] candidateRanges(Job job, int numCandidates) {
+        int[] eligible = job.hasConstraints() ? eligibility(job).runs : null;
+        int[] ranges = new int[2 * shapes.getNumClasses()];
+        int n = 0;
+        for (int c = 0; c < shapes.getNumClasses() && shapes.getStart(c) < numCandidates; c++) {
+            if (!shapes.fits(c, job)) {
+                continue;
+            }
+            int from = shapes.getStart(c);
+            int to = Math.min(shapes.getEnd(c), numCandidates);
+            int[] runs = eligible == null ? new int[] {from, to} : eligible;
+            for (int r = eligible == null ? 0 : firstRunEndingAfter(runs, from);
+                 r < runs.length && runs[r] < to; r += 2) {
+                int runFrom = Math.max(from, runs[r]);
+                int runTo = Math.min(to, runs[r + 1]);
+                if (n > 0 && ranges[n - 1] == runFrom) {
+                    ranges[n - 1] = runTo;
+                    continue;
+                }
+                if (n + 2 > ranges.length) {
+                    ranges = Arrays.copyOf(ranges, 2 * ranges.length);
+                }
+                ranges[n++] = runFrom;
+                ranges[n++] = runTo;
+            }
+        }
+        return n == ranges.length ? ranges : Arrays.copyOf(ranges, n);
+    }
+    
+    /**
+     * Index of the first of the from/to runs that ends after machineID, or
+     * runs.length if none does.
+     */
+    private static int firstRunEndingAfter(int[] runs, int machineID) {
+        int lo = 0;
+        int hi = runs.length / 2;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (runs[2 * mid + 1] <= machineID) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return 2 * lo;
+    }
+    
+    /**
+     * What a task of the job needs in every dimension of this cell, for the
+     * N-dimensional scans; null if it needs a dimension the cell lacks, so
+     * fits nowhere.
+     */
+    private double[] neededVector(Job job) {
+        double[] needed = new double[numDimensions];
+        for (int d = 0; d < job.getNumDimensions(); d++) {
+            double amount = job.getResourcePerTask(d);
+            if (d < numDimensions) {
+                needed[d] = amount;
+            } else if (amount > 0.0) {
+                return null;
+            }
+        }
+        return needed;
+    }
+    
+    /**
+     * Whether the cpu/mem scans do for this job: the cell has no further
+     * dimensions, and the job needs none.
+     */
+    private boolean isTwoDimensional(Job job) {
+        return numDimensions == 2 && job.getExtraResourcesPerTask() == null;
+    }
+    
+    /**
+     * Number of machines below numCandidates that canHost a task of the job.
+     * Scans with the FitScan kernels unless a gang reservation needs checking.
+     */
+    public int countFits(Job job, int numCandidates, double now) {
+        double[] needed = isTwoDimensional(job) ? null : neededVector(job);
+        if (needed == null && !isTwoDimensional(job)) {
+            return 0;
+        }
+        int[] eligible = job.hasConstraints() ? eligibility(job).runs : null;
+        int count = 0;
+        for (int c = 0; c < shapes.getNumClasses() && shapes.getStart(c) < numCandidates; c++) {
+            if (!shapes.fits(c, job)) {
+                continue;
+            }
+            int classFrom = shapes.getStart(c);
+            int classTo = Math.min(shapes.getEnd(c), numCandidates);
+            double[] capacity = shapes.capacities(c);
+            int[] runs = eligible == null ? new int[] {classFrom, classTo} : eligible;
+            for (int r = eligible == null ? 0 : firstRunEndingAfter(runs, classFrom);
+                 r < runs.length && runs[r] < classTo; r += 2) {
+                count += countFits(job, Math.max(classFrom, runs[r]), Math.min(classTo, runs[r + 1]),
+                                   capacity, needed, now);
+            }
+        }
+        return count;
+    }
+    
+    /**
+     * countFits over machines [from, to) of one shape class, with needed null
+     * for a cpu/mem scan.
+     */
+    private int countFits(Job job, int from, int to, double[] capacity, double[] needed, double now) {
+        if (gangReservation != null || to - from < SHORT_RUN) {
+            int count = 0;
+            for (int machineID = from; machineID < to; machineID++) {
+                if (gangReservation != null ? canHost(job, machineID, now) : fitsResources(job, machineID)) {
+                    count++;
+                }
+            }
+            return count;
+        }
+        return needed == null
+            ? machines.countFits(from, to, capacity[0], capacity[1], job.getCpusPerTask(), job.getMemPerTask())
+            : machines.countFits(from, to, capacity, needed);
+    }
+
+    /**
+     * Lowest machine in [from, to) that canHost a task of the job, or -1.
+     */
+    public int firstFit(Job job, int from, int to, double now) {
+        double[] needed = isTwoDimensional(job) ? null : neededVector(job);
+        if (needed == null && !isTwoDimensional(job)) {
+            return -1;
+        }
+        int[] eligible = job.hasConstraints() ? eligibility(job).runs : null;
+        int first = from >= numMachines ? shapes.getNumClasses() : shapes.getShapeClass(Math.max(0, from));
+        for (int c = first; c < shapes.getNumClasses() && shapes.getStart(c) < to; c++) {
+            int classFrom = Math.max(from, shapes.getStart(c));
+            int classTo = Math.min(to, shapes.getEnd(c));
+            if (classFrom >= classTo || !shapes.fits(c, job)) {
+                continue;
+            }
+            double[] capacity = shapes.capacities(c);
+            int[] runs = eligible == null ? new int[] {classFrom, classTo} : eligible;
+            for (int r = eligible == null ? 0 : firstRunEndingAfter(runs, classFrom);
+                 r < runs.length && runs[r] < classTo; r += 2) {
+                int machineID = firstFit(job, Math.max(classFrom, runs[r]), Math.min(classTo, runs[r + 1]),
+                                         capacity, needed, now);
+                if (machineID >= 0) {
+                    return machineID;
+                }
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * firstFit over machines [from, to) of one shape class, with needed null
+     * for a cpu/mem scan.
+     */
+    private int firstFit(Job job, int from, int to, double[] capacity, double[] needed, double now) {
+        if (gangReservation != null || to - from < SHORT_RUN) {
+            for (int machineID = from; machineID < to; machineID++) {
+                if (gangReservation != null ? canHost(job, machineID, now) : fitsResources(job, machineID)) {
+                    return machineID;
+                }
+            }
+            return -1;
+        }
+        return needed == null
+            ? machines.firstFit(from, to, capacity[0], capacity[1], job.getCpusPerTask(), job.getMemPerTask())
+            : machines.firstFit(from, to, capacity, needed);
+    }
+
+    /**
+     * Best fit among the machines below numCandidates: the one that canHost a
+     * task of the job with the least free resources as a fraction of capacity,
+     * summed over the dimensions (see freeFraction). Ties go to the lowest
+     * machine ID.
+     * @return The machine, or -1 if the task fits nowhere
+     */
+    public int bestFit(Job job, int numCandidates, double now) {
+        double[] needed = isTwoDimensional(job) ? null : neededVector(job);
+        if (needed == null && !isTwoDimensional(job)) {
+            return -1;
+        }
+        int[] eligible = job.hasConstraints() ? eligibility(job).runs : null;
+        int best = -1;
+        double bestFree = Double.POSITIVE_INFINITY;
+        for (int c = 0; c < shapes.getNumClasses() && shapes.getStart(c) < numCandidates; c++) {
+            if (!shapes.fits(c, job)) {
+                continue;
+            }
+            int classFrom = shapes.getStart(c);
+            int classTo = Math.min(shapes.getEnd(c), numCandidates);
+            double[] capacity = shapes.capacities(c);
+            int[] runs = eligible == null ? new int[] {classFrom, classTo} : eligible;
+            for (int r = eligible == null ? 0 : firstRunEndingAfter(runs, classFrom);
+                 r < runs.length && runs[r] < classTo; r += 2) {
+                int runBest = bestFit(job, Math.max(classFrom, runs[r]), Math.min(classTo, runs[r + 1]),
+                                      capacity, needed, now);
+                if (runBest >= 0) {
+                    if (uniform && eligible == null) {
+                        return runBest;
+                    }
+                    // Runs are in machine ID order, so ties still go to the lowest
+                    double free = freeFraction(runBest);
+                    if (free < bestFree) {
+                        bestFree = free;
+                        best = runBest;
+                    }
+                }
+            }
+        }
+        return best;
+    }
+    
+    /**
+     * bestFit over machines [from, to) of one shape class, with needed null
+     * for a cpu/mem scan.
+     */
+    private int bestFit(Job job, int from, int to, double[] capacity, double[] needed, double now) {
+        if (gangReservation != null || to - from < SHORT_RUN) {
+            int best = -1;
+            double bestFree = Double.POSITIVE_INFINITY;
+            for (int machineID = from; machineID < to; machineID++) {
+                if (gangReservation != null ? canHost(job, machineID, now) : fitsResources(job, machineID)) {
+                    double free = freeFraction(machineID);
+                    if (free < bestFree) {
+                        bestFree = free;
+                        best = machineID;
+                    }
+                }
+            }
+            return best;
+        }
+        return needed == null
+            ? machines.argminFreeFraction(from, to, capacity[0], capacity[1],
+                                          job.getCpusPerTask(), job.getMemPerTask())
+            : machines.argminFreeFraction(from, to, capacity, needed);
+    }
+    
+    /**
+     * Free resources of a machine as a fraction of its capacity, summed over
+     * every dimension: 2 for an empty machine of a cpu/mem cell, 0 for a full one.
+     */
+    public double freeFraction(int machineID) {
+        if (uniform) {
+            double free = availableCpusPerMachine(machineID) / cpusPerMachine +
+                          availableMemPerMachine(machineID) / memPerMachine;
+            for (int d = 2; d < numDimensions; d++) {
+                free += (resourcesPerMachine[d] - machines.getResource(machineID, d)) / resourcesPerMachine[d];
+            }
+            return free;
+        }
+        double[] capacity = shapes.capacities(shapes.getShapeClass(machineID));
+        double free = availableCpusPerMachine(machineID) / capacity[0] +
+                      availableMemPerMachine(machineID) / capacity[1];
+        for (int d = 2; d < numDimensions; d++) {
+            free += (capacity[d] - machines.getResource(machineID, d)) / capacity[d];
+        }
+        return free;
+    }
+
+    public GangReservation getGangReservation() { return gangReservation; }
+    
+    /**
+     * Reserve room for numTasks tasks of a rigid job on the first numCandidates
+     * machines, replacing any current reservation. The shadow time is found by
+     * walking the running tasks in order of their end time until enough tasks
+     * of the job's shape fit in total; the machines that have that room are
+     * then reserved, fullest-first. O(r log r) in running tasks, so meant to be
+     * done once per waiting gang rather than per attempt. Machines that don't
+     * meet the job's placement constraints are left out.
+     * @param freeNow Cell state, with the same machines, whose free resources
+     *                count as free now; differs from this one when some are
+     *                locked in a resource offer that is about to be returned
+     * @return The reservation, or null if the gang would not fit even after
+     *         every known task ended
+     */
+    public GangReservation reserveGang(Job job, int numTasks, int numCandidates, double now,
+                                       CellState freeNow) {
+        double cpusPerTask = job.getCpusPerTask();
+        double memPerTask = job.getMemPerTask();
+        MachineSet eligible = getEligibleMachines(job);
+        double[] cpusFree = new double[numCandidates];
+        double[] memFree = new double[numCandidates];
+        int total = 0;
+        for (int i = 0; i < numCandidates; i++) {
+            if (eligible != null && !eligible.contains(i)) {
+                // No room counted, now or later
+                continue;
+            }
+            cpusFree[i] = freeNow.availableCpusPerMachine(i);
+            memFree[i] = freeNow.availableMemPerMachine(i);
+            total += tasksFitting(cpusFree[i], memFree[i], cpusPerTask, memPerTask);
+        }
+        
+        double shadowTime = now;
+        if (total < numTasks) {
+            List<ClaimDelta> running = getRunningTasks().getTasks();
+            running.sort(Comparator.comparingDouble(d -> d.startTime + d.getDuration()));
+            for (ClaimDelta d : running) {
+                int machineID = d.getMachineID();
+                if (machineID >= numCandidates || (eligible != null && !eligible.contains(machineID))) {
+                    continue;
+                }
+                total -= tasksFitting(cpusFree[machineID], memFree[machineID], cpusPerTask, memPerTask);
+                cpusFree[machineID] += d.getCpus();
+                memFree[machineID] += d.getMem();
+                total += tasksFitting(cpusFree[machineID], memFree[machineID], cpusPerTask, memPerTask);
+                if (total >= numTasks) {
+                    shadowTime = d.startTime + d.getDuration();
+                    break;
+                }
+            }
+            if (total < numTasks) {
+                return null;
+            }
+        }
+        
+        // Hold the room on as few machines as possible
+        Integer[] byRoom = new Integer[numCandidates];
+        int[] fitting = new int[numCandidates];
+        for (int i = 0; i < numCandidates; i++) {
+            byRoom[i] = i;
+            fitting[i] = tasksFitting(cpusFree[i], memFree[i], cpusPerTask, memPerTask);
+        }
+        Arrays.sort(byRoom, (a, b) -> Integer.compare(fitting[b], fitting[a]));
+        double[] reservedCpus = new double[numMachines];
+        double[] reservedMem = new double[numMachines];
+        int remaining = numTasks;
+        for (int i = 0; i < numCandidates && remaining > 0; i++) {
+            int machineID = byRoom[i];
+            int k = Math.min(fitting[machineID], remaining);
+            reservedCpus[machineID] = k * cpusPerTask;
+            reservedMem[machineID] = k * memPerTask;
+            remaining -= k;
+        }
+        gangReservation = new GangReservation(job, shadowTime, numTasks, reservedCpus, reservedMem);
+        return gangReservation;
+    }
+    
+    /**
+     * Drop the reservation if it is held for the given job.
+     */
+    public void releaseGangReservation(Job job) {
+        if (gangReservation != null && gangReservation.getJob() == job) {
+            gangReservation = null;
+        }
+    }
+    
+    private static int tasksFitting(double cpusFree, double memFree,
+                                    double cpusPerTask, double memPerTask) {
+        return (int) Math.min(cpusFree / cpusPerTask, memFree / memPerTask);
+    }
+    
+    /**
+     * Preempt tasks of lower priority on a machine until a task of the given
+     * shape fits there. The victims' resources are freed and their end events
+     * become no-ops; requeueing their jobs is up to the caller.
+     * @return The evicted tasks
+     */
+    public List<ClaimDelta> evictFor(int machineID, int priority, double cpus, double mem) {
+        return evictFor(machineID, priority, cpus, mem, null);
+    }
+    
+    /**
+     * evictFor a task that also needs extraResources in dimensions 2 and up
+     * (null if none).
+     */
+    public List<ClaimDelta> evictFor(int machineID, int priority, double cpus, double mem,
+                                     double[] extraResources) {
+        List<ClaimDelta> victims = getRunningTasks().takeVictims(machineID, priority, cpus, mem,
+                                                                 extraResources, this);
+        for (ClaimDelta victim : victims) {
+            victim.evicted = true;
+            victim.unApply(this, false);
+            if (victim.getJob() != null) {
+                jobMachines.remove(victim.getJob().getId(), sourceMachineID(victim.getMachineID()));
+            }
+        }
+        return victims;
+    }
+    
+    public long getNumConflicts(int machineID) {
+        return conflictsPerMachine == null ? 0 : conflictsPerMachine[machineID];
+    }
+    
+    /**
+     * Conflicts per machine so far, indexed by machine ID. Not a copy.
+     */
+    public long[] getConflictsPerMachine() {
+        if (conflictsPerMachine == null) {
+            conflictsPerMachine = new long[numMachines];
+        }
+        return conflictsPerMachine;
+    }
+    
+    /**
+     * Recent-conflict score of a machine at the given time: every conflict adds 1,
+     * and the score halves every conflictHalfLife seconds.
+     */
+    public double getConflictScore(int machineID, double currentTime) {
+        double score = machines.getConflictScore(machineID);
+        if (score == 0.0) {
+            return 0.0;
+        }
+        return score * Math.pow(0.5, (currentTime - machines.getConflictScoreTime(machineID)) / conflictHalfLife);
+    }
+    
+    public double getConflictHalfLife() { return conflictHalfLife; }
+    
+    public void setConflictHalfLife(double conflictHalfLife) {
+        if (conflictHalfLife <= 0.0) {
+            throw new IllegalArgumentException(
+                "conflictHalfLife must be positive, but was " + conflictHalfLife);
+        }
+        this.conflictHalfLife = conflictHalfLife;
+    }
+    
+    private void recordMachineConflict(int machineID) {
+        getConflictsPerMachine()[machineID]++;
+        double now = simulator != null ? simulator.getCurrentTime() : machines.getConflictScoreTime(machineID);
+        machines.setConflictScore(machineID, getConflictScore(machineID, now) + 1.0, now);
+    }
+    
+    /**
+     * Fragmentation with respect to a reference task shape: the fraction of free
+     * cpus that sit on machines where such a task no longer fits. 0 means every
+     * free cpu is usable by the shape, 1 means none is.
+     */
+    public double getFragmentation(double cpusPerTask, double memPerTask) {
+        double freeCpus = 0.0;
+        double strandedCpus = 0.0;
+        for (int i = 0; i < numMachines; i++) {
+            double cpus = availableCpusPerMachine(i);
+            freeCpus += cpus;
+            if (cpus < cpusPerTask || availableMemPerMachine(i) < memPerTask) {
+                strandedCpus += cpus;
+            }
+        }
+        return freeCpus > 0.0 ? strandedCpus / freeCpus : 0.0;
+    }
+    
+    /**
+     * A callback for addResourcesFreedListener. Serializable, since a cell
+     * state is checkpointed with its listeners.
+     */
+    public interface ResourcesFreedListener extends IntConsumer, Serializable {
+    }
+    
+    /**
+     * Register a callback invoked with the machine ID every time resources
+     * (occupied or locked) are freed on that machine. Listeners are not
+     * carried over by copy().
+     */
+    public void addResourcesFreedListener(ResourcesFreedListener listener) {
+        resourcesFreedListeners.add(listener);
     }
     
     /**
      * Get available CPUs on a specific machine.
      */
     public double availableCpusPerMachine(int machineID) {
-        if (machineID > allocatedCpusPerMachine.length - 1) {
+        if (machineID > numMachines - 1) {
             throw new IllegalArgumentException("There is no machine with ID " + machineID);
         }
-        return cpusPerMachine - allocatedCpusPerMachine[machineID];
+        return (uniform ? cpusPerMachine : capacity(machineID, 0)) - machines.getCpus(machineID);
     }
     
     /**
      * Get available memory on a specific machine.
      */
     public double availableMemPerMachine(int machineID) {
-        if (machineID > allocatedMemPerMachine.length - 1) {
+        if (machineID > numMachines - 1) {
             throw new IllegalArgumentException("There is no machine with ID " + machineID);
         }
-        return memPerMachine - allocatedMemPerMachine[machineID];
+        return (uniform ? memPerMachine : capacity(machineID, 1)) - machines.getMem(machineID);
+    }
+    
+    /**
+     * Get what is available of a resource dimension on a specific machine.
+     */
+    public double availableResourcePerMachine(int machineID, int dimension) {
+        if (machineID > numMachines - 1) {
+            throw new IllegalArgumentException("There is no machine with ID " + machineID);
+        }
+        checkDimension(dimension);
+        return capacity(machineID, dimension) - machines.getResource(machineID, dimension);
+    }
+    
+    /**
+     * What is available in dimensions 2 and up on a machine, or null if the
+     * cell only has cpus and mem.
+     */
+    public double[] availableExtraResourcesPerMachine(int machineID) {
+        if (numDimensions == 2) {
+            return null;
+        }
+        double[] available = new double[numDimensions - 2];
+        for (int k = 0; k < available.length; k++) {
+            available[k] = availableResourcePerMachine(machineID, k + 2);
+        }
+        return available;
     }
     
     /**
@@ -129,7 +1224,19 @@ public class CellState {
      */
     public void assignResources(IScheduler scheduler, int machineID, double cpus, 
                                double mem, boolean locked) {
+        assignResources(scheduler, machineID, cpus, mem, null, locked);
+    }
+    
+    /**
+     * Allocate resources on a machine to a scheduler, including amounts of
+     * dimensions 2 and up (extraResources, or null for none).
+     */
+    public void assignResources(IScheduler scheduler, int machineID, double cpus,
+                               double mem, double[] extraResources, boolean locked) {
         String schedulerName = scheduler.getName();
+        if (extraResources != null) {
+            checkExtraDimensions(extraResources);
+        }
         
         if (locked) {
             lockedCpus.put(schedulerName, 
@@ -160,9 +1267,52 @@ public class CellState {
                 "but it only has %f mem unallocated right now.",
                 schedulerName, mem, machineID, availableMemPerMachine(machineID)));
         }
+        if (extraResources != null) {
+            int numExtra = Math.min(extraResources.length, numDimensions - 2);
+            for (int k = 0; k < numExtra; k++) {
+                int d = k + 2;
+                if (availableResourcePerMachine(machineID, d) < extraResources[k]) {
+                    throw new IllegalStateException(String.format(
+                        "Scheduler %s tried to claim %f %s on machine %d, " +
+                        "but it only has %f unallocated right now.",
+                        schedulerName, extraResources[k], getResourceName(d), machineID,
+                        availableResourcePerMachine(machineID, d)));
+                }
+            }
+            addExtra(locked ? lockedExtra : occupiedExtra,
+                     locked ? totalLockedExtra : totalOccupiedExtra, schedulerName, extraResources, 1.0);
+            for (int k = 0; k < numExtra; k++) {
+                machines.addResource(machineID, k + 2, extraResources[k]);
+            }
+        }
         
-        allocatedCpusPerMachine[machineID] += cpus;
-        allocatedMemPerMachine[machineID] += mem;
+        machines.addResources(machineID, cpus, mem);
+    }
+    
+    private void checkExtraDimensions(double[] extraResources) {
+        for (int k = numDimensions - 2; k < extraResources.length; k++) {
+            if (extraResources[k] != 0.0) {
+                throw new IllegalArgumentException(String.format(
+                    "Claimed %f %s, but the cell only has %d resource dimensions.",
+                    extraResources[k], getResourceName(k + 2), numDimensions));
+            }
+        }
+    }
+    
+    /**
+     * Add sign * extraResources to a scheduler's entry in perScheduler and to totals.
+     */
+    private static void addExtra(Map<String, double[]> perScheduler, double[] totals,
+                                 String schedulerName, double[] extraResources, double sign) {
+        double[] usage = perScheduler.get(schedulerName);
+        if (usage == null) {
+            usage = new double[totals.length];
+            perScheduler.put(schedulerName, usage);
+        }
+        for (int k = 0; k < totals.length && k < extraResources.length; k++) {
+            usage[k] += sign * extraResources[k];
+            totals[k] += sign * extraResources[k];
+        }
     }
     
     /**
@@ -170,7 +1320,28 @@ public class CellState {
      */
     public void freeResources(IScheduler scheduler, int machineID, double cpus,
                              double mem, boolean locked) {
+        freeResources(scheduler, machineID, cpus, mem, null, locked);
+    }
+    
+    /**
+     * Release resources used by a scheduler, including amounts of dimensions
+     * 2 and up (extraResources, or null for none).
+     */
+    public void freeResources(IScheduler scheduler, int machineID, double cpus,
+                             double mem, double[] extraResources, boolean locked) {
         String schedulerName = scheduler.getName();
+        if (extraResources != null) {
+            checkExtraDimensions(extraResources);
+            double[] current = (locked ? lockedExtra : occupiedExtra).get(schedulerName);
+            for (int k = 0; k < extraResources.length && k < numDimensions - 2; k++) {
+                if ((current == null ? 0.0 : current[k]) < extraResources[k] - 0.001) {
+                    throw new IllegalStateException(String.format(
+                        "%s tried to free %f %s, but was only %s %f.",
+                        schedulerName, extraResources[k], getResourceName(k + 2),
+                        locked ? "locking" : "occupying", current == null ? 0.0 : current[k]));
+                }
+            }
+        }
         
         if (locked) {
             if (!lockedCpus.containsKey(schedulerName)) {
@@ -206,22 +1377,31 @@ public class CellState {
             totalOccupiedMem -= mem;
         }
         
-        allocatedCpusPerMachine[machineID] -= cpus;
-        allocatedMemPerMachine[machineID] -= mem;
+        machines.addResources(machineID, -cpus, -mem);
+        if (extraResources != null) {
+            addExtra(locked ? lockedExtra : occupiedExtra,
+                     locked ? totalLockedExtra : totalOccupiedExtra, schedulerName, extraResources, -1.0);
+            for (int k = 0; k < extraResources.length && k < numDimensions - 2; k++) {
+                machines.addResource(machineID, k + 2, -extraResources[k]);
+            }
+        }
+        
+        for (int i = 0; i < resourcesFreedListeners.size(); i++) {
+            resourcesFreedListeners.get(i).accept(machineID);
+        }
     }
     
     /**
      * Return a copy of this cell state in its current state.
      */
     public CellState copy() {
-        CellState newCellState = new CellState(numMachines, cpusPerMachine, memPerMachine,
-                                             conflictMode, transactionMode);
-        System.arraycopy(allocatedCpusPerMachine, 0, 
-                        newCellState.allocatedCpusPerMachine, 0, numMachines);
-        System.arraycopy(allocatedMemPerMachine, 0, 
-                        newCellState.allocatedMemPerMachine, 0, numMachines);
-        System.arraycopy(machineSeqNums, 0, 
-                        newCellState.machineSeqNums, 0, numMachines);
+        CellState newCellState = new CellState(shapes, conflictMode, transactionMode, machines.copy());
+        newCellState.conflictHalfLife = conflictHalfLife;
+        newCellState.gangReservation = gangReservation;
+        newCellState.attributes = attributes;
+        newCellState.jobMachines = jobMachines;
+        newCellState.sourceMachineIDs = sourceMachineIDs;
+        newCellState.sourceNumMachines = sourceNumMachines;
         newCellState.occupiedCpus.putAll(occupiedCpus);
         newCellState.occupiedMem.putAll(occupiedMem);
         newCellState.lockedCpus.putAll(lockedCpus);
@@ -230,43 +1410,158 @@ public class CellState {
         newCellState.totalOccupiedMem = totalOccupiedMem;
         newCellState.totalLockedCpus = totalLockedCpus;
         newCellState.totalLockedMem = totalLockedMem;
+        for (Map.Entry<String, double[]> e : occupiedExtra.entrySet()) {
+            newCellState.occupiedExtra.put(e.getKey(), e.getValue().clone());
+        }
+        for (Map.Entry<String, double[]> e : lockedExtra.entrySet()) {
+            newCellState.lockedExtra.put(e.getKey(), e.getValue().clone());
+        }
+        System.arraycopy(totalOccupiedExtra, 0, newCellState.totalOccupiedExtra, 0, totalOccupiedExtra.length);
+        System.arraycopy(totalLockedExtra, 0, newCellState.totalLockedExtra, 0, totalLockedExtra.length);
+        return newCellState;
+    }
+    
+    /**
+     * Return a snapshot containing only the given machines, renumbered 0..n-1 in
+     * the order given. Whatever is allocated on them is accounted as occupied by
+     * nobody in particular, so the snapshot's availability totals cover just
+     * these machines. Cost is O(machineIDs.length), independent of cell size.
+     */
+    public CellState copyMachines(int[] machineIDs) {
+        CellState newCellState = new CellState(shapes.forMachines(machineIDs),
+                                             conflictMode, transactionMode,
+                                             machines.create(machineIDs.length));
+        for (int i = 0; i < machineIDs.length; i++) {
+            int machineID = machineIDs[i];
+            newCellState.machines.copyMachine(machines, machineID, i);
+            newCellState.totalOccupiedCpus += machines.getCpus(machineID);
+            newCellState.totalOccupiedMem += machines.getMem(machineID);
+            for (int d = 2; d < numDimensions; d++) {
+                newCellState.totalOccupiedExtra[d - 2] += machines.getResource(machineID, d);
+            }
+        }
+        newCellState.conflictHalfLife = conflictHalfLife;
+        if (gangReservation != null) {
+            newCellState.gangReservation = gangReservation.forMachines(machineIDs);
+        }
+        newCellState.attributes = attributes.forMachines(machineIDs);
+        newCellState.jobMachines = jobMachines;
+        newCellState.sourceNumMachines = sourceMachineIDs == null ? numMachines : sourceNumMachines;
+        newCellState.sourceMachineIDs = new int[machineIDs.length];
+        for (int i = 0; i < machineIDs.length; i++) {
+            newCellState.sourceMachineIDs[i] = sourceMachineID(machineIDs[i]);
+        }
         return newCellState;
     }
     
+    /**
+     * Overwrite the given machines with their current state in source (allocations
+     * and sequence numbers), leaving the rest of this snapshot as it was. Changes
+     * are accounted as occupied by nobody in particular, as in copyMachines.
+     * Duplicate machine IDs are fine.
+     */
+    public void refreshMachines(CellState source, int[] machineIDs) {
+        for (int machineID : machineIDs) {
+            double oldCpus = machines.getCpus(machineID);
+            double oldMem = machines.getMem(machineID);
+            for (int d = 2; d < numDimensions; d++) {
+                totalOccupiedExtra[d - 2] -= machines.getResource(machineID, d);
+            }
+            machines.copyMachine(source.machines, machineID, machineID);
+            totalOccupiedCpus += machines.getCpus(machineID) - oldCpus;
+            totalOccupiedMem += machines.getMem(machineID) - oldMem;
+            for (int d = 2; d < numDimensions; d++) {
+                totalOccupiedExtra[d - 2] += machines.getResource(machineID, d);
+            }
+        }
+    }
+
+    /**
+     * Set a machine's allocation and sequence numbers outright, for building a
+     * snapshot of a cell kept elsewhere (see AtomicCellState). Accounted as
+     * occupied by nobody in particular, as in copyMachines.
+     */
+    void loadMachine(int machineID, double cpus, double mem, int seqNum) {
+        totalOccupiedCpus += cpus - machines.getCpus(machineID);
+        totalOccupiedMem += mem - machines.getMem(machineID);
+        machines.setResources(machineID, cpus, mem);
+        machines.setSeqNums(machineID, seqNum, seqNum, seqNum);
+    }
+
     /**
      * Result of committing a transaction.
      */
     public static class CommitResult {
         private final List<ClaimDelta> committedDeltas;
         private final List<ClaimDelta> conflictedDeltas;
+        private final ConflictKind conflictKind;
         
-        public CommitResult(List<ClaimDelta> committedDeltas, List<ClaimDelta> conflictedDeltas) {
+        public CommitResult(List<ClaimDelta> committedDeltas, List<ClaimDelta> conflictedDeltas,
+                            ConflictKind conflictKind) {
             this.committedDeltas = committedDeltas;
             this.conflictedDeltas = conflictedDeltas;
+            this.conflictKind = conflictKind;
+        }
+        
+        public CommitResult(List<ClaimDelta> committedDeltas, List<ClaimDelta> conflictedDeltas) {
+            this(committedDeltas, conflictedDeltas, null);
         }
         
         public List<ClaimDelta> getCommittedDeltas() { return committedDeltas; }
         public List<ClaimDelta> getConflictedDeltas() { return conflictedDeltas; }
+        
+        /**
+         * Why the first conflicting delta conflicted, or null if none did.
+         */
+        public ConflictKind getConflictKind() { return conflictKind; }
     }
     
     /**
      * Attempt to commit a list of deltas, returning any that conflicted.
+     * Deltas of a rigid job commit all-or-nothing even in incremental mode.
      */
     public CommitResult commit(List<ClaimDelta> deltas, boolean scheduleEndEvent) {
+        boolean allOrNothing = transactionMode.equals("all-or-nothing") || isGang(deltas);
         boolean rollback = false;
         List<ClaimDelta> appliedDeltas = new ArrayList<>();
         List<ClaimDelta> conflictDeltas = new ArrayList<>();
+        ConflictKind firstConflictKind = null;
+        // Machines that already had a conflict in this transaction. A later delta
+        // on the same machine was based on the conflicted one, so its sequence
+        // numbers may match the cell's again by coincidence; it must not pass
+        // on them alone.
+        Map<Integer, ConflictKind> conflictedMachines = null;
         
         // Commit non-conflicting deltas
         for (ClaimDelta d : deltas) {
-            if (causesConflict(d)) {
+            ConflictKind conflictKind;
+            if (conflictedMachines != null && conflictedMachines.containsKey(d.getMachineID())) {
+                conflictKind = conflictMode.equals("resource-fit") ||
+                               conflictMode.equals("fits-unless-overcommitted")
+                    ? overcommitKind(d) : conflictedMachines.get(d.getMachineID());
+            } else {
+                conflictKind = conflictKind(d);
+            }
+            if (conflictKind == null && violatesAntiAffinity(d)) {
+                conflictKind = ConflictKind.ANTI_AFFINITY;
+            }
+            if (conflictKind != null) {
+                if (conflictedMachines == null) {
+                    conflictedMachines = new HashMap<>();
+                }
+                conflictedMachines.putIfAbsent(d.getMachineID(), conflictKind);
+                numConflictsByKind[conflictKind.ordinal()]++;
+                recordMachineConflict(d.getMachineID());
+                if (firstConflictKind == null) {
+                    firstConflictKind = conflictKind;
+                }
                 if (simulator != null) {
                     simulator.log(String.format(
                         "delta (%s mach-%d seqNum-%d) caused a conflict.",
                         d.getScheduler().getName(), d.getMachineID(), d.getMachineSeqNum()));
                 }
                 conflictDeltas.add(d);
-                if (transactionMode.equals("all-or-nothing")) {
+                if (allOrNothing) {
                     rollback = true;
                     break;
                 } else if (transactionMode.equals("incremental")) {
@@ -275,6 +1570,9 @@ public class CellState {
                     throw new IllegalStateException("Invalid transactionMode: " + transactionMode);
                 }
             } else {
+                if (d.getMachineSeqNum() != machines.getSeqNum(d.getMachineID())) {
+                    numHarmlessChanges++;
+                }
                 d.apply(this, false);
                 appliedDeltas.add(d);
             }
@@ -296,7 +1594,27 @@ public class CellState {
             scheduleEndEvents(appliedDeltas);
         }
         
-        return new CommitResult(appliedDeltas, conflictDeltas);
+        return new CommitResult(appliedDeltas, conflictDeltas, firstConflictKind);
+    }
+    
+    private static boolean isGang(List<ClaimDelta> deltas) {
+        return !deltas.isEmpty() && deltas.get(0).getJob() != null &&
+               deltas.get(0).getJob().isRigid();
+    }
+    
+    /**
+     * Commit several jobs' deltas as a single transaction. Atomicity is per job:
+     * in all-or-nothing mode a conflict rolls back only the deltas of the job it
+     * belongs to, never those of the other jobs in the batch.
+     * @return One CommitResult per group, in order
+     */
+    public List<CommitResult> commitBatch(List<List<ClaimDelta>> jobDeltas,
+                                          boolean scheduleEndEvent) {
+        List<CommitResult> results = new ArrayList<>(jobDeltas.size());
+        for (List<ClaimDelta> deltas : jobDeltas) {
+            results.add(commit(deltas, scheduleEndEvent));
+        }
+        return results;
     }
     
     /**
@@ -308,62 +1626,182 @@ public class CellState {
             throw new IllegalStateException("Simulator must be non-null in CellState.");
         }
             for (ClaimDelta appliedDelta : claimDeltas) {
-                final ClaimDelta finalDelta = appliedDelta;
-                simulator.afterDelay(appliedDelta.getDuration(), () -> {
-                    finalDelta.unApply(simulator.getCellState(), false);
-                    simulator.log(String.format(
-                        "A task started by scheduler %s finished. " +
-                        "Freeing %f cpus, %f mem. Available: %f cpus, %f mem.",
-                        finalDelta.getScheduler().getName(),
-                        finalDelta.getCpus(),
-                        finalDelta.getMem(),
-                        simulator.getCellState().getAvailableCpus(),
-                        simulator.getCellState().getAvailableMem()));
-                });
+                taskStarted(appliedDelta);
+                simulator.afterDelay(appliedDelta.getDuration(), new TaskEnd(this, appliedDelta));
             }
     }
     
+    /** A task started by scheduleEndEvents finishing, unless it was preempted. */
+    private static final class TaskEnd implements Event {
+        private static final long serialVersionUID = 1L;
+        
+        private final CellState cellState;
+        private final ClaimDelta delta;
+        
+        TaskEnd(CellState cellState, ClaimDelta delta) {
+            this.cellState = cellState;
+            this.delta = delta;
+        }
+        
+        @Override
+        public void run() {
+            if (delta.evicted) {
+                // Preempted, its resources were freed already
+                return;
+            }
+            ClusterSimulator simulator = cellState.simulator;
+            cellState.taskFinished(delta);
+            delta.unApply(simulator.getCellState(), false);
+            simulator.log(String.format(
+                "A task started by scheduler %s finished. " +
+                "Freeing %f cpus, %f mem. Available: %f cpus, %f mem.",
+                delta.getScheduler().getName(),
+                delta.getCpus(),
+                delta.getMem(),
+                simulator.getCellState().getAvailableCpus(),
+                simulator.getCellState().getAvailableMem()));
+        }
+    }
+    
     /**
      * Tests if this delta causes a transaction conflict.
      * Different test scheme is used depending on conflictMode.
+     * @return The kind of conflict, or null if the delta can be applied
      */
-    private boolean causesConflict(ClaimDelta delta) {
+    private ConflictKind conflictKind(ClaimDelta delta) {
+        int machineID = delta.getMachineID();
         if (conflictMode.equals("sequence-numbers")) {
             // Use machine sequence numbers to test for conflicts.
-            if (delta.getMachineSeqNum() != machineSeqNums[delta.getMachineID()]) {
+            if (delta.getMachineSeqNum() != machines.getSeqNum(machineID)) {
                 if (simulator != null) {
                     simulator.log(String.format(
                         "Sequence-number conflict occurred " +
                         "(sched-%s, mach-%d, seq-num-%d, cpus-%f, mem-%f).",
                         delta.getScheduler().getName(),
-                        delta.getMachineID(),
+                        machineID,
                         delta.getMachineSeqNum(),
                         delta.getCpus(),
                         delta.getMem()));
                 }
-                return true;
+                return ConflictKind.SEQUENCE_NUMBER;
             }
-            return false;
+            return null;
+        } else if (conflictMode.equals("resource-sequence-numbers")) {
+            if (delta.getCpuSeqNum() < 0 || delta.getMemSeqNum() < 0) {
+                // Delta doesn't carry dimension versions, fall back to the machine's
+                return delta.getMachineSeqNum() != machines.getSeqNum(machineID)
+                    ? ConflictKind.SEQUENCE_NUMBER : null;
+            }
+            // Only claims on a dimension this delta also needs can interfere.
+            ConflictKind kind = null;
+            if (delta.getCpus() > 0.0 && delta.getCpuSeqNum() != machines.getCpuSeqNum(machineID)) {
+                kind = ConflictKind.CPU_VERSION;
+            } else if (delta.getMem() > 0.0 && delta.getMemSeqNum() != machines.getMemSeqNum(machineID)) {
+                kind = ConflictKind.MEM_VERSION;
+            } else if (delta.getExtraResources() != null) {
+                kind = extraVersionKind(delta);
+            }
+            if (kind != null && simulator != null) {
+                simulator.log(String.format(
+                    "Resource-version conflict occurred " +
+                    "(sched-%s, mach-%d, %s, cpus-%f, mem-%f).",
+                    delta.getScheduler().getName(), machineID, kind,
+                    delta.getCpus(), delta.getMem()));
+            }
+            return kind;
+        } else if (conflictMode.equals("fits-unless-overcommitted")) {
+            // An untouched machine can't have lost the room the delta was placed in.
+            if (delta.getMachineSeqNum() == machines.getSeqNum(machineID)) {
+                return null;
+            }
+            ConflictKind kind = overcommitKind(delta);
+            if (kind != null && simulator != null) {
+                simulator.log(String.format(
+                    "Overcommit conflict occurred " +
+                    "(sched-%s, mach-%d, seq-num-%d, %s, cpus-%f, mem-%f).",
+                    delta.getScheduler().getName(), machineID,
+                    delta.getMachineSeqNum(), kind, delta.getCpus(), delta.getMem()));
+            }
+            return kind;
         } else if (conflictMode.equals("resource-fit")) {
             // Check if the machine is currently short of resources,
             // regardless of whether sequence nums have changed.
-            if (availableCpusPerMachine(delta.getMachineID()) < delta.getCpus() ||
-                availableMemPerMachine(delta.getMachineID()) < delta.getMem()) {
+            ConflictKind kind = overcommitKind(delta);
+            if (kind != null && simulator != null) {
+                simulator.log(String.format(
+                    "Resource-aware conflict occurred " +
+                    "(sched-%s, mach-%d, cpus-%f, mem-%f).",
+                    delta.getScheduler().getName(),
+                    machineID,
+                    delta.getCpus(),
+                    delta.getMem()));
+            }
+            return kind;
+        } else {
+            throw new IllegalStateException("Unrecognized conflictMode: " + conflictMode);
+        }
+    }
+    
+    /**
+     * Whether the delta's machine runs a task of a job that the delta's job
+     * must not share a machine with. Placement kept to the machines that
+     * didn't, but a task of the other job may have started there since the
+     * snapshot; tasks of this transaction aren't counted, as they start once
+     * it is committed.
+     */
+    private boolean violatesAntiAffinity(ClaimDelta delta) {
+        Job job = delta.getJob();
+        if (job == null || !job.hasConstraints()) {
+            return false;
+        }
+        int machineID = sourceMachineID(delta.getMachineID());
+        for (PlacementConstraint constraint : job.getConstraints()) {
+            if (!constraint.isOnAttributes() && jobMachines.runsOn(constraint.getJobId(), machineID)) {
                 if (simulator != null) {
                     simulator.log(String.format(
-                        "Resource-aware conflict occurred " +
-                        "(sched-%s, mach-%d, cpus-%f, mem-%f).",
-                        delta.getScheduler().getName(),
-                        delta.getMachineID(),
-                        delta.getCpus(),
-                        delta.getMem()));
+                        "Anti-affinity conflict occurred (sched-%s, mach-%d, job %d runs there).",
+                        delta.getScheduler().getName(), delta.getMachineID(), constraint.getJobId()));
                 }
                 return true;
             }
-            return false;
-        } else {
-            throw new IllegalStateException("Unrecognized conflictMode: " + conflictMode);
         }
+        return false;
+    }
+    
+    /**
+     * Version conflict of a delta in dimensions 2 and up. A delta without
+     * versions for them conflicts if the machine changed at all.
+     */
+    private ConflictKind extraVersionKind(ClaimDelta delta) {
+        int machineID = delta.getMachineID();
+        double[] extraResources = delta.getExtraResources();
+        int[] extraSeqNums = delta.getExtraSeqNums();
+        for (int k = 0; k < extraResources.length; k++) {
+            if (extraResources[k] <= 0.0) {
+                continue;
+            }
+            if (extraSeqNums == null || extraSeqNums[k] < 0 || k + 2 >= numDimensions) {
+                return delta.getMachineSeqNum() != machines.getSeqNum(machineID)
+                    ? ConflictKind.SEQUENCE_NUMBER : null;
+            }
+            if (extraSeqNums[k] != machines.getResourceSeqNum(machineID, k + 2)) {
+                return ConflictKind.RESOURCE_VERSION;
+            }
+        }
+        return null;
+    }
+    
+    private ConflictKind overcommitKind(ClaimDelta delta) {
+        if (availableCpusPerMachine(delta.getMachineID()) < delta.getCpus()) {
+            return ConflictKind.CPU_OVERCOMMIT;
+        }
+        if (availableMemPerMachine(delta.getMachineID()) < delta.getMem()) {
+            return ConflictKind.MEM_OVERCOMMIT;
+        }
+        if (delta.getExtraResources() != null &&
+            !extraResourcesFit(delta.getMachineID(), delta.getExtraResources())) {
+            return ConflictKind.RESOURCE_OVERCOMMIT;
+        }
+        return null;
     }
 }
-
@@ -2,52 +2,194 @@ package simulator.core;
 
 import scheduler.IScheduler;
 
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.List;
+
 /**
  * Represents a change (delta) to the cell state.
  * A ClaimDelta represents the allocation of resources on a specific machine
  * to a scheduler for a task.
+ *
+ * Claims on cells with resource dimensions beyond cpus and mem carry their
+ * amounts in those (dimensions 2 and up) and the versions they were based on
+ * as extra arrays; both are null for a plain cpu/mem claim.
  */
-public class ClaimDelta {
+public class ClaimDelta implements Serializable {
+    private static final long serialVersionUID = 1L;
+    
     private final IScheduler scheduler;
     private final int machineID;
     private final int machineSeqNum;
+    private final int cpuSeqNum;
+    private final int memSeqNum;
     private final double duration;
     private final double cpus;
     private final double mem;
+    private final double[] extraResources;
+    private final int[] extraSeqNums;
+    // Job the task belongs to, if known; used to requeue it when it is preempted
+    private final Job job;
+    
+    // Bookkeeping of the common cell state while the task runs
+    double startTime;
+    int runningIndex = -1;
+    boolean evicted = false;
     
+    /**
+     * @param cpuSeqNum Version of the machine's cpu allocation the delta was
+     *                  based on, or -1 if unknown
+     * @param memSeqNum Version of the machine's mem allocation the delta was
+     *                  based on, or -1 if unknown
+     * @param job       Job of the task, or null
+     * @param extraResources Amounts claimed in dimensions 2 and up, or null if none
+     * @param extraSeqNums   Versions of those dimensions the delta was based
+     *                       on, or null if unknown
+     */
     public ClaimDelta(IScheduler scheduler, int machineID, int machineSeqNum,
-                     double duration, double cpus, double mem) {
+                     int cpuSeqNum, int memSeqNum,
+                     double duration, double cpus, double mem, Job job,
+                     double[] extraResources, int[] extraSeqNums) {
+        if (extraSeqNums != null && (extraResources == null ||
+                                     extraSeqNums.length != extraResources.length)) {
+            throw new IllegalArgumentException(
+                "A delta needs one extra sequence number per extra resource dimension.");
+        }
         this.scheduler = scheduler;
         this.machineID = machineID;
         this.machineSeqNum = machineSeqNum;
+        this.cpuSeqNum = cpuSeqNum;
+        this.memSeqNum = memSeqNum;
         this.duration = duration;
         this.cpus = cpus;
         this.mem = mem;
+        this.extraResources = extraResources;
+        this.extraSeqNums = extraSeqNums;
+        this.job = job;
+    }
+    
+    public ClaimDelta(IScheduler scheduler, int machineID, int machineSeqNum,
+                     int cpuSeqNum, int memSeqNum,
+                     double duration, double cpus, double mem, Job job) {
+        this(scheduler, machineID, machineSeqNum, cpuSeqNum, memSeqNum, duration, cpus, mem, job,
+             null, null);
+    }
+    
+    public ClaimDelta(IScheduler scheduler, int machineID, int machineSeqNum,
+                     int cpuSeqNum, int memSeqNum,
+                     double duration, double cpus, double mem) {
+        this(scheduler, machineID, machineSeqNum, cpuSeqNum, memSeqNum, duration, cpus, mem, null);
+    }
+    
+    public ClaimDelta(IScheduler scheduler, int machineID, int machineSeqNum,
+                     double duration, double cpus, double mem) {
+        this(scheduler, machineID, machineSeqNum, -1, -1, duration, cpus, mem);
     }
     
     public IScheduler getScheduler() { return scheduler; }
     public int getMachineID() { return machineID; }
     public int getMachineSeqNum() { return machineSeqNum; }
+    public int getCpuSeqNum() { return cpuSeqNum; }
+    public int getMemSeqNum() { return memSeqNum; }
     public double getDuration() { return duration; }
     public double getCpus() { return cpus; }
     public double getMem() { return mem; }
+    public double[] getExtraResources() { return extraResources; }
+    public int[] getExtraSeqNums() { return extraSeqNums; }
+    public Job getJob() { return job; }
+    public boolean isEvicted() { return evicted; }
+    public double getStartTime() { return startTime; }
+    
+    public int getNumDimensions() {
+        return extraResources == null ? 2 : 2 + extraResources.length;
+    }
+    
+    /**
+     * Amount claimed in a resource dimension; 0 past the delta's own dimensions.
+     */
+    public double getResource(int dimension) {
+        if (dimension == 0) {
+            return cpus;
+        } else if (dimension == 1) {
+            return mem;
+        }
+        return extraResources == null || dimension - 2 >= extraResources.length
+            ? 0.0 : extraResources[dimension - 2];
+    }
+    
+    /**
+     * Version of a resource dimension the delta was based on, or -1 if unknown.
+     */
+    public int getResourceSeqNum(int dimension) {
+        if (dimension == 0) {
+            return cpuSeqNum;
+        } else if (dimension == 1) {
+            return memSeqNum;
+        }
+        return extraSeqNums == null || dimension - 2 >= extraSeqNums.length
+            ? -1 : extraSeqNums[dimension - 2];
+    }
+    
+    /**
+     * Amounts claimed in dimensions 2 and up, summed over the deltas; null if
+     * none of them claims any.
+     */
+    public static double[] sumExtraResources(List<ClaimDelta> deltas) {
+        double[] sum = null;
+        for (ClaimDelta delta : deltas) {
+            double[] extra = delta.extraResources;
+            if (extra == null) {
+                continue;
+            }
+            if (sum == null) {
+                sum = new double[extra.length];
+            } else if (sum.length < extra.length) {
+                sum = Arrays.copyOf(sum, extra.length);
+            }
+            for (int k = 0; k < extra.length; k++) {
+                sum[k] += extra[k];
+            }
+        }
+        return sum;
+    }
+    
+    /**
+     * Priority of the task: its job's, or 0 if the job is unknown.
+     */
+    public int getPriority() {
+        return job == null ? 0 : job.getPriority();
+    }
     
     /**
      * Apply this delta to the cell state, allocating the resources.
-     * Increments the sequence number of the machine.
+     * Increments the sequence number of the machine, and the version of each
+     * resource dimension the delta claims.
      */
     public void apply(CellState cellState, boolean locked) {
-        cellState.assignResources(scheduler, machineID, cpus, mem, locked);
+        cellState.assignResources(scheduler, machineID, cpus, mem, extraResources, locked);
         // Mark that the machine has changed, used for testing for conflicts
         // when using optimistic concurrency.
         cellState.incrementMachineSeqNum(machineID);
+        if (cpus > 0.0) {
+            cellState.incrementCpuSeqNum(machineID);
+        }
+        if (mem > 0.0) {
+            cellState.incrementMemSeqNum(machineID);
+        }
+        if (extraResources != null) {
+            for (int k = 0; k < extraResources.length; k++) {
+                if (extraResources[k] > 0.0) {
+                    cellState.incrementResourceSeqNum(machineID, k + 2);
+                }
+            }
+        }
     }
     
     /**
      * Unapply this delta, freeing the resources.
      */
     public void unApply(CellState cellState, boolean locked) {
-        cellState.freeResources(scheduler, machineID, cpus, mem, locked);
+        cellState.freeResources(scheduler, machineID, cpus, mem, extraResources, locked);
     }
 }
 
@@ -0,0 +1,287 @@
+package simulator.core;
+
+import java.util.Arrays;
+
+/**
+ * Scan kernels over per-machine allocation arrays, for the placement loops that
+ * look at every machine: count the machines a task fits on, find the first
+ * one, and find the best fit. A task fits on machine i when
+ * capacity - allocated[i] >= needed in both cpus and mem, the same comparison
+ * as CellState.canHost.
+ *
+ * On a busy, fragmented cell whether a machine fits is close to a coin flip,
+ * and the branch on it in a plain loop is mispredicted all the time. countFits
+ * and argminFreeFraction therefore test fits without branching, from the sign
+ * bit of free - needed (for finite values, x - y >= 0 exactly when x >= y), and
+ * are about 3x and 2x faster than the plain loops from 100k machines up. Both
+ * give the same answers as their scalar fallbacks, which are used instead if the
+ * simulator.fitscan.scalar system property is set or setScalar(true) is called.
+ * firstFit stays a plain loop: its branch almost always goes the same way, and
+ * unrolled or branch-free versions measured slower.
+ *
+ * Cells with more resource dimensions than cpus and mem have a kernel of each
+ * kind taking one array per dimension, allocated[d][i], with the capacity and
+ * needs as arrays indexed by dimension. countFits and argminFreeFraction go
+ * over BLOCK machines at a time one dimension after the other, so that every
+ * inner loop streams through a single array, which measured about 1.5x
+ * faster than looking at all the dimensions of one machine before the next.
+ */
+public final class FitScan {
+    private static final long POSITIVE_INFINITY_BITS = Double.doubleToRawLongBits(Double.POSITIVE_INFINITY);
+
+    private static volatile boolean scalar = Boolean.getBoolean("simulator.fitscan.scalar");
+
+    private FitScan() {}
+
+    public static boolean isScalar() { return scalar; }
+
+    /**
+     * Use the scalar loops (true) or the branch-free ones (false) from now on.
+     */
+    public static void setScalar(boolean useScalar) { scalar = useScalar; }
+
+    /**
+     * All ones if a task of the given shape does not fit in the free
+     * resources, zero if it does.
+     */
+    private static long notFitMask(double cpusFree, double memFree, double cpusNeeded, double memNeeded) {
+        return (Double.doubleToRawLongBits(cpusFree - cpusNeeded) |
+                Double.doubleToRawLongBits(memFree - memNeeded)) >> 63;
+    }
+
+    /**
+     * Number of machines in [from, to) a task fits on.
+     */
+    public static int countFits(double[] cpus, double[] mem, int from, int to,
+                                double cpuCapacity, double memCapacity,
+                                double cpusNeeded, double memNeeded) {
+        if (scalar) {
+            return countFitsScalar(cpus, mem, from, to, cpuCapacity, memCapacity, cpusNeeded, memNeeded);
+        }
+        long notFitting = 0;
+        for (int i = from; i < to; i++) {
+            notFitting -= notFitMask(cpuCapacity - cpus[i], memCapacity - mem[i], cpusNeeded, memNeeded);
+        }
+        return (int) (Math.max(0, to - from) - notFitting);
+    }
+
+    public static int countFitsScalar(double[] cpus, double[] mem, int from, int to,
+                                      double cpuCapacity, double memCapacity,
+                                      double cpusNeeded, double memNeeded) {
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            if (cpuCapacity - cpus[i] >= cpusNeeded && memCapacity - mem[i] >= memNeeded) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Lowest machine in [from, to) a task fits on, or -1 if there is none.
+     */
+    public static int firstFit(double[] cpus, double[] mem, int from, int to,
+                               double cpuCapacity, double memCapacity,
+                               double cpusNeeded, double memNeeded) {
+        for (int i = from; i < to; i++) {
+            if (cpuCapacity - cpus[i] >= cpusNeeded && memCapacity - mem[i] >= memNeeded) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Best fit: the machine in [from, to) a task fits on that has the least free
+     * resources, as a fraction of capacity summed over cpus and mem (see
+     * PlacementPolicy.freeFraction). Ties go to the lowest machine ID.
+     * @return The machine, or -1 if the task fits nowhere
+     */
+    public static int argminFreeFraction(double[] cpus, double[] mem, int from, int to,
+                                         double cpuCapacity, double memCapacity,
+                                         double cpusNeeded, double memNeeded) {
+        if (scalar) {
+            return argminFreeFractionScalar(cpus, mem, from, to, cpuCapacity, memCapacity,
+                                            cpusNeeded, memNeeded);
+        }
+        int best = -1;
+        double bestFree = Double.POSITIVE_INFINITY;
+        for (int i = from; i < to; i++) {
+            double cpusFree = cpuCapacity - cpus[i];
+            double memFree = memCapacity - mem[i];
+            long notFit = notFitMask(cpusFree, memFree, cpusNeeded, memNeeded);
+            // Machines the task doesn't fit on count as infinitely free; the
+            // comparison left is rarely true, so it is predicted well
+            double free = Double.longBitsToDouble(
+                (Double.doubleToRawLongBits(cpusFree / cpuCapacity + memFree / memCapacity) & ~notFit) |
+                (POSITIVE_INFINITY_BITS & notFit));
+            if (free < bestFree) {
+                bestFree = free;
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    public static int argminFreeFractionScalar(double[] cpus, double[] mem, int from, int to,
+                                               double cpuCapacity, double memCapacity,
+                                               double cpusNeeded, double memNeeded) {
+        int best = -1;
+        double bestFree = Double.POSITIVE_INFINITY;
+        for (int i = from; i < to; i++) {
+            double cpusFree = cpuCapacity - cpus[i];
+            double memFree = memCapacity - mem[i];
+            if (cpusFree >= cpusNeeded && memFree >= memNeeded) {
+                double free = cpusFree / cpuCapacity + memFree / memCapacity;
+                if (free < bestFree) {
+                    bestFree = free;
+                    best = i;
+                }
+            }
+        }
+        return best;
+    }
+
+    /** Machines per block of the N-dimensional kernels. */
+    static final int BLOCK = 512;
+
+    /**
+     * Fill notFit[k] with the sign bit of free - needed of machine start + k,
+     * or'ed over all dimensions: negative exactly if the task does not fit.
+     */
+    private static void notFitBits(double[][] allocated, int start, int len,
+                                   double[] capacity, double[] needed, long[] notFit) {
+        double[] first = allocated[0];
+        double dimCapacity = capacity[0];
+        double dimNeeded = needed[0];
+        for (int k = 0; k < len; k++) {
+            notFit[k] = Double.doubleToRawLongBits(dimCapacity - first[start + k] - dimNeeded);
+        }
+        for (int d = 1; d < allocated.length; d++) {
+            double[] dim = allocated[d];
+            dimCapacity = capacity[d];
+            dimNeeded = needed[d];
+            for (int k = 0; k < len; k++) {
+                notFit[k] |= Double.doubleToRawLongBits(dimCapacity - dim[start + k] - dimNeeded);
+            }
+        }
+    }
+
+    private static boolean fits(double[][] allocated, int machineID,
+                                double[] capacity, double[] needed) {
+        for (int d = 0; d < allocated.length; d++) {
+            if (!(capacity[d] - allocated[d][machineID] >= needed[d])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static double freeFraction(double[][] allocated, int machineID, double[] capacity) {
+        double free = 0.0;
+        for (int d = 0; d < allocated.length; d++) {
+            free += (capacity[d] - allocated[d][machineID]) / capacity[d];
+        }
+        return free;
+    }
+
+    /**
+     * Number of machines in [from, to) a task fits on, in any number of dimensions.
+     */
+    public static int countFits(double[][] allocated, int from, int to,
+                                double[] capacity, double[] needed) {
+        if (scalar) {
+            return countFitsScalar(allocated, from, to, capacity, needed);
+        }
+        long[] notFit = new long[Math.max(0, Math.min(BLOCK, to - from))];
+        long notFitting = 0;
+        for (int start = from; start < to; start += BLOCK) {
+            int len = Math.min(BLOCK, to - start);
+            notFitBits(allocated, start, len, capacity, needed, notFit);
+            for (int k = 0; k < len; k++) {
+                notFitting -= notFit[k] >> 63;
+            }
+        }
+        return (int) (Math.max(0, to - from) - notFitting);
+    }
+
+    public static int countFitsScalar(double[][] allocated, int from, int to,
+                                      double[] capacity, double[] needed) {
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            if (fits(allocated, i, capacity, needed)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Lowest machine in [from, to) a task fits on, in any number of
+     * dimensions, or -1 if there is none.
+     */
+    public static int firstFit(double[][] allocated, int from, int to,
+                               double[] capacity, double[] needed) {
+        for (int i = from; i < to; i++) {
+            if (fits(allocated, i, capacity, needed)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Best fit in any number of dimensions, the free fraction summed over all
+     * of them. Ties go to the lowest machine ID.
+     * @return The machine, or -1 if the task fits nowhere
+     */
+    public static int argminFreeFraction(double[][] allocated, int from, int to,
+                                         double[] capacity, double[] needed) {
+        if (scalar) {
+            return argminFreeFractionScalar(allocated, from, to, capacity, needed);
+        }
+        int blockSize = Math.max(0, Math.min(BLOCK, to - from));
+        long[] notFit = new long[blockSize];
+        double[] free = new double[blockSize];
+        int best = -1;
+        double bestFree = Double.POSITIVE_INFINITY;
+        for (int start = from; start < to; start += BLOCK) {
+            int len = Math.min(BLOCK, to - start);
+            notFitBits(allocated, start, len, capacity, needed, notFit);
+            Arrays.fill(free, 0, len, 0.0);
+            for (int d = 0; d < allocated.length; d++) {
+                double[] dim = allocated[d];
+                double dimCapacity = capacity[d];
+                for (int k = 0; k < len; k++) {
+                    free[k] += (dimCapacity - dim[start + k]) / dimCapacity;
+                }
+            }
+            for (int k = 0; k < len; k++) {
+                long mask = notFit[k] >> 63;
+                double f = Double.longBitsToDouble(
+                    (Double.doubleToRawLongBits(free[k]) & ~mask) | (POSITIVE_INFINITY_BITS & mask));
+                if (f < bestFree) {
+                    bestFree = f;
+                    best = start + k;
+                }
+            }
+        }
+        return best;
+    }
+
+    public static int argminFreeFractionScalar(double[][] allocated, int from, int to,
+                                               double[] capacity, double[] needed) {
+        int best = -1;
+        double bestFree = Double.POSITIVE_INFINITY;
+        for (int i = from; i < to; i++) {
+            if (fits(allocated, i, capacity, needed)) {
+                double free = freeFraction(allocated, i, capacity);
+                if (free < bestFree) {
+                    bestFree = free;
+                    best = i;
+                }
+            }
+        }
+        return best;
+    }
+}
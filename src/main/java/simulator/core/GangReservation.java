@@ -0,0 +1,84 @@
+package simulator.core;
+
+import java.io.Serializable;
+
+/**
+ * Room held in a cell for the gang of one rigid job (EASY-style backfilling).
+ * From the running tasks' end times the cell works out the shadow time, the
+ * earliest time the whole gang fits, and which machines will have its room
+ * then. Until the gang is placed, other jobs may still use a reserved machine
+ * if their task is done before the shadow time, or if the machine has room for
+ * the task on top of what is reserved on it.
+ *
+ * Reservations are immutable; snapshots share them with the cell they were
+ * copied from.
+ */
+public class GangReservation implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final Job job;
+    private final double shadowTime;
+    private final int numTasks;
+    // Cpus and mem held per machine, indexed by machine ID
+    private final double[] reservedCpus;
+    private final double[] reservedMem;
+    private final int numMachinesReserved;
+
+    GangReservation(Job job, double shadowTime, int numTasks,
+                    double[] reservedCpus, double[] reservedMem) {
+        this.job = job;
+        this.shadowTime = shadowTime;
+        this.numTasks = numTasks;
+        this.reservedCpus = reservedCpus;
+        this.reservedMem = reservedMem;
+        int reserved = 0;
+        for (double cpus : reservedCpus) {
+            if (cpus > 0.0) {
+                reserved++;
+            }
+        }
+        this.numMachinesReserved = reserved;
+    }
+
+    public Job getJob() { return job; }
+    public double getShadowTime() { return shadowTime; }
+    public int getNumTasks() { return numTasks; }
+    public int getNumMachinesReserved() { return numMachinesReserved; }
+
+    public double getReservedCpus(int machineID) { return reservedCpus[machineID]; }
+    public double getReservedMem(int machineID) { return reservedMem[machineID]; }
+
+    /**
+     * Whether a task of another job may go on the machine, given what is free
+     * there: either it ends before the gang is due to start, or it leaves the
+     * reserved room untouched even now.
+     */
+    boolean admits(Job other, int machineID, double cpusFree, double memFree, double now) {
+        if (other == job) {
+            return true;
+        }
+        double cpus = reservedCpus[machineID];
+        double mem = reservedMem[machineID];
+        if (cpus == 0.0 && mem == 0.0) {
+            return true;
+        }
+        if (now + other.getTaskDuration() <= shadowTime) {
+            return true;
+        }
+        return cpusFree - other.getCpusPerTask() >= cpus && memFree - other.getMemPerTask() >= mem;
+    }
+
+    /**
+     * The same reservation for a snapshot of the given machines, renumbered
+     * 0..n-1 as in CellState.copyMachines.
+     */
+    GangReservation forMachines(int[] machineIDs) {
+        double[] cpus = new double[machineIDs.length];
+        double[] mem = new double[machineIDs.length];
+        for (int i = 0; i < machineIDs.length; i++) {
+            cpus[i] = reservedCpus[machineIDs[i]];
+            mem[i] = reservedMem[machineIDs[i]];
+        }
+        return new GangReservation(job, shadowTime, numTasks, cpus, mem);
+    }
+}
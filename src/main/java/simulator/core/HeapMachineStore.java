@@ -0,0 +1,170 @@
+package simulator.core;
+
+/**
+ * Machine state in plain heap arrays, one per field and resource dimension,
+ * with resources as doubles. The default store.
+ */
+class HeapMachineStore extends MachineStore {
+    private static final long serialVersionUID = 1L;
+
+    // allocated[d][machineID]; allocatedCpus and allocatedMem are the first two
+    private final double[][] allocated;
+    private final double[] allocatedCpus;
+    private final double[] allocatedMem;
+    private final int[] machineSeqNums;
+    private final int[][] resourceSeqNums;
+    private final int[] cpuSeqNums;
+    private final int[] memSeqNums;
+    private final double[] conflictScores;
+    private final double[] conflictScoreTimes;
+
+    HeapMachineStore(int numMachines) {
+        this(numMachines, 2);
+    }
+
+    HeapMachineStore(int numMachines, int numDimensions) {
+        super(numMachines, numDimensions);
+        this.allocated = new double[numDimensions][numMachines];
+        this.allocatedCpus = allocated[0];
+        this.allocatedMem = allocated[1];
+        this.machineSeqNums = new int[numMachines];
+        this.resourceSeqNums = new int[numDimensions][numMachines];
+        this.cpuSeqNums = resourceSeqNums[0];
+        this.memSeqNums = resourceSeqNums[1];
+        this.conflictScores = new double[numMachines];
+        this.conflictScoreTimes = new double[numMachines];
+    }
+
+    @Override
+    double getCpus(int machineID) { return allocatedCpus[machineID]; }
+
+    @Override
+    double getMem(int machineID) { return allocatedMem[machineID]; }
+
+    @Override
+    void addResources(int machineID, double cpus, double mem) {
+        allocatedCpus[machineID] += cpus;
+        allocatedMem[machineID] += mem;
+    }
+
+    @Override
+    void setResources(int machineID, double cpus, double mem) {
+        allocatedCpus[machineID] = cpus;
+        allocatedMem[machineID] = mem;
+    }
+
+    @Override
+    double getResource(int machineID, int dimension) { return allocated[dimension][machineID]; }
+
+    @Override
+    void addResource(int machineID, int dimension, double amount) {
+        allocated[dimension][machineID] += amount;
+    }
+
+    @Override
+    void setResource(int machineID, int dimension, double amount) {
+        allocated[dimension][machineID] = amount;
+    }
+
+    @Override
+    int getSeqNum(int machineID) { return machineSeqNums[machineID]; }
+
+    @Override
+    int getCpuSeqNum(int machineID) { return cpuSeqNums[machineID]; }
+
+    @Override
+    int getMemSeqNum(int machineID) { return memSeqNums[machineID]; }
+
+    @Override
+    void setSeqNums(int machineID, int seqNum, int cpuSeqNum, int memSeqNum) {
+        machineSeqNums[machineID] = seqNum;
+        cpuSeqNums[machineID] = cpuSeqNum;
+        memSeqNums[machineID] = memSeqNum;
+    }
+
+    @Override
+    void incrementSeqNum(int machineID) { machineSeqNums[machineID]++; }
+
+    @Override
+    void incrementCpuSeqNum(int machineID) { cpuSeqNums[machineID]++; }
+
+    @Override
+    void incrementMemSeqNum(int machineID) { memSeqNums[machineID]++; }
+
+    @Override
+    int getResourceSeqNum(int machineID, int dimension) { return resourceSeqNums[dimension][machineID]; }
+
+    @Override
+    void setResourceSeqNum(int machineID, int dimension, int seqNum) {
+        resourceSeqNums[dimension][machineID] = seqNum;
+    }
+
+    @Override
+    void incrementResourceSeqNum(int machineID, int dimension) { resourceSeqNums[dimension][machineID]++; }
+
+    @Override
+    double getConflictScore(int machineID) { return conflictScores[machineID]; }
+
+    @Override
+    double getConflictScoreTime(int machineID) { return conflictScoreTimes[machineID]; }
+
+    @Override
+    void setConflictScore(int machineID, double score, double time) {
+        conflictScores[machineID] = score;
+        conflictScoreTimes[machineID] = time;
+    }
+
+    @Override
+    int countFits(int from, int to, double cpuCapacity, double memCapacity,
+                  double cpus, double mem) {
+        return FitScan.countFits(allocatedCpus, allocatedMem, from, to,
+                                 cpuCapacity, memCapacity, cpus, mem);
+    }
+
+    @Override
+    int firstFit(int from, int to, double cpuCapacity, double memCapacity,
+                 double cpus, double mem) {
+        return FitScan.firstFit(allocatedCpus, allocatedMem, from, to,
+                                cpuCapacity, memCapacity, cpus, mem);
+    }
+
+    @Override
+    int argminFreeFraction(int from, int to, double cpuCapacity, double memCapacity,
+                           double cpus, double mem) {
+        return FitScan.argminFreeFraction(allocatedCpus, allocatedMem, from, to,
+                                          cpuCapacity, memCapacity, cpus, mem);
+    }
+
+    @Override
+    int countFits(int from, int to, double[] capacity, double[] needed) {
+        return FitScan.countFits(allocated, from, to, capacity, needed);
+    }
+
+    @Override
+    int firstFit(int from, int to, double[] capacity, double[] needed) {
+        return FitScan.firstFit(allocated, from, to, capacity, needed);
+    }
+
+    @Override
+    int argminFreeFraction(int from, int to, double[] capacity, double[] needed) {
+        return FitScan.argminFreeFraction(allocated, from, to, capacity, needed);
+    }
+
+    @Override
+    MachineStore create(int numMachines) {
+        return new HeapMachineStore(numMachines, numDimensions);
+    }
+
+    @Override
+    MachineStore copy() {
+        HeapMachineStore copy = new HeapMachineStore(numMachines, numDimensions);
+        for (int d = 0; d < numDimensions; d++) {
+            System.arraycopy(allocated[d], 0, copy.allocated[d], 0, numMachines);
+            System.arraycopy(resourceSeqNums[d], 0, copy.resourceSeqNums[d], 0, numMachines);
+        }
+        System.arraycopy(machineSeqNums, 0, copy.machineSeqNums, 0, numMachines);
+        System.arraycopy(conflictScores, 0, copy.conflictScores, 0, numMachines);
+        System.arraycopy(conflictScoreTimes, 0, copy.conflictScoreTimes, 0, numMachines);
+        return copy;
+    }
+}
@@ -1,10 +1,22 @@
 package simulator.core;
 
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
 /**
  * Represents a job in the cluster scheduling simulator.
  * A job consists of multiple tasks, all with the same resource requirements.
+ * Tasks need cpus and mem, and optionally amounts of further resource
+ * dimensions (2, 3, ...) of cells made with more than two; a job that needs
+ * none of those leaves them null. A job may also carry placement constraints
+ * on the machines its tasks go on.
  */
-public class Job {
+public class Job implements Serializable {
+    private static final long serialVersionUID = 1L;
+    
     private final long id;
     private final double submitted;
     private final int numTasks;
@@ -12,7 +24,13 @@ public class Job {
     private final String workloadName;
     private final double cpusPerTask;
     private final double memPerTask;
+    // Needs in dimensions 2 and up, or null if only cpus and mem
+    private final double[] extraResourcesPerTask;
     private final boolean isRigid;
+    // Higher values are more important; 0 unless set by the workload generator
+    private int priority = 0;
+    // Empty unless set by the workload generator
+    private List<PlacementConstraint> constraints = Collections.emptyList();
     
     // Scheduling state
     private int unscheduledTasks;
@@ -25,8 +43,25 @@ public class Job {
     private double usefulTimeScheduling = 0.0;
     private double wastedTimeScheduling = 0.0;
     
+    /**
+     * @param resourcesPerTask Needs of each task by resource dimension, cpus
+     *                         and mem first
+     */
+    public Job(long id, double submitted, int numTasks, double taskDuration,
+               String workloadName, double[] resourcesPerTask, boolean isRigid) {
+        this(id, submitted, numTasks, taskDuration, workloadName,
+             resourcesPerTask[0], resourcesPerTask[1], extraDimensions(resourcesPerTask), isRigid);
+    }
+    
     public Job(long id, double submitted, int numTasks, double taskDuration,
                String workloadName, double cpusPerTask, double memPerTask, boolean isRigid) {
+        this(id, submitted, numTasks, taskDuration, workloadName,
+             cpusPerTask, memPerTask, null, isRigid);
+    }
+    
+    private Job(long id, double submitted, int numTasks, double taskDuration,
+                String workloadName, double cpusPerTask, double memPerTask,
+                double[] extraResourcesPerTask, boolean isRigid) {
         this.id = id;
         this.submitted = submitted;
         this.numTasks = numTasks;
@@ -34,6 +69,7 @@ public class Job {
         this.workloadName = workloadName;
         this.cpusPerTask = cpusPerTask;
         this.memPerTask = memPerTask;
+        this.extraResourcesPerTask = extraResourcesPerTask;
         this.isRigid = isRigid;
         this.unscheduledTasks = numTasks;
     }
@@ -43,6 +79,16 @@ public class Job {
         this(id, submitted, numTasks, taskDuration, workloadName, cpusPerTask, memPerTask, false);
     }
     
+    private static double[] extraDimensions(double[] resourcesPerTask) {
+        if (resourcesPerTask.length < 2) {
+            throw new IllegalArgumentException(
+                "A job needs at least cpus and mem, but got " + resourcesPerTask.length +
+                " resource dimensions.");
+        }
+        return resourcesPerTask.length == 2
+            ? null : Arrays.copyOfRange(resourcesPerTask, 2, resourcesPerTask.length);
+    }
+    
     // Getters
     public long getId() { return id; }
     public double getSubmitted() { return submitted; }
@@ -51,7 +97,37 @@ public class Job {
     public String getWorkloadName() { return workloadName; }
     public double getCpusPerTask() { return cpusPerTask; }
     public double getMemPerTask() { return memPerTask; }
+    
+    /**
+     * Number of resource dimensions the job's tasks are given in: 2, or more
+     * if it was made with needs beyond cpus and mem.
+     */
+    public int getNumDimensions() {
+        return extraResourcesPerTask == null ? 2 : 2 + extraResourcesPerTask.length;
+    }
+    
+    /**
+     * What each task needs in a resource dimension; 0 past the job's own dimensions.
+     */
+    public double getResourcePerTask(int dimension) {
+        if (dimension == 0) {
+            return cpusPerTask;
+        } else if (dimension == 1) {
+            return memPerTask;
+        }
+        return extraResourcesPerTask == null || dimension - 2 >= extraResourcesPerTask.length
+            ? 0.0 : extraResourcesPerTask[dimension - 2];
+    }
+    
+    /**
+     * Needs in dimensions 2 and up, or null if the job only needs cpus and
+     * mem. Not a copy; claims of the job's tasks share it.
+     */
+    public double[] getExtraResourcesPerTask() { return extraResourcesPerTask; }
     public boolean isRigid() { return isRigid; }
+    public int getPriority() { return priority; }
+    public List<PlacementConstraint> getConstraints() { return constraints; }
+    public boolean hasConstraints() { return !constraints.isEmpty(); }
     public int getUnscheduledTasks() { return unscheduledTasks; }
     public double getTimeInQueueTillFirstScheduled() { return timeInQueueTillFirstScheduled; }
     public double getTimeInQueueTillFullyScheduled() { return timeInQueueTillFullyScheduled; }
@@ -64,6 +140,7 @@ public class Job {
     
     // Setters
     public void setTaskDuration(double taskDuration) { this.taskDuration = taskDuration; }
+    public void setPriority(int priority) { this.priority = priority; }
     public void setUnscheduledTasks(int unscheduledTasks) { this.unscheduledTasks = unscheduledTasks; }
     public void setTimeInQueueTillFirstScheduled(double time) { this.timeInQueueTillFirstScheduled = time; }
     public void setTimeInQueueTillFullyScheduled(double time) { this.timeInQueueTillFullyScheduled = time; }
@@ -74,6 +151,15 @@ public class Job {
     public void setUsefulTimeScheduling(double time) { this.usefulTimeScheduling = time; }
     public void setWastedTimeScheduling(double time) { this.wastedTimeScheduling = time; }
     
+    /**
+     * Constraints every machine the job's tasks go on must meet; copied.
+     */
+    public void setConstraints(List<PlacementConstraint> constraints) {
+        this.constraints = constraints.isEmpty()
+            ? Collections.<PlacementConstraint>emptyList()
+            : Collections.unmodifiableList(new ArrayList<>(constraints));
+    }
+    
     public double getCpusStillNeeded() {
         return cpusPerTask * unscheduledTasks;
     }
@@ -115,8 +201,10 @@ public class Job {
     
     public Job copy() {
         Job copy = new Job(id, submitted, numTasks, taskDuration, workloadName, 
-                          cpusPerTask, memPerTask, isRigid);
+                          cpusPerTask, memPerTask, extraResourcesPerTask, isRigid);
         copy.unscheduledTasks = this.unscheduledTasks;
+        copy.priority = this.priority;
+        copy.constraints = this.constraints;
         copy.timeInQueueTillFirstScheduled = this.timeInQueueTillFirstScheduled;
         copy.timeInQueueTillFullyScheduled = this.timeInQueueTillFullyScheduled;
         copy.lastEnqueued = this.lastEnqueued;
@@ -127,5 +215,18 @@ public class Job {
         copy.wastedTimeScheduling = this.wastedTimeScheduling;
         return copy;
     }
+
+    /**
+     * A new job of this one's still unscheduled tasks, submitted at the given
+     * time, with the same ID, shape, priority and constraints but none of the
+     * scheduling history; for handing them on to another cell.
+     */
+    public Job remainder(double submitted) {
+        Job remainder = new Job(id, submitted, unscheduledTasks, taskDuration, workloadName,
+                                cpusPerTask, memPerTask, extraResourcesPerTask, isRigid);
+        remainder.priority = this.priority;
+        remainder.constraints = this.constraints;
+        return remainder;
+    }
 }
 
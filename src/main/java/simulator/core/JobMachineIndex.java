@@ -0,0 +1,94 @@
+package simulator.core;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Machines running tasks of each job, for NOT_WITH_JOB placement constraints.
+ * Kept by the common cell state as tasks start and end, or by an
+ * AtomicCellState as deltas commit and are released, and shared with their
+ * snapshots, which read it while placing; safe to use from any number of
+ * threads.
+ */
+final class JobMachineIndex implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    // Job ID -> machine ID -> number of the job's tasks running there
+    private final Map<Long, Map<Integer, Integer>> tasks = new ConcurrentHashMap<>();
+    // Bumped on every change, so cached eligibility can tell it is stale
+    private final AtomicLong version = new AtomicLong();
+
+    JobMachineIndex() {}
+
+    private JobMachineIndex(JobMachineIndex source) {
+        for (Map.Entry<Long, Map<Integer, Integer>> entry : source.tasks.entrySet()) {
+            tasks.put(entry.getKey(), new ConcurrentHashMap<>(entry.getValue()));
+        }
+    }
+
+    /**
+     * An index of the same tasks, changed independently from here on.
+     */
+    JobMachineIndex copy() {
+        return new JobMachineIndex(this);
+    }
+
+    void add(long jobId, int machineID) {
+        // Atomic per job, so a concurrent remove can't drop the job's map
+        // from under an add
+        tasks.compute(jobId, (id, machines) -> {
+            if (machines == null) {
+                machines = new ConcurrentHashMap<>();
+            }
+            machines.merge(machineID, 1, Integer::sum);
+            return machines;
+        });
+        version.incrementAndGet();
+    }
+
+    void remove(long jobId, int machineID) {
+        tasks.computeIfPresent(jobId, (id, machines) -> {
+            machines.computeIfPresent(machineID, (m, n) -> n == 1 ? null : n - 1);
+            return machines.isEmpty() ? null : machines;
+        });
+        version.incrementAndGet();
+    }
+
+    long getVersion() { return version.get(); }
+
+    boolean runsOn(long jobId, int machineID) {
+        Map<Integer, Integer> machines = tasks.get(jobId);
+        return machines != null && machines.containsKey(machineID);
+    }
+
+    /**
+     * Number of the job's tasks on the machine.
+     */
+    int count(long jobId, int machineID) {
+        Map<Integer, Integer> machines = tasks.get(jobId);
+        Integer count = machines == null ? null : machines.get(machineID);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * The machines running a task of the job.
+     */
+    MachineSet machinesOf(long jobId) {
+        Map<Integer, Integer> machines = tasks.get(jobId);
+        if (machines == null) {
+            return MachineSet.empty();
+        }
+        int[] machineIDs = new int[machines.size()];
+        int n = 0;
+        for (int machineID : machines.keySet()) {
+            if (n == machineIDs.length) {
+                break;
+            }
+            machineIDs[n++] = machineID;
+        }
+        return MachineSet.of(n == machineIDs.length ? machineIDs : Arrays.copyOf(machineIDs, n));
+    }
+}
@@ -0,0 +1,307 @@
+package simulator.core;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Attributes of the machines of a cell (zone, rack, kernel version, ...), as
+ * string values under string keys, with an index from every key and value to
+ * the machines that have it as a compressed MachineSet. Placement constraints
+ * on attributes are evaluated by intersecting and subtracting these sets, so
+ * finding the few machines a picky job may use doesn't look at the rest.
+ * A machine can lack a key. Immutable once built.
+ *
+ * An attributes file gives machines, or ranges of machine IDs, one per line:
+ * <pre>
+ *   first[-last],key=value[,key=value...]
+ * </pre>
+ * Later lines override earlier ones for the keys they give. Blank lines and
+ * lines starting with '#' are ignored.
+ */
+public final class MachineAttributes implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final int numMachines;
+    private final Map<String, Attribute> attributes;
+
+    private static final class Attribute implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final String[] values;
+        // Index into values of each machine's value, or -1 if it has none
+        final int[] valueOf;
+        final Map<String, Integer> valueIndex = new HashMap<>();
+        // Machines with each value; made on first use, so snapshots of a few
+        // machines that never look don't pay for it
+        private MachineSet[] machines;
+
+        Attribute(String[] values, int[] valueOf) {
+            this.values = values;
+            this.valueOf = valueOf;
+            for (int v = 0; v < values.length; v++) {
+                valueIndex.put(values[v], v);
+            }
+        }
+
+        MachineSet[] machines() {
+            if (machines == null) {
+                MachineSet.Builder[] builders = new MachineSet.Builder[values.length];
+                for (int v = 0; v < values.length; v++) {
+                    builders[v] = new MachineSet.Builder();
+                }
+                for (int m = 0; m < valueOf.length; m++) {
+                    if (valueOf[m] >= 0) {
+                        builders[valueOf[m]].add(m);
+                    }
+                }
+                MachineSet[] sets = new MachineSet[values.length];
+                for (int v = 0; v < values.length; v++) {
+                    sets[v] = builders[v].build();
+                }
+                machines = sets;
+            }
+            return machines;
+        }
+    }
+
+    private MachineAttributes(int numMachines, Map<String, Attribute> attributes) {
+        this.numMachines = numMachines;
+        this.attributes = attributes;
+    }
+
+    /**
+     * numMachines machines without any attributes.
+     */
+    public static MachineAttributes none(int numMachines) {
+        return new MachineAttributes(numMachines, Collections.<String, Attribute>emptyMap());
+    }
+
+    /**
+     * Read an attributes file (see the class comment) for a cell of numMachines.
+     */
+    public static MachineAttributes load(String path, int numMachines) throws IOException {
+        Builder builder = new Builder(numMachines);
+        try (BufferedReader lines = Files.newBufferedReader(Paths.get(path), StandardCharsets.UTF_8)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = lines.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.charAt(0) == '#') {
+                    continue;
+                }
+                String[] fields = line.split(",");
+                int from;
+                int to;
+                try {
+                    String[] range = fields[0].trim().split("-");
+                    from = Integer.parseInt(range[0].trim());
+                    to = (range.length > 1 ? Integer.parseInt(range[1].trim()) : from) + 1;
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException(String.format(
+                        "Line %d of %s should start with a machine or range of machines: %s",
+                        lineNumber, path, line));
+                }
+                for (int f = 1; f < fields.length; f++) {
+                    int eq = fields[f].indexOf('=');
+                    if (eq <= 0) {
+                        throw new IllegalArgumentException(String.format(
+                            "Line %d of %s has %s where key=value belongs.",
+                            lineNumber, path, fields[f].trim()));
+                    }
+                    builder.set(from, to, fields[f].substring(0, eq).trim(),
+                                fields[f].substring(eq + 1).trim());
+                }
+            }
+        }
+        return builder.build();
+    }
+
+    public int getNumMachines() { return numMachines; }
+
+    public List<String> getKeys() {
+        return new ArrayList<>(attributes.keySet());
+    }
+
+    /**
+     * The machine's value of key, or null if it has none.
+     */
+    public String getValue(int machineID, String key) {
+        Attribute attribute = attributes.get(key);
+        if (attribute == null || attribute.valueOf[machineID] < 0) {
+            return null;
+        }
+        return attribute.values[attribute.valueOf[machineID]];
+    }
+
+    /**
+     * The machines whose value of key is value.
+     */
+    public MachineSet getMachines(String key, String value) {
+        Attribute attribute = attributes.get(key);
+        Integer v = attribute == null ? null : attribute.valueIndex.get(value);
+        return v == null ? MachineSet.empty() : attribute.machines()[v];
+    }
+
+    /**
+     * The machines whose value of key is a number of at least threshold.
+     */
+    public MachineSet getMachinesAtLeast(String key, double threshold) {
+        Attribute attribute = attributes.get(key);
+        MachineSet result = MachineSet.empty();
+        if (attribute != null) {
+            for (int v = 0; v < attribute.values.length; v++) {
+                if (atLeast(attribute.values[v], threshold)) {
+                    result = result.or(attribute.machines()[v]);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static boolean atLeast(String value, double threshold) {
+        try {
+            return Double.parseDouble(value) >= threshold;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Whether the machine meets an attribute constraint; true for any other kind.
+     */
+    public boolean meets(int machineID, PlacementConstraint constraint) {
+        switch (constraint.getKind()) {
+            case EQUALS:
+                return constraint.getValue().equals(getValue(machineID, constraint.getKey()));
+            case NOT_EQUALS:
+                return !constraint.getValue().equals(getValue(machineID, constraint.getKey()));
+            case AT_LEAST:
+                String value = getValue(machineID, constraint.getKey());
+                return value != null && atLeast(value, constraint.getThreshold());
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * The machines that meet every attribute constraint in the list, found by
+     * intersecting the index's sets, smallest first, then taking away those
+     * of NOT_EQUALS constraints. Other kinds of constraint are left out.
+     * @return The machines, or null if the list has no attribute constraints
+     */
+    public MachineSet getMachinesMeeting(List<PlacementConstraint> constraints) {
+        List<MachineSet> required = new ArrayList<>();
+        List<MachineSet> excluded = new ArrayList<>();
+        for (PlacementConstraint constraint : constraints) {
+            switch (constraint.getKind()) {
+                case EQUALS:
+                    required.add(getMachines(constraint.getKey(), constraint.getValue()));
+                    break;
+                case AT_LEAST:
+                    required.add(getMachinesAtLeast(constraint.getKey(), constraint.getThreshold()));
+                    break;
+                case NOT_EQUALS:
+                    excluded.add(getMachines(constraint.getKey(), constraint.getValue()));
+                    break;
+                default:
+                    break;
+            }
+        }
+        if (required.isEmpty() && excluded.isEmpty()) {
+            return null;
+        }
+        required.sort((a, b) -> Integer.compare(a.cardinality(), b.cardinality()));
+        MachineSet result = required.isEmpty() ? MachineSet.range(0, numMachines) : required.get(0);
+        for (int i = 1; i < required.size() && !result.isEmpty(); i++) {
+            result = result.and(required.get(i));
+        }
+        for (int i = 0; i < excluded.size() && !result.isEmpty(); i++) {
+            result = result.andNot(excluded.get(i));
+        }
+        return result;
+    }
+
+    /**
+     * The attributes of the given machines, renumbered 0..n-1 in the order
+     * given, as in CellState.copyMachines.
+     */
+    public MachineAttributes forMachines(int[] machineIDs) {
+        if (attributes.isEmpty()) {
+            return none(machineIDs.length);
+        }
+        Map<String, Attribute> subset = new LinkedHashMap<>();
+        for (Map.Entry<String, Attribute> entry : attributes.entrySet()) {
+            Attribute attribute = entry.getValue();
+            int[] valueOf = new int[machineIDs.length];
+            for (int i = 0; i < machineIDs.length; i++) {
+                valueOf[i] = attribute.valueOf[machineIDs[i]];
+            }
+            subset.put(entry.getKey(), new Attribute(attribute.values, valueOf));
+        }
+        return new MachineAttributes(machineIDs.length, subset);
+    }
+
+    /**
+     * Collects attribute values machine by machine; build() makes the index.
+     */
+    public static final class Builder {
+        private final int numMachines;
+        private final Map<String, Map<String, Integer>> valueIndex = new LinkedHashMap<>();
+        private final Map<String, int[]> valueOf = new HashMap<>();
+
+        public Builder(int numMachines) {
+            this.numMachines = numMachines;
+        }
+
+        public Builder set(int machineID, String key, String value) {
+            return set(machineID, machineID + 1, key, value);
+        }
+
+        /**
+         * Give machines from (inclusive) to to (exclusive) the value for key.
+         */
+        public Builder set(int from, int to, String key, String value) {
+            if (from < 0 || to > numMachines || from > to) {
+                throw new IllegalArgumentException(String.format(
+                    "Machines [%d, %d) are not all in a cell of %d machines.", from, to, numMachines));
+            }
+            Map<String, Integer> values = valueIndex.computeIfAbsent(key, k -> new LinkedHashMap<>());
+            int[] machineValues = valueOf.computeIfAbsent(key, k -> {
+                int[] none = new int[numMachines];
+                Arrays.fill(none, -1);
+                return none;
+            });
+            Integer v = values.get(value);
+            if (v == null) {
+                v = values.size();
+                values.put(value, v);
+            }
+            Arrays.fill(machineValues, from, to, v);
+            return this;
+        }
+
+        public MachineAttributes build() {
+            Map<String, Attribute> attributes = new LinkedHashMap<>();
+            for (Map.Entry<String, Map<String, Integer>> entry : valueIndex.entrySet()) {
+                String[] values = entry.getValue().keySet().toArray(new String[0]);
+                Attribute attribute = new Attribute(values, valueOf.get(entry.getKey()).clone());
+                // Shared by every snapshot of the cell, so built before anyone reads it
+                attribute.machines();
+                attributes.put(entry.getKey(), attribute);
+            }
+            return new MachineAttributes(numMachines, attributes);
+        }
+    }
+}
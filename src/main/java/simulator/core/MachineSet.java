@@ -0,0 +1,659 @@
+package simulator.core;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * An immutable set of machine IDs, compressed the way Roaring bitmaps are. IDs
+ * are split by their high 16 bits into chunks of 65536 machines; a chunk with
+ * at most 4096 members keeps their low 16 bits as a sorted array, a fuller one
+ * as a 65536-bit bitmap, and a chunk with no members is not kept at all. A
+ * sparse set therefore costs about two bytes per member, a dense one at most a
+ * bit per machine, and a chunk that holds every machine shares one bitmap.
+ *
+ * Intersection, union and difference go chunk by chunk, each pair of chunks
+ * with the cheaper of merging arrays, probing a bitmap, or combining bitmap
+ * words, so their cost follows the compressed size of the sets, not the number
+ * of machines in the cell.
+ */
+public final class MachineSet implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private static final int CHUNK_BITS = 16;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int LOW_MASK = CHUNK_SIZE - 1;
+    private static final int WORDS = CHUNK_SIZE / 64;
+    // Chunks with more members than this are kept as bitmaps
+    private static final int MAX_ARRAY = 4096;
+    // The bitmap of a full chunk; never written to
+    private static final long[] FULL = new long[WORDS];
+    static {
+        Arrays.fill(FULL, -1L);
+    }
+
+    private static final MachineSet EMPTY = new MachineSet(new int[0], new char[0][], new long[0][],
+                                                           new int[0]);
+
+    // High 16 bits of the chunks that have members, increasing
+    private final int[] keys;
+    // Per chunk, sorted low bits, or null if the chunk is a bitmap
+    private final char[][] arrays;
+    // Per chunk, its bitmap, or null if the chunk is an array
+    private final long[][] bitmaps;
+    private final int[] cardinalities;
+    private final int cardinality;
+
+    private MachineSet(int[] keys, char[][] arrays, long[][] bitmaps, int[] cardinalities) {
+        this.keys = keys;
+        this.arrays = arrays;
+        this.bitmaps = bitmaps;
+        this.cardinalities = cardinalities;
+        int total = 0;
+        for (int c : cardinalities) {
+            total += c;
+        }
+        this.cardinality = total;
+    }
+
+    public static MachineSet empty() {
+        return EMPTY;
+    }
+
+    // Full chunks of a deserialized set share FULL again, which the set
+    // operations tell apart by identity
+    private Object readResolve() {
+        if (cardinality == 0) {
+            return EMPTY;
+        }
+        for (int i = 0; i < bitmaps.length; i++) {
+            if (bitmaps[i] != null && cardinalities[i] == CHUNK_SIZE) {
+                bitmaps[i] = FULL;
+            }
+        }
+        return this;
+    }
+
+    /**
+     * The machines from (inclusive) to to (exclusive).
+     */
+    public static MachineSet range(int from, int to) {
+        if (from < 0 || to < from) {
+            throw new IllegalArgumentException("Bad machine range [" + from + ", " + to + ").");
+        }
+        if (from == to) {
+            return EMPTY;
+        }
+        Builder builder = new Builder();
+        int firstKey = from >>> CHUNK_BITS;
+        int lastKey = (to - 1) >>> CHUNK_BITS;
+        for (int key = firstKey; key <= lastKey; key++) {
+            int lo = key == firstKey ? from & LOW_MASK : 0;
+            int hi = key == lastKey ? ((to - 1) & LOW_MASK) + 1 : CHUNK_SIZE;
+            if (hi - lo == CHUNK_SIZE) {
+                builder.appendChunk(key, null, FULL, CHUNK_SIZE);
+            } else if (hi - lo <= MAX_ARRAY) {
+                char[] array = new char[hi - lo];
+                for (int i = lo; i < hi; i++) {
+                    array[i - lo] = (char) i;
+                }
+                builder.appendChunk(key, array, null, hi - lo);
+            } else {
+                long[] bitmap = new long[WORDS];
+                setRange(bitmap, lo, hi);
+                builder.appendChunk(key, null, bitmap, hi - lo);
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * The given machines, in any order, duplicates allowed.
+     */
+    public static MachineSet of(int... machineIDs) {
+        int[] sorted = machineIDs.clone();
+        Arrays.sort(sorted);
+        Builder builder = new Builder();
+        for (int i = 0; i < sorted.length; i++) {
+            if (i == 0 || sorted[i] != sorted[i - 1]) {
+                builder.add(sorted[i]);
+            }
+        }
+        return builder.build();
+    }
+
+    public int cardinality() { return cardinality; }
+    public boolean isEmpty() { return cardinality == 0; }
+
+    public boolean contains(int machineID) {
+        if (machineID < 0) {
+            return false;
+        }
+        int i = Arrays.binarySearch(keys, machineID >>> CHUNK_BITS);
+        if (i < 0) {
+            return false;
+        }
+        int low = machineID & LOW_MASK;
+        return arrays[i] != null
+            ? Arrays.binarySearch(arrays[i], (char) low) >= 0
+            : (bitmaps[i][low >>> 6] & (1L << low)) != 0;
+    }
+
+    /**
+     * The lowest member at or above from, or -1 if there is none.
+     */
+    public int nextMachine(int from) {
+        from = Math.max(0, from);
+        int i = Arrays.binarySearch(keys, from >>> CHUNK_BITS);
+        int low = 0;
+        if (i >= 0) {
+            low = from & LOW_MASK;
+        } else {
+            i = -i - 1;
+        }
+        for (; i < keys.length; i++, low = 0) {
+            int next = nextInChunk(i, low);
+            if (next >= 0) {
+                return (keys[i] << CHUNK_BITS) | next;
+            }
+        }
+        return -1;
+    }
+
+    private int nextInChunk(int i, int low) {
+        if (arrays[i] != null) {
+            char[] array = arrays[i];
+            int j = Arrays.binarySearch(array, (char) low);
+            if (j < 0) {
+                j = -j - 1;
+            }
+            return j < array.length ? array[j] : -1;
+        }
+        long[] bitmap = bitmaps[i];
+        int w = low >>> 6;
+        long word = bitmap[w] & (-1L << low);
+        while (true) {
+            if (word != 0) {
+                return (w << 6) + Long.numberOfTrailingZeros(word);
+            }
+            if (++w == WORDS) {
+                return -1;
+            }
+            word = bitmap[w];
+        }
+    }
+
+    /**
+     * The members in [from, to) as ranges of consecutive machine IDs: from/to
+     * pairs, in increasing order, adjacent ranges merged.
+     */
+    public int[] ranges(int from, int to) {
+        RangeList out = new RangeList();
+        if (from >= to || cardinality == 0) {
+            return out.toArray();
+        }
+        from = Math.max(0, from);
+        int firstKey = from >>> CHUNK_BITS;
+        int lastKey = (to - 1) >>> CHUNK_BITS;
+        int i = Arrays.binarySearch(keys, firstKey);
+        if (i < 0) {
+            i = -i - 1;
+        }
+        for (; i < keys.length && keys[i] <= lastKey; i++) {
+            int base = keys[i] << CHUNK_BITS;
+            int lo = keys[i] == firstKey ? from & LOW_MASK : 0;
+            int hi = keys[i] == lastKey ? ((to - 1) & LOW_MASK) + 1 : CHUNK_SIZE;
+            if (arrays[i] != null) {
+                char[] array = arrays[i];
+                int j = Arrays.binarySearch(array, (char) lo);
+                for (j = j < 0 ? -j - 1 : j; j < array.length && array[j] < hi; j++) {
+                    out.add(base + array[j], base + array[j] + 1);
+                }
+            } else if (bitmaps[i] == FULL) {
+                out.add(base + lo, base + hi);
+            } else {
+                bitmapRanges(bitmaps[i], base, lo, hi, out);
+            }
+        }
+        return out.toArray();
+    }
+
+    private static void bitmapRanges(long[] bitmap, int base, int lo, int hi, RangeList out) {
+        for (int w = lo >>> 6; w <= (hi - 1) >>> 6; w++) {
+            long word = bitmap[w];
+            if (w == lo >>> 6) {
+                word &= -1L << lo;
+            }
+            if (w == (hi - 1) >>> 6 && (hi & 63) != 0) {
+                word &= -1L >>> (64 - (hi & 63));
+            }
+            int wordBase = base + (w << 6);
+            while (word != 0) {
+                int start = Long.numberOfTrailingZeros(word);
+                long rest = ~word & (-1L << start);
+                int end = rest == 0 ? 64 : Long.numberOfTrailingZeros(rest);
+                out.add(wordBase + start, wordBase + end);
+                word = end == 64 ? 0 : word & (-1L << end);
+            }
+        }
+    }
+
+    public int[] toArray() {
+        int[] out = new int[cardinality];
+        int n = 0;
+        for (int i = 0; i < keys.length; i++) {
+            int base = keys[i] << CHUNK_BITS;
+            if (arrays[i] != null) {
+                for (char low : arrays[i]) {
+                    out[n++] = base | low;
+                }
+            } else {
+                long[] bitmap = bitmaps[i];
+                for (int w = 0; w < WORDS; w++) {
+                    for (long word = bitmap[w]; word != 0; word &= word - 1) {
+                        out[n++] = base | (w << 6) | Long.numberOfTrailingZeros(word);
+                    }
+                }
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Rough size of the compressed chunks in bytes; the shared full bitmap
+     * isn't counted.
+     */
+    public long getSizeInBytes() {
+        long size = 0;
+        for (int i = 0; i < keys.length; i++) {
+            size += 16 + (arrays[i] != null ? 2L * arrays[i].length
+                                           : bitmaps[i] == FULL ? 0 : 8L * WORDS);
+        }
+        return size;
+    }
+
+    /**
+     * The members of both this set and other.
+     */
+    public MachineSet and(MachineSet other) {
+        Builder builder = new Builder();
+        int i = 0;
+        int j = 0;
+        while (i < keys.length && j < other.keys.length) {
+            if (keys[i] < other.keys[j]) {
+                i++;
+            } else if (keys[i] > other.keys[j]) {
+                j++;
+            } else {
+                andChunks(keys[i], this, i, other, j, builder);
+                i++;
+                j++;
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * The members of this set or other.
+     */
+    public MachineSet or(MachineSet other) {
+        Builder builder = new Builder();
+        int i = 0;
+        int j = 0;
+        while (i < keys.length || j < other.keys.length) {
+            if (j == other.keys.length || (i < keys.length && keys[i] < other.keys[j])) {
+                builder.appendChunk(keys[i], arrays[i], bitmaps[i], cardinalities[i]);
+                i++;
+            } else if (i == keys.length || keys[i] > other.keys[j]) {
+                builder.appendChunk(other.keys[j], other.arrays[j], other.bitmaps[j],
+                                    other.cardinalities[j]);
+                j++;
+            } else {
+                orChunks(keys[i], this, i, other, j, builder);
+                i++;
+                j++;
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * The members of this set that are not in other.
+     */
+    public MachineSet andNot(MachineSet other) {
+        Builder builder = new Builder();
+        int j = 0;
+        for (int i = 0; i < keys.length; i++) {
+            while (j < other.keys.length && other.keys[j] < keys[i]) {
+                j++;
+            }
+            if (j < other.keys.length && other.keys[j] == keys[i]) {
+                andNotChunks(keys[i], this, i, other, j, builder);
+            } else {
+                builder.appendChunk(keys[i], arrays[i], bitmaps[i], cardinalities[i]);
+            }
+        }
+        return builder.build();
+    }
+
+    private static void andChunks(int key, MachineSet a, int i, MachineSet b, int j, Builder out) {
+        if (a.bitmaps[i] == FULL) {
+            out.appendChunk(key, b.arrays[j], b.bitmaps[j], b.cardinalities[j]);
+        } else if (b.bitmaps[j] == FULL) {
+            out.appendChunk(key, a.arrays[i], a.bitmaps[i], a.cardinalities[i]);
+        } else if (a.arrays[i] != null && b.arrays[j] != null) {
+            out.appendArray(key, intersect(a.arrays[i], b.arrays[j]));
+        } else if (a.arrays[i] != null) {
+            out.appendArray(key, filter(a.arrays[i], b.bitmaps[j], true));
+        } else if (b.arrays[j] != null) {
+            out.appendArray(key, filter(b.arrays[j], a.bitmaps[i], true));
+        } else {
+            long[] bitmap = new long[WORDS];
+            long[] x = a.bitmaps[i];
+            long[] y = b.bitmaps[j];
+            for (int w = 0; w < WORDS; w++) {
+                bitmap[w] = x[w] & y[w];
+            }
+            out.appendBitmap(key, bitmap);
+        }
+    }
+
+    private static void orChunks(int key, MachineSet a, int i, MachineSet b, int j, Builder out) {
+        if (a.bitmaps[i] == FULL || b.bitmaps[j] == FULL) {
+            out.appendChunk(key, null, FULL, CHUNK_SIZE);
+        } else if (a.arrays[i] != null && b.arrays[j] != null) {
+            char[] merged = union(a.arrays[i], b.arrays[j]);
+            if (merged.length <= MAX_ARRAY) {
+                out.appendArray(key, merged);
+            } else {
+                out.appendBitmap(key, toBitmap(merged));
+            }
+        } else {
+            long[] bitmap = (a.bitmaps[i] != null ? a.bitmaps[i] : b.bitmaps[j]).clone();
+            if (a.bitmaps[i] != null && b.bitmaps[j] != null) {
+                long[] y = b.bitmaps[j];
+                for (int w = 0; w < WORDS; w++) {
+                    bitmap[w] |= y[w];
+                }
+            } else {
+                for (char low : a.arrays[i] != null ? a.arrays[i] : b.arrays[j]) {
+                    bitmap[low >>> 6] |= 1L << low;
+                }
+            }
+            out.appendBitmap(key, bitmap);
+        }
+    }
+
+    private static void andNotChunks(int key, MachineSet a, int i, MachineSet b, int j, Builder out) {
+        if (b.bitmaps[j] == FULL) {
+            return;
+        }
+        if (a.arrays[i] != null) {
+            out.appendArray(key, b.arrays[j] != null ? difference(a.arrays[i], b.arrays[j])
+                                                     : filter(a.arrays[i], b.bitmaps[j], false));
+            return;
+        }
+        long[] bitmap = a.bitmaps[i].clone();
+        if (b.arrays[j] != null) {
+            for (char low : b.arrays[j]) {
+                bitmap[low >>> 6] &= ~(1L << low);
+            }
+        } else {
+            long[] y = b.bitmaps[j];
+            for (int w = 0; w < WORDS; w++) {
+                bitmap[w] &= ~y[w];
+            }
+        }
+        out.appendBitmap(key, bitmap);
+    }
+
+    private static char[] intersect(char[] a, char[] b) {
+        if (a.length > b.length) {
+            char[] t = a;
+            a = b;
+            b = t;
+        }
+        char[] out = new char[a.length];
+        int n = 0;
+        if (b.length > 64 * a.length) {
+            // Much smaller: look each one up instead of walking both
+            int from = 0;
+            for (char x : a) {
+                int k = Arrays.binarySearch(b, from, b.length, x);
+                if (k >= 0) {
+                    out[n++] = x;
+                    from = k + 1;
+                } else {
+                    from = -k - 1;
+                }
+            }
+        } else {
+            int i = 0;
+            int j = 0;
+            while (i < a.length && j < b.length) {
+                if (a[i] < b[j]) {
+                    i++;
+                } else if (a[i] > b[j]) {
+                    j++;
+                } else {
+                    out[n++] = a[i];
+                    i++;
+                    j++;
+                }
+            }
+        }
+        return n == out.length ? out : Arrays.copyOf(out, n);
+    }
+
+    private static char[] union(char[] a, char[] b) {
+        char[] out = new char[a.length + b.length];
+        int n = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length || j < b.length) {
+            if (j == b.length || (i < a.length && a[i] < b[j])) {
+                out[n++] = a[i++];
+            } else if (i == a.length || a[i] > b[j]) {
+                out[n++] = b[j++];
+            } else {
+                out[n++] = a[i++];
+                j++;
+            }
+        }
+        return n == out.length ? out : Arrays.copyOf(out, n);
+    }
+
+    private static char[] difference(char[] a, char[] b) {
+        char[] out = new char[a.length];
+        int n = 0;
+        int j = 0;
+        for (char x : a) {
+            while (j < b.length && b[j] < x) {
+                j++;
+            }
+            if (j == b.length || b[j] != x) {
+                out[n++] = x;
+            }
+        }
+        return n == out.length ? out : Arrays.copyOf(out, n);
+    }
+
+    /**
+     * The members of array that are (keep) or are not (!keep) in bitmap.
+     */
+    private static char[] filter(char[] array, long[] bitmap, boolean keep) {
+        char[] out = new char[array.length];
+        int n = 0;
+        for (char x : array) {
+            if (((bitmap[x >>> 6] & (1L << x)) != 0) == keep) {
+                out[n++] = x;
+            }
+        }
+        return n == out.length ? out : Arrays.copyOf(out, n);
+    }
+
+    private static long[] toBitmap(char[] array) {
+        long[] bitmap = new long[WORDS];
+        for (char low : array) {
+            bitmap[low >>> 6] |= 1L << low;
+        }
+        return bitmap;
+    }
+
+    private static char[] toArray(long[] bitmap, int cardinality) {
+        char[] array = new char[cardinality];
+        int n = 0;
+        for (int w = 0; w < WORDS; w++) {
+            for (long word = bitmap[w]; word != 0; word &= word - 1) {
+                array[n++] = (char) ((w << 6) | Long.numberOfTrailingZeros(word));
+            }
+        }
+        return array;
+    }
+
+    private static void setRange(long[] bitmap, int lo, int hi) {
+        for (int i = lo; i < hi; ) {
+            int w = i >>> 6;
+            int end = Math.min(hi, (w + 1) << 6);
+            long mask = (end - i == 64) ? -1L : ((1L << (end - i)) - 1) << (i & 63);
+            bitmap[w] |= mask;
+            i = end;
+        }
+    }
+
+    /**
+     * Builds a set from machine IDs added in increasing order.
+     */
+    public static final class Builder {
+        private int[] keys = new int[4];
+        private char[][] arrays = new char[4][];
+        private long[][] bitmaps = new long[4][];
+        private int[] cardinalities = new int[4];
+        private int numChunks = 0;
+        // Chunk being added to by add(), kept as an array until it overflows
+        private int currentKey = -1;
+        private char[] currentArray = new char[16];
+        private long[] currentBitmap;
+        private int currentCount = 0;
+        private int last = -1;
+
+        /**
+         * Add a machine above every machine added so far.
+         */
+        public Builder add(int machineID) {
+            if (machineID <= last) {
+                throw new IllegalArgumentException(String.format(
+                    "Machines must be added in increasing order, but %d came after %d.",
+                    machineID, last));
+            }
+            last = machineID;
+            int key = machineID >>> CHUNK_BITS;
+            char low = (char) (machineID & LOW_MASK);
+            if (key != currentKey) {
+                flush();
+                currentKey = key;
+            }
+            if (currentBitmap != null) {
+                currentBitmap[low >>> 6] |= 1L << low;
+            } else if (currentCount == MAX_ARRAY) {
+                currentBitmap = toBitmap(Arrays.copyOf(currentArray, currentCount));
+                currentBitmap[low >>> 6] |= 1L << low;
+            } else {
+                if (currentCount == currentArray.length) {
+                    currentArray = Arrays.copyOf(currentArray, Math.min(MAX_ARRAY, 2 * currentCount));
+                }
+                currentArray[currentCount] = low;
+            }
+            currentCount++;
+            return this;
+        }
+
+        private void flush() {
+            if (currentCount > 0) {
+                if (currentBitmap != null) {
+                    appendChunk(currentKey, null,
+                                currentCount == CHUNK_SIZE ? FULL : currentBitmap, currentCount);
+                } else {
+                    appendChunk(currentKey, Arrays.copyOf(currentArray, currentCount), null, currentCount);
+                }
+            }
+            currentBitmap = null;
+            currentCount = 0;
+        }
+
+        /**
+         * Append a whole chunk above the ones so far; the arrays are shared.
+         */
+        private void appendChunk(int key, char[] array, long[] bitmap, int cardinality) {
+            if (cardinality == 0) {
+                return;
+            }
+            if (numChunks == keys.length) {
+                int n = 2 * numChunks;
+                keys = Arrays.copyOf(keys, n);
+                arrays = Arrays.copyOf(arrays, n);
+                bitmaps = Arrays.copyOf(bitmaps, n);
+                cardinalities = Arrays.copyOf(cardinalities, n);
+            }
+            keys[numChunks] = key;
+            arrays[numChunks] = array;
+            bitmaps[numChunks] = bitmap;
+            cardinalities[numChunks] = cardinality;
+            numChunks++;
+        }
+
+        private void appendArray(int key, char[] array) {
+            appendChunk(key, array, null, array.length);
+        }
+
+        /**
+         * Append a bitmap chunk, as an array if it has few enough members.
+         */
+        private void appendBitmap(int key, long[] bitmap) {
+            int count = 0;
+            for (long word : bitmap) {
+                count += Long.bitCount(word);
+            }
+            if (count == CHUNK_SIZE) {
+                appendChunk(key, null, FULL, count);
+            } else if (count <= MAX_ARRAY) {
+                appendChunk(key, toArray(bitmap, count), null, count);
+            } else {
+                appendChunk(key, null, bitmap, count);
+            }
+        }
+
+        public MachineSet build() {
+            flush();
+            if (numChunks == 0) {
+                return EMPTY;
+            }
+            return new MachineSet(Arrays.copyOf(keys, numChunks), Arrays.copyOf(arrays, numChunks),
+                                  Arrays.copyOf(bitmaps, numChunks),
+                                  Arrays.copyOf(cardinalities, numChunks));
+        }
+    }
+
+    /**
+     * Growable from/to pairs that merges a range into the last one when they touch.
+     */
+    private static final class RangeList {
+        private int[] ranges = new int[16];
+        private int n = 0;
+
+        void add(int from, int to) {
+            if (n > 0 && ranges[n - 1] == from) {
+                ranges[n - 1] = to;
+                return;
+            }
+            if (n + 2 > ranges.length) {
+                ranges = Arrays.copyOf(ranges, 2 * ranges.length);
+            }
+            ranges[n++] = from;
+            ranges[n++] = to;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(ranges, n);
+        }
+    }
+}
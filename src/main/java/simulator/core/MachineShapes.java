@@ -0,0 +1,257 @@
+package simulator.core;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The machines of a cell grouped into shape classes: machines of one class
+ * have the same capacity in every resource dimension (cpus and mem first), and
+ * take up one contiguous range of machine IDs, classes following each other in
+ * order. Scans can then run the fit kernels class by class with that class's
+ * capacity, and skip a class outright when a task is bigger than its machines.
+ * A uniform cell is a single class.
+ *
+ * A machine-spec file has one shape per line:
+ * <pre>
+ *   name,count,cpus,mem[,resource-2,...]
+ * </pre>
+ * Lines naming a shape seen before add to its count and must agree on its
+ * capacities. Machines are numbered class by class, in the order shapes first
+ * appear. Blank lines and lines starting with '#' are ignored.
+ */
+public final class MachineShapes implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String[] names;
+    // Machines of class c are [starts[c], starts[c + 1])
+    private final int[] starts;
+    private final double[][] capacities;
+    private final int numDimensions;
+    // Class of every machine, or null for a single class
+    private final int[] shapeClassOf;
+    private final double[] maxCapacities;
+    private final double[] totalCapacities;
+
+    /**
+     * @param names      Name of each class
+     * @param counts     Machines in each class
+     * @param capacities Capacity of a machine of each class, by dimension,
+     *                   cpus and mem first; the same number of dimensions for all
+     */
+    public MachineShapes(String[] names, int[] counts, double[][] capacities) {
+        if (names.length == 0 || names.length != counts.length || names.length != capacities.length) {
+            throw new IllegalArgumentException(String.format(
+                "Need the same, positive number of names, counts and capacities, but got %d, %d and %d.",
+                names.length, counts.length, capacities.length));
+        }
+        this.numDimensions = capacities[0].length;
+        if (numDimensions < 2) {
+            throw new IllegalArgumentException(
+                "Machines need at least cpus and mem, but got " + numDimensions +
+                " resource dimensions.");
+        }
+        int numClasses = names.length;
+        this.names = names.clone();
+        this.starts = new int[numClasses + 1];
+        this.capacities = new double[numClasses][];
+        for (int c = 0; c < numClasses; c++) {
+            if (counts[c] < 0) {
+                throw new IllegalArgumentException(String.format(
+                    "Shape %s has a negative number of machines, %d.", names[c], counts[c]));
+            }
+            if (capacities[c].length != numDimensions) {
+                throw new IllegalArgumentException(String.format(
+                    "Shape %s has %d resource dimensions, but %s has %d.",
+                    names[c], capacities[c].length, names[0], numDimensions));
+            }
+            for (int d = 0; d < numDimensions; d++) {
+                if (!(capacities[c][d] > 0.0)) {
+                    throw new IllegalArgumentException(String.format(
+                        "Machine capacity must be positive, but %s of shape %s was %f.",
+                        CellState.getResourceName(d), names[c], capacities[c][d]));
+                }
+            }
+            long end = (long) starts[c] + counts[c];
+            if (end > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("A cell holds at most " + Integer.MAX_VALUE + " machines.");
+            }
+            starts[c + 1] = (int) end;
+            this.capacities[c] = capacities[c].clone();
+        }
+
+        this.maxCapacities = new double[numDimensions];
+        this.totalCapacities = new double[numDimensions];
+        for (int d = 0; d < numDimensions; d++) {
+            for (int c = 0; c < numClasses; c++) {
+                maxCapacities[d] = Math.max(maxCapacities[d], this.capacities[c][d]);
+                totalCapacities[d] += counts[c] * this.capacities[c][d];
+            }
+        }
+
+        if (numClasses == 1) {
+            this.shapeClassOf = null;
+        } else {
+            this.shapeClassOf = new int[starts[numClasses]];
+            for (int c = 0; c < numClasses; c++) {
+                Arrays.fill(shapeClassOf, starts[c], starts[c + 1], c);
+            }
+        }
+    }
+
+    /**
+     * A cell of numMachines machines of the same shape.
+     */
+    public static MachineShapes uniform(int numMachines, double[] resourcesPerMachine) {
+        return new MachineShapes(new String[] {"default"}, new int[] {numMachines},
+                                 new double[][] {resourcesPerMachine});
+    }
+
+    /**
+     * Read a machine-spec file (see the class comment).
+     */
+    public static MachineShapes load(String path) throws IOException {
+        Map<String, Integer> counts = new LinkedHashMap<>();
+        Map<String, double[]> shapes = new LinkedHashMap<>();
+        try (BufferedReader lines = Files.newBufferedReader(Paths.get(path), StandardCharsets.UTF_8)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = lines.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.charAt(0) == '#') {
+                    continue;
+                }
+                String[] fields = line.split(",");
+                if (fields.length < 4) {
+                    throw new IllegalArgumentException(String.format(
+                        "Line %d of %s should be name,count,cpus,mem[,...], but was: %s",
+                        lineNumber, path, line));
+                }
+                String name = fields[0].trim();
+                int count;
+                double[] capacity = new double[fields.length - 2];
+                try {
+                    count = Integer.parseInt(fields[1].trim());
+                    for (int d = 0; d < capacity.length; d++) {
+                        capacity[d] = Double.parseDouble(fields[d + 2].trim());
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException(String.format(
+                        "Line %d of %s has a malformed number: %s", lineNumber, path, line));
+                }
+                double[] known = shapes.putIfAbsent(name, capacity);
+                if (known != null && !Arrays.equals(known, capacity)) {
+                    throw new IllegalArgumentException(String.format(
+                        "Line %d of %s gives shape %s other capacities than before.",
+                        lineNumber, path, name));
+                }
+                counts.merge(name, count, Integer::sum);
+            }
+        }
+        if (shapes.isEmpty()) {
+            throw new IllegalArgumentException("The machine-spec file " + path + " lists no shapes.");
+        }
+        List<String> names = new ArrayList<>(shapes.keySet());
+        int[] classCounts = new int[names.size()];
+        double[][] capacities = new double[names.size()][];
+        for (int c = 0; c < names.size(); c++) {
+            classCounts[c] = counts.get(names.get(c));
+            capacities[c] = shapes.get(names.get(c));
+        }
+        return new MachineShapes(names.toArray(new String[0]), classCounts, capacities);
+    }
+
+    public int getNumMachines() { return starts[starts.length - 1]; }
+    public int getNumDimensions() { return numDimensions; }
+    public int getNumClasses() { return names.length; }
+    public boolean isUniform() { return names.length == 1; }
+
+    public String getName(int shapeClass) { return names[shapeClass]; }
+
+    /** First machine of a class. */
+    public int getStart(int shapeClass) { return starts[shapeClass]; }
+
+    /** One past the last machine of a class. */
+    public int getEnd(int shapeClass) { return starts[shapeClass + 1]; }
+
+    public int getShapeClass(int machineID) {
+        return shapeClassOf == null ? 0 : shapeClassOf[machineID];
+    }
+
+    public double getCapacity(int shapeClass, int dimension) {
+        return capacities[shapeClass][dimension];
+    }
+
+    /** Capacity of a machine of the class by dimension; not a copy, for the scans. */
+    double[] capacities(int shapeClass) { return capacities[shapeClass]; }
+
+    /** The most any machine has of a dimension. */
+    public double getMaxCapacity(int dimension) { return maxCapacities[dimension]; }
+
+    double[] maxCapacities() { return maxCapacities; }
+
+    /** Capacity of all machines together in a dimension. */
+    public double getTotalCapacity(int dimension) { return totalCapacities[dimension]; }
+
+    /**
+     * Whether a task of the job fits on an empty machine of the class, in
+     * every dimension it needs.
+     */
+    public boolean fits(int shapeClass, Job job) {
+        double[] capacity = capacities[shapeClass];
+        if (job.getCpusPerTask() > capacity[0] || job.getMemPerTask() > capacity[1]) {
+            return false;
+        }
+        for (int d = 2; d < job.getNumDimensions(); d++) {
+            double needed = job.getResourcePerTask(d);
+            if (d < numDimensions ? needed > capacity[d] : needed > 0.0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The shapes of the given machines, renumbered 0..n-1 in the order given,
+     * as in CellState.copyMachines. Each run of consecutive machines of one
+     * class becomes a class of its own.
+     */
+    public MachineShapes forMachines(int[] machineIDs) {
+        if (isUniform()) {
+            return uniform(machineIDs.length, capacities[0]);
+        }
+        List<Integer> runClasses = new ArrayList<>();
+        List<Integer> runCounts = new ArrayList<>();
+        for (int machineID : machineIDs) {
+            int c = shapeClassOf[machineID];
+            int last = runClasses.size() - 1;
+            if (last >= 0 && runClasses.get(last) == c) {
+                runCounts.set(last, runCounts.get(last) + 1);
+            } else {
+                runClasses.add(c);
+                runCounts.add(1);
+            }
+        }
+        if (runClasses.isEmpty()) {
+            return uniform(0, capacities[0]);
+        }
+        String[] runNames = new String[runClasses.size()];
+        int[] counts = new int[runClasses.size()];
+        double[][] runCapacities = new double[runClasses.size()][];
+        for (int r = 0; r < runNames.length; r++) {
+            runNames[r] = names[runClasses.get(r)];
+            counts[r] = runCounts.get(r);
+            runCapacities[r] = capacities[runClasses.get(r)];
+        }
+        return new MachineShapes(runNames, counts, runCapacities);
+    }
+}
@@ -0,0 +1,168 @@
+package simulator.core;
+
+import java.io.Serializable;
+
+/**
+ * Per-machine state of a CellState: the allocation and the version counter of
+ * every resource dimension (cpus, mem and any further ones the cell was made
+ * with), the machine sequence number, and the decaying conflict score with the
+ * time it was last touched. CellState keeps the totals and does the
+ * bookkeeping; a store only holds the numbers, either in heap arrays
+ * (HeapMachineStore) or in one off-heap buffer (OffHeapMachineStore).
+ *
+ * Dimension 0 is cpus and dimension 1 is mem. The cpu/mem accessors are the
+ * fast path every cell uses; the per-dimension ones also reach the rest.
+ */
+abstract class MachineStore implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    protected final int numMachines;
+    protected final int numDimensions;
+
+    MachineStore(int numMachines, int numDimensions) {
+        this.numMachines = numMachines;
+        this.numDimensions = numDimensions;
+    }
+
+    int getNumMachines() { return numMachines; }
+    int getNumDimensions() { return numDimensions; }
+
+    abstract double getCpus(int machineID);
+    abstract double getMem(int machineID);
+    /** Add to a machine's allocation; negative amounts free resources. */
+    abstract void addResources(int machineID, double cpus, double mem);
+    abstract void setResources(int machineID, double cpus, double mem);
+
+    abstract double getResource(int machineID, int dimension);
+    abstract void addResource(int machineID, int dimension, double amount);
+    abstract void setResource(int machineID, int dimension, double amount);
+
+    abstract int getSeqNum(int machineID);
+    abstract int getCpuSeqNum(int machineID);
+    abstract int getMemSeqNum(int machineID);
+    abstract void setSeqNums(int machineID, int seqNum, int cpuSeqNum, int memSeqNum);
+    abstract void incrementSeqNum(int machineID);
+    abstract void incrementCpuSeqNum(int machineID);
+    abstract void incrementMemSeqNum(int machineID);
+
+    abstract int getResourceSeqNum(int machineID, int dimension);
+    abstract void setResourceSeqNum(int machineID, int dimension, int seqNum);
+    abstract void incrementResourceSeqNum(int machineID, int dimension);
+
+    abstract double getConflictScore(int machineID);
+    abstract double getConflictScoreTime(int machineID);
+    abstract void setConflictScore(int machineID, double score, double time);
+
+    /**
+     * Number of machines in [from, to) with room for cpus and mem. The kernels
+     * below are plain loops here; stores with dense arrays use FitScan.
+     */
+    int countFits(int from, int to, double cpuCapacity, double memCapacity,
+                  double cpus, double mem) {
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            if (cpuCapacity - getCpus(i) >= cpus && memCapacity - getMem(i) >= mem) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /** Lowest machine in [from, to) with room for cpus and mem, or -1. */
+    int firstFit(int from, int to, double cpuCapacity, double memCapacity,
+                 double cpus, double mem) {
+        for (int i = from; i < to; i++) {
+            if (cpuCapacity - getCpus(i) >= cpus && memCapacity - getMem(i) >= mem) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** Machine in [from, to) with room for cpus and mem and the least free, or -1. */
+    int argminFreeFraction(int from, int to, double cpuCapacity, double memCapacity,
+                           double cpus, double mem) {
+        int best = -1;
+        double bestFree = Double.POSITIVE_INFINITY;
+        for (int i = from; i < to; i++) {
+            double cpusFree = cpuCapacity - getCpus(i);
+            double memFree = memCapacity - getMem(i);
+            if (cpusFree >= cpus && memFree >= mem) {
+                double free = cpusFree / cpuCapacity + memFree / memCapacity;
+                if (free < bestFree) {
+                    bestFree = free;
+                    best = i;
+                }
+            }
+        }
+        return best;
+    }
+
+    /** Whether a machine has room for needed, indexed by dimension. */
+    boolean fits(int machineID, double[] capacity, double[] needed) {
+        for (int d = 0; d < numDimensions; d++) {
+            if (!(capacity[d] - getResource(machineID, d) >= needed[d])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** countFits in every dimension; capacity and needed are indexed by dimension. */
+    int countFits(int from, int to, double[] capacity, double[] needed) {
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            if (fits(i, capacity, needed)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    int firstFit(int from, int to, double[] capacity, double[] needed) {
+        for (int i = from; i < to; i++) {
+            if (fits(i, capacity, needed)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    int argminFreeFraction(int from, int to, double[] capacity, double[] needed) {
+        int best = -1;
+        double bestFree = Double.POSITIVE_INFINITY;
+        for (int i = from; i < to; i++) {
+            if (fits(i, capacity, needed)) {
+                double free = 0.0;
+                for (int d = 0; d < numDimensions; d++) {
+                    free += (capacity[d] - getResource(i, d)) / capacity[d];
+                }
+                if (free < bestFree) {
+                    bestFree = free;
+                    best = i;
+                }
+            }
+        }
+        return best;
+    }
+
+    /** An empty store of the same kind and machine shape. */
+    abstract MachineStore create(int numMachines);
+
+    /** A copy of every machine, as one bulk copy where the store allows it. */
+    abstract MachineStore copy();
+
+    /**
+     * Overwrite machine to with machine from of another store, which may be
+     * of either kind but must have the same dimensions.
+     */
+    void copyMachine(MachineStore source, int from, int to) {
+        setResources(to, source.getCpus(from), source.getMem(from));
+        setSeqNums(to, source.getSeqNum(from), source.getCpuSeqNum(from), source.getMemSeqNum(from));
+        for (int d = 2; d < numDimensions; d++) {
+            setResource(to, d, source.getResource(from, d));
+            setResourceSeqNum(to, d, source.getResourceSeqNum(from, d));
+        }
+        setConflictScore(to, source.getConflictScore(from), source.getConflictScoreTime(from));
+    }
+}
@@ -0,0 +1,231 @@
+package simulator.core;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Machine state in a single direct ByteBuffer, outside the Java heap, so that
+ * cells of millions of machines and their snapshots neither grow the heap nor
+ * get copied around by the garbage collector. Each machine is a record of
+ * 8 * D + 16 bytes for a cell of D resource dimensions, 32 for cpus and mem:
+ * <pre>
+ *   0        int    allocated cpus, fixed point, machine capacity = CAPACITY_UNITS
+ *   4        int    allocated mem, same
+ *   4d       int    allocated resource d, same, for d = 2 .. D-1
+ *   4D       int    machine sequence number
+ *   4D+4+4d  int    sequence number of resource d, cpus (d = 0) first
+ *   8D+4     float  conflict score
+ *   8D+8     double time the conflict score was last touched
+ * </pre>
+ * A snapshot is one bulk copy of the buffer. Resources are rounded to
+ * 1/CAPACITY_UNITS of a machine (under 1e-8 of it); since a freed claim is
+ * rounded the same way as when it was made, allocations don't drift.
+ * Serialized as the raw records, so it is restored on a machine of the same
+ * byte order.
+ */
+class OffHeapMachineStore extends MachineStore {
+    private static final long serialVersionUID = 1L;
+
+    static final int CAPACITY_UNITS = 1 << 30;
+    private static final int CPUS = 0;
+    private static final int MEM = 4;
+
+    private final int recordBytes;
+    private final int seqNumAt;
+    private final int cpuSeqNumAt;
+    private final int memSeqNumAt;
+    private final int conflictScoreAt;
+    private final int conflictScoreTimeAt;
+
+    private final double[] resourcesPerMachine;
+    private final double[] unitsPerResource;
+    // Exact, since CAPACITY_UNITS is a power of two
+    private final double[] resourcePerUnit;
+    private final double cpuUnitsPerCpu;
+    private final double memUnitsPerMem;
+    private final double cpusPerUnit;
+    private final double memPerUnit;
+    // Written out by writeObject, not by default serialization
+    private transient ByteBuffer records;
+
+    OffHeapMachineStore(int numMachines, double cpusPerMachine, double memPerMachine) {
+        this(numMachines, new double[] {cpusPerMachine, memPerMachine});
+    }
+
+    OffHeapMachineStore(int numMachines, double[] resourcesPerMachine) {
+        super(numMachines, resourcesPerMachine.length);
+        int numDimensions = resourcesPerMachine.length;
+        this.recordBytes = 8 * numDimensions + 16;
+        if ((long) numMachines * recordBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(String.format(
+                "An off-heap cell of %d resource dimensions holds at most %d machines, " +
+                "but %d were asked for.",
+                numDimensions, Integer.MAX_VALUE / recordBytes, numMachines));
+        }
+        this.seqNumAt = 4 * numDimensions;
+        this.cpuSeqNumAt = seqNumAt + 4;
+        this.memSeqNumAt = seqNumAt + 8;
+        this.conflictScoreAt = 8 * numDimensions + 4;
+        this.conflictScoreTimeAt = 8 * numDimensions + 8;
+        this.resourcesPerMachine = resourcesPerMachine.clone();
+        this.unitsPerResource = new double[numDimensions];
+        this.resourcePerUnit = new double[numDimensions];
+        for (int d = 0; d < numDimensions; d++) {
+            unitsPerResource[d] = CAPACITY_UNITS / resourcesPerMachine[d];
+            resourcePerUnit[d] = resourcesPerMachine[d] / CAPACITY_UNITS;
+        }
+        this.cpuUnitsPerCpu = unitsPerResource[0];
+        this.memUnitsPerMem = unitsPerResource[1];
+        this.cpusPerUnit = resourcePerUnit[0];
+        this.memPerUnit = resourcePerUnit[1];
+        // Direct buffers start zeroed
+        this.records = ByteBuffer.allocateDirect(numMachines * recordBytes)
+                                 .order(ByteOrder.nativeOrder());
+    }
+
+    private int at(int machineID, int field) {
+        return machineID * recordBytes + field;
+    }
+
+    @Override
+    double getCpus(int machineID) {
+        return records.getInt(at(machineID, CPUS)) * cpusPerUnit;
+    }
+
+    @Override
+    double getMem(int machineID) {
+        return records.getInt(at(machineID, MEM)) * memPerUnit;
+    }
+
+    @Override
+    void addResources(int machineID, double cpus, double mem) {
+        int cpusAt = at(machineID, CPUS);
+        int memAt = at(machineID, MEM);
+        records.putInt(cpusAt, records.getInt(cpusAt) + (int) Math.round(cpus * cpuUnitsPerCpu));
+        records.putInt(memAt, records.getInt(memAt) + (int) Math.round(mem * memUnitsPerMem));
+    }
+
+    @Override
+    void setResources(int machineID, double cpus, double mem) {
+        records.putInt(at(machineID, CPUS), (int) Math.round(cpus * cpuUnitsPerCpu));
+        records.putInt(at(machineID, MEM), (int) Math.round(mem * memUnitsPerMem));
+    }
+
+    @Override
+    double getResource(int machineID, int dimension) {
+        return records.getInt(at(machineID, 4 * dimension)) * resourcePerUnit[dimension];
+    }
+
+    @Override
+    void addResource(int machineID, int dimension, double amount) {
+        int index = at(machineID, 4 * dimension);
+        records.putInt(index, records.getInt(index) +
+                              (int) Math.round(amount * unitsPerResource[dimension]));
+    }
+
+    @Override
+    void setResource(int machineID, int dimension, double amount) {
+        records.putInt(at(machineID, 4 * dimension),
+                       (int) Math.round(amount * unitsPerResource[dimension]));
+    }
+
+    @Override
+    int getSeqNum(int machineID) { return records.getInt(at(machineID, seqNumAt)); }
+
+    @Override
+    int getCpuSeqNum(int machineID) { return records.getInt(at(machineID, cpuSeqNumAt)); }
+
+    @Override
+    int getMemSeqNum(int machineID) { return records.getInt(at(machineID, memSeqNumAt)); }
+
+    @Override
+    void setSeqNums(int machineID, int seqNum, int cpuSeqNum, int memSeqNum) {
+        records.putInt(at(machineID, seqNumAt), seqNum);
+        records.putInt(at(machineID, cpuSeqNumAt), cpuSeqNum);
+        records.putInt(at(machineID, memSeqNumAt), memSeqNum);
+    }
+
+    @Override
+    void incrementSeqNum(int machineID) { increment(at(machineID, seqNumAt)); }
+
+    @Override
+    void incrementCpuSeqNum(int machineID) { increment(at(machineID, cpuSeqNumAt)); }
+
+    @Override
+    void incrementMemSeqNum(int machineID) { increment(at(machineID, memSeqNumAt)); }
+
+    @Override
+    int getResourceSeqNum(int machineID, int dimension) {
+        return records.getInt(at(machineID, cpuSeqNumAt + 4 * dimension));
+    }
+
+    @Override
+    void setResourceSeqNum(int machineID, int dimension, int seqNum) {
+        records.putInt(at(machineID, cpuSeqNumAt + 4 * dimension), seqNum);
+    }
+
+    @Override
+    void incrementResourceSeqNum(int machineID, int dimension) {
+        increment(at(machineID, cpuSeqNumAt + 4 * dimension));
+    }
+
+    private void increment(int index) {
+        records.putInt(index, records.getInt(index) + 1);
+    }
+
+    @Override
+    double getConflictScore(int machineID) {
+        return records.getFloat(at(machineID, conflictScoreAt));
+    }
+
+    @Override
+    double getConflictScoreTime(int machineID) {
+        return records.getDouble(at(machineID, conflictScoreTimeAt));
+    }
+
+    @Override
+    void setConflictScore(int machineID, double score, double time) {
+        records.putFloat(at(machineID, conflictScoreAt), (float) score);
+        records.putDouble(at(machineID, conflictScoreTimeAt), time);
+    }
+
+    @Override
+    MachineStore create(int numMachines) {
+        return new OffHeapMachineStore(numMachines, resourcesPerMachine);
+    }
+
+    @Override
+    MachineStore copy() {
+        OffHeapMachineStore copy = new OffHeapMachineStore(numMachines, resourcesPerMachine);
+        // Relative bulk put on duplicates, so neither store's position moves
+        copy.records.duplicate().put(records.duplicate());
+        return copy;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        ByteBuffer from = records.duplicate();
+        from.clear();
+        byte[] chunk = new byte[Math.min(from.remaining(), 1 << 16)];
+        while (from.hasRemaining()) {
+            int n = Math.min(chunk.length, from.remaining());
+            from.get(chunk, 0, n);
+            out.write(chunk, 0, n);
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        records = ByteBuffer.allocateDirect(numMachines * recordBytes).order(ByteOrder.nativeOrder());
+        ByteBuffer to = records.duplicate();
+        byte[] chunk = new byte[Math.min(to.remaining(), 1 << 16)];
+        while (to.hasRemaining()) {
+            int n = Math.min(chunk.length, to.remaining());
+            in.readFully(chunk, 0, n);
+            to.put(chunk, 0, n);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package simulator.core;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A restriction on the machines a job's tasks may go on: a machine attribute
+ * (see MachineAttributes) that must or must not have a value, or must be a
+ * number of at least some threshold, or another job whose running tasks the
+ * machine must not have. A job must meet all of its constraints.
+ *
+ * In text, as in job streams, a constraint is one of
+ * <pre>
+ *   key=value   key!=value   key&gt;=number   !job:id
+ * </pre>
+ * and a list of them is separated by ';'.
+ */
+public final class PlacementConstraint implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public enum Kind {
+        EQUALS,
+        NOT_EQUALS,
+        AT_LEAST,
+        // Not on a machine running a task of another job
+        NOT_WITH_JOB
+    }
+
+    private final Kind kind;
+    private final String key;
+    private final String value;
+    private final double threshold;
+    private final long jobId;
+
+    private PlacementConstraint(Kind kind, String key, String value, double threshold, long jobId) {
+        this.kind = kind;
+        this.key = key;
+        this.value = value;
+        this.threshold = threshold;
+        this.jobId = jobId;
+    }
+
+    public static PlacementConstraint equalTo(String key, String value) {
+        return new PlacementConstraint(Kind.EQUALS, key, value, 0.0, -1);
+    }
+
+    public static PlacementConstraint notEqualTo(String key, String value) {
+        return new PlacementConstraint(Kind.NOT_EQUALS, key, value, 0.0, -1);
+    }
+
+    public static PlacementConstraint atLeast(String key, double threshold) {
+        return new PlacementConstraint(Kind.AT_LEAST, key, null, threshold, -1);
+    }
+
+    public static PlacementConstraint notWithJob(long jobId) {
+        return new PlacementConstraint(Kind.NOT_WITH_JOB, null, null, 0.0, jobId);
+    }
+
+    public Kind getKind() { return kind; }
+    public String getKey() { return key; }
+    public String getValue() { return value; }
+    public double getThreshold() { return threshold; }
+    public long getJobId() { return jobId; }
+
+    /**
+     * Whether this constrains machine attributes, rather than what runs on them.
+     */
+    public boolean isOnAttributes() {
+        return kind != Kind.NOT_WITH_JOB;
+    }
+
+    /**
+     * Parse a ';'-separated list of constraints (see the class comment).
+     */
+    public static List<PlacementConstraint> parseList(String text) {
+        List<PlacementConstraint> constraints = new ArrayList<>();
+        for (String part : text.split(";")) {
+            part = part.trim();
+            if (!part.isEmpty()) {
+                constraints.add(parse(part));
+            }
+        }
+        return constraints;
+    }
+
+    public static PlacementConstraint parse(String text) {
+        try {
+            if (text.startsWith("!job:")) {
+                return notWithJob(Long.parseLong(text.substring(5).trim()));
+            }
+            int i;
+            if ((i = text.indexOf("!=")) > 0) {
+                return notEqualTo(text.substring(0, i).trim(), text.substring(i + 2).trim());
+            }
+            if ((i = text.indexOf(">=")) > 0) {
+                return atLeast(text.substring(0, i).trim(),
+                               Double.parseDouble(text.substring(i + 2).trim()));
+            }
+            if ((i = text.indexOf('=')) > 0) {
+                return equalTo(text.substring(0, i).trim(), text.substring(i + 1).trim());
+            }
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new IllegalArgumentException("Not a placement constraint: " + text);
+    }
+
+    @Override
+    public String toString() {
+        switch (kind) {
+            case EQUALS: return key + "=" + value;
+            case NOT_EQUALS: return key + "!=" + value;
+            case AT_LEAST: return key + ">=" + threshold;
+            default: return "!job:" + jobId;
+        }
+    }
+}
@@ -0,0 +1,342 @@
+package simulator.core;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Running tasks of a cell, indexed by priority and machine, for finding
+ * preemption victims. Every priority level keeps, per machine, the tasks running
+ * there together with their summed cpus and mem, plus the list of machines that
+ * have any task of that level. A victim search for priority P therefore only
+ * looks at machines running something below P, and for each of them only at
+ * the per-level sums, never at individual tasks; it is linear in the number of
+ * such machines times the number of levels below P, not in running tasks.
+ * In cells with resource dimensions beyond cpus and mem, a level also sums
+ * those per machine once a task claiming any of them joins it.
+ */
+public class RunningTaskIndex implements Serializable {
+    private static final long serialVersionUID = 1L;
+    
+    private final int numMachines;
+    private final int numDimensions;
+    private final TreeMap<Integer, Level> levels = new TreeMap<>();
+    private int numRunning = 0;
+    // Per-machine stamp to visit each candidate machine once per search
+    private final int[] visited;
+    private int searchStamp = 0;
+
+    private static class Level implements Serializable {
+        private static final long serialVersionUID = 1L;
+        
+        final int numDimensions;
+        final List<ClaimDelta>[] tasks;
+        final double[] cpus;
+        final double[] mem;
+        // extra[d - 2][machineID] for dimensions 2 and up, or null while no
+        // task of the level claims any of them
+        double[][] extra;
+        // Machines with at least one task of this level, and where each one sits
+        final int[] machines;
+        final int[] machinePos;
+        int numMachinesUsed = 0;
+
+        @SuppressWarnings("unchecked")
+        Level(int numMachines, int numDimensions) {
+            this.numDimensions = numDimensions;
+            tasks = (List<ClaimDelta>[]) new List<?>[numMachines];
+            cpus = new double[numMachines];
+            mem = new double[numMachines];
+            machines = new int[numMachines];
+            machinePos = new int[numMachines];
+        }
+
+        void add(ClaimDelta delta) {
+            int machineID = delta.getMachineID();
+            List<ClaimDelta> onMachine = tasks[machineID];
+            if (onMachine == null) {
+                onMachine = new ArrayList<>();
+                tasks[machineID] = onMachine;
+            }
+            if (onMachine.isEmpty()) {
+                machinePos[machineID] = numMachinesUsed;
+                machines[numMachinesUsed++] = machineID;
+            }
+            delta.runningIndex = onMachine.size();
+            onMachine.add(delta);
+            cpus[machineID] += delta.getCpus();
+            mem[machineID] += delta.getMem();
+            double[] extraResources = delta.getExtraResources();
+            if (extraResources != null) {
+                if (extra == null) {
+                    extra = new double[numDimensions - 2][cpus.length];
+                }
+                for (int k = 0; k < extra.length && k < extraResources.length; k++) {
+                    extra[k][machineID] += extraResources[k];
+                }
+            }
+        }
+
+        void remove(ClaimDelta delta) {
+            int machineID = delta.getMachineID();
+            List<ClaimDelta> onMachine = tasks[machineID];
+            // Swap-remove keeps this O(1)
+            ClaimDelta last = onMachine.remove(onMachine.size() - 1);
+            if (last != delta) {
+                onMachine.set(delta.runningIndex, last);
+                last.runningIndex = delta.runningIndex;
+            }
+            delta.runningIndex = -1;
+            cpus[machineID] -= delta.getCpus();
+            mem[machineID] -= delta.getMem();
+            double[] extraResources = delta.getExtraResources();
+            if (extraResources != null) {
+                for (int k = 0; k < extra.length && k < extraResources.length; k++) {
+                    extra[k][machineID] -= extraResources[k];
+                }
+            }
+            if (onMachine.isEmpty()) {
+                cpus[machineID] = 0.0;
+                mem[machineID] = 0.0;
+                if (extra != null) {
+                    for (double[] dimension : extra) {
+                        dimension[machineID] = 0.0;
+                    }
+                }
+                int pos = machinePos[machineID];
+                int moved = machines[--numMachinesUsed];
+                machines[pos] = moved;
+                machinePos[moved] = pos;
+            }
+        }
+    }
+
+    public RunningTaskIndex(int numMachines) {
+        this(numMachines, 2);
+    }
+    
+    /**
+     * @param numDimensions Resource dimensions of the cell, cpus and mem included
+     */
+    public RunningTaskIndex(int numMachines, int numDimensions) {
+        this.numMachines = numMachines;
+        this.numDimensions = numDimensions;
+        this.visited = new int[numMachines];
+    }
+
+    public int getNumRunning() {
+        return numRunning;
+    }
+
+    /**
+     * Every running task, level by level. O(running tasks).
+     */
+    public List<ClaimDelta> getTasks() {
+        List<ClaimDelta> all = new ArrayList<>(numRunning);
+        for (Level level : levels.values()) {
+            for (int i = 0; i < level.numMachinesUsed; i++) {
+                all.addAll(level.tasks[level.machines[i]]);
+            }
+        }
+        return all;
+    }
+
+    public void add(ClaimDelta delta) {
+        Level level = levels.get(delta.getPriority());
+        if (level == null) {
+            level = new Level(numMachines, numDimensions);
+            levels.put(delta.getPriority(), level);
+        }
+        level.add(delta);
+        numRunning++;
+    }
+
+    public void remove(ClaimDelta delta) {
+        if (delta.runningIndex < 0) {
+            return;
+        }
+        levels.get(delta.getPriority()).remove(delta);
+        numRunning--;
+    }
+
+    /**
+     * Find the machine where a task of the given priority and shape fits after
+     * evicting tasks of lower priority, preferring machines where the highest
+     * priority that must be evicted is lowest, then the ones that need the least
+     * cpus freed.
+     * @return The machine ID, or -1 if there is none
+     */
+    public int findVictimMachine(int priority, double cpus, double mem, CellState cellState) {
+        return findVictimMachine(priority, cpus, mem, null, cellState);
+    }
+    
+    /**
+     * findVictimMachine for a task that also needs extraResources in
+     * dimensions 2 and up (null if none).
+     */
+    public int findVictimMachine(int priority, double cpus, double mem, double[] extraResources,
+                                 CellState cellState) {
+        return findVictimMachine(priority, cpus, mem, extraResources, null, cellState);
+    }
+    
+    /**
+     * findVictimMachine for a task of the job, at its priority, among the
+     * machines that meet its placement constraints.
+     */
+    public int findVictimMachine(Job job, CellState cellState) {
+        return findVictimMachine(job.getPriority(), job.getCpusPerTask(), job.getMemPerTask(),
+                                 job.getExtraResourcesPerTask(), job.hasConstraints() ? job : null,
+                                 cellState);
+    }
+    
+    /**
+     * @param constrained Job whose placement constraints victim machines must
+     *                    meet, or null
+     */
+    private int findVictimMachine(int priority, double cpus, double mem, double[] extraResources,
+                                  Job constrained, CellState cellState) {
+        Map<Integer, Level> lower = levels.headMap(priority, false);
+        if (lower.isEmpty() || !withinDimensions(extraResources)) {
+            return -1;
+        }
+        double[] extraFree = extraResources == null ? null : new double[extraResources.length];
+        searchStamp++;
+        int best = -1;
+        int bestLevel = Integer.MAX_VALUE;
+        double bestEvicted = Double.POSITIVE_INFINITY;
+        for (Level level : lower.values()) {
+            for (int i = 0; i < level.numMachinesUsed; i++) {
+                int machineID = level.machines[i];
+                if (visited[machineID] == searchStamp) {
+                    continue;
+                }
+                visited[machineID] = searchStamp;
+                if (constrained != null && !cellState.meetsConstraints(constrained, machineID)) {
+                    continue;
+                }
+                double cpusFree = cellState.availableCpusPerMachine(machineID);
+                double memFree = cellState.availableMemPerMachine(machineID);
+                if (extraFree != null) {
+                    availableExtra(machineID, cellState, extraFree);
+                }
+                // Walk levels upwards until the task fits
+                for (Map.Entry<Integer, Level> entry : lower.entrySet()) {
+                    if (entry.getKey() > bestLevel) {
+                        break;
+                    }
+                    Level l = entry.getValue();
+                    cpusFree += l.cpus[machineID];
+                    memFree += l.mem[machineID];
+                    if (extraFree != null && l.extra != null) {
+                        for (int k = 0; k < extraFree.length && k < l.extra.length; k++) {
+                            extraFree[k] += l.extra[k][machineID];
+                        }
+                    }
+                    if (cpusFree >= cpus && memFree >= mem &&
+                        fitsExtra(extraFree, extraResources)) {
+                        double evicted = Math.max(0.0, cpus - cellState.availableCpusPerMachine(machineID));
+                        if (entry.getKey() < bestLevel ||
+                            (entry.getKey() == bestLevel && evicted < bestEvicted)) {
+                            best = machineID;
+                            bestLevel = entry.getKey();
+                            bestEvicted = evicted;
+                        }
+                        break;
+                    }
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Pick tasks below the given priority on a machine, lowest priority first and
+     * most recently started first within a level (least work lost), until a task
+     * of the given shape would fit. The victims are removed from the index but not from the cell.
+     */
+    public List<ClaimDelta> takeVictims(int machineID, int priority, double cpus, double mem,
+                                        CellState cellState) {
+        return takeVictims(machineID, priority, cpus, mem, null, cellState);
+    }
+    
+    /**
+     * takeVictims for a task that also needs extraResources in dimensions 2
+     * and up (null if none).
+     */
+    public List<ClaimDelta> takeVictims(int machineID, int priority, double cpus, double mem,
+                                        double[] extraResources, CellState cellState) {
+        List<ClaimDelta> victims = new ArrayList<>();
+        if (!withinDimensions(extraResources)) {
+            return victims;
+        }
+        double cpusFree = cellState.availableCpusPerMachine(machineID);
+        double memFree = cellState.availableMemPerMachine(machineID);
+        double[] extraFree = null;
+        if (extraResources != null) {
+            extraFree = new double[extraResources.length];
+            availableExtra(machineID, cellState, extraFree);
+        }
+        for (Map.Entry<Integer, Level> entry : levels.headMap(priority, false).entrySet()) {
+            Level level = entry.getValue();
+            List<ClaimDelta> onMachine = level.tasks[machineID];
+            while (onMachine != null && !onMachine.isEmpty() &&
+                   (cpusFree < cpus || memFree < mem || !fitsExtra(extraFree, extraResources))) {
+                ClaimDelta victim = onMachine.get(0);
+                for (ClaimDelta d : onMachine) {
+                    if (d.startTime > victim.startTime) {
+                        victim = d;
+                    }
+                }
+                level.remove(victim);
+                numRunning--;
+                victims.add(victim);
+                cpusFree += victim.getCpus();
+                memFree += victim.getMem();
+                if (extraFree != null) {
+                    for (int k = 0; k < extraFree.length; k++) {
+                        extraFree[k] += victim.getResource(k + 2);
+                    }
+                }
+            }
+            if (cpusFree >= cpus && memFree >= mem && fitsExtra(extraFree, extraResources)) {
+                break;
+            }
+        }
+        return victims;
+    }
+    
+    /**
+     * Whether every positive need in extraResources is in a dimension the cell has.
+     */
+    private boolean withinDimensions(double[] extraResources) {
+        if (extraResources != null) {
+            for (int k = numDimensions - 2; k < extraResources.length; k++) {
+                if (extraResources[k] > 0.0) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+    
+    private void availableExtra(int machineID, CellState cellState, double[] extraFree) {
+        for (int k = 0; k < extraFree.length; k++) {
+            extraFree[k] = k + 2 < numDimensions
+                ? cellState.availableResourcePerMachine(machineID, k + 2) : 0.0;
+        }
+    }
+    
+    private static boolean fitsExtra(double[] extraFree, double[] extraResources) {
+        if (extraResources == null) {
+            return true;
+        }
+        for (int k = 0; k < extraResources.length; k++) {
+            if (extraFree[k] < extraResources[k]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -1,12 +1,15 @@
 package simulator.core;
 
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
 
 /**
  * A class that holds a list of jobs for a workload.
  */
-public class Workload {
+public class Workload implements Serializable {
+    private static final long serialVersionUID = 1L;
+    
     private final String name;
     private final List<Job> jobs;
     